@@ -0,0 +1,255 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * Simple benchmark runner. Each benchmark is warmed up and then run
+ * repeatedly for a fixed time; the results are throughput, allocation per
+ * item (where the JVM can report it) and garbage collection during the
+ * measured time.
+ * <p>
+ * Command-line options for suites: <tt>-warmup seconds</tt>, 
+ * <tt>-time seconds</tt>, <tt>-only text</tt> (run only benchmarks whose 
+ * name contains the text). Suites may have their own options too; these
+ * must be read (with {@link #getOption(String[], String, String)}) before
+ * calling {@link #runAll(String, Benchmark[], String[])}.
+ */
+abstract class Benchmark
+{
+	private String name;
+	
+	/**
+	 * @param name Name shown in results
+	 */
+	Benchmark(String name)
+	{
+		this.name=name;
+	}
+	
+	/** @return Name shown in results */
+	String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * Called once before warmup.
+	 * @throws Exception Any error
+	 */
+	void setUp() throws Exception
+	{
+	}
+
+	/**
+	 * Called before each operation. This time isn't measured (but any
+	 * allocation is counted).
+	 * @throws Exception Any error
+	 */
+	void prepare() throws Exception
+	{
+	}
+
+	/**
+	 * Runs one operation.
+	 * @return Number of items (e.g. messages) processed
+	 * @throws Exception Any error
+	 */
+	abstract int run() throws Exception;
+	
+	/**
+	 * Called once after measuring, to release memory before the next
+	 * benchmark.
+	 */
+	void tearDown()
+	{
+	}
+	
+	/** Options */
+	private static int warmupSeconds=3,measureSeconds=5;
+	private static String only=null;
+	
+	/** Options used by the suite itself */
+	private static Set<String> suiteOptions=new HashSet<String>();
+	
+	/**
+	 * Gets a suite-specific option.
+	 * @param args Command-line options
+	 * @param name Option name e.g. "-sizes"
+	 * @param def Default value
+	 * @return Value
+	 */
+	static String getOption(String[] args,String name,String def)
+	{
+		suiteOptions.add(name);
+		for(int i=0;i+1<args.length;i++)
+		{
+			if(args[i].equals(name)) return args[i+1];
+		}
+		return def;
+	}
+	
+	/**
+	 * Gets a suite-specific option that is a comma-separated list of numbers.
+	 * @param args Command-line options
+	 * @param name Option name e.g. "-sizes"
+	 * @param def Default value e.g. "1000,10000"
+	 * @return Values
+	 */
+	static double[] getNumbers(String[] args,String name,String def)
+	{
+		String[] values=getOption(args,name,def).split(",");
+		double[] result=new double[values.length];
+		for(int i=0;i<values.length;i++)
+		{
+			result[i]=Double.parseDouble(values[i]);
+		}
+		return result;
+	}
+	
+	/**
+	 * Runs benchmarks and prints results to standard output.
+	 * @param suite Suite name
+	 * @param benchmarks Benchmarks to run
+	 * @param args Command-line options
+	 * @throws Exception Any error
+	 */
+	static void runAll(String suite,Benchmark[] benchmarks,String[] args) throws Exception
+	{
+		for(int i=0;i<args.length;i++)
+		{
+			if(args[i].equals("-warmup") && i+1<args.length)
+				warmupSeconds=Integer.parseInt(args[++i]);
+			else if(args[i].equals("-time") && i+1<args.length)
+				measureSeconds=Integer.parseInt(args[++i]);
+			else if(args[i].equals("-only") && i+1<args.length)
+				only=args[++i];
+			else if(suiteOptions.contains(args[i]) && i+1<args.length)
+				i++;
+			else
+				throw new IllegalArgumentException("Unknown option: "+args[i]);
+		}
+		
+		System.out.println(suite+" (warmup "+warmupSeconds+"s, measure "+
+			measureSeconds+"s)");
+		System.out.println(String.format("%-40s %12s %14s %14s %8s %8s",
+			"Benchmark","ops/s","items/s","bytes/item","GCs","GC ms"));
+		for(int i=0;i<benchmarks.length;i++)
+		{
+			Benchmark b=benchmarks[i];
+			if(only!=null && b.getName().indexOf(only)==-1) continue;
+			b.setUp();
+			b.loop(warmupSeconds*1000L);
+			System.gc();
+			
+			long allocBefore=getAllocatedBytes(),gcCountBefore=getGcCount(),
+				gcTimeBefore=getGcTime();
+			long[] counts=b.loop(measureSeconds*1000L);
+			long alloc=getAllocatedBytes()-allocBefore;
+			
+			double seconds=counts[2]/1000000000.0;
+			System.out.println(String.format("%-40s %12.1f %14.1f %14s %8d %8d",
+				b.getName(),counts[0]/seconds,counts[1]/seconds,
+				allocBefore==-1 ? "n/a" : String.valueOf(alloc/Math.max(1,counts[1])),
+				getGcCount()-gcCountBefore,getGcTime()-gcTimeBefore));
+			b.tearDown();
+		}
+	}
+	
+	/**
+	 * Runs the benchmark repeatedly.
+	 * @param millis Time to run for
+	 * @return Number of operations, number of items and measured nanoseconds
+	 * @throws Exception Any error
+	 */
+	private long[] loop(long millis) throws Exception
+	{
+		long ops=0,items=0,nanos=0,end=System.currentTimeMillis()+millis;
+		do
+		{
+			prepare();
+			long start=System.nanoTime();
+			items+=run();
+			nanos+=System.nanoTime()-start;
+			ops++;
+		}
+		while(System.currentTimeMillis()<end);
+		return new long[] { ops,items,nanos };
+	}
+	
+	/**
+	 * @return Bytes allocated by this thread so far, or -1 if the JVM can't
+	 *   tell
+	 */
+	private static long getAllocatedBytes()
+	{
+		ThreadMXBean bean=ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean)
+		{
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+		}
+		return -1;
+	}
+	
+	/** @return Total garbage collections so far */
+	static long getGcCount()
+	{
+		long count=0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			count+=Math.max(0,gc.getCollectionCount());
+		}
+		return count;
+	}
+	
+	/** @return Total garbage collection time so far in milliseconds */
+	static long getGcTime()
+	{
+		long time=0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			time+=Math.max(0,gc.getCollectionTime());
+		}
+		return time;
+	}
+	
+	/**
+	 * Stops the JIT from removing work whose result isn't used.
+	 * @param o Result
+	 */
+	static void consume(Object o)
+	{
+		if(o!=null) sink^=System.identityHashCode(o);
+	}
+	
+	/** Receives consumed results */
+	static volatile int sink;
+	
+	/**
+	 * @param list Benchmarks
+	 * @return Array
+	 */
+	static Benchmark[] toArray(List<Benchmark> list)
+	{
+		return list.toArray(new Benchmark[list.size()]);
+	}
+}
@@ -0,0 +1,186 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.Random;
+
+import org.w3c.dom.Element;
+
+import textlayout.stylesheet.*;
+import util.xml.*;
+
+/**
+ * Generates repeatable chat-like messages for benchmarks. Each message is
+ * an XML string for a single &lt;line&gt;, to go inside &lt;output&gt;.
+ */
+class ChatCorpus
+{
+	/** Words used to make up text */
+	private final static String[] WORDS=
+	{
+		"the","a","to","and","of","is","it","that","you","in","lol","ok","yeah",
+		"what","build","server","channel","anyone","know","why","this","works",
+		"now","thanks","restart","again","error","config","tomorrow","meeting",
+		"http://example.com/some/path","release","branch","fixed","broken"
+	};
+	
+	/** Nicknames */
+	private final static String[] NICKS=
+	{
+		"alice","bob","carol","dave","eve","mallory","trent","peggy"
+	};
+	
+	/** Styles added for chat-like output */
+	private final static String CHAT_STYLES=
+		"line > timestamp { type:margin-block; margin-width:40; font-size:0.8f; }" +
+		"nick { font-weight:bold; }" +
+		"outlined { outline:#ff0; }";
+	
+	private Random r;
+	
+	/**
+	 * @param seed Random seed (same seed gives same messages)
+	 */
+	ChatCorpus(long seed)
+	{
+		r=new Random(seed);
+	}
+	
+	/**
+	 * @return Default style plus the chat styles (timestamps in the margin)
+	 * @throws Exception Any error
+	 */
+	static StyleContext getStyle() throws Exception
+	{
+		StyleContext sc=new StyleContext(StyleContext.getDefault(false));
+		sc.addStylesheet(new Stylesheet(CHAT_STYLES));
+		return sc;
+	}
+	
+	/**
+	 * @param xml XML for one or more lines
+	 * @return Parsed &lt;output&gt; element containing them
+	 * @throws XMLException If XML is invalid
+	 */
+	static Element parse(String xml) throws XMLException
+	{
+		return XML.parse("<output>"+xml+"</output>").getDocumentElement();
+	}
+	
+	/** @return Random word */
+	String word()
+	{
+		return WORDS[r.nextInt(WORDS.length)];
+	}
+	
+	/** @return Random nickname */
+	String nick()
+	{
+		return NICKS[r.nextInt(NICKS.length)];
+	}
+	
+	/** @return Random timestamp */
+	String time()
+	{
+		return String.format("%02d:%02d",r.nextInt(24),r.nextInt(60));
+	}
+	
+	/**
+	 * @param words Number of words
+	 * @param longWordChance Chance (0-1) that each word is a long unbreakable
+	 *   word that will have to be split across lines
+	 * @return Plain text (already escaped)
+	 */
+	String text(int words,double longWordChance)
+	{
+		StringBuffer sb=new StringBuffer();
+		for(int i=0;i<words;i++)
+		{
+			if(i>0) sb.append(' ');
+			if(r.nextDouble()<longWordChance)
+			{
+				for(int j=0;j<20;j++) sb.append(word());
+			}
+			else
+			{
+				sb.append(XML.esc(word()));
+			}
+		}
+		return sb.toString();
+	}
+	
+	/** @return Short line: a few words */
+	String shortLine()
+	{
+		return "<line>"+text(3+r.nextInt(10),0)+"</line>";
+	}
+	
+	/**
+	 * @param words Number of words
+	 * @return Long pasted line
+	 */
+	String longPaste(int words)
+	{
+		return "<line>"+text(words,0.01)+"</line>";
+	}
+	
+	/** @return Line with nested inline tags */
+	String nestedLine()
+	{
+		return "<line>"+text(2,0)+" <em>"+text(2,0)+" <strong>"+text(2,0)+
+			" <mono>"+text(2,0)+"</mono> "+text(1,0)+"</strong></em> <link>"+
+			text(1,0)+"</link> "+text(3,0)+"</line>";
+	}
+	
+	/** @return Line with tags the stylesheet doesn't know */
+	String unknownLine()
+	{
+		return "<line><nick>"+nick()+"</nick> "+text(4,0)+" <chan>#"+word()+
+			"</chan> "+text(3,0)+" <unknown><mode>+o</mode></unknown></line>";
+	}
+	
+	/** @return Line with timestamp in margin and nickname */
+	String timestampLine()
+	{
+		return "<line><timestamp>"+time()+"</timestamp><nick>"+nick()+"</nick> "+
+			text(3+r.nextInt(15),0)+"</line>";
+	}
+	
+	/**
+	 * @param words Number of words
+	 * @param longWordChance Chance (0-1) of long unbreakable words
+	 * @return Paragraph line with timestamp
+	 */
+	String paragraphLine(int words,double longWordChance)
+	{
+		return "<line><timestamp>"+time()+"</timestamp><nick>"+nick()+"</nick> "+
+			text(words,longWordChance)+"</line>";
+	}
+	
+	/**
+	 * @param words Number of words
+	 * @return Line with timestamp, nickname and outlined text (each word
+	 *   uses a background image)
+	 */
+	String outlinedLine(int words)
+	{
+		return "<line><timestamp>"+time()+"</timestamp><nick>"+nick()+"</nick> "+
+			"<outlined>"+text(words,0)+"</outlined></line>";
+	}
+}
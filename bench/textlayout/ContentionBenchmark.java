@@ -0,0 +1,217 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.List;
+
+import textlayout.stylesheet.StyleContext;
+
+/**
+ * Stress test for painting while messages arrive. One thread keeps adding
+ * lines to a layout (trimming the buffer as a chat window would) while the
+ * benchmark thread paints the end of it into an offscreen image, as fast as
+ * it can. Each operation is one frame. After each benchmark, the worst and
+ * 99th percentile frame times and the time paints spent waiting for the
+ * layout lock are shown; these should stay about the same as with no
+ * appends, however fast lines arrive. They cover warmup as well as the
+ * measured time.
+ * <p>
+ * Extra options: <tt>-viewport</tt> (size, default 800x600),
+ * <tt>-blocks</tt> (lines in buffer, default 2000), <tt>-rate</tt> (lines
+ * added per second, 0 for none; default 0,100,1000,10000).
+ */
+public class ContentionBenchmark
+{
+	/** Words in each generated line */
+	private final static int WORDS=20;
+	
+	/** Blocks over the limit before the buffer is trimmed */
+	private final static int TRIM_BATCH=100;
+	
+	private static int viewportWidth,viewportHeight,blocks;
+	
+	/**
+	 * Paints the end of a layout while another thread adds lines.
+	 */
+	private static class PaintWhileAppending extends Benchmark
+	{
+		private int rate;
+		private StyleContext sc;
+		private Layout l;
+		private BufferedImage image;
+		private Graphics2D g;
+		
+		private Thread appender;
+		private volatile boolean stop;
+		private volatile Throwable failure;
+		private volatile long appended;
+		
+		private LayoutMetrics.Histogram frames;
+		private LayoutMetrics.Distribution waitBefore;
+		private long started;
+		
+		PaintWhileAppending(int rate)
+		{
+			super(rate==0 ? "paint [no appends]" : "paint ["+rate+" appends/s]");
+			this.rate=rate;
+		}
+		
+		@Override
+		void setUp() throws Exception
+		{
+			sc=ChatCorpus.getStyle();
+			ChatCorpus c=new ChatCorpus(1);
+			l=new Layout();
+			l.reflow(viewportWidth);
+			for(int i=0;i<blocks;i++)
+			{
+				l.addBlock(sc,LayoutGenerator.getLayout(sc,
+					ChatCorpus.parse(c.paragraphLine(WORDS,0)))[0]);
+			}
+			
+			image=new BufferedImage(viewportWidth,viewportHeight,
+				BufferedImage.TYPE_INT_RGB);
+			g=image.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+				RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			
+			frames=new LayoutMetrics.Histogram();
+			waitBefore=LayoutMetrics.paintWaitTime.getDistribution();
+			started=System.nanoTime();
+			if(rate>0)
+			{
+				appender=new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						append();
+					}
+				},"Appender");
+				appender.start();
+			}
+		}
+		
+		/**
+		 * Adds lines at the given rate until stopped. If it falls behind, it
+		 * adds lines as fast as it can until caught up.
+		 */
+		private void append()
+		{
+			try
+			{
+				ChatCorpus c=new ChatCorpus(2);
+				long interval=1000000000L/rate,due=System.nanoTime();
+				while(!stop)
+				{
+					long wait=due-System.nanoTime();
+					if(wait>0) Thread.sleep(wait/1000000,(int)(wait%1000000));
+					
+					// Lines vary in length, as they do in a real chat
+					String line=appended%4==0 ? c.shortLine() : c.paragraphLine(WORDS,0.01);
+					l.addBlock(sc,LayoutGenerator.getLayout(sc,ChatCorpus.parse(line))[0]);
+					if(l.getBlockCount()>blocks+TRIM_BATCH)
+					{
+						l.deleteFirstBlocks(TRIM_BATCH);
+					}
+					appended++;
+					due+=interval;
+				}
+			}
+			catch(InterruptedException e)
+			{
+			}
+			catch(Throwable t)
+			{
+				failure=t;
+			}
+		}
+		
+		@Override
+		int run() throws Exception
+		{
+			// Follow the end, as a chat window does
+			int startY=Math.max(0,l.getHeight()-viewportHeight);
+			long start=System.nanoTime();
+			l.paint(g,0,0,viewportWidth,startY,viewportHeight);
+			frames.record(System.nanoTime()-start);
+			return 1;
+		}
+		
+		@Override
+		void tearDown()
+		{
+			if(appender!=null)
+			{
+				stop=true;
+				try
+				{
+					appender.join();
+				}
+				catch(InterruptedException e)
+				{
+					appender.interrupt();
+				}
+				appender=null;
+			}
+			double seconds=(System.nanoTime()-started)/1000000000.0;
+			LayoutMetrics.Distribution frame=frames.getDistribution(),
+				wait=LayoutMetrics.paintWaitTime.getDistribution().since(waitBefore);
+			System.out.println(String.format(
+				"  frame max %.2f ms, 99%% %.2f ms; lock wait max %.2f ms, 99%% %.2f ms; %.1f appends/s",
+				frame.getMax()/1000000.0,frame.getPercentile(0.99)/1000000.0,
+				wait.getMax()/1000000.0,wait.getPercentile(0.99)/1000000.0,
+				appended/seconds));
+			
+			g.dispose();
+			g=null;
+			image=null;
+			l=null;
+			if(failure!=null) throw new Error(failure);
+		}
+	}
+	
+	/**
+	 * @param args Options, see {@link Benchmark}
+	 * @throws Exception Any error
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		String[] viewport=Benchmark.getOption(args,"-viewport","800x600").split("x");
+		if(viewport.length!=2)
+			throw new IllegalArgumentException("-viewport must be WIDTHxHEIGHT");
+		viewportWidth=Integer.parseInt(viewport[0]);
+		viewportHeight=Integer.parseInt(viewport[1]);
+		blocks=Integer.parseInt(Benchmark.getOption(args,"-blocks","2000"));
+		double[] rates=Benchmark.getNumbers(args,"-rate","0,100,1000,10000");
+		
+		List<Benchmark> list=new LinkedList<Benchmark>();
+		for(int i=0;i<rates.length;i++)
+		{
+			list.add(new PaintWhileAppending((int)rates[i]));
+		}
+		
+		System.out.println("Viewport "+viewportWidth+"x"+viewportHeight+", "+
+			blocks+" lines");
+		Benchmark.runAll("Contention",Benchmark.toArray(list),args);
+	}
+}
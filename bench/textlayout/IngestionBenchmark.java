@@ -0,0 +1,259 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.*;
+
+import org.w3c.dom.Element;
+
+import textlayout.stylesheet.StyleContext;
+
+/**
+ * Measures how quickly messages are turned into blocks 
+ * ({@link LayoutGenerator#getLayout(StyleContext, Element)}), in messages
+ * per second (items/s), for different kinds of chat message.
+ */
+public class IngestionBenchmark
+{
+	/** Messages per operation */
+	private final static int MESSAGES=1000;
+	
+	/**
+	 * Kind of message.
+	 */
+	private static abstract class Kind
+	{
+		abstract String get(ChatCorpus c);
+	}
+	
+	/**
+	 * Generates blocks from already-parsed XML.
+	 */
+	private static class GenerateBenchmark extends Benchmark
+	{
+		private Kind kind;
+		private StyleContext sc;
+		private Element[] messages;
+		
+		GenerateBenchmark(String name,Kind kind)
+		{
+			super(name);
+			this.kind=kind;
+		}
+
+		@Override
+		void setUp() throws Exception
+		{
+			sc=ChatCorpus.getStyle();
+			ChatCorpus c=new ChatCorpus(1);
+			messages=new Element[MESSAGES];
+			for(int i=0;i<MESSAGES;i++)
+			{
+				messages[i]=ChatCorpus.parse(kind.get(c));
+			}
+		}
+
+		@Override
+		int run() throws Exception
+		{
+			for(int i=0;i<messages.length;i++)
+			{
+				consume(LayoutGenerator.getLayout(sc,messages[i]));
+			}
+			return messages.length;
+		}
+		
+		@Override
+		void tearDown()
+		{
+			messages=null;
+		}
+	}
+	
+	/**
+	 * Parses XML text and generates blocks, as a client does.
+	 */
+	private static class ParseBenchmark extends Benchmark
+	{
+		private Kind kind;
+		private StyleContext sc;
+		private String[] messages;
+		
+		ParseBenchmark(String name,Kind kind)
+		{
+			super(name);
+			this.kind=kind;
+		}
+
+		@Override
+		void setUp() throws Exception
+		{
+			sc=ChatCorpus.getStyle();
+			ChatCorpus c=new ChatCorpus(1);
+			messages=new String[MESSAGES];
+			for(int i=0;i<MESSAGES;i++)
+			{
+				messages[i]=kind.get(c);
+			}
+		}
+
+		@Override
+		int run() throws Exception
+		{
+			for(int i=0;i<messages.length;i++)
+			{
+				consume(LayoutGenerator.getLayout(sc,ChatCorpus.parse(messages[i])));
+			}
+			return messages.length;
+		}
+	}
+	
+	/**
+	 * Generates blocks for timestamp lines from a compiled template.
+	 */
+	private static class TemplateBenchmark extends Benchmark
+	{
+		private StyleContext sc;
+		private LayoutTemplate template;
+		private String[][] values;
+		
+		TemplateBenchmark()
+		{
+			super("timestamp lines (template)");
+		}
+
+		@Override
+		void setUp() throws Exception
+		{
+			sc=ChatCorpus.getStyle();
+			template=new LayoutTemplate(sc,ChatCorpus.parse(
+				"<line><timestamp>{0}</timestamp><nick>{1}</nick> {2}</line>"));
+			ChatCorpus c=new ChatCorpus(1);
+			values=new String[MESSAGES][];
+			for(int i=0;i<MESSAGES;i++)
+			{
+				values[i]=new String[] { c.time(),c.nick(),c.text(3,0) };
+			}
+		}
+
+		@Override
+		int run() throws Exception
+		{
+			for(int i=0;i<values.length;i++)
+			{
+				consume(template.getLayout(sc,values[i]));
+			}
+			return values.length;
+		}
+	}
+	
+	/**
+	 * Generates blocks for plain text lines without XML.
+	 */
+	private static class PlainTextBenchmark extends Benchmark
+	{
+		private StyleContext sc;
+		private String[] messages;
+		
+		PlainTextBenchmark()
+		{
+			super("short lines (plain text)");
+		}
+
+		@Override
+		void setUp() throws Exception
+		{
+			sc=ChatCorpus.getStyle();
+			ChatCorpus c=new ChatCorpus(1);
+			messages=new String[MESSAGES];
+			for(int i=0;i<MESSAGES;i++)
+			{
+				messages[i]=c.text(3,0);
+			}
+		}
+
+		@Override
+		int run() throws Exception
+		{
+			for(int i=0;i<messages.length;i++)
+			{
+				consume(LayoutGenerator.getTextLayout(sc,"output/line",messages[i]));
+			}
+			return messages.length;
+		}
+	}
+	
+	/**
+	 * @param args Options, see {@link Benchmark}
+	 * @throws Exception Any error
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Kind shortLines=new Kind()
+		{
+			@Override
+			String get(ChatCorpus c)
+			{
+				return c.shortLine();
+			}
+		};
+		
+		List<Benchmark> list=new LinkedList<Benchmark>();
+		list.add(new GenerateBenchmark("short lines",shortLines));
+		list.add(new GenerateBenchmark("long pastes",new Kind()
+		{
+			@Override
+			String get(ChatCorpus c)
+			{
+				return c.longPaste(500);
+			}
+		}));
+		list.add(new GenerateBenchmark("nested inline tags",new Kind()
+		{
+			@Override
+			String get(ChatCorpus c)
+			{
+				return c.nestedLine();
+			}
+		}));
+		list.add(new GenerateBenchmark("unknown tags",new Kind()
+		{
+			@Override
+			String get(ChatCorpus c)
+			{
+				return c.unknownLine();
+			}
+		}));
+		Kind timestampLines=new Kind()
+		{
+			@Override
+			String get(ChatCorpus c)
+			{
+				return c.timestampLine();
+			}
+		};
+		list.add(new GenerateBenchmark("timestamp lines",timestampLines));
+		list.add(new ParseBenchmark("short lines (with parse)",shortLines));
+		list.add(new ParseBenchmark("timestamp lines (with parse)",timestampLines));
+		list.add(new TemplateBenchmark());
+		list.add(new PlainTextBenchmark());
+		
+		Benchmark.runAll("Ingestion",Benchmark.toArray(list),args);
+	}
+}
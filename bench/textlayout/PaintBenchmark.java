@@ -0,0 +1,283 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.List;
+
+import textlayout.stylesheet.StyleContext;
+
+/**
+ * Measures painting a reflowed layout into an offscreen image, so it can 
+ * run headless: full viewport paints, scrolling by one line, dragging a 
+ * selection across several lines, and outlined text with the background 
+ * image cache either warm or empty. Each operation is one frame, so ops/s
+ * is frames per second.
+ * <p>
+ * Extra options: <tt>-viewport</tt> (size, default 800x600), 
+ * <tt>-blocks</tt> (lines in buffer, default 2000), <tt>-drag</tt> (lines 
+ * a selection is dragged across, default 5,50), <tt>-antialias</tt> and 
+ * <tt>-fractional</tt> (on or off, default on and off).
+ */
+public class PaintBenchmark
+{
+	/** Words in each generated line */
+	private final static int WORDS=20;
+	
+	/** Cache budget for outlined text, large enough to hold a viewport */
+	private final static long OUTLINE_BUDGET=64*1024*1024;
+	
+	private static int viewportWidth,viewportHeight,blocks;
+	private static boolean antialias,fractional;
+	
+	/**
+	 * Base for benchmarks that paint a buffer of lines.
+	 */
+	private static abstract class PaintBase extends Benchmark
+	{
+		StyleContext sc;
+		Layout l;
+		BufferedImage image;
+		Graphics2D g;
+		int startY,lineHeight;
+		
+		PaintBase(String name)
+		{
+			super(name);
+		}
+		
+		/**
+		 * @param c Corpus
+		 * @return XML for one line
+		 */
+		String getLine(ChatCorpus c)
+		{
+			return c.paragraphLine(WORDS,0);
+		}
+		
+		@Override
+		void setUp() throws Exception
+		{
+			sc=ChatCorpus.getStyle();
+			ChatCorpus c=new ChatCorpus(1);
+			l=new Layout();
+			l.reflow(viewportWidth);
+			for(int i=0;i<blocks;i++)
+			{
+				LayoutBlock[] lines=LayoutGenerator.getLayout(sc,
+					ChatCorpus.parse(getLine(c)));
+				l.addBlock(sc,lines[0]);
+			}
+			
+			image=new BufferedImage(viewportWidth,viewportHeight,
+				BufferedImage.TYPE_INT_RGB);
+			g=image.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,antialias 
+				? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+			g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,antialias 
+				? RenderingHints.VALUE_TEXT_ANTIALIAS_ON : RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+			g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS,fractional 
+				? RenderingHints.VALUE_FRACTIONALMETRICS_ON : RenderingHints.VALUE_FRACTIONALMETRICS_OFF);
+			lineHeight=g.getFontMetrics(sc.getFont(new String[] {"output","line"})).getHeight();
+			
+			// Start at the end, as a chat window usually is
+			startY=Math.max(0,l.getHeight()-viewportHeight);
+		}
+		
+		/**
+		 * Paints the viewport at the current position.
+		 */
+		void paint()
+		{
+			l.paint(g,0,0,viewportWidth,startY,viewportHeight);
+		}
+		
+		@Override
+		int run() throws Exception
+		{
+			paint();
+			return 1;
+		}
+		
+		@Override
+		void tearDown()
+		{
+			g.dispose();
+			g=null;
+			image=null;
+			l=null;
+		}
+	}
+	
+	/**
+	 * Repaints the same viewport.
+	 */
+	private static class FullPaint extends PaintBase
+	{
+		FullPaint()
+		{
+			super("full viewport");
+		}
+	}
+	
+	/**
+	 * Scrolls up by one line and repaints the viewport (as the scrolling 
+	 * view does), going back to the end on reaching the top.
+	 */
+	private static class Scroll extends PaintBase
+	{
+		Scroll()
+		{
+			super("one-line scroll");
+		}
+		
+		@Override
+		int run() throws Exception
+		{
+			startY-=lineHeight;
+			if(startY<0) startY=Math.max(0,l.getHeight()-viewportHeight);
+			paint();
+			return 1;
+		}
+	}
+	
+	/**
+	 * Drags a selection downwards from the top of the viewport, one line per
+	 * frame, until it covers the given number of lines, then starts again.
+	 */
+	private static class Drag extends PaintBase
+	{
+		private int lines,line;
+		
+		Drag(int lines)
+		{
+			super("selection drag ["+lines+" lines]");
+			this.lines=lines;
+		}
+		
+		@Override
+		void setUp() throws Exception
+		{
+			super.setUp();
+			startY=Math.max(0,startY-lines*lineHeight);
+		}
+		
+		@Override
+		int run() throws Exception
+		{
+			line=line%lines+1;
+			l.setHighlight(10,startY+lineHeight/2,viewportWidth/2,
+				startY+lineHeight/2+line*lineHeight);
+			paint();
+			return 1;
+		}
+	}
+	
+	/**
+	 * Paints lines of outlined text. If the cache is cold, it is emptied
+	 * before each frame so that every background image is created again.
+	 */
+	private static class Outlined extends PaintBase
+	{
+		private boolean cold;
+		private long oldBudget;
+		
+		Outlined(boolean cold)
+		{
+			super("outlined text ["+(cold ? "cache misses" : "cache hits")+"]");
+			this.cold=cold;
+		}
+		
+		@Override
+		String getLine(ChatCorpus c)
+		{
+			return c.outlinedLine(WORDS);
+		}
+		
+		@Override
+		void setUp() throws Exception
+		{
+			super.setUp();
+			oldBudget=BackgroundImageCache.getBudget();
+			BackgroundImageCache.setBudget(OUTLINE_BUDGET);
+			paint();
+		}
+		
+		@Override
+		void prepare()
+		{
+			if(cold) BackgroundImageCache.clear();
+		}
+		
+		@Override
+		void tearDown()
+		{
+			super.tearDown();
+			BackgroundImageCache.clear();
+			BackgroundImageCache.setBudget(oldBudget);
+		}
+	}
+	
+	/**
+	 * @param args Command-line options
+	 * @param name Option name
+	 * @param def Default value
+	 * @return True if option is "on"
+	 */
+	private static boolean getSwitch(String[] args,String name,String def)
+	{
+		String value=Benchmark.getOption(args,name,def);
+		if(value.equals("on")) return true;
+		if(value.equals("off")) return false;
+		throw new IllegalArgumentException(name+" must be on or off");
+	}
+	
+	/**
+	 * @param args Options, see {@link Benchmark}
+	 * @throws Exception Any error
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		String[] viewport=Benchmark.getOption(args,"-viewport","800x600").split("x");
+		if(viewport.length!=2)
+			throw new IllegalArgumentException("-viewport must be WIDTHxHEIGHT");
+		viewportWidth=Integer.parseInt(viewport[0]);
+		viewportHeight=Integer.parseInt(viewport[1]);
+		blocks=Integer.parseInt(Benchmark.getOption(args,"-blocks","2000"));
+		antialias=getSwitch(args,"-antialias","on");
+		fractional=getSwitch(args,"-fractional","off");
+		double[] drags=Benchmark.getNumbers(args,"-drag","5,50");
+		
+		List<Benchmark> list=new LinkedList<Benchmark>();
+		list.add(new FullPaint());
+		list.add(new Scroll());
+		for(int i=0;i<drags.length;i++)
+		{
+			list.add(new Drag((int)drags[i]));
+		}
+		list.add(new Outlined(false));
+		list.add(new Outlined(true));
+		
+		System.out.println("Viewport "+viewportWidth+"x"+viewportHeight+", antialias "+
+			(antialias ? "on" : "off")+", fractional metrics "+(fractional ? "on" : "off"));
+		Benchmark.runAll("Paint",Benchmark.toArray(list),args);
+	}
+}
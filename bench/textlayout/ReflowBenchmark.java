@@ -0,0 +1,265 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.*;
+
+import textlayout.stylesheet.StyleContext;
+
+/**
+ * Measures reflow of a buffer of blocks: full reflows at different widths,
+ * one-pixel resize sweeps, appending blocks (which moves the _current 
+ * style) and deleting blocks from the start. Items are blocks reflowed
+ * (or added/deleted).
+ * <p>
+ * Extra options: <tt>-sizes</tt> (blocks in buffer, default 1000,10000), 
+ * <tt>-words</tt> (words per paragraph, default 10,60) and 
+ * <tt>-longwords</tt> (chance of each word being too long for a line, 
+ * default 0,0.02). Every combination is run.
+ */
+public class ReflowBenchmark
+{
+	/** Widths used for full reflow */
+	private final static int[] WIDTHS={300,450,650,800};
+	
+	/** Range of resize sweep */
+	private final static int SWEEP_MIN=400,SWEEP_MAX=600;
+	
+	/** Blocks deleted in trim benchmark */
+	private final static int TRIM=100;
+	
+	/**
+	 * Base for benchmarks that use a buffer of blocks.
+	 */
+	private static abstract class BufferBenchmark extends Benchmark
+	{
+		int size,words;
+		double longWords;
+		StyleContext sc;
+		Layout l;
+		
+		/** Blocks that aren't currently in the layout, oldest first */
+		LinkedList<LayoutBlock> spare=new LinkedList<LayoutBlock>();
+		
+		/** Blocks in layout, oldest first */
+		LinkedList<LayoutBlock> added=new LinkedList<LayoutBlock>();
+		
+		BufferBenchmark(String name,int size,int words,double longWords)
+		{
+			super(name+" ["+size+" blocks, "+words+" words, "+longWords+" long]");
+			this.size=size;
+			this.words=words;
+			this.longWords=longWords;
+		}
+		
+		/**
+		 * @return Number of extra blocks to create that aren't initially added
+		 */
+		int getSpare()
+		{
+			return 0;
+		}
+
+		@Override
+		void setUp() throws Exception
+		{
+			sc=ChatCorpus.getStyle();
+			ChatCorpus c=new ChatCorpus(1);
+			l=new Layout();
+			l.reflow(WIDTHS[0]);
+			for(int i=0;i<size+getSpare();i++)
+			{
+				LayoutBlock[] blocks=LayoutGenerator.getLayout(sc,
+					ChatCorpus.parse(c.paragraphLine(words,longWords)));
+				if(i<size)
+				{
+					l.addBlock(sc,blocks[0]);
+					added.add(blocks[0]);
+				}
+				else
+				{
+					spare.add(blocks[0]);
+				}
+			}
+		}
+		
+		/**
+		 * Adds the oldest spare block.
+		 * @throws LayoutException Any error
+		 */
+		void addSpare() throws LayoutException
+		{
+			LayoutBlock lb=spare.removeFirst();
+			l.addBlock(sc,lb);
+			added.add(lb);
+		}
+		
+		/**
+		 * Deletes blocks from the start and keeps them as spare.
+		 * @param count Number of blocks
+		 */
+		void deleteFirst(int count)
+		{
+			l.deleteFirstBlocks(count);
+			for(int i=0;i<count;i++)
+			{
+				spare.add(added.removeFirst());
+			}
+		}
+		
+		@Override
+		void tearDown()
+		{
+			l=null;
+			spare.clear();
+			added.clear();
+		}
+	}
+	
+	/**
+	 * Full reflow, changing between very different widths.
+	 */
+	private static class FullReflow extends BufferBenchmark
+	{
+		private int index;
+		
+		FullReflow(int size,int words,double longWords)
+		{
+			super("full reflow",size,words,longWords);
+		}
+
+		@Override
+		int run()
+		{
+			// More widths than the layout keeps flows for, so every one is flowed again
+			index=(index+1)%WIDTHS.length;
+			l.reflow(WIDTHS[index]);
+			return size;
+		}
+	}
+	
+	/**
+	 * Resize by one pixel at a time, as when dragging a window edge.
+	 */
+	private static class ResizeSweep extends BufferBenchmark
+	{
+		private int width=SWEEP_MAX,direction=-1;
+		
+		ResizeSweep(int size,int words,double longWords)
+		{
+			super("resize sweep",size,words,longWords);
+		}
+
+		@Override
+		int run()
+		{
+			if(width==SWEEP_MIN || width==SWEEP_MAX) direction=-direction;
+			width+=direction;
+			l.reflow(width);
+			return size;
+		}
+	}
+	
+	/**
+	 * Appends one block (the previous one stops being _current). The buffer
+	 * is kept at its size by deleting the first block before each append,
+	 * which isn't measured.
+	 */
+	private static class Append extends BufferBenchmark
+	{
+		Append(int size,int words,double longWords)
+		{
+			super("append",size,words,longWords);
+		}
+		
+		@Override
+		int getSpare()
+		{
+			return 1;
+		}
+		
+		@Override
+		void prepare()
+		{
+			if(spare.isEmpty()) deleteFirst(1);
+		}
+
+		@Override
+		int run() throws LayoutException
+		{
+			addSpare();
+			return 1;
+		}
+	}
+	
+	/**
+	 * Deletes blocks from the start. The blocks are added back before each
+	 * delete, which isn't measured.
+	 */
+	private static class Trim extends BufferBenchmark
+	{
+		Trim(int size,int words,double longWords)
+		{
+			super("trim "+TRIM,size,words,longWords);
+		}
+		
+		@Override
+		void prepare() throws LayoutException
+		{
+			while(!spare.isEmpty()) addSpare();
+		}
+
+		@Override
+		int run()
+		{
+			deleteFirst(TRIM);
+			return TRIM;
+		}
+	}
+	
+	/**
+	 * @param args Options, see {@link Benchmark}
+	 * @throws Exception Any error
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		double[] sizes=Benchmark.getNumbers(args,"-sizes","1000,10000"),
+			words=Benchmark.getNumbers(args,"-words","10,60"),
+			longWords=Benchmark.getNumbers(args,"-longwords","0,0.02");
+		
+		List<Benchmark> list=new LinkedList<Benchmark>();
+		for(int size=0;size<sizes.length;size++)
+		{
+			for(int word=0;word<words.length;word++)
+			{
+				for(int longWord=0;longWord<longWords.length;longWord++)
+				{
+					int s=(int)sizes[size],w=(int)words[word];
+					double lw=longWords[longWord];
+					list.add(new FullReflow(s,w,lw));
+					list.add(new ResizeSweep(s,w,lw));
+					list.add(new Append(s,w,lw));
+					list.add(new Trim(s,w,lw));
+				}
+			}
+		}
+		
+		Benchmark.runAll("Reflow",Benchmark.toArray(list),args);
+	}
+}
@@ -0,0 +1,593 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+
+import javax.swing.*;
+
+import org.w3c.dom.Element;
+
+import textlayout.stylesheet.StyleContext;
+
+/**
+ * Replays a chat log into a layout, either as fast as possible or at a 
+ * given rate, with resizes, scrolls, selections and buffer trims every so 
+ * often. Reports percentiles of the time from a message arriving until the 
+ * view has been painted with it, plus heap use and garbage collection over 
+ * time.
+ * <p>
+ * The log has one XML fragment per line (usually a single &lt;line&gt;, 
+ * as it would go inside &lt;output&gt;); blank lines are ignored. 
+ * <tt>-generate count</tt> writes a log of generated messages instead of 
+ * replaying.
+ * <p>
+ * Options:
+ * <ul>
+ * <li><tt>-log file</tt> Log to replay (required)</li>
+ * <li><tt>-rate n</tt> Messages per second, or 0 for as fast as possible 
+ *   (default). When a rate is set, latency is measured from when each 
+ *   message was due, so falling behind shows up in the results.</li>
+ * <li><tt>-view headless|swing</tt> Paint a layout into an offscreen image 
+ *   (default), or show a real {@link ScrollingLayout} in a window (needs a 
+ *   display, so run java directly rather than through the bench target)</li>
+ * <li><tt>-viewport WIDTHxHEIGHT</tt> View size (default 800x600)</li>
+ * <li><tt>-compact on|off</tt> Compact storage (default off)</li>
+ * <li><tt>-resize n</tt>, <tt>-scroll n</tt>, <tt>-select n</tt> Resize the
+ *   view, page up and back, or select the visible text every n messages 
+ *   (defaults 5000, 500, 1000; 0 to turn off)</li>
+ * <li><tt>-keep n</tt> Trim the buffer to this many blocks whenever it 
+ *   gets 100 over (default 10000; 0 for no limit)</li>
+ * <li><tt>-report seconds</tt> Interval for heap and GC reports 
+ *   (default 10)</li>
+ * </ul>
+ */
+public class ReplayTool
+{
+	/** Blocks over the limit before the buffer is trimmed */
+	private final static int TRIM_BATCH=100;
+	
+	/** Amount the width changes on resize */
+	private final static int RESIZE_STEP=150;
+	
+	/**
+	 * Something that displays the replayed messages.
+	 */
+	private static abstract class View
+	{
+		SharedLayout model;
+		int width,height;
+		
+		View(StyleContext sc,int width,int height,boolean compact)
+		{
+			model=new SharedLayout(sc);
+			model.setCompactStorage(compact);
+			this.width=width;
+			this.height=height;
+		}
+		
+		/**
+		 * Adds a message and paints the view, scrolled to the end.
+		 * @param e Message (&lt;output&gt; element)
+		 * @throws Exception Any error
+		 */
+		abstract void append(Element e) throws Exception;
+		
+		/**
+		 * Changes width and paints.
+		 * @param width New width
+		 * @throws Exception Any error
+		 */
+		abstract void resize(int width) throws Exception;
+		
+		/**
+		 * Scrolls up a page, paints, then goes back to the end and paints.
+		 * @throws Exception Any error
+		 */
+		abstract void scroll() throws Exception;
+		
+		/**
+		 * Selects the visible text, paints, gets the text and clears the 
+		 * selection.
+		 * @throws Exception Any error
+		 */
+		abstract void select() throws Exception;
+		
+		/**
+		 * Deletes blocks from the start.
+		 * @param count Number of blocks
+		 * @throws Exception Any error
+		 */
+		abstract void trim(int count) throws Exception;
+		
+		/** Closes any window. */
+		void close()
+		{
+		}
+	}
+	
+	/**
+	 * Paints the layout into an image, as the scrolling view would.
+	 */
+	private static class HeadlessView extends View
+	{
+		private BufferedImage image;
+		private Graphics2D g;
+		
+		HeadlessView(StyleContext sc,int width,int height,boolean compact)
+		{
+			super(sc,width,height,compact);
+			createImage();
+		}
+		
+		private void createImage()
+		{
+			if(g!=null) g.dispose();
+			image=new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+			g=image.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+				RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		}
+		
+		/**
+		 * @param fromEnd Distance of top of view from top of last page
+		 */
+		private void paint(int fromEnd)
+		{
+			Layout l=model.getLayout();
+			l.reflow(width);
+			int startY=Math.max(0,l.getHeight()-height-fromEnd);
+			l.paint(g,0,0,width,startY,height);
+		}
+		
+		@Override
+		void append(Element e) throws Exception
+		{
+			model.addBlocks(e);
+			paint(0);
+		}
+		
+		@Override
+		void resize(int width)
+		{
+			this.width=width;
+			createImage();
+			paint(0);
+		}
+		
+		@Override
+		void scroll()
+		{
+			paint(height);
+			paint(0);
+		}
+		
+		@Override
+		void select()
+		{
+			Layout l=model.getLayout();
+			int startY=Math.max(0,l.getHeight()-height);
+			l.setHighlight(0,startY,width,startY+height);
+			paint(0);
+			Benchmark.consume(l.getHighlightText());
+			l.clearHighlight();
+		}
+		
+		@Override
+		void trim(int count)
+		{
+			model.deleteFirstBlocks(count);
+		}
+	}
+	
+	/**
+	 * Shows a scrolling layout in a window. Everything happens in the Swing 
+	 * thread, and each change is painted immediately.
+	 */
+	private static class SwingView extends View
+	{
+		private JFrame frame;
+		private ScrollingLayout sl;
+		
+		SwingView(StyleContext sc,final int width,final int height,boolean compact) 
+			throws Exception
+		{
+			super(sc,width,height,compact);
+			inSwing(new Callback()
+			{
+				@Override
+				public void run() throws Exception
+				{
+					frame=new JFrame("Replay");
+					sl=new ScrollingLayout(width,height,model);
+					frame.getContentPane().add(sl);
+					frame.pack();
+					frame.setVisible(true);
+				}
+			});
+		}
+		
+		/** Code to run in Swing thread. */
+		private interface Callback
+		{
+			/** @throws Exception Any error */
+			public void run() throws Exception;
+		}
+		
+		/**
+		 * Runs code in the Swing thread and waits for it.
+		 * @param c Code
+		 * @throws Exception Any error from code
+		 */
+		private void inSwing(final Callback c) throws Exception
+		{
+			final Exception[] error=new Exception[1];
+			try
+			{
+				SwingUtilities.invokeAndWait(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							c.run();
+						}
+						catch(Exception e)
+						{
+							error[0]=e;
+						}
+					}
+				});
+			}
+			catch(InvocationTargetException e)
+			{
+				throw new Error(e.getCause());
+			}
+			if(error[0]!=null) throw error[0];
+		}
+		
+		private void paint()
+		{
+			sl.paintImmediately(0,0,sl.getWidth(),sl.getHeight());
+		}
+		
+		@Override
+		void append(final Element e) throws Exception
+		{
+			inSwing(new Callback()
+			{
+				@Override
+				public void run() throws Exception
+				{
+					model.addBlocks(e);
+					paint();
+				}
+			});
+		}
+		
+		@Override
+		void resize(final int width) throws Exception
+		{
+			this.width=width;
+			inSwing(new Callback()
+			{
+				@Override
+				public void run()
+				{
+					Dimension d=frame.getSize();
+					frame.setSize(d.width+width-sl.getWidth(),d.height);
+					frame.validate();
+					paint();
+				}
+			});
+		}
+		
+		@Override
+		void scroll() throws Exception
+		{
+			inSwing(new Callback()
+			{
+				@Override
+				public void run()
+				{
+					sl.pageUp();
+					paint();
+					sl.scrollToEnd();
+					paint();
+				}
+			});
+		}
+		
+		@Override
+		void select() throws Exception
+		{
+			inSwing(new Callback()
+			{
+				@Override
+				public void run()
+				{
+					sl.highlightAll();
+					paint();
+					sl.clearHighlight();
+				}
+			});
+		}
+		
+		@Override
+		void trim(final int count) throws Exception
+		{
+			inSwing(new Callback()
+			{
+				@Override
+				public void run()
+				{
+					model.deleteFirstBlocks(count);
+				}
+			});
+		}
+		
+		@Override
+		void close()
+		{
+			frame.dispose();
+		}
+	}
+	
+	/**
+	 * Records latencies in microseconds to three significant figures, in a 
+	 * fixed amount of memory however long the replay runs.
+	 */
+	private static class Latencies
+	{
+		/** Values below this are exact */
+		private final static int EXACT=1000;
+		
+		/** Counts: exact values, then 900 buckets per power of ten above */
+		private long[] counts=new long[EXACT+900*16];
+		
+		private long count,max;
+		
+		/**
+		 * @param micros Latency in microseconds
+		 */
+		void record(long micros)
+		{
+			count++;
+			max=Math.max(max,micros);
+			counts[getIndex(micros)]++;
+		}
+		
+		private static int getIndex(long micros)
+		{
+			if(micros<EXACT) return (int)Math.max(0,micros);
+			int power=0;
+			while(micros>=EXACT)
+			{
+				micros/=10;
+				power++;
+			}
+			return EXACT+900*(power-1)+(int)micros-100;
+		}
+		
+		private static long getValue(int index)
+		{
+			if(index<EXACT) return index;
+			long value=(index-EXACT)%900+100;
+			for(int power=(index-EXACT)/900+1;power>0;power--)
+			{
+				value*=10;
+			}
+			return value;
+		}
+		
+		/**
+		 * @param fraction Fraction (e.g. 0.99)
+		 * @return Latency in microseconds that at least that fraction of 
+		 *   messages took no longer than
+		 */
+		long getPercentile(double fraction)
+		{
+			long target=Math.max(1,(long)Math.ceil(count*fraction)),seen=0;
+			for(int i=0;i<counts.length;i++)
+			{
+				seen+=counts[i];
+				if(seen>=target) return Math.min(max,getValue(i));
+			}
+			return max;
+		}
+		
+		long getCount()
+		{
+			return count;
+		}
+		
+		long getMax()
+		{
+			return max;
+		}
+	}
+	
+	/**
+	 * Writes a log of generated messages.
+	 * @param log File
+	 * @param count Number of messages
+	 * @throws IOException Any error writing
+	 */
+	private static void generate(File log,int count) throws IOException
+	{
+		ChatCorpus c=new ChatCorpus(1);
+		PrintWriter pw=new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(log),"UTF-8"));
+		try
+		{
+			for(int i=0;i<count;i++)
+			{
+				switch(i%10)
+				{
+				case 0: pw.println(c.nestedLine()); break;
+				case 1: pw.println(c.unknownLine()); break;
+				case 2: pw.println(c.shortLine()); break;
+				default: pw.println(c.timestampLine()); break;
+				}
+			}
+		}
+		finally
+		{
+			pw.close();
+		}
+	}
+	
+	/**
+	 * @param args Options, see class description
+	 * @throws Exception Any error
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		String logName=Benchmark.getOption(args,"-log",null);
+		if(logName==null)
+		{
+			System.err.println("Usage: ReplayTool -log file [options]");
+			System.exit(1);
+			return;
+		}
+		File log=new File(logName);
+		String generateCount=Benchmark.getOption(args,"-generate",null);
+		if(generateCount!=null)
+		{
+			generate(log,Integer.parseInt(generateCount));
+			return;
+		}
+		
+		double rate=Double.parseDouble(Benchmark.getOption(args,"-rate","0"));
+		String[] viewport=Benchmark.getOption(args,"-viewport","800x600").split("x");
+		if(viewport.length!=2)
+			throw new IllegalArgumentException("-viewport must be WIDTHxHEIGHT");
+		int width=Integer.parseInt(viewport[0]),height=Integer.parseInt(viewport[1]),
+			resizeEvery=Integer.parseInt(Benchmark.getOption(args,"-resize","5000")),
+			scrollEvery=Integer.parseInt(Benchmark.getOption(args,"-scroll","500")),
+			selectEvery=Integer.parseInt(Benchmark.getOption(args,"-select","1000")),
+			keep=Integer.parseInt(Benchmark.getOption(args,"-keep","10000")),
+			reportSeconds=Integer.parseInt(Benchmark.getOption(args,"-report","10"));
+		boolean compact=Benchmark.getOption(args,"-compact","off").equals("on");
+		String viewType=Benchmark.getOption(args,"-view","headless");
+		
+		StyleContext sc=ChatCorpus.getStyle();
+		View view;
+		if(viewType.equals("swing"))
+			view=new SwingView(sc,width,height,compact);
+		else if(viewType.equals("headless"))
+			view=new HeadlessView(sc,width,height,compact);
+		else
+			throw new IllegalArgumentException("-view must be headless or swing");
+		
+		System.out.println("Replaying "+log+" ("+(rate>0 ? rate+" messages/s" : 
+			"as fast as possible")+", "+viewType+" "+width+"x"+height+
+			(compact ? ", compact" : "")+")");
+		System.out.println();
+		System.out.println(String.format("%8s %10s %10s %10s %10s %8s %10s",
+			"seconds","messages","msg/s","heap MB","blocks","GCs","GC ms"));
+		
+		Latencies latencies=new Latencies();
+		Runtime runtime=Runtime.getRuntime();
+		long startGcCount=Benchmark.getGcCount(),startGcTime=Benchmark.getGcTime(),
+			start=System.nanoTime(),reportTime=start,reportMessages=0,
+			reportGcCount=startGcCount,reportGcTime=startGcTime,maxHeap=0;
+		int messages=0;
+		boolean wider=true;
+		
+		BufferedReader reader=new BufferedReader(new InputStreamReader(
+			new FileInputStream(log),"UTF-8"));
+		try
+		{
+			while(true)
+			{
+				String line=reader.readLine();
+				if(line==null) break;
+				if(line.trim().length()==0) continue;
+				
+				// When the message is due (now, if running flat out)
+				long due=System.nanoTime();
+				if(rate>0)
+				{
+					due=start+(long)(messages*1000000000.0/rate);
+					long wait=due-System.nanoTime();
+					if(wait>0) Thread.sleep(wait/1000000,(int)(wait%1000000));
+				}
+				
+				view.append(ChatCorpus.parse(line));
+				latencies.record((System.nanoTime()-due)/1000);
+				messages++;
+				
+				if(resizeEvery>0 && messages%resizeEvery==0)
+				{
+					view.resize(wider ? width+RESIZE_STEP : width);
+					wider=!wider;
+				}
+				if(scrollEvery>0 && messages%scrollEvery==0) view.scroll();
+				if(selectEvery>0 && messages%selectEvery==0) view.select();
+				if(keep>0 && view.model.getNumBlocks()>keep+TRIM_BATCH)
+					view.trim(view.model.getNumBlocks()-keep);
+				
+				long now=System.nanoTime();
+				if(now-reportTime>=reportSeconds*1000000000L)
+				{
+					long heap=runtime.totalMemory()-runtime.freeMemory(),
+						gcCount=Benchmark.getGcCount(),gcTime=Benchmark.getGcTime();
+					maxHeap=Math.max(maxHeap,heap);
+					System.out.println(String.format("%8d %10d %10.0f %10.1f %10d %8d %10d",
+						(now-start)/1000000000L,messages,
+						(messages-reportMessages)*1000000000.0/(now-reportTime),
+						heap/1048576.0,view.model.getNumBlocks(),
+						gcCount-reportGcCount,gcTime-reportGcTime));
+					reportMessages=messages;
+					reportGcCount=gcCount;
+					reportGcTime=gcTime;
+					reportTime=now;
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+			view.close();
+		}
+		
+		long elapsed=System.nanoTime()-start,gcCount=Benchmark.getGcCount()-startGcCount,
+			gcTime=Benchmark.getGcTime()-startGcTime;
+		maxHeap=Math.max(maxHeap,runtime.totalMemory()-runtime.freeMemory());
+		System.out.println();
+		System.out.println(String.format("%d messages in %.1f s (%.0f/s)",messages,
+			elapsed/1000000000.0,messages*1000000000.0/Math.max(1,elapsed)));
+		System.out.println(String.format(
+			"Append to paint (ms): p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f",
+			latencies.getPercentile(0.5)/1000.0,latencies.getPercentile(0.9)/1000.0,
+			latencies.getPercentile(0.99)/1000.0,latencies.getPercentile(0.999)/1000.0,
+			latencies.getMax()/1000.0));
+		System.out.println(String.format("Peak heap seen %.1f MB; retained by layout %.1f MB",
+			maxHeap/1048576.0,view.model.getRetainedBytes()/1048576.0));
+		System.out.println(String.format("GC: %d collections, %d ms total, %.1f ms mean pause",
+			gcCount,gcTime,gcCount==0 ? 0.0 : (double)gcTime/gcCount));
+		if(latencies.getCount()==0) System.out.println("(log was empty)");
+		System.exit(0);
+	}
+}
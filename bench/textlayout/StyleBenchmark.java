@@ -0,0 +1,296 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.*;
+
+import textlayout.stylesheet.*;
+
+/**
+ * Measures style resolution in {@link StyleContext}: font, colour, number
+ * and inset lookups with warm and cold caches, contexts with attributes 
+ * (which are never in the cache), and adding and removing a stylesheet 
+ * (which also empties the cache). Items are lookups.
+ * <p>
+ * Extra options: <tt>-depths</tt> (context depth, default 2,6,12) and
+ * <tt>-rules</tt> (rules in generated stylesheet, default 10,200,2000). 
+ * Every combination is run.
+ */
+public class StyleBenchmark
+{
+	/** Contexts looked up per operation */
+	private final static int CONTEXTS=100;
+	
+	/** Number of different tag names used in contexts and rules */
+	private final static int TAGS=20;
+	
+	/** Attribute-context operations before the context is replaced */
+	private final static int ATTRIBUTE_OPS=100;
+	
+	/**
+	 * @param rules Number of rules
+	 * @return Stylesheet text with a mix of single, descendant and child 
+	 *   selectors
+	 */
+	static String getStylesheet(int rules)
+	{
+		Random r=new Random(rules);
+		StringBuffer sb=new StringBuffer();
+		for(int i=0;i<rules;i++)
+		{
+			switch(i%3)
+			{
+			case 0:
+				sb.append("e"+r.nextInt(TAGS));
+				break;
+			case 1:
+				sb.append("e"+r.nextInt(TAGS)+" e"+r.nextInt(TAGS));
+				break;
+			default:
+				sb.append("line e"+r.nextInt(TAGS)+" > e"+r.nextInt(TAGS));
+				break;
+			}
+			switch(r.nextInt(4))
+			{
+			case 0:
+				sb.append(" { font-size:0.9f; }\n");
+				break;
+			case 1:
+				sb.append(" { text-rgb:#"+Integer.toHexString(0x100+r.nextInt(0xeff))+"; }\n");
+				break;
+			case 2:
+				sb.append(" { gap-left:"+r.nextInt(10)+"; }\n");
+				break;
+			default:
+				sb.append(" { font-weight:bold; }\n");
+				break;
+			}
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * @param depth Depth of each context
+	 * @return Contexts (output, line, then random tags)
+	 */
+	static String[][] getContexts(int depth)
+	{
+		Random r=new Random(depth);
+		String[][] contexts=new String[CONTEXTS][];
+		for(int i=0;i<CONTEXTS;i++)
+		{
+			contexts[i]=new String[depth];
+			if(depth>0) contexts[i][0]="output";
+			if(depth>1) contexts[i][1]="line";
+			for(int j=2;j<depth;j++)
+			{
+				contexts[i][j]="e"+r.nextInt(TAGS);
+			}
+		}
+		return contexts;
+	}
+	
+	/**
+	 * Looks up the same properties the layout does for a word and a block.
+	 * @param sc Context
+	 * @param context Tag stack
+	 * @throws LayoutException Any error
+	 */
+	static void lookUp(StyleContext sc,String[] context) throws LayoutException
+	{
+		Benchmark.consume(sc.getFont(context));
+		Benchmark.consume(sc.getRGB(Property.TEXT_RGB,context));
+		Benchmark.consume(sc.getNumber(Property.GAP_LEFT,context));
+		Benchmark.consume(sc.getInsets(Property.I_PAD,context));
+	}
+	
+	/**
+	 * Base for benchmarks with a generated stylesheet and contexts.
+	 */
+	private static abstract class StyleBase extends Benchmark
+	{
+		int depth,rules;
+		StyleContext base,sc;
+		Stylesheet s;
+		String[][] contexts;
+		
+		StyleBase(String name,int depth,int rules)
+		{
+			super(name+" [depth "+depth+", "+rules+" rules]");
+			this.depth=depth;
+			this.rules=rules;
+		}
+		
+		@Override
+		void setUp() throws Exception
+		{
+			base=new StyleContext(StyleContext.getDefault(false));
+			s=new Stylesheet(getStylesheet(rules));
+			base.addStylesheet(s);
+			sc=new StyleContext(base);
+			contexts=getContexts(depth);
+		}
+		
+		@Override
+		int run() throws Exception
+		{
+			for(int i=0;i<contexts.length;i++)
+			{
+				lookUp(sc,contexts[i]);
+			}
+			return contexts.length*4;
+		}
+	}
+	
+	/**
+	 * Lookups that are all in the cache.
+	 */
+	private static class Warm extends StyleBase
+	{
+		Warm(int depth,int rules)
+		{
+			super("warm lookups",depth,rules);
+		}
+		
+		@Override
+		void setUp() throws Exception
+		{
+			super.setUp();
+			run();
+		}
+	}
+	
+	/**
+	 * Lookups with an empty cache (a fresh copy of the context is made 
+	 * before each operation).
+	 */
+	private static class Cold extends StyleBase
+	{
+		Cold(int depth,int rules)
+		{
+			super("cold lookups",depth,rules);
+		}
+		
+		@Override
+		void prepare()
+		{
+			sc=new StyleContext(base);
+		}
+	}
+	
+	/**
+	 * Lookups where the last element has an attribute with a new value each
+	 * time, so they are never in the cache. The context is replaced now and
+	 * then (not measured) to stop the cache growing without limit.
+	 */
+	private static class Attributes extends StyleBase
+	{
+		private int ops,id;
+		private String[][] lastElements;
+		
+		Attributes(int depth,int rules)
+		{
+			super("attribute lookups",depth,rules);
+		}
+		
+		@Override
+		void setUp() throws Exception
+		{
+			super.setUp();
+			lastElements=new String[contexts.length][];
+			for(int i=0;i<contexts.length;i++)
+			{
+				lastElements[i]=contexts[i].clone();
+			}
+		}
+		
+		@Override
+		void prepare()
+		{
+			if(++ops%ATTRIBUTE_OPS==0) sc=new StyleContext(base);
+			id++;
+			for(int i=0;i<contexts.length;i++)
+			{
+				int last=contexts[i].length-1;
+				lastElements[i][last]=contexts[i][last]+"\u0001id="+id;
+			}
+		}
+		
+		@Override
+		int run() throws Exception
+		{
+			for(int i=0;i<lastElements.length;i++)
+			{
+				lookUp(sc,lastElements[i]);
+			}
+			return lastElements.length*4;
+		}
+	}
+	
+	/**
+	 * Adds and removes the generated stylesheet.
+	 */
+	private static class AddRemove extends StyleBase
+	{
+		AddRemove(int rules)
+		{
+			super("add+remove stylesheet",0,rules);
+		}
+		
+		@Override
+		void setUp() throws Exception
+		{
+			super.setUp();
+			sc=new StyleContext(StyleContext.getDefault(false));
+		}
+		
+		@Override
+		int run() throws Exception
+		{
+			sc.addStylesheet(s);
+			sc.removeStylesheet(s);
+			return 1;
+		}
+	}
+	
+	/**
+	 * @param args Options, see {@link Benchmark}
+	 * @throws Exception Any error
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		double[] depths=Benchmark.getNumbers(args,"-depths","2,6,12"),
+			rules=Benchmark.getNumbers(args,"-rules","10,200,2000");
+		
+		List<Benchmark> list=new LinkedList<Benchmark>();
+		for(int rule=0;rule<rules.length;rule++)
+		{
+			for(int depth=0;depth<depths.length;depth++)
+			{
+				int d=(int)depths[depth],r=(int)rules[rule];
+				list.add(new Warm(d,r));
+				list.add(new Cold(d,r));
+				list.add(new Attributes(d,r));
+			}
+			list.add(new AddRemove((int)rules[rule]));
+		}
+		
+		Benchmark.runAll("Style",Benchmark.toArray(list),args);
+	}
+}
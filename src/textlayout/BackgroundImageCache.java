@@ -0,0 +1,291 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+/**
+ * Cache of prerendered word background images (used for outlined text).
+ * Images are keyed by everything that affects how they look, so identical
+ * words in the same style (e.g. timestamps) share a single image. The cache
+ * is limited by the approximate memory used by its images; when it goes
+ * over the limit, the least recently used images are discarded.
+ */
+public abstract class BackgroundImageCache
+{
+	/** Default memory budget in bytes */
+	public final static long DEFAULT_BUDGET=4*1024*1024;
+
+	/** Memory budget in bytes */
+	private static long budget=DEFAULT_BUDGET;
+
+	/** Approximate bytes currently used by cached images */
+	private static long bytes;
+
+	/** Statistics */
+	private static long hits,misses,evictions;
+
+	/** Images in order of use (least recent first) */
+	private static LinkedHashMap<Key, BufferedImage> images=
+		new LinkedHashMap<Key, BufferedImage>(16,0.75f,true);
+
+	/**
+	 * Gets an image from the cache.
+	 * @param k Key
+	 * @return Image or null if not in cache
+	 */
+	static synchronized BufferedImage get(Key k)
+	{
+		BufferedImage bi=images.get(k);
+		if(bi==null)
+			misses++;
+		else
+			hits++;
+		return bi;
+	}
+
+	/**
+	 * Checks whether an image is in the cache, without counting as a use.
+	 * @param k Key
+	 * @return True if present
+	 */
+	static synchronized boolean contains(Key k)
+	{
+		return images.containsKey(k);
+	}
+
+	/**
+	 * Adds an image to the cache, discarding older images if it is now over
+	 * budget.
+	 * @param k Key
+	 * @param bi Image
+	 */
+	static synchronized void put(Key k,BufferedImage bi)
+	{
+		BufferedImage old=images.put(k,bi);
+		if(old!=null) bytes-=getBytes(old);
+		bytes+=getBytes(bi);
+		trim();
+	}
+
+	/**
+	 * Discards least recently used images until the cache is within budget.
+	 */
+	private static void trim()
+	{
+		for(Iterator<BufferedImage> i=images.values().iterator();
+			bytes>budget && i.hasNext();)
+		{
+			bytes-=getBytes(i.next());
+			i.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * @param bi Image
+	 * @return Approximate memory used by image (it's always an int ARGB image)
+	 */
+	private static long getBytes(BufferedImage bi)
+	{
+		return (long)bi.getWidth()*bi.getHeight()*4;
+	}
+
+	/**
+	 * Sets the memory budget. If the cache is currently larger, images are
+	 * discarded immediately.
+	 * @param budget New budget in bytes
+	 */
+	public static synchronized void setBudget(long budget)
+	{
+		BackgroundImageCache.budget=budget;
+		trim();
+	}
+
+	/** @return Memory budget in bytes */
+	public static synchronized long getBudget()
+	{
+		return budget;
+	}
+
+	/** @return Approximate bytes used by images in cache */
+	public static synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/** @return Number of images in cache */
+	public static synchronized int getSize()
+	{
+		return images.size();
+	}
+
+	/** @return Number of requests that found an image */
+	public static synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/** @return Number of requests that did not find an image */
+	public static synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/** @return Number of images discarded to stay within budget */
+	public static synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/** Discards all images (statistics are not reset). */
+	public static synchronized void clear()
+	{
+		images.clear();
+		bytes=0;
+	}
+
+	/**
+	 * Key identifying the appearance of a background image. The image can be
+	 * drawn from the key alone.
+	 */
+	static class Key
+	{
+		private String text;
+		private Font f;
+		private Color outline,c,bg;
+		private boolean underline;
+		private int width,fillWidth,ascent,descent;
+		private int hashCode;
+
+		/**
+		 * @param text Buffer containing text that is drawn
+		 * @param start Start of text within buffer
+		 * @param length Length of text
+		 * @param f Font
+		 * @param outline Outline colour
+		 * @param c Text colour
+		 * @param bg Text background colour
+		 * @param underline True if underlined
+		 * @param width Width of text area
+		 * @param fillWidth Width of background colour and underline (may 
+		 *   include a space that isn't part of the text area)
+		 * @param ascent Ascent
+		 * @param descent Descent
+		 */
+		Key(char[] text,int start,int length,Font f,Color outline,Color c,Color bg,boolean underline,
+			int width,int fillWidth,int ascent,int descent)
+		{
+			// Copied, so that cached keys don't keep the whole buffer in memory
+			this.text=new String(text,start,length);
+			this.f=f;
+			this.outline=outline;
+			this.c=c;
+			this.bg=bg;
+			this.underline=underline;
+			this.width=width;
+			this.fillWidth=fillWidth;
+			this.ascent=ascent;
+			this.descent=descent;
+			hashCode=this.text.hashCode()^f.hashCode()^(outline.hashCode()*31)^c.hashCode()^
+				(width<<16)^(fillWidth<<20)^(ascent<<8)^descent;
+		}
+
+		/** @return Text that is drawn */
+		String getText()
+		{
+			return text;
+		}
+
+		/** @return Font */
+		Font getFont()
+		{
+			return f;
+		}
+
+		/** @return Outline colour */
+		Color getOutline()
+		{
+			return outline;
+		}
+
+		/** @return Text colour */
+		Color getColour()
+		{
+			return c;
+		}
+
+		/** @return Text background colour */
+		Color getBackground()
+		{
+			return bg;
+		}
+
+		/** @return True if underlined */
+		boolean isUnderline()
+		{
+			return underline;
+		}
+
+		/** @return Width of text area */
+		int getWidth()
+		{
+			return width;
+		}
+
+		/** @return Width of background colour and underline */
+		int getFillWidth()
+		{
+			return fillWidth;
+		}
+
+		/** @return Ascent */
+		int getAscent()
+		{
+			return ascent;
+		}
+
+		/** @return Descent */
+		int getDescent()
+		{
+			return descent;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof Key)) return false;
+			Key other=(Key)obj;
+			return hashCode==other.hashCode && text.equals(other.text) &&
+				f.equals(other.f) && outline.equals(other.outline) && c.equals(other.c) &&
+				(bg==null ? other.bg==null : bg.equals(other.bg)) &&
+				underline==other.underline && width==other.width &&
+				fillWidth==other.fillWidth && ascent==other.ascent && 
+				descent==other.descent;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+
+/**
+ * A block laid out at a particular width. Flows never change once created, 
+ * so they can be used by any thread; a block that changes gets a new flow.
+ * <p>
+ * Text positions are character offsets within {@link LayoutBlock#getText()}.
+ */
+interface BlockFlow
+{
+	/**
+	 * @return Block that was laid out
+	 */
+	public LayoutBlock getBlock();
+	
+	/**
+	 * @return Width the block was laid out at
+	 */
+	public int getWidth();
+	
+  /**
+	 * @return Height
+	 */
+  public int getHeight();
+  
+  /**
+	 * @return Used width (basically = width unless it's a single line when maybe it's less)
+	 */
+  public int getUsedWidth();
+
+  /**
+	 * @return Baseline of first line within this block
+	 */
+  public int getFirstBaseline();  
+  
+  /**
+	 * @return Minimum used X position, inclusive e.g. 0 for 100px widge
+	 */
+  public int getMinX();
+  
+  /**
+	 * @return Maximum used X position, exclusive e.g. 100 for 100px wide
+	 */
+  public int getMaxX();
+
+  /**
+   * Widths from here to {@link #getMaxSameWidth()} break lines in the same
+   * places as this flow, so they give the same height and baseline; a
+   * block can use this flow's lines when flowed at any of them.
+   * @return Narrowest width that gives the same lines (at most getWidth())
+   */
+  public int getMinSameWidth();
+
+  /**
+   * @return Widest width that gives the same lines (at least getWidth())
+   */
+  public int getMaxSameWidth();
+
+  /**
+	 * Paint into given graphics context at given start location
+   * @param g Context
+   * @param x X
+   * @param y Y
+   * @param highlightStart Start of highlighted text
+   * @param highlightEnd End of highlighted text (nothing is highlighted 
+   *   unless this is after highlightStart)
+	 */
+  public void paint(Graphics2D g,int x,int y,int highlightStart,int highlightEnd);
+
+  /**
+   * Finds the text position at given pixel co-ordinates, as used when 
+   * selecting text.
+   * @param x X (relative to block's own co-ordinates)
+   * @param y Y (relative to block's own co-ordinates)
+   * @return Offset of the character at that point; points before a line 
+   *   give its start, points after give its end, points above the block 
+   *   give 0 and points below give the length of the text
+   */
+  public int getOffset(int x,int y);
+  
+  /**
+   * Obtain the inline block and position at the given pixel co-ordinates.
+   * @param targetX X (relative to block's own co-ordinates)
+   * @param targetY Y (relative to block's own co-ordinates)
+   * @param l List of blocks from top to bottom
+   * @return Node position within the deepest LayoutInline, or null if it isn't
+   *   within a LayoutInline
+   */
+  public LayoutInline.NodePos getNodePos(int targetX, int targetY,
+  	List<LayoutThing> l);
+  
+	/**
+	 * @param offset Character offset
+	 * @return Bounds of that character relative to this block (the height 
+	 *   is that of its line), or null if it isn't displayed
+	 */
+	public Rectangle getCharacterBounds(int offset);
+	
+	/**
+	 * Adds keys of any background images used by this block which aren't 
+	 * currently cached.
+	 * @param missing Collection that receives keys
+	 */
+	public void addMissingBackgrounds(Collection<BackgroundImageCache.Key> missing);
+}
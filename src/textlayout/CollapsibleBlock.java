@@ -0,0 +1,459 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.util.*;
+import java.util.List;
+
+import org.w3c.dom.Node;
+
+import textlayout.stylesheet.StyleContext;
+
+/**
+ * Group of blocks shown under a summary, which can be collapsed so that
+ * only the summary shows. While collapsed, the hidden blocks are not
+ * flowed and neither style changes nor the current flag are applied to 
+ * them (blocks added meanwhile are kept as they are); all of that happens 
+ * when the group is expanded again.
+ */
+class CollapsibleBlock implements LayoutBlock
+{
+	/** Summary, always shown */
+	private final VerticalHolderBlock summary;
+
+	/** Blocks that are hidden while collapsed */
+	private final VerticalHolderBlock contents;
+
+	/** True if collapsed */
+	private final boolean collapsed;
+
+	/** Current style */
+	private final StyleContext sc;
+
+	/** True if contents haven't been updated to the current style */
+	private final boolean stylePending;
+	
+	/** 
+	 * True if the current flag of the contents hasn't been updated (only the 
+	 * last block is current, if the group is)
+	 */
+	private final boolean currentPending;
+
+	/** True if this is the current block */
+	private final boolean current;
+
+	/**
+	 * @param sc Styles
+	 * @param summary Summary blocks
+	 * @param contents Blocks that can be hidden
+	 * @param collapsed True to start collapsed
+	 */
+	CollapsibleBlock(StyleContext sc,LayoutBlock[] summary,LayoutBlock[] contents,
+		boolean collapsed)
+	{
+		this(new VerticalHolderBlock(Arrays.asList(summary),null),
+			new VerticalHolderBlock(Arrays.asList(contents),null),collapsed,sc,
+			false,false,false);
+	}
+	
+	/**
+	 * @param summary Summary
+	 * @param contents Blocks that can be hidden
+	 * @param collapsed True if collapsed
+	 * @param sc Current style
+	 * @param stylePending True if contents haven't been updated to that style
+	 * @param currentPending True if contents' current flag hasn't been updated
+	 * @param current True if current block
+	 */
+	private CollapsibleBlock(VerticalHolderBlock summary,VerticalHolderBlock contents,
+		boolean collapsed,StyleContext sc,boolean stylePending,boolean currentPending,
+		boolean current)
+	{
+		this.summary=summary;
+		this.contents=contents;
+		this.collapsed=collapsed;
+		this.sc=sc;
+		this.stylePending=stylePending;
+		this.currentPending=currentPending;
+		this.current=current;
+	}
+
+	/** @return True if collapsed */
+	boolean isCollapsed()
+	{
+		return collapsed;
+	}
+
+	/**
+	 * Collapses or expands the group. Expanding applies any style change and
+	 * current flag change to the hidden blocks.
+	 * @param collapsed True to collapse
+	 * @return Block in that state
+	 * @throws LayoutException
+	 */
+	CollapsibleBlock setCollapsed(boolean collapsed) throws LayoutException
+	{
+		if(this.collapsed==collapsed) return this;
+		if(collapsed)
+		{
+			return new CollapsibleBlock(summary,contents,true,sc,stylePending,
+				currentPending,current);
+		}
+		VerticalHolderBlock newContents=contents;
+		if(stylePending) newContents=(VerticalHolderBlock)newContents.updateStyle(sc);
+		if(currentPending) newContents=setContentsCurrent(newContents,sc,current);
+		return new CollapsibleBlock(summary,newContents,false,sc,false,false,current);
+	}
+	
+	/**
+	 * @param contents Contents
+	 * @param sc Styles
+	 * @param current True if the group is current
+	 * @return Contents with only the last block current, if the group is
+	 * @throws LayoutException
+	 */
+	private static VerticalHolderBlock setContentsCurrent(VerticalHolderBlock contents,
+		StyleContext sc,boolean current) throws LayoutException
+	{
+		int count=contents.getNumBlocks();
+		LayoutBlock[] blocks=new LayoutBlock[count];
+		boolean changed=false;
+		for(int i=0;i<count;i++)
+		{
+			blocks[i]=contents.getBlock(i).setCurrent(sc,current && i==count-1);
+			changed|=blocks[i]!=contents.getBlock(i);
+		}
+		return changed ? new VerticalHolderBlock(Arrays.asList(blocks),null) : contents;
+	}
+
+	/**
+	 * Adds blocks to the end of the group, and/or replaces the summary. Only 
+	 * the last block in the group can be current.
+	 * @param sc Styles
+	 * @param newSummary New summary blocks, or null to keep existing
+	 * @param newContents Blocks to add
+	 * @return Block with those added
+	 * @throws LayoutException
+	 */
+	CollapsibleBlock add(StyleContext sc,LayoutBlock[] newSummary,LayoutBlock[] newContents)
+		throws LayoutException
+	{
+		VerticalHolderBlock newSummaryBlock=summary;
+		if(newSummary!=null)
+		{
+			newSummaryBlock=(VerticalHolderBlock)new VerticalHolderBlock(
+				Arrays.asList(newSummary),null).setCurrent(sc,current);
+		}
+		VerticalHolderBlock newContentsBlock=contents;
+		if(newContents.length>0 && collapsed)
+		{
+			// Hidden blocks are brought up to date when expanded
+			return new CollapsibleBlock(newSummaryBlock,contents.add(newContents),true,
+				sc,stylePending,true,current);
+		}
+		if(newContents.length>0)
+		{
+			int count=contents.getNumBlocks();
+			if(count>0)
+			{
+				newContentsBlock=newContentsBlock.set(count-1,
+					contents.getBlock(count-1).setCurrent(sc,false));
+			}
+			LayoutBlock[] added=new LayoutBlock[newContents.length];
+			for(int i=0;i<newContents.length;i++)
+			{
+				added[i]=newContents[i].setCurrent(sc,current && i==newContents.length-1);
+			}
+			newContentsBlock=newContentsBlock.add(added);
+		}
+		return new CollapsibleBlock(newSummaryBlock,newContentsBlock,collapsed,sc,
+			stylePending,currentPending,current);
+	}
+
+	@Override
+	public BlockFlow flow(int width,BlockFlow previous)
+	{
+		if(previous!=null && previous.getBlock()==this && previous.getWidth()==width)
+			return previous;
+		
+		// Reuse flows of the parts that haven't changed (at another width, the
+		// parts can still reuse their lines)
+		BlockFlow previousSummary=null,previousContents=null;
+		if(previous instanceof Flow)
+		{
+			previousSummary=((Flow)previous).summary;
+			previousContents=((Flow)previous).contents;
+		}
+		return new Flow(this,width,summary.flow(width,previousSummary),
+			collapsed ? null : contents.flow(width,previousContents));
+	}
+
+	@Override
+	public LayoutBlock updateStyle(StyleContext sc) throws LayoutException
+	{
+		if(collapsed)
+		{
+			return new CollapsibleBlock((VerticalHolderBlock)summary.updateStyle(sc),
+				contents,true,sc,true,currentPending,current);
+		}
+		return new CollapsibleBlock((VerticalHolderBlock)summary.updateStyle(sc),
+			(VerticalHolderBlock)contents.updateStyle(sc),false,sc,false,false,current);
+	}
+
+	@Override
+	public LayoutBlock setCurrent(StyleContext sc,boolean current) throws LayoutException
+	{
+		if(this.current==current) return this;
+		if(collapsed)
+		{
+			return new CollapsibleBlock((VerticalHolderBlock)summary.setCurrent(sc,current),
+				contents,true,sc,stylePending,true,current);
+		}
+		return new CollapsibleBlock((VerticalHolderBlock)summary.setCurrent(sc,current),
+			setContentsCurrent(contents,sc,current),false,sc,stylePending,false,current);
+	}
+
+	@Override
+	public int getMinContentWidth()
+	{
+		if(collapsed) return summary.getMinContentWidth();
+		return Math.max(summary.getMinContentWidth(),contents.getMinContentWidth());
+	}
+
+	@Override
+	public int getMaxContentWidth()
+	{
+		if(collapsed) return summary.getMaxContentWidth();
+		return Math.max(summary.getMaxContentWidth(),contents.getMaxContentWidth());
+	}
+
+	@Override
+	public int getFlowCategory()
+	{
+		return FLOWCATEGORY_NORMAL;
+	}
+
+	@Override
+	public long getRetainedBytes()
+	{
+		return 48+summary.getRetainedBytes()+contents.getRetainedBytes();
+	}
+
+	@Override
+	public int getWordCount()
+	{
+		return summary.getWordCount()+contents.getWordCount();
+	}
+
+	/**
+	 * Includes hidden blocks, so that searching finds them even while
+	 * collapsed.
+	 */
+	@Override
+	public String getText()
+	{
+		return summary.getText()+"\n"+contents.getText();
+	}
+	
+	@Override
+	public int getTextLength()
+	{
+		return summary.getTextLength()+1+contents.getTextLength();
+	}
+
+	/**
+	 * Hidden blocks are left out while collapsed.
+	 */
+	@Override
+	public String getText(int start,int end)
+	{
+		int length=summary.getTextLength();
+		String text=start<=length ? summary.getText(start,Math.min(end,length)) : "";
+		if(collapsed || end<=length+1) return text;
+		return text+contents.getText(Math.max(0,start-length-1),end-length-1);
+	}
+
+	@Override
+	public String debugDisplay(String indent)
+	{
+		return indent+"CollapsibleBlock"+(collapsed ? " (collapsed)" : "")+"\n"+
+			summary.debugDisplay(indent+"  ")+
+			(collapsed ? "" : contents.debugDisplay(indent+"  "));
+	}
+
+	@Override
+	public void buildXML(Node parent,
+		Map<LayoutInline, LayoutInline.NodePos> translation)
+	{
+		for(int i=0;i<summary.getNumBlocks();i++)
+		{
+			summary.getBlock(i).buildXML(parent,translation);
+		}
+		if(collapsed) return;
+		for(int i=0;i<contents.getNumBlocks();i++)
+		{
+			contents.getBlock(i).buildXML(parent,translation);
+		}
+	}
+	
+	/**
+	 * Group laid out at a particular width.
+	 */
+	private static class Flow implements BlockFlow
+	{
+		private final CollapsibleBlock block;
+		private final int width;
+		
+		/** Flows of summary and contents (null while collapsed) */
+		private final BlockFlow summary,contents;
+		
+		/**
+		 * @param block Block
+		 * @param width Width
+		 * @param summary Flow of summary
+		 * @param contents Flow of contents, or null if collapsed
+		 */
+		Flow(CollapsibleBlock block,int width,BlockFlow summary,BlockFlow contents)
+		{
+			this.block=block;
+			this.width=width;
+			this.summary=summary;
+			this.contents=contents;
+		}
+
+		@Override
+		public LayoutBlock getBlock()
+		{
+			return block;
+		}
+		
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
+		
+		@Override
+		public int getHeight()
+		{
+			if(contents==null) return summary.getHeight();
+			return summary.getHeight()+contents.getHeight();
+		}
+		
+		@Override
+		public int getUsedWidth()
+		{
+			if(contents==null) return summary.getUsedWidth();
+			return Math.max(summary.getUsedWidth(),contents.getUsedWidth());
+		}
+	
+		@Override
+		public int getFirstBaseline()
+		{
+			return summary.getFirstBaseline();
+		}
+	
+		@Override
+		public int getMinX()
+		{
+			if(contents==null) return summary.getMinX();
+			return Math.min(summary.getMinX(),contents.getMinX());
+		}
+	
+		@Override
+		public int getMaxX()
+		{
+			if(contents==null) return summary.getMaxX();
+			return Math.max(summary.getMaxX(),contents.getMaxX());
+		}
+		
+		@Override
+		public int getMinSameWidth()
+		{
+			if(contents==null) return summary.getMinSameWidth();
+			return Math.max(summary.getMinSameWidth(),contents.getMinSameWidth());
+		}
+		
+		@Override
+		public int getMaxSameWidth()
+		{
+			if(contents==null) return summary.getMaxSameWidth();
+			return Math.min(summary.getMaxSameWidth(),contents.getMaxSameWidth());
+		}
+	
+		/**
+		 * @return Offset of contents within text
+		 */
+		private int getContentsStart()
+		{
+			return block.summary.getTextLength()+1;
+		}
+	
+		@Override
+		public void paint(Graphics2D g,int x,int y,int highlightStart,int highlightEnd)
+		{
+			summary.paint(g,x,y,highlightStart,highlightEnd);
+			if(contents!=null) 
+			{
+				int contentsStart=getContentsStart();
+				contents.paint(g,x,y+summary.getHeight(),highlightStart-contentsStart,
+					highlightEnd-contentsStart);
+			}
+		}
+		
+		@Override
+		public int getOffset(int x,int y)
+		{
+			int summaryHeight=summary.getHeight();
+			if(y<summaryHeight) return summary.getOffset(x,y);
+			if(contents==null) return block.summary.getTextLength();
+			return getContentsStart()+contents.getOffset(x,y-summaryHeight);
+		}
+	
+		@Override
+		public LayoutInline.NodePos getNodePos(int targetX,int targetY,
+			List<LayoutThing> l)
+		{
+			int summaryHeight=summary.getHeight();
+			if(targetY<summaryHeight) return summary.getNodePos(targetX,targetY,l);
+			if(contents==null) return null;
+			return contents.getNodePos(targetX,targetY-summaryHeight,l);
+		}
+	
+		@Override
+		public Rectangle getCharacterBounds(int offset)
+		{
+			int length=block.summary.getTextLength();
+			if(offset<length) return summary.getCharacterBounds(offset);
+			if(offset==length || contents==null) return null;
+			Rectangle r=contents.getCharacterBounds(offset-length-1);
+			if(r!=null) r.translate(0,summary.getHeight());
+			return r;
+		}
+		
+		@Override
+		public void addMissingBackgrounds(Collection<BackgroundImageCache.Key> missing)
+		{
+			summary.addMissingBackgrounds(missing);
+			if(contents!=null) contents.addMissingBackgrounds(missing);
+		}
+	}
+}
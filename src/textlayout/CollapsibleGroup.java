@@ -0,0 +1,62 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+/**
+ * Group of blocks in a {@link SharedLayout} that can be collapsed so that
+ * only a summary shows (e.g. a run of join and part messages). Returned by
+ * {@link SharedLayout#addGroup(org.w3c.dom.Element, org.w3c.dom.Element, 
+ * boolean)}.
+ */
+public class CollapsibleGroup
+{
+	/** Number of the layout block that implements the group */
+	private final int number;
+	
+	/** True if collapsed */
+	private volatile boolean collapsed;
+	
+	/**
+	 * @param number Number of the layout block that implements the group
+	 * @param collapsed True if collapsed
+	 */
+	CollapsibleGroup(int number,boolean collapsed)
+	{
+		this.number=number;
+		this.collapsed=collapsed;
+	}
+	
+	/** @return Number of the layout block that implements the group */
+	int getNumber()
+	{
+		return number;
+	}
+	
+	/** @param collapsed True if collapsed */
+	void setCollapsed(boolean collapsed)
+	{
+		this.collapsed=collapsed;
+	}
+	
+	/** @return True if the group is collapsed */
+	public boolean isCollapsed()
+	{
+		return collapsed;
+	}
+}
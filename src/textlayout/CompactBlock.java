@@ -0,0 +1,567 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.*;
+import java.util.List;
+
+import org.w3c.dom.*;
+
+import textlayout.stylesheet.StyleContext;
+
+/**
+ * Block that keeps only a packed copy of its source XML. The real blocks 
+ * and words (and the text) are generated when needed; a flow of a compact block
+ * keeps only the measurements needed for scrolling (height, baseline, 
+ * extent). {@link LayoutFlow} keeps flows of the generated blocks for the 
+ * compact blocks that are on screen.
+ */
+class CompactBlock implements LayoutBlock
+{
+	/**
+	 * Source XML, shared by all the compact blocks generated from the same 
+	 * element. It can be written to a spill file (by any thread that holds 
+	 * the layout lock, while others read it).
+	 */
+	static class Source
+	{
+		/** Source XML, or null if it has been written to spill file */
+		private volatile PackedElement packed;
+	
+		/** Spill file containing source XML, if spilled */
+		private volatile SpillFile spillFile;
+	
+		/** Position of source XML within spill file */
+		private volatile long spillPosition;
+	
+		/** 
+		 * True if source XML couldn't be read back from spill file, or its 
+		 * blocks have been deleted
+		 */
+		private volatile boolean unreadable;
+		
+		/** True if the record in the spill file has been released */
+		private boolean released;
+		
+		/**
+		 * @param packed Source XML
+		 */
+		Source(PackedElement packed)
+		{
+			this.packed=packed;
+		}
+		
+		/**
+		 * Releases the record in the spill file, if any, once no block in the
+		 * layout uses this source.
+		 */
+		synchronized void release()
+		{
+			if(packed!=null || released) return;
+			unreadable=true;
+			released=true;
+			spillFile.release(spillPosition);
+		}
+	}
+	
+	/** Source XML */
+	private final Source source;
+	
+	/** Index of this block within the blocks generated from the source */
+	private final int index;
+
+	/** Current style */
+	private final StyleContext sc;
+
+	/** True if this is the current block */
+	private final boolean current;
+	
+	/** 
+	 * Block that was generated when this was created, or null; used for the
+	 * first flows so that they don't need to generate it again, and dropped 
+	 * when the block is stored in a layout
+	 */
+	private final LayoutBlock seed;
+
+	/** Flow category */
+	private final int flowCategory;
+
+	/** Number of words in generated block */
+	private final int wordCount;
+
+	/** Length of text of generated block */
+	private final int textLength;
+
+	/**
+	 * @param source Source XML
+	 * @param index Index of block within those generated from the source
+	 * @param sc Style context
+	 * @param current True if current
+	 * @param seed Block generated from source, or null
+	 * @param flowCategory Flow category of generated block
+	 * @param wordCount Number of words in generated block
+	 * @param textLength Length of text of generated block
+	 */
+	private CompactBlock(Source source,int index,StyleContext sc,boolean current,
+		LayoutBlock seed,int flowCategory,int wordCount,int textLength)
+	{
+		this.source=source;
+		this.index=index;
+		this.sc=sc;
+		this.current=current;
+		this.seed=seed;
+		this.flowCategory=flowCategory;
+		this.wordCount=wordCount;
+		this.textLength=textLength;
+	}
+
+	/**
+	 * Generates blocks from XML and wraps them as compact blocks.
+	 * @param sc Style context
+	 * @param e XML element
+	 * @return Blocks
+	 * @throws LayoutException
+	 */
+	static LayoutBlock[] getLayout(StyleContext sc,Element e) throws LayoutException
+	{
+		LayoutBlock[] blocks=LayoutGenerator.getLayout(sc,e);
+		if(blocks.length==0) return blocks;
+		Source source=new Source(PackedElement.pack(e));
+		for(int i=0;i<blocks.length;i++)
+		{
+			LayoutBlock lb=blocks[i];
+			blocks[i]=new CompactBlock(source,i,sc,false,lb,lb.getFlowCategory(),
+				lb.getWordCount(),lb.getTextLength());
+		}
+		return blocks;
+	}
+	
+	/**
+	 * @return The same block without the block generated when it was 
+	 *   created, so that it doesn't use memory once stored
+	 */
+	CompactBlock withoutSeed()
+	{
+		if(seed==null) return this;
+		return new CompactBlock(source,index,sc,current,null,flowCategory,wordCount,textLength);
+	}
+
+	/** @return Approximate memory used by the packed source, in bytes */
+	long getSourceBytes()
+	{
+		PackedElement pe=source.packed;
+		return pe==null ? 0 : pe.getBytes();
+	}
+
+	/**
+	 * Writes the source XML to a spill file so that it no longer uses memory.
+	 * Does nothing if already spilled, or if the source is too large.
+	 * @param f Spill file
+	 * @throws IOException Any error writing file
+	 */
+	void spill(SpillFile f) throws IOException
+	{
+		PackedElement pe=source.packed;
+		if(pe==null) return;
+		long position=f.write(pe);
+		if(position==-1) return;
+		source.spillPosition=position;
+		source.spillFile=f;
+		source.packed=null;
+	}
+
+	/**
+	 * Frees the space in the spill file used by blocks that have been deleted
+	 * from the start of a layout.
+	 * @param deleted Deleted blocks
+	 * @param firstLeft First block left in the layout, or null if none (it
+	 *   may share its source with the last deleted block)
+	 */
+	static void releaseSpilled(LayoutBlock[] deleted,LayoutBlock firstLeft)
+	{
+		Source keep=firstLeft instanceof CompactBlock 
+			? ((CompactBlock)firstLeft).source : null;
+		for(int i=0;i<deleted.length;i++)
+		{
+			if(!(deleted[i] instanceof CompactBlock)) continue;
+			Source s=((CompactBlock)deleted[i]).source;
+			if(s!=keep) s.release();
+		}
+	}
+
+	/** @return True if source XML is in a spill file */
+	boolean isSpilled()
+	{
+		return source.packed==null;
+	}
+
+	/**
+	 * @return Source XML, read from spill file if necessary, or null if it
+	 *   can't be read (the error is reported to the spill file the first 
+	 *   time)
+	 */
+	private PackedElement getSource()
+	{
+		PackedElement pe=source.packed;
+		if(pe!=null) return pe;
+		if(source.unreadable) return null;
+		try
+		{
+			return source.spillFile.read(source.spillPosition);
+		}
+		catch(IOException e)
+		{
+			// Show the block as empty rather than failing every paint
+			source.unreadable=true;
+			source.spillFile.readFailed(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Generates the real block. If the source can't be read, this is an 
+	 * empty block.
+	 * @return Block
+	 */
+	LayoutBlock generate()
+	{
+		try
+		{
+			LayoutBlock lb=seed;
+			if(lb==null)
+			{
+				PackedElement pe=getSource();
+				if(pe==null)
+				{
+					lb=new VerticalHolderBlock(null,null);
+				}
+				else
+				{
+					LayoutBlock[] blocks=LayoutGenerator.getLayout(sc,pe.unpack());
+					if(blocks.length<=index)
+						throw new LayoutException("Compact block no longer generates the same blocks");
+					lb=blocks[index];
+				}
+			}
+			return lb.setCurrent(sc,current);
+		}
+		catch(LayoutException e)
+		{
+			throw new Error(e);
+		}
+	}
+	
+	/**
+	 * @param previous Compact block that might have been replaced by this one
+	 * @return True if this is the same as that apart from the current flag, 
+	 *   so that a flow of its generated block can be reused
+	 */
+	boolean isSameSource(CompactBlock previous)
+	{
+		return previous.source==source && previous.index==index && previous.sc==sc;
+	}
+
+	/**
+	 * Lays out the generated block.
+	 * @param width Width
+	 * @param previousDetail Flow of the block generated for a compact block 
+	 *   with the same source (see {@link #isSameSource(CompactBlock)}), or 
+	 *   null to generate the block again
+	 * @return Flow of generated block
+	 */
+	BlockFlow flowDetail(int width,BlockFlow previousDetail)
+	{
+		if(previousDetail!=null)
+		{
+			try
+			{
+				return previousDetail.getBlock().setCurrent(sc,current).flow(width,previousDetail);
+			}
+			catch(LayoutException e)
+			{
+				throw new Error(e);
+			}
+		}
+		return generate().flow(width,null);
+	}
+	
+	/**
+	 * @param detail Flow of generated block
+	 * @return Flow of this block with the same measurements
+	 */
+	Flow getFlow(BlockFlow detail)
+	{
+		return new Flow(this,detail);
+	}
+	
+	/**
+	 * @param previous Flow of this block at another width
+	 * @param width Width
+	 * @return Flow of this block at that width without generating the block, 
+	 *   or null if its lines would break differently
+	 */
+	Flow getFlow(BlockFlow previous,int width)
+	{
+		if(!(previous instanceof Flow) || previous.getBlock()!=this ||
+			width<previous.getMinSameWidth() || width>previous.getMaxSameWidth())
+		{
+			return null;
+		}
+		return new Flow((Flow)previous,width);
+	}
+
+	@Override
+	public BlockFlow flow(int width,BlockFlow previous)
+	{
+		if(previous!=null && previous.getBlock()==this && previous.getWidth()==width)
+			return previous;
+		Flow same=getFlow(previous,width);
+		if(same!=null) return same;
+		return getFlow(flowDetail(width,null));
+	}
+
+	@Override
+	public LayoutBlock updateStyle(StyleContext sc) throws LayoutException
+	{
+		// Regenerate with the new style when next needed
+		return new CompactBlock(source,index,sc,current,null,flowCategory,wordCount,textLength);
+	}
+
+	@Override
+	public int getMinContentWidth()
+	{
+		return generate().getMinContentWidth();
+	}
+
+	@Override
+	public int getMaxContentWidth()
+	{
+		return generate().getMaxContentWidth();
+	}
+
+	@Override
+	public int getFlowCategory()
+	{
+		return flowCategory;
+	}
+
+	@Override
+	public LayoutBlock setCurrent(StyleContext sc,boolean current) throws LayoutException
+	{
+		if(this.current==current && this.sc==sc) return this;
+		return new CompactBlock(source,index,sc,current,this.sc==sc ? seed : null,
+			flowCategory,wordCount,textLength);
+	}
+
+	/**
+	 * Generated blocks are not counted, since only a limited number of them
+	 * are kept.
+	 */
+	@Override
+	public long getRetainedBytes()
+	{
+		return 48+getSourceBytes();
+	}
+
+	/**
+	 * Counted when the block was first generated, so that it doesn't need
+	 * generating again.
+	 */
+	@Override
+	public int getWordCount()
+	{
+		return wordCount;
+	}
+
+	/**
+	 * Generates the block (so it may need reading from the spill file); the 
+	 * text isn't kept, as it would use as much memory as the source.
+	 */
+	@Override
+	public String getText()
+	{
+		return generate().getText();
+	}
+	
+	@Override
+	public int getTextLength()
+	{
+		return textLength;
+	}
+	
+	@Override
+	public String getText(int start,int end)
+	{
+		return generate().getText(start,end);
+	}
+
+	@Override
+	public String debugDisplay(String indent)
+	{
+		return indent+"CompactBlock"+(isSpilled() ? " (spilled)\n" : "\n");
+	}
+
+	@Override
+	public void buildXML(Node parent,
+		Map<LayoutInline, LayoutInline.NodePos> translation)
+	{
+		generate().buildXML(parent,translation);
+	}
+	
+	/**
+	 * Compact block laid out at a particular width. Only the measurements are
+	 * kept; everything else uses the generated block, which is generated and
+	 * flowed again each time.
+	 */
+	static class Flow implements BlockFlow
+	{
+		private final CompactBlock block;
+		private final int width,height,usedWidth,firstBaseline,minX,maxX,
+			minSameWidth,maxSameWidth;
+		
+		/**
+		 * @param block Block
+		 * @param detail Flow of generated block
+		 */
+		private Flow(CompactBlock block,BlockFlow detail)
+		{
+			this.block=block;
+			width=detail.getWidth();
+			height=detail.getHeight();
+			usedWidth=detail.getUsedWidth();
+			firstBaseline=detail.getFirstBaseline();
+			minX=detail.getMinX();
+			maxX=detail.getMaxX();
+			minSameWidth=detail.getMinSameWidth();
+			maxSameWidth=detail.getMaxSameWidth();
+		}
+		
+		/**
+		 * @param other Flow with the same lines at another width
+		 * @param width Width (in that flow's range of widths with the same lines)
+		 */
+		private Flow(Flow other,int width)
+		{
+			block=other.block;
+			this.width=width;
+			height=other.height;
+			usedWidth=other.usedWidth;
+			firstBaseline=other.firstBaseline;
+			minX=other.minX;
+			// Blocks that reach the edge still do
+			maxX=other.maxX==other.width ? width : other.maxX;
+			minSameWidth=other.minSameWidth;
+			maxSameWidth=other.maxSameWidth;
+		}
+		
+		/** @return Flow of generated block */
+		private BlockFlow getDetail()
+		{
+			return block.flowDetail(width,null);
+		}
+		
+		@Override
+		public LayoutBlock getBlock()
+		{
+			return block;
+		}
+		
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
+		
+		@Override
+		public int getHeight()
+		{
+			return height;
+		}
+		
+		@Override
+		public int getUsedWidth()
+		{
+			return usedWidth;
+		}
+		
+		@Override
+		public int getFirstBaseline()
+		{
+			return firstBaseline;
+		}
+		
+		@Override
+		public int getMinX()
+		{
+			return minX;
+		}
+		
+		@Override
+		public int getMaxX()
+		{
+			return maxX;
+		}
+		
+		@Override
+		public int getMinSameWidth()
+		{
+			return minSameWidth;
+		}
+		
+		@Override
+		public int getMaxSameWidth()
+		{
+			return maxSameWidth;
+		}
+		
+		@Override
+		public void paint(Graphics2D g,int x,int y,int highlightStart,int highlightEnd)
+		{
+			getDetail().paint(g,x,y,highlightStart,highlightEnd);
+		}
+		
+		@Override
+		public int getOffset(int x,int y)
+		{
+			return getDetail().getOffset(x,y);
+		}
+		
+		@Override
+		public LayoutInline.NodePos getNodePos(int targetX,int targetY,
+			List<LayoutThing> l)
+		{
+			return getDetail().getNodePos(targetX,targetY,l);
+		}
+		
+		@Override
+		public Rectangle getCharacterBounds(int offset)
+		{
+			return getDetail().getCharacterBounds(offset);
+		}
+		
+		@Override
+		public void addMissingBackgrounds(Collection<BackgroundImageCache.Key> missing)
+		{
+			getDetail().addMissingBackgrounds(missing);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates daemon threads for the library's background pools, so that they
+ * never keep the program running.
+ */
+class DaemonThreadFactory implements ThreadFactory
+{
+	private String name;
+	private int priority;
+
+	/**
+	 * @param name Thread name
+	 * @param priority Thread priority
+	 */
+	DaemonThreadFactory(String name,int priority)
+	{
+		this.name=name;
+		this.priority=priority;
+	}
+
+	@Override
+	public Thread newThread(Runnable r)
+	{
+		Thread t=new Thread(r,name);
+		t.setDaemon(true);
+		t.setPriority(priority);
+		return t;
+	}
+}
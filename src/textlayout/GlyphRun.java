@@ -0,0 +1,446 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.awt.*;
+import java.awt.font.*;
+import java.awt.geom.Point2D;
+import java.text.Bidi;
+import java.util.*;
+import java.util.List;
+
+import textlayout.stylesheet.RGBPropertyData;
+
+/**
+ * A run of text within a line that shares the same font and colours, so it
+ * can be painted with a single draw call. Runs are built from the items in
+ * a line when it is painted, and the runs of recently-painted lines are kept
+ * by each painting thread, so they (and their glyphs) are never shared 
+ * between threads.
+ */
+class GlyphRun
+{
+	/** Font */
+	private Font f;
+
+	/** Colours (bg may be TRANSPARENT) */
+	private Color c,bg;
+
+	/** True if run is underlined */
+	private boolean underline;
+
+	/** True if run is inside the highlight */
+	private boolean highlighted;
+
+	/** Position relative to line start, and width */
+	private int x,width;
+
+	/** Ascent and descent (used for background fill) */
+	private int ascent,descent;
+
+	/** Text of run */
+	private String text;
+
+	/** Character index and X position (relative to line) of each segment */
+	private int[] segmentStart,segmentX;
+
+	/** Background image painted by this run, or null */
+	private BackgroundImageCache.Key background;
+
+	/** Other inline painted by this run, or null */
+	private LayoutInline inline;
+
+	/** Cached glyphs, or null if not built yet (or can't be used) */
+	private GlyphVector gv;
+
+	/** Render context that was used to create gv */
+	private FontRenderContext gvFrc;
+
+	/**
+	 * Constructs a run that paints something other than text.
+	 * @param background Background image to paint, or null
+	 * @param inline Inline to paint, or null
+	 * @param highlighted True if inline is highlighted
+	 * @param x X position relative to line
+	 */
+	private GlyphRun(BackgroundImageCache.Key background,LayoutInline inline,
+		boolean highlighted,int x)
+	{
+		this.background=background;
+		this.inline=inline;
+		this.highlighted=highlighted;
+		this.x=x;
+	}
+
+	/**
+	 * Constructs a text run.
+	 * @param f Font
+	 * @param c Colour
+	 * @param bg Background colour
+	 * @param underline True if underlined
+	 * @param highlighted True if highlighted
+	 * @param ascent Ascent
+	 * @param descent Descent
+	 * @param x X position relative to line
+	 */
+	private GlyphRun(Font f,Color c,Color bg,boolean underline,boolean highlighted,
+		int ascent,int descent,int x)
+	{
+		this.f=f;
+		this.c=c;
+		this.bg=bg;
+		this.underline=underline;
+		this.highlighted=highlighted;
+		this.ascent=ascent;
+		this.descent=descent;
+		this.x=x;
+	}
+
+	/** Number of lines whose runs are kept by each painting thread */
+	private final static int RECENT_LINES=2048;
+
+	/**
+	 * Runs of a line with a particular highlight.
+	 */
+	private static class LineRuns
+	{
+		private int highlightStart,highlightEnd;
+		private GlyphRun[] runs;
+	}
+
+	/** Runs of recently-painted lines, in access order */
+	private final static ThreadLocal<LinkedHashMap<Object, LineRuns>> recent=
+		new ThreadLocal<LinkedHashMap<Object, LineRuns>>()
+	{
+		@Override
+		protected LinkedHashMap<Object, LineRuns> initialValue()
+		{
+			return new LinkedHashMap<Object, LineRuns>(16,0.75f,true)
+			{
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Object, LineRuns> eldest)
+				{
+					return size()>RECENT_LINES;
+				}
+			};
+		}
+	};
+
+	/**
+	 * Gets the runs for a line, building them if this thread hasn't recently
+	 * painted the line with the same highlight. Lines never change, so the
+	 * line object itself identifies its runs.
+	 * @param line Line (identity is used as key)
+	 * @param items Items in line
+	 * @param starts Start character of each item's part, or null if all
+	 *   items are whole
+	 * @param ends End character of each item's part, or null if all items
+	 *   are whole
+	 * @param widths Width of each item's part
+	 * @param highlightStart Start of highlight, as a character offset within
+	 *   the line's text
+	 * @param highlightEnd End of highlight (no highlight if this isn't after
+	 *   highlightStart)
+	 * @return Runs in paint order
+	 */
+	static GlyphRun[] get(Object line,LayoutInline[] items,int[] starts,int[] ends,
+		int[] widths,int highlightStart,int highlightEnd)
+	{
+		if(highlightStart>=highlightEnd)
+		{
+			highlightStart=0;
+			highlightEnd=0;
+		}
+		LinkedHashMap<Object, LineRuns> lines=recent.get();
+		LineRuns lr=lines.get(line);
+		if(lr==null || lr.highlightStart!=highlightStart || lr.highlightEnd!=highlightEnd)
+		{
+			lr=new LineRuns();
+			lr.highlightStart=highlightStart;
+			lr.highlightEnd=highlightEnd;
+			lr.runs=build(items,starts,ends,widths,highlightStart,highlightEnd);
+			lines.put(line,lr);
+		}
+		return lr.runs;
+	}
+
+	/**
+	 * Builds the runs for a line.
+	 * @param items Items in line
+	 * @param starts Start character of each item's part, or null if all 
+	 *   items are whole
+	 * @param ends End character of each item's part, or null if all items
+	 *   are whole
+	 * @param widths Width of each item's part
+	 * @param highlightStart Start of highlight within the line's text
+	 * @param highlightEnd End of highlight within the line's text
+	 * @return Runs in paint order
+	 */
+	private static GlyphRun[] build(LayoutInline[] items,int[] starts,int[] ends,
+		int[] widths,int highlightStart,int highlightEnd)
+	{
+		Builder b=new Builder();
+		int x=0,offset=0;
+		for(int i=0;i<items.length;i++)
+		{
+			LayoutInline li=items[i];
+			int start=starts==null ? 0 : starts[i],
+				end=ends==null ? li.getLength() : ends[i];
+			// Highlight in terms of the item's characters
+			int itemHighlightStart=highlightStart-offset+start,
+				itemHighlightEnd=highlightEnd-offset+start;
+			if(li instanceof WordInline)
+			{
+				((WordInline)li).addToRuns(b,x,start,end,widths[i],
+					itemHighlightStart,itemHighlightEnd);
+			}
+			else
+			{
+				// Items without text (e.g. images with no alt) are highlighted if
+				// the highlight includes their position
+				boolean highlighted=end>start
+					? itemHighlightStart<end && itemHighlightEnd>start 
+					: itemHighlightStart<=start && itemHighlightEnd>start;
+				b.finishText();
+				b.others.add(new GlyphRun(null,li,highlighted,x));
+			}
+			x+=widths[i];
+			offset+=end-start;
+		}
+		return b.getRuns();
+	}
+
+	/**
+	 * Collects runs while a line is being built.
+	 */
+	static class Builder
+	{
+		private List<GlyphRun> backgrounds=new LinkedList<GlyphRun>();
+		private List<GlyphRun> others=new LinkedList<GlyphRun>();
+
+		private GlyphRun current;
+		private StringBuffer currentText=new StringBuffer();
+		private List<Integer> currentStarts=new LinkedList<Integer>(),
+			currentXs=new LinkedList<Integer>();
+
+		/**
+		 * Adds a background image.
+		 * @param key Key of image
+		 * @param x X position relative to line
+		 */
+		void addBackground(BackgroundImageCache.Key key,int x)
+		{
+			backgrounds.add(new GlyphRun(key,null,false,x));
+		}
+
+		/**
+		 * Adds a segment of text, joining it to the previous run if possible.
+		 * @param f Font
+		 * @param c Colour
+		 * @param bg Background colour
+		 * @param underline True if underlined
+		 * @param highlighted True if highlighted
+		 * @param ascent Ascent
+		 * @param descent Descent
+		 * @param text Buffer containing text
+		 * @param start Start of text within buffer
+		 * @param length Length of text
+		 * @param x X position relative to line
+		 * @param width Width of segment
+		 */
+		void add(Font f,Color c,Color bg,boolean underline,boolean highlighted,
+			int ascent,int descent,char[] text,int start,int length,int x,int width)
+		{
+			if(current==null || !current.f.equals(f) || !current.c.equals(c) ||
+				(current.bg==null ? bg!=null : !current.bg.equals(bg)) || current.underline!=underline ||
+				current.highlighted!=highlighted || current.ascent!=ascent ||
+				current.descent!=descent || current.x+current.width!=x)
+			{
+				finishText();
+				current=new GlyphRun(f,c,bg,underline,highlighted,ascent,descent,x);
+			}
+			currentStarts.add(currentText.length());
+			currentXs.add(x);
+			currentText.append(text,start,length);
+			current.width+=width;
+		}
+
+		/**
+		 * Ends the current text run, if any.
+		 */
+		void finishText()
+		{
+			if(current==null) return;
+			current.text=currentText.toString();
+			current.segmentStart=toArray(currentStarts);
+			current.segmentX=toArray(currentXs);
+			others.add(current);
+
+			current=null;
+			currentText.setLength(0);
+			currentStarts.clear();
+			currentXs.clear();
+		}
+
+		private static int[] toArray(List<Integer> l)
+		{
+			int[] result=new int[l.size()];
+			int i=0;
+			for(Integer value : l)
+			{
+				result[i++]=value;
+			}
+			return result;
+		}
+
+		/**
+		 * @return Runs with background images first
+		 */
+		GlyphRun[] getRuns()
+		{
+			finishText();
+			GlyphRun[] result=new GlyphRun[backgrounds.size()+others.size()];
+			int i=0;
+			for(GlyphRun run : backgrounds) result[i++]=run;
+			for(GlyphRun run : others) result[i++]=run;
+			return result;
+		}
+	}
+
+	/**
+	 * Paints this run.
+	 * @param g2 Graphics context
+	 * @param lineX X position of line start
+	 * @param baselineY Y baseline
+	 */
+	void paint(Graphics2D g2,int lineX,int baselineY)
+	{
+		if(background!=null)
+		{
+			WordInline.paintBackground(g2,background,lineX+x,baselineY);
+			return;
+		}
+		if(inline!=null)
+		{
+			inline.paint(g2,lineX+x,baselineY,highlighted);
+			return;
+		}
+
+		int runX=lineX+x;
+		if(bg!=null && bg!=RGBPropertyData.TRANSPARENT)
+		{
+			g2.setColor(bg);
+			g2.fillRect(runX,baselineY-ascent,width,ascent+descent);
+		}
+		if(underline)
+		{
+			g2.setColor(c);
+			g2.drawLine(runX,baselineY+2,runX+width,baselineY+2);
+		}
+		if(highlighted)
+		{
+			g2.setColor(SystemColor.textHighlight);
+			Rectangle r=f.getStringBounds(text,g2.getFontRenderContext()).getBounds();
+			g2.fillRect(runX,baselineY+r.y,width,r.height);
+			g2.setColor(SystemColor.textHighlightText);
+		}
+		else
+		{
+			g2.setColor(c);
+		}
+
+		GlyphVector glyphs=getGlyphs(g2.getFontRenderContext());
+		if(glyphs!=null)
+		{
+			g2.drawGlyphVector(glyphs,runX,baselineY);
+		}
+		else
+		{
+			// Text needs full layout; draw each segment separately
+			g2.setFont(f);
+			for(int i=0;i<segmentStart.length;i++)
+			{
+				int end=i==segmentStart.length-1 ? text.length() : segmentStart[i+1];
+				g2.drawString(text.substring(segmentStart[i],end),lineX+segmentX[i],baselineY);
+			}
+		}
+	}
+
+	/**
+	 * Gets glyphs for this run, creating them if necessary. Each segment's
+	 * glyphs are moved so that it starts exactly where the word was laid out.
+	 * @param frc Render context of target graphics
+	 * @return Glyphs or null if the text can't be drawn as a simple vector
+	 */
+	private GlyphVector getGlyphs(FontRenderContext frc)
+	{
+		if(gv!=null && frc.equals(gvFrc)) return gv;
+		if(!isSimple(text)) return null;
+
+		GlyphVector result=f.createGlyphVector(frc,text);
+		if(result.getNumGlyphs()!=text.length()) return null;
+		for(int i=0;i<segmentStart.length;i++)
+		{
+			int end=i==segmentStart.length-1 ? text.length() : segmentStart[i+1];
+			if(end==segmentStart[i]) continue;
+			double delta=(segmentX[i]-x)-result.getGlyphPosition(segmentStart[i]).getX();
+			if(delta==0) continue;
+			for(int glyph=segmentStart[i];glyph<end;glyph++)
+			{
+				Point2D p=result.getGlyphPosition(glyph);
+				p.setLocation(p.getX()+delta,p.getY());
+				result.setGlyphPosition(glyph,p);
+			}
+		}
+
+		gv=result;
+		gvFrc=frc;
+		return gv;
+	}
+
+	/**
+	 * Checks whether text can be drawn one glyph per character. Punctuation,
+	 * symbols and most scripts (Latin, Greek, Cyrillic, CJK...) can; text 
+	 * that needs reordering (right-to-left) or shaping (combining marks, 
+	 * joiners, conjoining jamo) can't. Characters outside the basic plane 
+	 * are caught by the glyph count check.
+	 * @param s Text
+	 * @return True if the text maps one character to one glyph with no
+	 *   reordering or combining (i.e. doesn't need TextLayout)
+	 */
+	private static boolean isSimple(String s)
+	{
+		char[] chars=s.toCharArray();
+		for(int i=0;i<chars.length;i++)
+		{
+			char c=chars[i];
+			if(c<0x0300) continue;
+			switch(Character.getType(c))
+			{
+			case Character.NON_SPACING_MARK:
+			case Character.ENCLOSING_MARK:
+			case Character.COMBINING_SPACING_MARK:
+			case Character.FORMAT:
+				return false;
+			}
+			if(c>=0x1100 && c<0x1200) return false;
+		}
+		return !Bidi.requiresBidi(chars,0,chars.length);
+	}
+}
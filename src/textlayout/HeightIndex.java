@@ -0,0 +1,203 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.Arrays;
+
+/**
+ * Heights of a list of blocks, kept as a Fenwick (binary indexed) tree so
+ * that the total height before any block, and the block at any position,
+ * can be found in O(log n) time, and a block's height can be changed in 
+ * O(log n) time without adding up everything after it.
+ * <p>
+ * Deleting from the start only moves the first entry; the space is reused
+ * once there are as many deleted entries as live ones.
+ * <p>
+ * Not synchronized.
+ */
+class HeightIndex
+{
+	/** Height of each entry (including deleted ones at the start) */
+	private int[] heights=new int[16];
+	
+	/** Tree, indexed from 1 */
+	private int[] tree=new int[17];
+	
+	/** Number of deleted entries at the start */
+	private int base;
+	
+	/** Number of entries, including deleted ones */
+	private int count;
+	
+	/** @return Number of entries */
+	int size()
+	{
+		return count-base;
+	}
+	
+	/**
+	 * @param index Index of entry
+	 * @return Height of entry
+	 */
+	int get(int index)
+	{
+		return heights[base+index];
+	}
+	
+	/**
+	 * Adds an entry at the end.
+	 * @param height Height
+	 */
+	void add(int height)
+	{
+		if(count==heights.length)
+		{
+			heights=Arrays.copyOf(heights,count*2);
+			tree=Arrays.copyOf(tree,count*2+1);
+		}
+		heights[count]=height;
+		
+		// The new node covers itself and the nodes below it that it spans
+		int node=count+1,total=height;
+		for(int child=node-1,stop=node-(node&-node);child>stop;child-=child&-child)
+		{
+			total+=tree[child];
+		}
+		tree[node]=total;
+		count++;
+	}
+	
+	/**
+	 * Changes the height of an entry.
+	 * @param index Index of entry
+	 * @param height New height
+	 */
+	void set(int index,int height)
+	{
+		int delta=height-heights[base+index];
+		if(delta==0) return;
+		heights[base+index]=height;
+		for(int node=base+index+1;node<=count;node+=node&-node)
+		{
+			tree[node]+=delta;
+		}
+	}
+	
+	/**
+	 * @param end Number of entries from the start, including deleted ones
+	 * @return Total height of those entries
+	 */
+	private int prefix(int end)
+	{
+		int total=0;
+		for(int node=end;node>0;node-=node&-node)
+		{
+			total+=tree[node];
+		}
+		return total;
+	}
+	
+	/**
+	 * @param index Index of entry (may be the number of entries)
+	 * @return Total height of entries before it
+	 */
+	int getBefore(int index)
+	{
+		return prefix(base+index)-prefix(base);
+	}
+	
+	/** @return Total height of all entries */
+	int getTotal()
+	{
+		return getBefore(count-base);
+	}
+	
+	/**
+	 * Finds the first entry whose total, including itself, reaches a 
+	 * position.
+	 * @param y Position
+	 * @param inclusive True to find a total at least y, false for more than y
+	 * @return Index of entry, or number of entries if none
+	 */
+	int find(int y,boolean inclusive)
+	{
+		// Walk down the tree to the last entry whose total is below the target
+		int target=prefix(base)+y,end=0;
+		for(int step=Integer.highestOneBit(count);step>0;step>>=1)
+		{
+			int node=end+step;
+			if(node<=count && (inclusive ? tree[node]<target : tree[node]<=target))
+			{
+				end=node;
+				target-=tree[node];
+			}
+		}
+		return Math.max(end,base)-base;
+	}
+	
+	/**
+	 * Deletes entries from the start.
+	 * @param deleted Number of entries
+	 */
+	void deleteFirst(int deleted)
+	{
+		base=Math.min(count,base+deleted);
+		if(base>count-base) 
+		{
+			int[] live=Arrays.copyOfRange(heights,base,count);
+			clear();
+			reset(live,live.length);
+		}
+	}
+	
+	/** Deletes all entries */
+	void clear()
+	{
+		Arrays.fill(tree,0,count+1,0);
+		base=0;
+		count=0;
+	}
+	
+	/**
+	 * Replaces all entries, in O(n) time.
+	 * @param values Heights
+	 * @param length Number of heights used
+	 */
+	void reset(int[] values,int length)
+	{
+		if(heights.length<length)
+		{
+			heights=new int[length];
+			tree=new int[length+1];
+		}
+		else
+		{
+			Arrays.fill(tree,0,count+1,0);
+		}
+		System.arraycopy(values,0,heights,0,length);
+		base=0;
+		count=length;
+		for(int node=1;node<=count;node++)
+		{
+			tree[node]+=heights[node-1];
+			int parent=node+(node&-node);
+			if(parent<=count) tree[parent]+=tree[node];
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+import textlayout.stylesheet.StyleContext;
+import util.StringUtils;
+
+/**
+ * Inline image (&lt;img src="..." width="..." height="..." alt="..."/&gt;).
+ * Space is reserved from the declared size, so the image never affects 
+ * layout; it sits on the baseline. Images come from 
+ * {@link InlineImageCache}, which loads them in the background. The alt text
+ * is used as the text of the image when searching or copying.
+ */
+class ImageInline implements LayoutInline
+{
+	/**
+	 * Rendering hint giving a {@link RepaintTarget} for the view being 
+	 * painted, so that the image area can be repainted if it arrives later. 
+	 * Without it, the image shows the next time the layout is painted anyway.
+	 * The layout also uses it to repaint once word outlines that are being
+	 * created in the background are ready.
+	 */
+	final static RenderingHints.Key KEY_REPAINT=new RenderingHints.Key(0)
+	{
+		@Override
+		public boolean isCompatibleValue(Object val)
+		{
+			return val instanceof RepaintTarget;
+		}
+	};
+	
+	/**
+	 * View that can repaint part of a block. The area is given relative to 
+	 * the block, as the block may have moved (e.g. scrolled, or blocks above
+	 * it deleted) by the time an image arrives.
+	 */
+	interface BlockRepainter
+	{
+		/**
+		 * Repaints part of a block wherever it now is, if it is still in the
+		 * layout. The area may run on past the end of the block. May be called
+		 * from any thread.
+		 * @param number Block number
+		 * @param x X position within view
+		 * @param y Y position relative to top of block
+		 * @param width Width
+		 * @param height Height
+		 */
+		public void repaintBlock(int number,int x,int y,int width,int height);
+	}
+	
+	/**
+	 * Value of {@link #KEY_REPAINT}: the view, and the block being painted,
+	 * which the layout sets before painting each block. Used by one paint.
+	 */
+	static class RepaintTarget
+	{
+		private final BlockRepainter repainter;
+		private int number,blockY;
+		
+		/**
+		 * @param repainter View being painted
+		 */
+		RepaintTarget(BlockRepainter repainter)
+		{
+			this.repainter=repainter;
+		}
+		
+		/**
+		 * @return View being painted
+		 */
+		BlockRepainter getRepainter()
+		{
+			return repainter;
+		}
+		
+		/**
+		 * @param number Number of block about to be painted
+		 * @param blockY Y position of its top in the view
+		 */
+		void setBlock(int number,int blockY)
+		{
+			this.number=number;
+			this.blockY=blockY;
+		}
+	}
+
+	/** Tag stack */
+	private final String[] context;
+
+	/** Image and size */
+	private final InlineImageCache.Key key;
+
+	/** Size */
+	private final int width,height;
+
+	/** Alternative text */
+	private final String alt;
+
+	/**
+	 * @param context Tag stack
+	 * @param key Image and size
+	 * @param width Width
+	 * @param height Height
+	 * @param alt Alternative text
+	 */
+	ImageInline(String[] context,InlineImageCache.Key key,int width,int height,
+		String alt)
+	{
+		this.context=context;
+		this.key=key;
+		this.width=width;
+		this.height=height;
+		this.alt=alt;
+		LayoutMetrics.wordsCreated.increment();
+	}
+
+	@Override
+	public int getLength()
+	{
+		return alt.length();
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return width;
+	}
+
+	@Override
+	public int getWidthLineFinal()
+	{
+		return width;
+	}
+
+	@Override
+	public int getWidth(int start,int end)
+	{
+		return width;
+	}
+
+	@Override
+	public int getWidthLineFinal(int start,int end)
+	{
+		return width;
+	}
+
+	@Override
+	public int getSplit(int start,int lineWidth)
+	{
+		// Images never wrap
+		return alt.length();
+	}
+
+	@Override
+	public int getMinWrappedWidth()
+	{
+		return width;
+	}
+
+	@Override
+	public int getAscent()
+	{
+		return height;
+	}
+
+	@Override
+	public int getDescent()
+	{
+		return 0;
+	}
+
+	@Override
+	public LayoutInline updateStyle(StyleContext sc) throws LayoutException
+	{
+		// Size comes from the element, not styles
+		return this;
+	}
+
+	@Override
+	public void paint(Graphics2D g2,int x,int baselineY,boolean highlighted)
+	{
+		int y=baselineY-height;
+		RepaintTarget target=(RepaintTarget)g2.getRenderingHint(KEY_REPAINT);
+		BufferedImage bi=target==null ? InlineImageCache.get(key,null,0,0,0) :
+			InlineImageCache.get(key,target.repainter,target.number,x,y-target.blockY);
+		if(bi!=null && bi!=InlineImageCache.FAILED)
+		{
+			g2.drawImage(bi,x,y,null);
+		}
+		if(highlighted)
+		{
+			Color c=SystemColor.textHighlight;
+			g2.setColor(new Color(c.getRed(),c.getGreen(),c.getBlue(),128));
+			g2.fillRect(x,y,width,height);
+		}
+	}
+
+	@Override
+	public boolean breakAfter()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean breakBefore()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean skipAtLineStart()
+	{
+		return false;
+	}
+
+	@Override
+	public String getText()
+	{
+		return alt;
+	}
+
+	@Override
+	public NodePos getNodePos(int start,int end,int x)
+	{
+		return new NodePos(this,0);
+	}
+
+	@Override
+	public int getOffset(int start,int end,int x)
+	{
+		// Whole image is one position
+		return x<width ? start : end;
+	}
+
+	@Override
+	public Rectangle getCharacterBounds(int start,int end,int character)
+	{
+		return new Rectangle(0,0,width,0);
+	}
+
+	@Override
+	public long getRetainedBytes()
+	{
+		// Object with its fields (key and text are usually shared)
+		return 48;
+	}
+
+	@Override
+	public String debugDisplay(String indent)
+	{
+		return indent+"ImageInline ["+StringUtils.join("/",context)+"]: "+
+			key.getSrc()+"\n";
+	}
+
+	@Override
+	public String[] getContext()
+	{
+		return context;
+	}
+}
@@ -0,0 +1,475 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Cache of decoded images for inline images (&lt;img&gt;), already scaled to
+ * the size they are shown at. Images that aren't in the cache are loaded
+ * and decoded by background threads; anything painted while an image was
+ * loading is repainted (just the image area, wherever its block is by then)
+ * when it arrives. The cache is limited by the approximate memory used by 
+ * its images, and the least recently used images are discarded when it 
+ * goes over.
+ * <p>
+ * Images are only loaded from URLs with an allowed scheme (by default http
+ * and https; see {@link #setAllowedSchemes(String...)}). The size of an 
+ * image is read before it is decoded, so that images that are too large are
+ * never decoded, and large images are decoded at a reduced size.
+ */
+public abstract class InlineImageCache
+{
+	/** Default memory budget in bytes */
+	public final static long DEFAULT_BUDGET=8*1024*1024;
+
+	/** Memory budget in bytes */
+	private static long budget=DEFAULT_BUDGET;
+
+	/** Approximate bytes currently used by cached images */
+	private static long bytes;
+
+	/** Statistics */
+	private static long hits,misses,evictions,failures;
+
+	/** Images in order of use (least recent first) */
+	private static LinkedHashMap<Key, BufferedImage> images=
+		new LinkedHashMap<Key, BufferedImage>(16,0.75f,true);
+
+	/** Images being loaded, with the areas to repaint when each arrives */
+	private static Map<Key, Set<Waiter>> loading=new HashMap<Key, Set<Waiter>>();
+
+	/** URL schemes images can be loaded from (lower case) */
+	private static Set<String> allowedSchemes=
+		new HashSet<String>(Arrays.asList("http","https"));
+
+	/** 
+	 * Stored in place of images that couldn't be loaded, so that they aren't
+	 * tried again until discarded
+	 */
+	final static BufferedImage FAILED=new BufferedImage(1,1,BufferedImage.TYPE_INT_ARGB);
+
+	/** Number of threads that decode images */
+	private final static int DECODE_THREADS=2;
+
+	/** Largest width or height an image can be shown at */
+	final static int MAX_SIZE=2048;
+
+	/** Most pixels in an image that will be decoded */
+	private final static long MAX_SOURCE_PIXELS=50*1000*1000;
+
+	/** Timeouts for connecting and reading, in milliseconds */
+	private final static int CONNECT_TIMEOUT=10000,READ_TIMEOUT=10000;
+
+	/** Pool used to decode images */
+	private static ExecutorService decodePool;
+
+	/**
+	 * Area of a block that needs repainting when an image arrives.
+	 */
+	private static class Waiter
+	{
+		ImageInline.BlockRepainter r;
+		int number,x,y;
+
+		Waiter(ImageInline.BlockRepainter r,int number,int x,int y)
+		{
+			this.r=r;
+			this.number=number;
+			this.x=x;
+			this.y=y;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return System.identityHashCode(r)^number^(x<<16)^y;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof Waiter)) return false;
+			Waiter other=(Waiter)obj;
+			return r==other.r && number==other.number && x==other.x && y==other.y;
+		}
+	}
+
+	/**
+	 * Gets an image, starting to load it if it isn't in the cache.
+	 * @param k Key
+	 * @param repaint View to repaint when the image arrives, or null if none
+	 * @param number Number of block containing image
+	 * @param x X position of image within the view
+	 * @param y Y position of image relative to the top of the block
+	 * @return Image, {@link #FAILED}, or null if it isn't loaded yet
+	 */
+	static synchronized BufferedImage get(Key k,ImageInline.BlockRepainter repaint,
+		int number,int x,int y)
+	{
+		BufferedImage bi=images.get(k);
+		if(bi!=null)
+		{
+			hits++;
+			return bi;
+		}
+
+		// Each area is only repainted once, however often it was painted
+		Set<Waiter> waiters=loading.get(k);
+		if(waiters==null)
+		{
+			misses++;
+			waiters=new LinkedHashSet<Waiter>();
+			loading.put(k,waiters);
+			getDecodePool().execute(new Loader(k));
+		}
+		if(repaint!=null) waiters.add(new Waiter(repaint,number,x,y));
+		return null;
+	}
+
+	/**
+	 * Sets the URL schemes images can be loaded from. Images already in the
+	 * cache are kept.
+	 * @param schemes Schemes (e.g. "http", "https", "file")
+	 */
+	public static synchronized void setAllowedSchemes(String... schemes)
+	{
+		Set<String> allowed=new HashSet<String>();
+		for(String scheme : schemes)
+		{
+			allowed.add(scheme.toLowerCase(Locale.ENGLISH));
+		}
+		allowedSchemes=allowed;
+	}
+
+	/** @return URL schemes images can be loaded from */
+	public static synchronized String[] getAllowedSchemes()
+	{
+		return allowedSchemes.toArray(new String[allowedSchemes.size()]);
+	}
+
+	/**
+	 * @param url URL
+	 * @return True if images can be loaded from that URL's scheme
+	 */
+	private static synchronized boolean isAllowed(URL url)
+	{
+		return allowedSchemes.contains(url.getProtocol().toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * @return Pool used to decode images
+	 */
+	private static synchronized ExecutorService getDecodePool()
+	{
+		if(decodePool==null)
+		{
+			decodePool=Executors.newFixedThreadPool(DECODE_THREADS,
+				new DaemonThreadFactory("Inline image thread",Thread.MIN_PRIORITY));
+		}
+		return decodePool;
+	}
+
+	/**
+	 * Loads one image in the background.
+	 */
+	private static class Loader implements Runnable
+	{
+		private Key k;
+
+		Loader(Key k)
+		{
+			this.k=k;
+		}
+
+		@Override
+		public void run()
+		{
+			BufferedImage bi=FAILED;
+			try
+			{
+				bi=load(k);
+			}
+			catch(Exception e)
+			{
+				// Includes runtime exceptions that decoders throw for broken files
+			}
+			catch(OutOfMemoryError e)
+			{
+				// Only this image's buffers were being allocated, and they are 
+				// garbage now; the thread carries on with other images
+			}
+			finally
+			{
+				// Even after another error, so that the image doesn't stay 
+				// loading for ever
+				Set<Waiter> waiters;
+				synchronized(InlineImageCache.class)
+				{
+					waiters=loading.remove(k);
+					if(bi==FAILED) failures++;
+					put(k,bi);
+				}
+
+				for(Waiter w : waiters)
+				{
+					w.r.repaintBlock(w.number,w.x,w.y,k.width,k.height);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads, decodes and scales an image.
+	 * @param k Key
+	 * @return Image at the size given in key
+	 * @throws IOException Any error loading image
+	 */
+	private static BufferedImage load(Key k) throws IOException
+	{
+		URL url=new URL(k.src);
+		if(!isAllowed(url)) throw new IOException("URL scheme not allowed: "+k.src);
+		URLConnection connection=url.openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		BufferedImage source;
+		InputStream in=connection.getInputStream();
+		try
+		{
+			source=decode(in,k);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		// Halve the size until near the target, so that downscaling large
+		// images (e.g. photo thumbnails) doesn't skip pixels
+		BufferedImage current=source;
+		int w=source.getWidth(),h=source.getHeight();
+		while(true)
+		{
+			w=Math.max(k.width,w/2);
+			h=Math.max(k.height,h/2);
+			boolean last=w<k.width*2 && h<k.height*2;
+			if(last)
+			{
+				w=k.width;
+				h=k.height;
+			}
+			BufferedImage scaled=new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g2=scaled.createGraphics();
+			g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+				RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2.drawImage(current,0,0,w,h,null);
+			g2.dispose();
+			current=scaled;
+			if(last) return current;
+		}
+	}
+
+	/**
+	 * Decodes an image, reading its size first. Images much larger than the 
+	 * size they are shown at are subsampled while decoding, but still decoded
+	 * at twice that size or more so that scaling can smooth them.
+	 * @param in Input
+	 * @param k Key
+	 * @return Decoded image
+	 * @throws IOException If the image can't be decoded or is too large
+	 */
+	private static BufferedImage decode(InputStream in,Key k) throws IOException
+	{
+		ImageInputStream iis=ImageIO.createImageInputStream(in);
+		if(iis==null) throw new IOException("Can't read image: "+k.src);
+		try
+		{
+			Iterator<ImageReader> readers=ImageIO.getImageReaders(iis);
+			if(!readers.hasNext()) throw new IOException("Unsupported image format: "+k.src);
+			ImageReader reader=readers.next();
+			try
+			{
+				reader.setInput(iis,true,true);
+				int w=reader.getWidth(0),h=reader.getHeight(0);
+				if(w<=0 || h<=0 || (long)w*h>MAX_SOURCE_PIXELS)
+					throw new IOException("Image too large ("+w+"x"+h+"): "+k.src);
+				int step=Math.max(1,Math.min(w/(k.width*2),h/(k.height*2)));
+				ImageReadParam param=reader.getDefaultReadParam();
+				param.setSourceSubsampling(step,step,0,0);
+				return reader.read(0,param);
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+		finally
+		{
+			iis.close();
+		}
+	}
+
+	/**
+	 * Adds an image to the cache, discarding older images if it is now over
+	 * budget.
+	 * @param k Key
+	 * @param bi Image
+	 */
+	private static synchronized void put(Key k,BufferedImage bi)
+	{
+		BufferedImage old=images.put(k,bi);
+		if(old!=null) bytes-=getBytes(old);
+		bytes+=getBytes(bi);
+		trim();
+	}
+
+	/**
+	 * Discards least recently used images until the cache is within budget.
+	 */
+	private static void trim()
+	{
+		for(Iterator<BufferedImage> i=images.values().iterator();
+			bytes>budget && i.hasNext();)
+		{
+			bytes-=getBytes(i.next());
+			i.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * @param bi Image
+	 * @return Approximate memory used by image (it's always an int ARGB image)
+	 */
+	private static long getBytes(BufferedImage bi)
+	{
+		return (long)bi.getWidth()*bi.getHeight()*4;
+	}
+
+	/**
+	 * Sets the memory budget. If the cache is currently larger, images are
+	 * discarded immediately.
+	 * @param budget New budget in bytes
+	 */
+	public static synchronized void setBudget(long budget)
+	{
+		InlineImageCache.budget=budget;
+		trim();
+	}
+
+	/** @return Memory budget in bytes */
+	public static synchronized long getBudget()
+	{
+		return budget;
+	}
+
+	/** @return Approximate bytes used by images in cache */
+	public static synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/** @return Number of images in cache */
+	public static synchronized int getSize()
+	{
+		return images.size();
+	}
+
+	/** @return Number of requests that found an image */
+	public static synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/** @return Number of images that had to be loaded */
+	public static synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/** @return Number of images discarded to stay within budget */
+	public static synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/** @return Number of images that couldn't be loaded */
+	public static synchronized long getFailures()
+	{
+		return failures;
+	}
+
+	/** 
+	 * Discards all images, so that they are loaded again when next painted
+	 * (statistics are not reset).
+	 */
+	public static synchronized void clear()
+	{
+		images.clear();
+		bytes=0;
+	}
+
+	/**
+	 * Key identifying an image at a particular size.
+	 */
+	static class Key
+	{
+		private String src;
+		private int width,height;
+
+		/**
+		 * @param src Image URL
+		 * @param width Width to show image at
+		 * @param height Height to show image at
+		 */
+		Key(String src,int width,int height)
+		{
+			this.src=src;
+			this.width=width;
+			this.height=height;
+		}
+
+		/** @return Image URL */
+		String getSrc()
+		{
+			return src;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return src.hashCode()^(width<<16)^height;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof Key)) return false;
+			Key other=(Key)obj;
+			return src.equals(other.src) && width==other.width && height==other.height;
+		}
+	}
+}
@@ -19,29 +19,143 @@ Copyright 2011 Samuel Marshall.
 package textlayout;
 
 import java.awt.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 import textlayout.stylesheet.*;
 
 /** 
- * The root node for a layout. Basically just a vertical holder block with
- * a background colour and synchronization. 
+ * The root node for a layout: a list of blocks that appear one below the
+ * other, with a background colour and locking. The blocks are laid out 
+ * separately for each width that is in use (see {@link LayoutFlow}); views
+ * get the flow for their width with {@link #acquireFlow(int)}, and the
+ * methods that depend on positions take that flow. The other methods use a
+ * default flow, set by {@link #reflow(int)}.
+ * <p>
+ * Blocks are numbered in the order they are added, so that a block can be 
+ * found again after blocks before it are deleted.
+ * <p>
+ * Locking uses a read/write lock so that painting, hit-testing and getting
+ * the highlight text can happen at the same time as each other, while 
+ * changes (adding or removing blocks, style updates, reflow at a new width,
+ * highlight changes) get exclusive access. Changes that need blocks 
+ * flowing (adding blocks, style updates, a new width, collapsing groups) 
+ * do that work without the lock and then take the write lock only to swap 
+ * the results in, so that readers only wait for lists to be updated. If 
+ * the layout changed meanwhile the work is done again (reusing what is 
+ * still valid), and after a few tries it is done with the write lock held.
  */
-class Layout extends VerticalHolderBlock
+class Layout
 {
 	Layout()
 	{
-		super(null,null);
+		LayoutMetrics.addLayout(this);
 	}
 
   /** Background colour, if any */
   private Color cBackground=null;
+  
+  /** Lock: readers can work in parallel, changes are exclusive */
+  private ReadWriteLock lock=new ReentrantReadWriteLock();
+  
+  /** Blocks */
+  private ArrayList<LayoutBlock> blocks=new ArrayList<LayoutBlock>();
+  
+  /** Number of first block */
+  private int firstNumber;
+  
+  /** Flows by width */
+  private Map<Integer,LayoutFlow> flows=new HashMap<Integer,LayoutFlow>();
+  
+  /** 
+   * Flows that no view is using, most recent first; these are kept in case
+   * a view goes back to that width, but not updated until it does
+   */
+  private LinkedList<LayoutFlow> spareFlows=new LinkedList<LayoutFlow>();
+  
+  /** Number of flows kept when no view is using them */
+  private final static int SPARE_FLOWS=2;
+  
+  /** Flow used by methods that don't take one, or null if not set */
+  private volatile LayoutFlow defaultFlow;
+  
+  /** Flow most recently acquired */
+  private LayoutFlow lastFlow;
+  
+  /** True if blocks should be reflowed in parallel */
+  private boolean parallelReflow;
+  
+  /** 
+   * Incremented (with the write lock held) whenever the blocks or the flows
+   * in use change, so that work done without the lock can tell whether it
+   * is still valid
+   */
+  private int modCount;
+  
+  /** 
+   * Number of times a change is worked out without the lock before it is 
+   * done with the write lock held instead (only if the layout keeps 
+   * changing meanwhile)
+   */
+  private final static int UNLOCKED_ATTEMPTS=3;
+  
+  /** Guards changes to the default flow */
+  private final Object defaultFlowLock=new Object();
+  
+  /** Start and end of highlight, or null if none */
+  private Position highlightStart,highlightEnd;
+  
+  /** Estimated memory used by blocks (kept up to date as blocks change) */
+  private AtomicLong retainedBytes=new AtomicLong(EMPTY_BYTES);
+  
+  /** Number of words in blocks (kept up to date as blocks change) */
+  private AtomicInteger wordCount=new AtomicInteger();
+  
+  /** Search index, or null if not searchable */
+  private SearchIndex searchIndex;
+  
+  /** Estimated memory used by layout with no blocks */
+  private final static long EMPTY_BYTES=48;
+  
+  /** Estimated memory used by each block's entries in arrays */
+  final static long ENTRY_BYTES=24;
 
-	/** Constant used within setHighlight to indicate that layout blocks should
-	 * show highlight all the way to the end. */
-	final static int HIGHLIGHT_TOEND=100000000;
-	/** Constant used within setHighlight to indicate that layout blocks should
-	 * show highlight all the way to the beginning. */
+	/** Offset used for highlight that starts before the start of a block. */
 	final static int HIGHLIGHT_TOSTART=-100000000;
+	/** Offset used for highlight that continues after the end of a block. */
+	final static int HIGHLIGHT_TOEND=100000000;
+	
+	/**
+	 * Position in text.
+	 */
+	static class Position
+	{
+		/** Block number */
+		private final int number;
+		/** Character offset within block text */
+		private final int offset;
+		
+		/**
+		 * @param number Block number
+		 * @param offset Character offset within block text
+		 */
+		Position(int number,int offset)
+		{
+			this.number=number;
+			this.offset=offset;
+		}
+		
+		/**
+		 * @param other Other position
+		 * @return True if this is before the other
+		 */
+		boolean isBefore(Position other)
+		{
+			return number<other.number || (number==other.number && offset<other.offset);
+		}
+	}
 
   void resolveStyle(StyleContext sc)
   {  		
@@ -55,16 +169,330 @@ class Layout extends VerticalHolderBlock
 		}
   }
   
-  @Override
-	public synchronized void updateStyle(StyleContext sc) throws LayoutException
+  /**
+   * Updates all blocks to a new style and lays them out again. The blocks 
+   * are restyled and flowed without the lock, then swapped in.
+   * @param sc Style context
+   * @throws LayoutException
+   */
+	void updateStyle(StyleContext sc) throws LayoutException
+  {
+  	// Kept across attempts so that blocks don't need restyling again
+  	Map<LayoutBlock,LayoutBlock> restyled=new IdentityHashMap<LayoutBlock,LayoutBlock>();
+  	Map<Integer,LayoutFlow> built=new HashMap<Integer,LayoutFlow>();
+  	for(int attempt=0;;attempt++)
+  	{
+  		boolean locked=attempt==UNLOCKED_ATTEMPTS;
+  		if(locked) lock.writeLock().lock();
+  		try
+  		{
+  			LayoutBlock[] before;
+  			List<LayoutFlow> inUse;
+  			int version;
+  			boolean parallel;
+  			lock.readLock().lock();
+  			try
+  			{
+  				before=blocks.toArray(new LayoutBlock[blocks.size()]);
+  				inUse=getFlowsInUse();
+  				version=modCount;
+  				parallel=parallelReflow;
+  			}
+  			finally
+  			{
+  				lock.readLock().unlock();
+  			}
+  			
+  			LayoutBlock[] after=new LayoutBlock[before.length];
+  			for(int i=0;i<before.length;i++)
+  			{
+  				after[i]=restyled.get(before[i]);
+  				if(after[i]==null)
+  				{
+  					after[i]=before[i].updateStyle(sc);
+  					restyled.put(before[i],after[i]);
+  				}
+  			}
+  			Map<Integer,LayoutFlow> attemptBuilt=new HashMap<Integer,LayoutFlow>();
+  			for(LayoutFlow f : inUse)
+  			{
+  				LayoutFlow earlier=built.get(f.getWidth());
+  				attemptBuilt.put(f.getWidth(),build(f.getWidth(),after,
+  					earlier==null ? null : earlier.copyFlows(),earlier,parallel));
+  			}
+  			built=attemptBuilt;
+  			
+  			if(!locked) lock.writeLock().lock();
+  			try
+  			{
+  				if(modCount!=version) continue;
+  				blocks=new ArrayList<LayoutBlock>(Arrays.asList(after));
+  	  		// Spare flows would need everything flowing again anyway
+  	  		for(LayoutFlow f : spareFlows) flows.remove(f.getWidth());
+  	  		spareFlows.clear();
+  	  		for(LayoutFlow f : inUse) f.replaceWith(built.get(f.getWidth()));
+  	  		modCount++;
+  	  		return;
+  			}
+  			finally
+  			{
+  				if(!locked) lock.writeLock().unlock();
+  			}
+  		}
+  		finally
+  		{
+  			if(locked) lock.writeLock().unlock();
+  		}
+  	}
+  }
+  
+  /**
+   * Must be called with a lock held.
+   * @return Flows that views are using
+   */
+  private List<LayoutFlow> getFlowsInUse()
+  {
+  	List<LayoutFlow> inUse=new ArrayList<LayoutFlow>(flows.size());
+  	for(LayoutFlow f : flows.values())
+  	{
+  		if(f.getReferences()>0) inUse.add(f);
+  	}
+  	return inUse;
+  }
+  
+  /**
+   * Builds a new flow of blocks. Doesn't need the lock.
+   * @param width Width
+   * @param blocks Blocks
+   * @param known Earlier flows at this width, or null
+   * @param knownFrom Flow those came from, or null
+   * @param parallel True to flow in parallel
+   * @return New flow
+   */
+  private static LayoutFlow build(int width,LayoutBlock[] blocks,
+  	BlockFlow[] known,LayoutFlow knownFrom,boolean parallel)
   {
-  	super.updateStyle(sc);
+		long start=System.nanoTime();
+		LayoutFlow f=new LayoutFlow(width);
+		int broken=f.fill(blocks,known,knownFrom,parallel);
+		LayoutMetrics.textBlockRecalls.add(blocks.length-broken);
+		LayoutMetrics.reflowTime.record(System.nanoTime()-start);
+		LayoutMetrics.blocksReflowed.record(broken);
+		return f;
   }
   
-  @Override
-	public synchronized void reflow(int width)
+  /**
+   * Gets the layout at a width, for a view that is that wide. Views of the
+   * same width share a flow. The flow is kept up to date until released.
+   * If the width isn't already flowed, the blocks are flowed without the 
+   * lock and then swapped in.
+   * @param width Width
+   * @return Flow
+   */
+  LayoutFlow acquireFlow(int width)
   {
-  	super.reflow(width);
+  	BlockFlow[] known=null;
+  	LayoutFlow knownFrom=null;
+  	for(int attempt=0;;attempt++)
+  	{
+  		boolean locked=attempt==UNLOCKED_ATTEMPTS;
+  		LayoutBlock[] snapshot;
+  		int version;
+  		boolean parallel;
+	  	lock.writeLock().lock();
+	  	try
+	  	{
+	  		LayoutFlow f=flows.get(width);
+	  		if(f!=null && f.isComplete())
+	  		{
+	  			use(f);
+	  			return f;
+	  		}
+	  		if(knownFrom==null && f!=null)
+	  		{
+	  			// Spare flow that missed some changes
+	  			known=f.copyFlows();
+	  			knownFrom=f;
+	  		}
+	  		else if(known==null)
+	  		{
+	  			// Blocks keep their lines from the nearest width where they 
+	  			// break the same way
+	  			LayoutFlow nearest=getNearestFlow(width);
+	  			if(nearest!=null) known=nearest.copyFlows();
+	  		}
+	  		snapshot=blocks.toArray(new LayoutBlock[blocks.size()]);
+	  		version=modCount;
+	  		parallel=parallelReflow;
+	  		if(locked) return install(width,build(width,snapshot,known,knownFrom,parallel));
+	  	}
+	  	finally
+	  	{
+	  		lock.writeLock().unlock();
+	  	}
+	  	
+	  	LayoutFlow built=build(width,snapshot,known,knownFrom,parallel);
+	  	lock.writeLock().lock();
+	  	try
+	  	{
+	  		if(modCount==version) return install(width,built);
+	  	}
+	  	finally
+	  	{
+	  		lock.writeLock().unlock();
+	  	}
+	  	known=built.copyFlows();
+	  	knownFrom=built;
+  	}
+  }
+  
+  /**
+   * Must be called with a lock held.
+   * @param width Width
+   * @return Flow at the nearest other width, or null if none
+   */
+  private LayoutFlow getNearestFlow(int width)
+  {
+  	LayoutFlow nearest=null;
+  	for(LayoutFlow f : flows.values())
+  	{
+  		if(f.getWidth()!=width && (nearest==null || 
+  			Math.abs(f.getWidth()-width)<Math.abs(nearest.getWidth()-width)))
+  		{
+  			nearest=f;
+  		}
+  	}
+  	return nearest;
+  }
+  
+  /**
+   * Puts a newly built flow in place of any existing one (so that views 
+   * keep the same object) and uses it. Must be called with write lock held.
+   * @param width Width
+   * @param built New flow
+   * @return Flow now in the layout
+   */
+  private LayoutFlow install(int width,LayoutFlow built)
+  {
+  	LayoutFlow f=flows.get(width);
+  	if(f==null)
+  	{
+  		f=built;
+  		flows.put(width,f);
+  	}
+  	else
+  	{
+  		f.replaceWith(built);
+  	}
+  	use(f);
+  	return f;
+  }
+  
+  /**
+   * Adds a reference to a complete flow. Must be called with write lock held.
+   * @param f Flow
+   */
+  private void use(LayoutFlow f)
+  {
+		if(f.getReferences()==0) spareFlows.remove(f);
+		f.addReferences(1);
+		lastFlow=f;
+		modCount++;
+  }
+  
+  /**
+   * Called when a view no longer uses a flow.
+   * @param f Flow from {@link #acquireFlow(int)}
+   */
+  void releaseFlow(LayoutFlow f)
+  {
+  	lock.writeLock().lock();
+  	try
+  	{
+  		f.addReferences(-1);
+  		modCount++;
+  		if(f.getReferences()>0) return;
+  		spareFlows.addFirst(f);
+  		while(spareFlows.size()>SPARE_FLOWS)
+  		{
+  			flows.remove(spareFlows.removeLast().getWidth());
+  		}
+  	}
+  	finally
+  	{
+  		lock.writeLock().unlock();
+  	}
+  }
+  
+  /**
+   * @return Widths of flows that are in use, so that blocks can be flowed
+   *   at those widths before they are added
+   */
+  int[] getFlowWidths()
+  {
+  	lock.readLock().lock();
+  	try
+  	{
+  		int[] widths=new int[flows.size()-spareFlows.size()];
+  		int i=0;
+  		for(LayoutFlow f : flows.values())
+  		{
+  			if(f.getReferences()>0) widths[i++]=f.getWidth();
+  		}
+  		return widths;
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /**
+   * Flows a block that is about to be added. May be called from any thread.
+   * @param lb Block, which should already be current
+   * @param widths Widths
+   * @return Flow (for a compact block, of its generated block) at each 
+   *   width; this can't be changed, and is only read when the block is added
+   */
+  static Map<Integer,BlockFlow> prepare(LayoutBlock lb,int[] widths)
+  {
+		Map<Integer,BlockFlow> prepared=new HashMap<Integer,BlockFlow>();
+		BlockFlow previous=null;
+		for(int i=0;i<widths.length;i++)
+		{
+			previous=prepare(lb,widths[i],previous);
+			prepared.put(widths[i],previous);
+		}
+		return Collections.unmodifiableMap(prepared);
+  }
+  
+  /**
+   * @param lb Block, which should already be current
+   * @param width Width
+   * @param previous Flow from this method at another width (its lines are 
+   *   reused if they break the same way), or null
+   * @return Flow (for a compact block, of its generated block)
+   */
+  private static BlockFlow prepare(LayoutBlock lb,int width,BlockFlow previous)
+  {
+  	return lb instanceof CompactBlock 
+			? ((CompactBlock)lb).flowDetail(width,previous) : lb.flow(width,previous);
+  }
+  
+  /**
+   * Sets the width of the default flow.
+   * @param width Width
+   */
+	void reflow(int width)
+  {
+  	if(width<=0) return;
+  	synchronized(defaultFlowLock)
+  	{
+  		LayoutFlow f=defaultFlow;
+  		if(f!=null && f.getWidth()==width) return;
+	  	defaultFlow=acquireFlow(width);
+	  	if(f!=null) releaseFlow(f);
+  	}
   }
   
   void setWidth(int width)
@@ -72,6 +500,24 @@ class Layout extends VerticalHolderBlock
 		reflow(width);
   }
   
+  /** @return Width of default flow, or -1 if none */
+  int getWidth()
+  {
+  	LayoutFlow f=defaultFlow;
+  	return f==null ? -1 : f.getWidth();
+  }
+  
+  /**
+   * @return Default flow
+   * @throws Error If it hasn't been set
+   */
+  private LayoutFlow getDefaultFlow()
+  {
+  	LayoutFlow f=defaultFlow;
+  	if(f==null) throw new Error("Must reflow first");
+  	return f;
+  }
+  
   /**
    * Returns current height (reflows if needed).
    * @param width Specified width
@@ -87,62 +533,1145 @@ class Layout extends VerticalHolderBlock
     return getHeight();
   }
   
+  /** @return Height of default flow */
+  int getHeight()
+  {
+  	return getHeight(getDefaultFlow());
+  }
+  
+  /**
+   * @param f Flow
+   * @return Height
+   */
+  int getHeight(LayoutFlow f)
+  {
+  	lock.readLock().lock();
+  	try
+  	{
+  		return f.getHeight();
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /** @return Baseline of first line in default flow */
+  int getFirstBaseline()
+  {
+  	LayoutFlow f=getDefaultFlow();
+  	lock.readLock().lock();
+  	try
+  	{
+  		return f.size()==0 ? 0 : f.get(0).getFirstBaseline();
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /** @return Width used by blocks in default flow */
+  int getUsedWidth()
+  {
+  	LayoutFlow f=getDefaultFlow();
+  	lock.readLock().lock();
+  	try
+  	{
+  		int usedWidth=0;
+  		for(int i=0;i<f.size();i++)
+  		{
+  			usedWidth=Math.max(usedWidth,f.get(i).getUsedWidth());
+  		}
+  		return usedWidth;
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /** @return Largest min-content width of blocks */
+  int getMinContentWidth()
+  {
+  	lock.readLock().lock();
+  	try
+  	{
+  		int min=0;
+  		for(LayoutBlock lb : blocks)
+  		{
+  			min=Math.max(min,lb.getMinContentWidth());
+  		}
+  		return min;
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /** @return Largest max-content width of blocks */
+  int getMaxContentWidth()
+  {
+  	lock.readLock().lock();
+  	try
+  	{
+  		int max=0;
+  		for(LayoutBlock lb : blocks)
+  		{
+  			max=Math.max(max,lb.getMaxContentWidth());
+  		}
+  		return max;
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /**
+   * Turns on parallel reflow. When on, and there are enough blocks, a full 
+   * reflow splits the blocks between threads (one per processor).
+   * @param parallelReflow True to reflow in parallel
+   */
+  void setParallelReflow(boolean parallelReflow)
+  {
+  	lock.writeLock().lock();
+  	try
+  	{
+  		this.parallelReflow=parallelReflow;
+  	}
+  	finally
+  	{
+  		lock.writeLock().unlock();
+  	}
+  }
+  
   /** Clear all blocks */
-  @Override
-	synchronized void clear()
+	void clear()
+  {
+  	lock.writeLock().lock();
+  	try
+  	{
+  		firstNumber+=blocks.size();
+  		modCount++;
+  		blocks.clear();
+  		for(LayoutFlow f : flows.values()) f.clear();
+  		highlightStart=null;
+  		highlightEnd=null;
+  		retainedBytes.set(EMPTY_BYTES);
+  		wordCount.set(0);
+  		if(searchIndex!=null) searchIndex.clear();
+  	}
+  	finally
+  	{
+  		lock.writeLock().unlock();
+  	}
+  }
+  
+  /**
+   * Change to a single block, worked out without the lock.
+   */
+  private interface BlockChange
   {
-		super.clear();
+  	/**
+  	 * Makes the new block. Called without the lock, perhaps more than once 
+  	 * if the layout changes meanwhile.
+  	 * @param old Existing block
+  	 * @return New block
+  	 * @throws LayoutException
+  	 */
+  	LayoutBlock change(LayoutBlock old) throws LayoutException;
+  	
+  	/**
+  	 * Called with the write lock held once the new block is in place.
+  	 * @param old Block that was replaced
+  	 * @param changed New block
+  	 */
+  	void done(LayoutBlock old,LayoutBlock changed);
   }
-
-  @Override
-	synchronized void addBlock(StyleContext sc,LayoutBlock lb) throws LayoutException
+  
+  /**
+   * Replaces a block. The new block is made and flowed at the widths in use
+   * without the lock, then swapped in.
+   * @param number Block number
+   * @param mustBeLast True if the block must be the last one
+   * @param change Change
+   * @throws LayoutException
+   * @throws IllegalArgumentException If mustBeLast and it isn't
+   */
+  private void replace(int number,boolean mustBeLast,BlockChange change) 
+  	throws LayoutException
+  {
+  	for(int attempt=0;;attempt++)
+  	{
+  		boolean locked=attempt==UNLOCKED_ATTEMPTS;
+  		if(locked) lock.writeLock().lock();
+  		try
+  		{
+  			int index,version;
+  			LayoutBlock old;
+  			List<LayoutFlow> inUse;
+  			BlockFlow[] previous;
+  			lock.readLock().lock();
+  			try
+  			{
+  				index=number-firstNumber;
+  	  		if(mustBeLast && (index<0 || index!=blocks.size()-1))
+  	  			throw new IllegalArgumentException("Group is not the last block");
+  				if(index<0 || index>=blocks.size()) return;
+  				old=blocks.get(index);
+  				version=modCount;
+  				inUse=getFlowsInUse();
+  				previous=new BlockFlow[inUse.size()];
+  				for(int i=0;i<previous.length;i++) previous[i]=inUse.get(i).get(index);
+  			}
+  			finally
+  			{
+  				lock.readLock().unlock();
+  			}
+  			
+  			LayoutBlock changed=change.change(old);
+  			BlockFlow[] computed=new BlockFlow[previous.length];
+  			for(int i=0;i<computed.length;i++)
+  			{
+  				computed[i]=inUse.get(i).compute(changed,previous[i]);
+  			}
+  			
+  			if(!locked) lock.writeLock().lock();
+  			try
+  			{
+  				if(modCount!=version) continue;
+  				install(index,changed,inUse,computed);
+  				change.done(old,changed);
+  				return;
+  			}
+  			finally
+  			{
+  				if(!locked) lock.writeLock().unlock();
+  			}
+  		}
+  		finally
+  		{
+  			if(locked) lock.writeLock().unlock();
+  		}
+  	}
+  }
+  
+  /**
+   * Puts a replacement block and its flows in place. Must be called with 
+   * write lock held, when nothing has changed since the flows in use were 
+   * listed.
+   * @param index Index of block
+   * @param lb New block
+   * @param inUse Flows that are in use
+   * @param computed Flow of the block in each of those
+   */
+  private void install(int index,LayoutBlock lb,List<LayoutFlow> inUse,
+  	BlockFlow[] computed)
   {
-		super.addBlock(sc,lb);
+  	if(blocks.set(index,lb)==lb) return;
+  	for(LayoutFlow f : flows.values())
+  	{
+  		int i=inUse.indexOf(f);
+  		f.set(index,i==-1 ? null : computed[i]);
+  	}
+  	modCount++;
   }
 
-  synchronized void paint(Graphics2D g2,int iScrX,int iScrY,int iWidth,int iStart,int iTargetHeight)
+  /**
+   * Adds another block to the bottom.
+   * @param sc Styles
+   * @param lb Block to add
+   * @return Number of block
+   * @throws LayoutException
+   */
+	int addBlock(StyleContext sc,LayoutBlock lb) throws LayoutException
+  {
+		return addBlock(sc,lb,null);
+  }
+  
+  /**
+   * Adds another block to the bottom. The block is flowed (and the previous
+   * last block made not current) without the lock, then swapped in.
+   * @param sc Styles
+   * @param lb Block to add
+   * @param prepared Result of {@link #prepare(LayoutBlock, int[])} for the
+   *   block, or null
+   * @return Number of block
+   * @throws LayoutException
+   */
+	int addBlock(StyleContext sc,LayoutBlock lb,Map<Integer,BlockFlow> prepared) 
+		throws LayoutException
   {
-  	reflow(iWidth);
+  	// The new block isn't visible to anyone else yet, so get it ready first
+  	lb=lb.setCurrent(sc,true);
+  	prepared=prepared==null 
+  		? new HashMap<Integer,BlockFlow>() : new HashMap<Integer,BlockFlow>(prepared);
+  	LayoutBlock stored=lb instanceof CompactBlock ? ((CompactBlock)lb).withoutSeed() : lb;
+  	long bytes=stored.getRetainedBytes()+ENTRY_BYTES;
+  	int words=stored.getWordCount();
+  	// The block as passed in may still have its generated block
+  	String text=searchIndex!=null ? lb.getText() : null;
+  	
+  	for(int attempt=0;;attempt++)
+  	{
+  		boolean locked=attempt==UNLOCKED_ATTEMPTS;
+  		if(locked) lock.writeLock().lock();
+  		try
+  		{
+  			int count,version;
+  			LayoutBlock last;
+  			List<LayoutFlow> inUse;
+  			BlockFlow[] previous;
+  			lock.readLock().lock();
+  			try
+  			{
+  				count=blocks.size();
+  				last=count==0 ? null : blocks.get(count-1);
+  				version=modCount;
+  				inUse=getFlowsInUse();
+  				previous=new BlockFlow[inUse.size()];
+  				for(int i=0;last!=null && i<previous.length;i++)
+  				{
+  					previous[i]=inUse.get(i).get(count-1);
+  				}
+  			}
+  			finally
+  			{
+  				lock.readLock().unlock();
+  			}
+  			
+  			LayoutBlock notCurrent=last==null ? null : last.setCurrent(sc,false);
+  			BlockFlow[] notCurrentFlows=new BlockFlow[inUse.size()],
+  				newFlows=new BlockFlow[inUse.size()];
+  			for(int i=0;i<newFlows.length;i++)
+  			{
+  				LayoutFlow f=inUse.get(i);
+  				if(notCurrent!=null) notCurrentFlows[i]=f.compute(notCurrent,previous[i]);
+  				BlockFlow p=prepared.get(f.getWidth());
+  				if(p==null)
+  				{
+  					p=prepare(lb,f.getWidth(),prepared.isEmpty() ? null 
+  						: prepared.values().iterator().next());
+  					prepared.put(f.getWidth(),p);
+  				}
+  				newFlows[i]=f.computeNew(lb,stored,p);
+  			}
+  			
+  			if(!locked) lock.writeLock().lock();
+  			try
+  			{
+  				if(modCount!=version) continue;
+  				if(notCurrent!=null) install(count-1,notCurrent,inUse,notCurrentFlows);
+	  			blocks.add(stored);
+	  			for(LayoutFlow f : flows.values())
+	  			{
+	  				int i=inUse.indexOf(f);
+	  				f.add(i==-1 ? null : newFlows[i]);
+	  			}
+	  			modCount++;
+	  			retainedBytes.addAndGet(bytes);
+	  			wordCount.addAndGet(words);
+	  			if(searchIndex!=null) 
+	  				searchIndex.add(text!=null ? text : lb.getText());
+	  			return firstNumber+count;
+  			}
+  			finally
+  			{
+  				if(!locked) lock.writeLock().unlock();
+  			}
+  		}
+  		finally
+  		{
+  			if(locked) lock.writeLock().unlock();
+  		}
+  	}
+  }
+  
+  /**
+   * Deletes blocks from the start.
+   * @param count Number of blocks to delete
+   * @return Pixel difference in height, at the width most recently acquired
+   */
+	int deleteFirstBlocks(int count)
+  {
+  	lock.writeLock().lock();
+  	try
+  	{
+  		count=Math.min(count,blocks.size());
+  		if(count<=0) return 0;
+  		LayoutFlow measure=lastFlow!=null && lastFlow.getReferences()>0 ? lastFlow : null;
+  		int before=measure==null ? 0 : measure.getHeight();
+  		
+  		List<LayoutBlock> deleted=blocks.subList(0,count);
+  		for(LayoutBlock lb : deleted)
+  		{
+  			retainedBytes.addAndGet(-lb.getRetainedBytes()-ENTRY_BYTES);
+  			wordCount.addAndGet(-lb.getWordCount());
+  		}
+  		deleted.clear();
+  		firstNumber+=count;
+  		modCount++;
+  		for(LayoutFlow f : flows.values()) f.deleteFirst(count);
+  		if(searchIndex!=null) searchIndex.deleteFirst(count);
   		
-    // Clear background
-    if(cBackground!=null)
-    {
-      g2.setColor(cBackground);
-      g2.fillRect(iScrX,iScrY,iWidth,iTargetHeight);
-    }
+  		// Highlight that was in deleted blocks starts at the first one left
+  		if(highlightStart!=null)
+  		{
+  			if(highlightEnd.number<firstNumber)
+  			{
+  				highlightStart=null;
+  				highlightEnd=null;
+  			}
+  			else if(highlightStart.number<firstNumber)
+  			{
+  				highlightStart=new Position(firstNumber,0);
+  			}
+  		}
+  		return measure==null ? 0 : before-measure.getHeight();
+  	}
+  	finally
+  	{
+  		lock.writeLock().unlock();
+  	}
+  }
 
-    super.paint(g2,iScrX,iScrY,iStart,iTargetHeight);
+  /**
+   * Collapses or expands a group. Only the group itself is flowed again.
+   * @param g Group
+   * @param collapsed True to collapse
+   * @throws LayoutException
+   */
+  void setCollapsed(CollapsibleGroup g,final boolean collapsed) throws LayoutException
+  {
+  	g.setCollapsed(collapsed);
+  	replace(g.getNumber(),false,new BlockChange()
+		{
+			@Override
+			public LayoutBlock change(LayoutBlock old) throws LayoutException
+			{
+				return ((CollapsibleBlock)old).setCollapsed(collapsed);
+			}
+			
+			@Override
+			public void done(LayoutBlock old,LayoutBlock changed)
+			{
+			}
+		});
+  }
+  
+  /**
+   * Adds blocks to a group, and/or replaces its summary.
+   * @param sc Styles
+   * @param g Group, which must be the last block
+   * @param summary New summary blocks, or null to keep existing
+   * @param contents Blocks to add
+   * @throws LayoutException
+   * @throws IllegalArgumentException If the group isn't the last block
+   */
+  void addToGroup(final StyleContext sc,CollapsibleGroup g,
+  	final LayoutBlock[] summary,final LayoutBlock[] contents) throws LayoutException
+  {
+  	replace(g.getNumber(),true,new BlockChange()
+		{
+			@Override
+			public LayoutBlock change(LayoutBlock old) throws LayoutException
+			{
+				return ((CollapsibleBlock)old).add(sc,summary,contents);
+			}
+			
+			@Override
+			public void done(LayoutBlock old,LayoutBlock changed)
+			{
+	  		retainedBytes.addAndGet(changed.getRetainedBytes()-old.getRetainedBytes());
+	  		wordCount.addAndGet(changed.getWordCount()-old.getWordCount());
+	  		if(searchIndex!=null)
+	  		{
+	  			for(LayoutBlock lb : summary!=null ? summary : new LayoutBlock[0])
+	  				searchIndex.addToLast(lb.getText());
+	  			for(LayoutBlock lb : contents)
+	  				searchIndex.addToLast(lb.getText());
+	  		}
+			}
+		});
+  }
+  
+  /**
+   * Finds the block at a position, so that the position can be kept when
+   * the layout changes or is flowed at another width. Blocks in the left 
+   * margin are ignored.
+   * @param f Flow
+   * @param y Y position
+   * @return Number of the last block that starts at or above that position, 
+   *   or -1 if none
+   */
+  int getAnchorBlock(LayoutFlow f,int y)
+  {
+  	lock.readLock().lock();
+  	try
+  	{
+  		if(y<0) return -1;
+  		int index=f.findAt(y,LayoutBlock.FLOWCATEGORY_NORMAL);
+  		if(index==-1)
+  		{
+  			// Below the end, so use the last one
+  			index=f.findLast(LayoutBlock.FLOWCATEGORY_NORMAL);
+  			if(index==-1) return -1;
+  		}
+  		return firstNumber+index;
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /**
+   * @param f Flow
+   * @param number Block number
+   * @param offset Distance below top of block (limited to its height)
+   * @return Y position of that point, or -1 if the block isn't in the layout
+   */
+  int getAnchorY(LayoutFlow f,int number,int offset)
+  {
+  	lock.readLock().lock();
+  	try
+  	{
+  		int index=number-firstNumber;
+  		if(index<0 || index>=f.size()) return -1;
+  		return f.getY(index)+Math.min(offset,f.get(index).getHeight());
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /**
+   * @param number Block number
+   * @param offset Distance below top of block (limited to its height)
+   * @return Y position of that point in the default flow, or -1 if the 
+   *   block isn't in the layout or there is no default flow
+   */
+  int getAnchorY(int number,int offset)
+  {
+  	LayoutFlow f=defaultFlow;
+  	return f==null ? -1 : getAnchorY(f,number,offset);
+  }
+  
+  /** 
+   * @return Estimated memory used by blocks (this is a running total, so 
+   *   doesn't need to look at each block)
+   */
+	long getRetainedBytes()
+  {
+  	return retainedBytes.get();
+  }
+  
+  /** 
+   * @return Number of words in blocks (this is a running total, so doesn't 
+   *   need to look at each block)
+   */
+	int getWordCount()
+  {
+  	return wordCount.get();
+  }
+  
+  /** @return Number of blocks */
+  int getBlockCount()
+  {
+  	lock.readLock().lock();
+  	try
+  	{
+  		return blocks.size();
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /**
+   * Updates the running total after a block changes size in memory.
+   * @param delta Change in bytes
+   */
+  void adjustRetainedBytes(long delta)
+  {
+  	retainedBytes.addAndGet(delta);
+  }
+  
+  /**
+   * @param bytes Memory limit
+   * @return Number of blocks that need to be deleted from the start so that
+   *   the rest use no more than the limit (never includes the last block)
+   */
+  int getTrimCount(long bytes)
+  {
+  	lock.readLock().lock();
+  	try
+  	{
+			long total=retainedBytes.get();
+			int count=0;
+			for(;total>bytes && count<blocks.size()-1;count++)
+			{
+				total-=blocks.get(count).getRetainedBytes()+ENTRY_BYTES;
+			}
+			return count;
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /**
+   * @param start Index of first block
+   * @param end Index after last block
+   * @return Blocks in that range
+   */
+	LayoutBlock[] getBlocks(int start,int end)
+  {
+  	lock.readLock().lock();
+  	try
+  	{
+  		List<LayoutBlock> range=blocks.subList(start,end);
+  		return range.toArray(new LayoutBlock[range.size()]);
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+
+  /**
+   * Paints using the default flow.
+   * @param g2 Graphics context
+   * @param iScrX X position on screen
+   * @param iScrY Y position on screen
+   * @param iWidth Width of area to clear
+   * @param iStart Y position within layout of top of area
+   * @param iTargetHeight Height of area
+   */
+  void paint(Graphics2D g2,int iScrX,int iScrY,int iWidth,int iStart,int iTargetHeight)
+  {
+  	paint(g2,getDefaultFlow(),iScrX,iScrY,iWidth,iStart,iTargetHeight);
+  }
+  
+  /**
+   * Paints the blocks that are visible.
+   * @param g2 Graphics context
+   * @param f Flow
+   * @param iScrX X position on screen
+   * @param iScrY Y position on screen
+   * @param iWidth Width of area to clear
+   * @param iStart Y position within layout of top of area
+   * @param iTargetHeight Height of area
+   */
+  void paint(Graphics2D g2,LayoutFlow f,int iScrX,int iScrY,int iWidth,
+  	int iStart,int iTargetHeight)
+  {
+  	long waitStart=System.nanoTime();
+  	lock.readLock().lock();
+  	LayoutMetrics.paintWaitTime.record(System.nanoTime()-waitStart);
+  	try
+  	{
+	    // Clear background
+	    if(cBackground!=null)
+	    {
+	      g2.setColor(cBackground);
+	      g2.fillRect(iScrX,iScrY,iWidth,iTargetHeight);
+	    }
+	
+	    long start=System.nanoTime();
+	    int first=f.findFirstVisible(iStart);
+	    
+	    // Images that arrive later repaint their area of the block
+	    ImageInline.RepaintTarget target=
+	    	(ImageInline.RepaintTarget)g2.getRenderingHint(ImageInline.KEY_REPAINT);
+	    
+	    // Create any missing background images for visible blocks in parallel.
+	    // A view that can be repainted doesn't wait for them; it is painted 
+	    // without them and then again once they are ready
+	    List<BackgroundImageCache.Key> missing=new LinkedList<BackgroundImageCache.Key>();
+	    for(int i=first;i<f.size();i++)
+	    {
+	    	int y=f.getY(i),newY=y+f.get(i).getHeight();
+	    	if(newY>=iStart) f.getDetail(i).addMissingBackgrounds(missing);
+	    	if(newY>iStart+iTargetHeight) break;
+	    }
+	    if(!missing.isEmpty())
+	    {
+	    	if(target==null)
+	    	{
+	    		WordInline.prepareBackgrounds(missing);
+	    	}
+	    	else
+	    	{
+	    		final ImageInline.BlockRepainter repainter=target.getRepainter();
+	    		final int number=firstNumber+first,x=iScrX,y=iStart-f.getY(first),
+	    			width=iWidth,height=iTargetHeight;
+	    		WordInline.prepareBackgroundsLater(missing,new Runnable()
+	    		{
+	    			@Override
+	    			public void run()
+	    			{
+	    				repainter.repaintBlock(number,x,y,width,height);
+	    			}
+	    		});
+	    	}
+	    }
+	    
+	    int painted=0;
+	    for(int i=first;i<f.size();i++)
+	    {
+	    	int y=f.getY(i),newY=y+f.get(i).getHeight();
+	    	if(newY>=iStart) 
+	    	{
+	    		painted++;
+	    		int number=firstNumber+i;
+	    		if(target!=null) target.setBlock(number,iScrY+y-iStart);
+	    		f.getDetail(i).paint(g2,iScrX,iScrY+y-iStart,
+	    			getHighlightStart(number),getHighlightEnd(number));
+	    	}
+	    	if(newY>iStart+iTargetHeight) break;
+	    }
+	    f.setVisibleBlocks(painted);
+	    LayoutMetrics.paintTime.record(System.nanoTime()-start);
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /**
+   * @param number Block number
+   * @return Start of highlight within block
+   */
+  private int getHighlightStart(int number)
+  {
+  	if(highlightStart==null || number<highlightStart.number || 
+  		number>highlightEnd.number) return 0;
+  	return number==highlightStart.number ? highlightStart.offset : HIGHLIGHT_TOSTART;
+  }
+  
+  /**
+   * @param number Block number
+   * @return End of highlight within block
+   */
+  private int getHighlightEnd(int number)
+  {
+  	if(highlightStart==null || number<highlightStart.number || 
+  		number>highlightEnd.number) return 0;
+  	return number==highlightEnd.number ? highlightEnd.offset : HIGHLIGHT_TOEND;
+  }
+  
+	/**
+	 * Obtains the inline block and position at the given co-ordinates in the
+	 * default flow.
+	 * @param targetX X
+	 * @param targetY Y
+	 * @param l List that receives blocks from top to bottom
+	 * @return Node position, or null if not within a LayoutInline
+	 */
+	LayoutInline.NodePos getNodePos(int targetX,int targetY,List<LayoutThing> l)
+  {
+		return getNodePos(getDefaultFlow(),targetX,targetY,l);
+  }
+  
+	/**
+	 * Obtains the inline block and position at the given co-ordinates.
+	 * @param f Flow
+	 * @param targetX X
+	 * @param targetY Y
+	 * @param l List that receives blocks from top to bottom
+	 * @return Node position, or null if not within a LayoutInline
+	 */
+	LayoutInline.NodePos getNodePos(LayoutFlow f,int targetX,int targetY,
+		List<LayoutThing> l)
+  {
+  	lock.readLock().lock();
+  	try
+  	{
+  		int left=f.findAt(targetY,LayoutBlock.FLOWCATEGORY_LEFTMARGIN),
+  			normal=f.findAt(targetY,LayoutBlock.FLOWCATEGORY_NORMAL);
+  		int[] candidates= left<normal ? new int[] {left,normal} : new int[] {normal,left};
+  		for(int i=0;i<candidates.length;i++)
+  		{
+  			int index=candidates[i];
+  			if(index==-1) continue;
+  			BlockFlow bf=f.get(index);
+  			if(targetX>=bf.getMinX() && targetX<bf.getMaxX())
+  				return f.getDetail(index).getNodePos(targetX,targetY-f.getY(index),l);
+  		}
+  		return null;
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /** @return The currently highlighted text */
+	String getHighlightText()
+  {
+  	lock.readLock().lock();
+  	try
+  	{
+  		if(highlightStart==null || !highlightStart.isBefore(highlightEnd)) return "";
+  		StringBuffer sb=new StringBuffer();
+  		for(int number=highlightStart.number;number<=highlightEnd.number;number++)
+  		{
+  			LayoutBlock lb=blocks.get(number-firstNumber);
+  			int start=number==highlightStart.number ? highlightStart.offset : 0,
+  				end=number==highlightEnd.number ? highlightEnd.offset : lb.getTextLength();
+  			sb.append(lb.getText(start,end));
+  			VerticalHolderBlock.appendSeparator(sb,lb);
+  		}
+  		return VerticalHolderBlock.removeDoubleLFs(sb.toString());
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+	/** Clears any highlight */
+	void clearHighlight()
+  {
+  	lock.writeLock().lock();
+  	try
+  	{
+  		highlightStart=null;
+  		highlightEnd=null;
+  	}
+  	finally
+  	{
+  		lock.writeLock().unlock();
+  	}
   }
 
+	/**
+	 * Sets the highlight in the default flow (see
+	 * {@link #setHighlight(LayoutFlow, int, int, int, int)}).
+	 * @param iStartX X co-ordinate of starting position
+	 * @param iStartY Y co-ordinate of starting position
+	 * @param iEndX X co-ordinate of end position
+	 * @param iEndY Y co-ordinate of end position
+	 */  
+	void setHighlight(int iStartX,int iStartY,int iEndX,int iEndY)
+	{
+		setHighlight(getDefaultFlow(),iStartX,iStartY,iEndX,iEndY);
+	}
+	
 	/**
 	 * Sets the highlight display, clearing any existing highlight as appropriate.
 	 * Efficient enough to call every time mouse moves. All co-ordinates are 
 	 * relative to the layout. For this version of the method, end can be before start.
 	 * After calling this method it will be necessary to repaint.
+	 * @param f Flow
 	 * @param iStartX X co-ordinate of starting position
 	 * @param iStartY Y co-ordinate of starting position
 	 * @param iEndX X co-ordinate of end position
 	 * @param iEndY Y co-ordinate of end position
 	 */  
-  @Override
-	public synchronized void setHighlight(int iStartX,int iStartY,int iEndX,int iEndY)
+	void setHighlight(LayoutFlow f,int iStartX,int iStartY,int iEndX,int iEndY)
   {
-  	// Order co-ordinates
-  	int iLowX,iLowY,iHighX,iHighY;
-  	if(iStartY > iEndY || (iStartY==iEndY && iStartX > iEndX))
+  	lock.writeLock().lock();
+  	try
   	{
-  		iLowX=iEndX; iLowY=iEndY; iHighX=iStartX; iHighY=iStartY;
+  		Position start=getPosition(f,iStartX,iStartY),end=getPosition(f,iEndX,iEndY);
+  		if(start==null) return;
+  		if(end.isBefore(start))
+  		{
+  			highlightStart=end;
+  			highlightEnd=start;
+  		}
+  		else
+  		{
+  			highlightStart=start;
+  			highlightEnd=end;
+  		}
   	}
-  	else
+  	finally
+  	{
+  		lock.writeLock().unlock();
+  	}
+  }
+  
+  /**
+   * Finds the text position at a point, as used when selecting text. Must 
+   * be called with lock held.
+   * @param f Flow
+   * @param x X
+   * @param y Y
+   * @return Position, or null if there are no blocks
+   */
+  private Position getPosition(LayoutFlow f,int x,int y)
+  {
+  	int size=blocks.size();
+  	if(size==0) return null;
+  	if(y<0) return new Position(firstNumber,0);
+  	
+		// Margin blocks only count to the left of the normal ones
+		int index=-1;
+		if(x<0) index=f.findAt(y,LayoutBlock.FLOWCATEGORY_LEFTMARGIN);
+		if(index==-1) index=f.findAt(y,LayoutBlock.FLOWCATEGORY_NORMAL);
+		if(index==-1) index=f.findAt(y,LayoutBlock.FLOWCATEGORY_LEFTMARGIN);
+		if(index==-1) 
+			return new Position(firstNumber+size-1,blocks.get(size-1).getTextLength());
+		return new Position(firstNumber+index,
+			f.getDetail(index).getOffset(x,y-f.getY(index)));
+  }
+  
+  /**
+   * Turns the search index on or off. Turning it on indexes the existing
+   * blocks; after that, blocks are indexed as they are added.
+   * @param searchable True to keep a search index
+   */
+  void setSearchable(boolean searchable)
+  {
+  	lock.writeLock().lock();
+  	try
+  	{
+  		if(!searchable)
+  		{
+  			searchIndex=null;
+  		}
+  		else if(searchIndex==null)
+  		{
+  			searchIndex=new SearchIndex();
+  			for(LayoutBlock lb : blocks)
+  			{
+  				searchIndex.add(lb.getText());
+  			}
+  		}
+  	}
+  	finally
+  	{
+  		lock.writeLock().unlock();
+  	}
+  }
+  
+  /** @return True if there is a search index */
+  boolean isSearchable()
+  {
+  	return searchIndex!=null;
+  }
+  
+  /**
+   * Finds text, using the search index. Case is ignored.
+   * @param query Text to find
+   * @param wholeWords If true, the text must start and end at word boundaries
+   * @param from Previous match to search from, or null to search from the 
+   *   start (forward) or end (backward)
+   * @param forward True to search forward, false for backward
+   * @return Match, or null if there are no more
+   * @throws IllegalStateException If not searchable
+   */
+  SearchMatch find(String query,boolean wholeWords,SearchMatch from,boolean forward)
+  {
+  	if(query.length()==0) return null;
+  	String lowerQuery=SearchIndex.toLowerCase(query);
+  	lock.readLock().lock();
+  	try
+  	{
+  		if(searchIndex==null) throw new IllegalStateException("Layout is not searchable");
+  		int first=searchIndex.getFirst(),next=searchIndex.getNext();
+  		int[] candidates=searchIndex.getCandidates(query,wholeWords);
+  		int count=candidates==null ? next-first : candidates.length;
+  		
+  		// Find position to start within candidates
+  		int position;
+  		if(from==null)
+  			position=forward ? 0 : count-1;
+  		else if(candidates==null)
+  			position=forward ? Math.max(0,from.getNumber()-first) 
+  				: Math.min(count-1,from.getNumber()-first);
+  		else
+  			position=forward ? firstAtLeast(candidates,from.getNumber())
+  				: firstAtLeast(candidates,from.getNumber()+1)-1;
+  		
+  		for(;position>=0 && position<count;position+=forward ? 1 : -1)
+  		{
+  			int number=candidates==null ? first+position : candidates[position];
+  			String text=SearchIndex.toLowerCase(blocks.get(number-first).getText());
+  			
+  			// Search within this block
+  			int offset;
+  			if(from!=null && number==from.getNumber())
+  				offset=forward ? from.getOffset()+1 : from.getOffset()-1;
+  			else
+  				offset=forward ? 0 : text.length();
+  			while(true)
+  			{
+  				offset=forward ? text.indexOf(lowerQuery,offset) : 
+  					text.lastIndexOf(lowerQuery,offset);
+  				if(offset==-1) break;
+  				if(!wholeWords || isWordBoundary(text,offset,lowerQuery.length()))
+  					return new SearchMatch(number,number-first,offset,lowerQuery.length());
+  				offset+=forward ? 1 : -1;
+  				if(offset<0) break;
+  			}
+  		}
+  		return null;
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /**
+   * @param a Numbers in ascending order
+   * @param value Value
+   * @return Index of first number not less than value (a.length if none)
+   */
+  private static int firstAtLeast(int[] a,int value)
+  {
+  	int low=0,high=a.length;
+  	while(low<high)
+  	{
+  		int middle=(low+high)>>>1;
+  		if(a[middle]<value) 
+  			low=middle+1;
+  		else
+  			high=middle;
+  	}
+  	return low;
+  }
+  
+  /**
+   * @param text Text
+   * @param offset Start of match
+   * @param length Length of match
+   * @return True if the match doesn't start or end in the middle of a word
+   */
+  private static boolean isWordBoundary(String text,int offset,int length)
+  {
+  	int end=offset+length;
+  	return (offset==0 || !Character.isLetterOrDigit(text.charAt(offset-1)) ||
+  			!Character.isLetterOrDigit(text.charAt(offset))) &&
+  		(end==text.length() || !Character.isLetterOrDigit(text.charAt(end)) ||
+  			!Character.isLetterOrDigit(text.charAt(end-1)));
+  }
+  
+  /**
+   * Finds all matches for text (see 
+   * {@link #find(String, boolean, SearchMatch, boolean)}).
+   * @param query Text to find
+   * @param wholeWords If true, the text must start and end at word boundaries
+   * @param max Maximum number of matches to return
+   * @return Matches in order
+   */
+  List<SearchMatch> findAll(String query,boolean wholeWords,int max)
+  {
+  	List<SearchMatch> result=new LinkedList<SearchMatch>();
+  	for(SearchMatch m=find(query,wholeWords,null,true);m!=null && result.size()<max;
+  		m=find(query,wholeWords,m,true))
+  	{
+  		result.add(m);
+  	}
+  	return result;
+  }
+  
+  /**
+   * Gets the area a match covers.
+   * @param f Flow
+   * @param m Match
+   * @return Bounds of match relative to layout (the height is that of its 
+   *   first line), or null if its block has been deleted or it isn't 
+   *   displayed
+   */
+  Rectangle getMatchBounds(LayoutFlow f,SearchMatch m)
+  {
+  	lock.readLock().lock();
+  	try
+  	{
+  		Rectangle[] ends=getMatchEnds(f,m);
+  		if(ends==null) return null;
+  		Rectangle r=new Rectangle(ends[0]);
+  		r.add(ends[1].x+ends[1].width,ends[0].y);
+  		return r;
+  	}
+  	finally
+  	{
+  		lock.readLock().unlock();
+  	}
+  }
+  
+  /**
+   * Must be called with lock held.
+   * @param f Flow
+   * @param m Match
+   * @return Bounds of first and last displayed character of match relative 
+   *   to layout, or null if none are displayed
+   */
+  private Rectangle[] getMatchEnds(LayoutFlow f,SearchMatch m)
+  {
+  	if(searchIndex==null) return null;
+  	int index=m.getNumber()-searchIndex.getFirst();
+  	if(index<0 || index>=f.size()) return null;
+  	BlockFlow bf=f.getDetail(index);
+  	
+  	// Skip characters that aren't displayed (e.g. spaces at line start)
+  	Rectangle start=null,end=null;
+  	int last=m.getOffset()+m.getLength()-1;
+  	for(int i=m.getOffset();i<=last && start==null;i++)
+  	{
+  		start=bf.getCharacterBounds(i);
+  	}
+  	for(int i=last;i>=m.getOffset() && end==null;i--)
   	{
-			iLowX=iStartX; iLowY=iStartY; iHighX=iEndX; iHighY=iEndY;	  
+  		end=bf.getCharacterBounds(i);
   	}
-  	super.setHighlight(iLowX,iLowY,iHighX,iHighY);
+  	if(start==null) return null;
+  	
+  	int y=f.getY(index);
+  	start.translate(0,y);
+  	end.translate(0,y);
+  	return new Rectangle[] { start,end };
   }
   
-  public synchronized void highlightAll()
+  /**
+   * Highlights a match (replacing any existing highlight).
+   * @param f Flow
+   * @param m Match
+   * @return True if highlighted, false if its block has been deleted or 
+   *   it isn't displayed
+   */
+  boolean highlightMatch(LayoutFlow f,SearchMatch m)
   {
-		super.setHighlight(Layout.HIGHLIGHT_TOSTART,Layout.HIGHLIGHT_TOSTART,
-			Layout.HIGHLIGHT_TOEND,Layout.HIGHLIGHT_TOEND);
+  	lock.writeLock().lock();
+  	try
+  	{
+  		if(getMatchEnds(f,m)==null) return false;
+  		int number=firstNumber+m.getNumber()-searchIndex.getFirst();
+  		highlightStart=new Position(number,m.getOffset());
+  		highlightEnd=new Position(number,m.getOffset()+m.getLength());
+  		return true;
+  	}
+  	finally
+  	{
+  		lock.writeLock().unlock();
+  	}
+  }
+  
+  /** Highlights all text */
+  void highlightAll()
+  {
+  	lock.writeLock().lock();
+  	try
+  	{
+  		int size=blocks.size();
+  		if(size==0) return;
+  		highlightStart=new Position(firstNumber,0);
+  		highlightEnd=new Position(firstNumber+size-1,blocks.get(size-1).getTextLength());
+  	}
+  	finally
+  	{
+  		lock.writeLock().unlock();
+  	}
   }
-}
\ No newline at end of file
+}
@@ -18,7 +18,6 @@ Copyright 2011 Samuel Marshall.
 */
 package textlayout;
 
-import java.awt.*;
 import java.util.Map;
 
 import org.w3c.dom.Node;
@@ -26,47 +25,40 @@ import org.w3c.dom.Node;
 import textlayout.stylesheet.StyleContext;
 
 /**
- * A block that can go within a Layout component.
+ * A block that can go within a Layout component. Blocks never change once
+ * created; methods that change a block return a new one. Laying out a block
+ * at a width gives a {@link BlockFlow}.
  */
 interface LayoutBlock extends LayoutThing
 {
   /**
-	 * Recalculates block for given width.
+	 * Lays out block at given width.
 	 * @param width Width
+	 * @param previous Flow at the same width of the block this one was made 
+	 *   from (e.g. by {@link #setCurrent(StyleContext, boolean)}), so that 
+	 *   parts that haven't changed can be reused; or null
+	 * @return Flow
 	 */
-  public void reflow(int width);
+  public BlockFlow flow(int width,BlockFlow previous);
   
   /**
-	 * Updates style using a new OutputConverter.
+	 * Applies style from a new StyleContext.
    * @param sc Context
+   * @return Block with new style
    * @throws LayoutException 
 	 */
-  public void updateStyle(StyleContext sc) throws LayoutException;
+  public LayoutBlock updateStyle(StyleContext sc) throws LayoutException;
   
   /**
-	 * @return Used width (basically = width unless it's a single line when maybe it's less)
-	 */
-  public int getUsedWidth();
-
-  /**
-	 * @return Height at last-specified width
-	 */
-  public int getHeight();
-  
-  /**
-	 * @return Baseline of first line within this block
-	 */
-  public int getFirstBaseline();  
-  
-  /**
-	 * @return Minimum used X position (at given width), inclusive e.g. 0 for 100px widge
-	 */
-  public int getMinX();
+   * @return Narrowest width the block can be flowed at without anything 
+   *   overflowing (i.e. the longest unbreakable run)
+   */
+  public int getMinContentWidth();
   
   /**
-	 * @return Maximum used X position (at given width), exclusive e.g. 100 for 100px wide
-	 */
-  public int getMaxX();
+   * @return Width needed to show the block without wrapping any lines
+   */
+  public int getMaxContentWidth();
 
   /**
    * @return A FLOWCATEGORY_xx constant
@@ -83,50 +75,47 @@ interface LayoutBlock extends LayoutThing
 	 */
   public final static int FLOWCATEGORY_LEFTMARGIN=1;
 
-  /**
-	 * Paint into given graphics context at given start location
-   * @param g Context
-   * @param x X
-   * @param y Y
-	 */
-  public void paint(Graphics2D g,int x,int y);
-
   /**
 	 * Set !current style flag
    * @param sc Context
    * @param current True to set flag on, false for off
-   * @return True if it changed
+   * @return Block with flag set (this if nothing changes)
    * @throws LayoutException 
 	 */
-  public boolean setCurrent(StyleContext sc,boolean current) throws LayoutException;
+  public LayoutBlock setCurrent(StyleContext sc,boolean current) throws LayoutException;
   
-  /**
-	 * Clear any highlight
+	/**
+	 * @return Estimate of memory used by this block and everything in it, in
+	 *   bytes (not including line layout, which depends on width)
 	 */
-  public void clearHighlight();
-  
-  /**
-   * Set highlight. Values are relative to block's own co-ordinates.
-   * @param lowX Start (upper/left) position X, or Layout.HIGHLIGHT_TOSTART
-   * @param lowY Start (upper/left) position Y, or Layout.HIGHLIGHT_TOSTART
-   * @param highX End (lower/right) position X, or Layout.HIGHLIGHT_TOEND
-   * @param highY End (lower/right) position Y, or Layout.HIGHLIGHT_TOEND
-   */
-  public void setHighlight(int lowX,int lowY,int highX,int highY);
-  
-  /**
-   * Obtain the inline block and position at the given pixel co-ordinates.
-   * @param targetX X (relative to block's own co-ordinates)
-   * @param targetY Y (relative to block's own co-ordinates)
-   * @param l List of blocks from top to bottom
-   * @return Node position within the deepest LayoutInline, or null if it isn't
-   *   within a LayoutInline
-   */
-  public LayoutInline.NodePos getNodePos(int targetX, int targetY,
-  	java.util.List<LayoutThing> l);
-  
-	/** @return The currently highlighted string from this block */
-	public String getHighlightText();
+	public long getRetainedBytes();
+	
+	/**
+	 * @return Number of words (and other inlines) in this block and 
+	 *   everything in it
+	 */
+	public int getWordCount();
+	
+	/**
+	 * @return Plain text of this block, as used for searching (text of 
+	 *   blocks inside this one is separated by line feeds)
+	 */
+	public String getText();
+	
+	/**
+	 * @return Length of {@link #getText()}
+	 */
+	public int getTextLength();
+	
+	/**
+	 * Gets text as copied to the clipboard. This is like {@link #getText()},
+	 * except that inner blocks are separated by spaces after margin blocks 
+	 * and each is followed by a separator.
+	 * @param start Start offset within {@link #getText()}
+	 * @param end End offset
+	 * @return Text in that range
+	 */
+	public String getText(int start,int end);
 	
 	/**
 	 * @param indent Indent text to add to start of each line
@@ -0,0 +1,613 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Blocks of a {@link Layout} laid out at one width. Each view uses the flow
+ * for its own width, so views at different widths don't reflow the layout 
+ * for each other, and views at the same width share one flow. The layout 
+ * keeps each flow up to date as blocks change, and only changes it while 
+ * holding its write lock. Larger changes are made by building a new flow 
+ * without the lock (a flow that isn't in the layout yet belongs to whoever
+ * is building it) and then copying it in with {@link #replaceWith(LayoutFlow)}.
+ * <p>
+ * Flows of compact blocks only hold measurements, so the flows of their 
+ * generated blocks are kept in a small cache for the ones that have been 
+ * painted or looked at recently. This cache is the only part of a flow 
+ * that readers change, so it is synchronized.
+ */
+class LayoutFlow
+{
+	/** Width */
+	private final int width;
+	
+	/** Flow of each block; null if it needs flowing */
+	private BlockFlow[] flows=new BlockFlow[16];
+	
+	/** Number of blocks */
+	private int size;
+	
+	/** 
+	 * Heights of normal and left margin blocks (each block counts as 0 in 
+	 * the other category, and blocks that need flowing count as 0)
+	 */
+	private HeightIndex normal=new HeightIndex(),left=new HeightIndex();
+	
+	/** True if every block has been flowed */
+	private boolean complete=true;
+	
+	/** Number of views using this flow */
+	private int references;
+	
+	/** Flows of generated blocks for recently used compact blocks */
+	private final Map<BlockFlow,BlockFlow> details;
+	
+	/** 
+	 * Number of generated block flows kept: enough for the blocks painted
+	 * last time, a screen above and a screen below 
+	 */
+	private volatile int detailLimit=MIN_DETAIL_CACHE;
+	
+	/** Least number of generated block flows kept */
+	private final static int MIN_DETAIL_CACHE=32;
+	
+	/** Screens of generated block flows kept */
+	private final static int DETAIL_SCREENS=3;
+
+	/** Minimum number of blocks before parallel reflow is used */
+	private final static int PARALLEL_MIN_BLOCKS=200;
+	
+	/** Most blocks flowed by one task in parallel reflow */
+	private final static int PARALLEL_CHUNK=64;
+
+	/**
+	 * @param width Width
+	 */
+	LayoutFlow(int width)
+	{
+		this.width=width;
+		details=Collections.synchronizedMap(
+			new LinkedHashMap<BlockFlow,BlockFlow>(16,0.75f,true)
+			{
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<BlockFlow,BlockFlow> eldest)
+				{
+					return size()>detailLimit;
+				}
+			});
+	}
+	
+	/** @return Width */
+	int getWidth()
+	{
+		return width;
+	}
+	
+	/**
+	 * Sizes the cache of generated block flows to suit the views.
+	 * @param blocks Number of blocks just painted
+	 */
+	void setVisibleBlocks(int blocks)
+	{
+		detailLimit=Math.max(MIN_DETAIL_CACHE,blocks*DETAIL_SCREENS);
+	}
+	
+	/** @return Number of views using this flow */
+	int getReferences()
+	{
+		return references;
+	}
+	
+	/** @param delta Change in number of views using this flow */
+	void addReferences(int delta)
+	{
+		references+=delta;
+	}
+	
+	/** @return Number of blocks */
+	int size()
+	{
+		return size;
+	}
+	
+	/** @return True if every block has been flowed */
+	boolean isComplete()
+	{
+		return complete;
+	}
+	
+	/**
+	 * @param index Index of block
+	 * @return Flow of that block, or null if it needs flowing
+	 */
+	BlockFlow get(int index)
+	{
+		return flows[index];
+	}
+	
+	/**
+	 * Lays out a block at this width.
+	 * @param lb Block
+	 * @param previous Earlier flow of the block at this width, or of a block 
+	 *   it replaces (parts that haven't changed are reused), or of the block 
+	 *   at another width (lines that would break the same way are reused), 
+	 *   or null
+	 * @return Flow
+	 */
+	BlockFlow compute(LayoutBlock lb,BlockFlow previous)
+	{
+		return compute(lb,previous,null,0);
+	}
+	
+	/**
+	 * Lays out a block at this width.
+	 * @param lb Block
+	 * @param previous As for {@link #compute(LayoutBlock, BlockFlow)}
+	 * @param newDetails Array that receives the flow of the generated block,
+	 *   if a compact block is generated, instead of the cache; or null to 
+	 *   cache it
+	 * @param index Index within newDetails
+	 * @return Flow
+	 */
+	private BlockFlow compute(LayoutBlock lb,BlockFlow previous,
+		BlockFlow[] newDetails,int index)
+	{
+		if(!(lb instanceof CompactBlock)) return lb.flow(width,previous);
+		if(previous!=null && previous.getBlock()==lb && previous.getWidth()==width)
+			return previous;
+		
+		// Same lines at another width don't need the block generating
+		CompactBlock cb=(CompactBlock)lb;
+		BlockFlow same=cb.getFlow(previous,width);
+		if(same!=null) return same;
+		
+		BlockFlow previousDetail=null;
+		if(previous instanceof CompactBlock.Flow && previous.getWidth()==width &&
+			cb.isSameSource((CompactBlock)previous.getBlock()))
+		{
+			previousDetail=details.get(previous);
+		}
+		BlockFlow detail=cb.flowDetail(width,previousDetail);
+		if(newDetails==null) return store(cb,detail);
+		newDetails[index]=detail;
+		return cb.getFlow(detail);
+	}
+	
+	/**
+	 * Lays out a block that is being added.
+	 * @param lb Block as added (for compact blocks, this may still have the
+	 *   block it was generated from)
+	 * @param stored Block as stored in the layout
+	 * @param prepared Flow of the block (for compact blocks, of the generated
+	 *   block) at this width made before it was added, or null
+	 * @return Flow of stored block
+	 */
+	BlockFlow computeNew(LayoutBlock lb,LayoutBlock stored,BlockFlow prepared)
+	{
+		if(!(lb instanceof CompactBlock)) return lb.flow(width,prepared);
+		return store((CompactBlock)stored,((CompactBlock)lb).flowDetail(width,prepared));
+	}
+	
+	/**
+	 * @param cb Compact block
+	 * @param detail Flow of its generated block
+	 * @return Flow of compact block, with the detail cached
+	 */
+	private BlockFlow store(CompactBlock cb,BlockFlow detail)
+	{
+		BlockFlow f=cb.getFlow(detail);
+		details.put(f,detail);
+		return f;
+	}
+	
+	/**
+	 * @param index Index of block, which must be flowed
+	 * @return Flow that can be painted; for compact blocks this is the flow of
+	 *   the generated block (generated now if it isn't cached)
+	 */
+	BlockFlow getDetail(int index)
+	{
+		BlockFlow f=flows[index];
+		if(!(f instanceof CompactBlock.Flow)) return f;
+		BlockFlow detail=details.get(f);
+		if(detail==null)
+		{
+			detail=((CompactBlock)f.getBlock()).flowDetail(width,null);
+			details.put(f,detail);
+		}
+		return detail;
+	}
+	
+	/**
+	 * Adds a block at the end.
+	 * @param f Flow of block, or null if it hasn't been flowed
+	 */
+	void add(BlockFlow f)
+	{
+		if(size==flows.length)
+		{
+			flows=Arrays.copyOf(flows,size*2);
+		}
+		flows[size++]=f;
+		normal.add(getHeight(f,true));
+		left.add(getHeight(f,false));
+		if(f==null) complete=false;
+	}
+	
+	/**
+	 * Replaces the flow of a block.
+	 * @param index Index of block
+	 * @param f New flow, or null if the block needs flowing again
+	 */
+	void set(int index,BlockFlow f)
+	{
+		BlockFlow old=flows[index];
+		if(old==f) return;
+		if(old!=null) details.remove(old);
+		flows[index]=f;
+		normal.set(index,getHeight(f,true));
+		left.set(index,getHeight(f,false));
+		if(f==null) complete=false;
+	}
+	
+	/**
+	 * Deletes blocks from the start.
+	 * @param count Number of blocks
+	 */
+	void deleteFirst(int count)
+	{
+		count=Math.min(count,size);
+		for(int i=0;i<count;i++)
+		{
+			if(flows[i]!=null) details.remove(flows[i]);
+		}
+		System.arraycopy(flows,count,flows,0,size-count);
+		Arrays.fill(flows,size-count,size,null);
+		size-=count;
+		normal.deleteFirst(count);
+		left.deleteFirst(count);
+	}
+	
+	/** Deletes all blocks */
+	void clear()
+	{
+		Arrays.fill(flows,0,size,null);
+		size=0;
+		normal.clear();
+		left.clear();
+		complete=true;
+		details.clear();
+	}
+	
+	/**
+	 * @param f Flow of block, or null if it needs flowing
+	 * @param normal True for the height counted with normal blocks, false 
+	 *   for the left margin
+	 * @return Height of block in that category
+	 */
+	private static int getHeight(BlockFlow f,boolean normal)
+	{
+		if(f==null) return 0;
+		boolean isNormal=f.getBlock().getFlowCategory()==LayoutBlock.FLOWCATEGORY_NORMAL;
+		return isNormal==normal ? f.getHeight() : 0;
+	}
+	
+	/** @return Copy of the flow of each block (null if it needs flowing) */
+	BlockFlow[] copyFlows()
+	{
+		return Arrays.copyOf(flows,size);
+	}
+	
+	/**
+	 * Flows blocks into an empty flow, reusing earlier flows of any blocks 
+	 * that are the same.
+	 * @param blocks Blocks
+	 * @param known Earlier flows (entries may be null), or null; flows at 
+	 *   another width are used to flow the same blocks again, keeping their 
+	 *   lines where they would break in the same places
+	 * @param knownFrom Flow at this width those came from, whose cached 
+	 *   generated block flows are also reused, or null
+	 * @param parallel True to split the work between threads when there are
+	 *   a lot of blocks
+	 * @return Number of blocks whose lines were broken again (the others 
+	 *   reused their earlier flow, or its lines at another width)
+	 */
+	int fill(LayoutBlock[] blocks,BlockFlow[] known,LayoutFlow knownFrom,boolean parallel)
+	{
+		Map<LayoutBlock,BlockFlow> earlier=new IdentityHashMap<LayoutBlock,BlockFlow>();
+		if(known!=null)
+		{
+			for(int i=0;i<known.length;i++)
+			{
+				if(known[i]!=null) earlier.put(known[i].getBlock(),known[i]);
+			}
+		}
+		
+		int reused=0,broken=0;
+		BlockFlow[] previous=null;
+		for(int i=0;i<blocks.length;i++)
+		{
+			BlockFlow f=earlier.get(blocks[i]);
+			if(f==null) broken++;
+			if(f!=null && f.getWidth()!=width)
+			{
+				if(previous==null) previous=new BlockFlow[blocks.length];
+				previous[i]=f;
+				if(width<f.getMinSameWidth() || width>f.getMaxSameWidth()) broken++;
+				f=null;
+			}
+			add(f);
+			if(f==null) continue;
+			reused++;
+			BlockFlow detail=knownFrom==null ? null : knownFrom.details.get(f);
+			if(detail!=null) details.put(f,detail);
+		}
+		
+		if(parallel && blocks.length-reused>=PARALLEL_MIN_BLOCKS)
+		{
+			updateParallel(blocks,previous);
+		}
+		else
+		{
+			for(int i=0;i<size;i++)
+			{
+				if(flows[i]==null) flows[i]=compute(blocks[i],previous==null ? null : previous[i]);
+			}
+		}
+		int[] normalHeights=new int[size],leftHeights=new int[size];
+		for(int i=0;i<size;i++)
+		{
+			normalHeights[i]=getHeight(flows[i],true);
+			leftHeights[i]=getHeight(flows[i],false);
+		}
+		normal.reset(normalHeights,size);
+		left.reset(leftHeights,size);
+		complete=true;
+		return broken;
+	}
+	
+	/**
+	 * Takes over the contents of a flow that was built separately.
+	 * @param other Flow at the same width, which mustn't be used afterwards
+	 */
+	void replaceWith(LayoutFlow other)
+	{
+		flows=other.flows;
+		size=other.size;
+		normal=other.normal;
+		left=other.left;
+		complete=other.complete;
+		details.clear();
+		details.putAll(other.details);
+	}
+	
+  /**
+   * Pool used to reflow blocks in parallel. This is a pool of its own rather
+   * than the common pool, so that reflow doesn't wait behind other work an
+   * application gives the common pool. It is created when first used.
+   */
+  private static class ReflowPool
+  {
+  	final static ForkJoinPool POOL=new ForkJoinPool(
+  		Runtime.getRuntime().availableProcessors(),
+  		new ForkJoinPool.ForkJoinWorkerThreadFactory()
+			{
+				@Override
+				public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+				{
+					ForkJoinWorkerThread t=
+						ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					t.setName("Text reflow thread "+t.getPoolIndex());
+					return t;
+				}
+			},null,false);
+  }
+  
+  /**
+   * Flows blocks that need it, splitting them between the threads of the
+   * reflow pool. Line breaking in each block is independent of the others,
+   * and each task only writes its own part of the arrays; flows of 
+   * generated blocks are cached afterwards, so the threads share nothing
+   * else. An exception from any block is thrown here unchanged. If this 
+   * thread is interrupted, the pool threads stop after their current block
+   * and the rest are flowed here.
+   * @param all All blocks
+   * @param previous Flows of the blocks at another width, or null
+   */
+  private void updateParallel(LayoutBlock[] all,BlockFlow[] previous)
+  {
+		BlockFlow[] newDetails=new BlockFlow[all.length];
+		ReflowTask root=new ReflowTask(all,previous,newDetails);
+		ForkJoinTask<Void> running=ReflowPool.POOL.submit(root);
+		boolean interrupted=false;
+		try
+		{
+			running.get();
+		}
+		catch(InterruptedException e)
+		{
+			interrupted=true;
+			root.stopped=true;
+			running.quietlyJoin();
+		}
+		catch(ExecutionException e)
+		{
+			// Tasks catch failures from blocks, so this is a bug
+			throw new Error(e.getCause());
+		}
+		
+		Throwable failure=root.failure;
+		if(failure instanceof RuntimeException) throw (RuntimeException)failure;
+		if(failure instanceof Error) throw (Error)failure;
+		
+		for(int i=0;i<all.length;i++)
+		{
+			if(flows[i]==null) 
+				flows[i]=compute(all[i],previous==null ? null : previous[i],newDetails,i);
+			if(newDetails[i]!=null) details.put(flows[i],newDetails[i]);
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+  }
+  
+  /**
+   * Flows the blocks that need it in a range, splitting the range in half 
+   * until it is small. The tasks of one reflow share the root task's flags.
+   */
+  private class ReflowTask extends RecursiveAction
+  {
+  	private final LayoutBlock[] all;
+  	private final BlockFlow[] previous,newDetails;
+  	private final ReflowTask root;
+  	private final int start,end;
+  	
+  	/** Set on root task to stop the tasks after their current block */
+  	private volatile boolean stopped;
+  	
+  	/** Set on root task to a failure from flowing a block */
+  	private volatile Throwable failure;
+  	
+  	/**
+  	 * Creates the root task for all the blocks.
+  	 * @param all All blocks
+  	 * @param previous Flows of the blocks at another width, or null
+  	 * @param newDetails Array that receives flows of generated blocks
+  	 */
+  	ReflowTask(LayoutBlock[] all,BlockFlow[] previous,BlockFlow[] newDetails)
+  	{
+  		this.all=all;
+  		this.previous=previous;
+  		this.newDetails=newDetails;
+  		root=this;
+  		start=0;
+  		end=all.length;
+  	}
+  	
+  	/**
+  	 * @param parent Task being split
+  	 * @param start First index
+  	 * @param end Index after last
+  	 */
+  	private ReflowTask(ReflowTask parent,int start,int end)
+  	{
+  		all=parent.all;
+  		previous=parent.previous;
+  		newDetails=parent.newDetails;
+  		root=parent.root;
+  		this.start=start;
+  		this.end=end;
+  	}
+  	
+  	@Override
+  	protected void compute()
+  	{
+  		if(end-start>PARALLEL_CHUNK)
+  		{
+  			int middle=(start+end)>>>1;
+  			invokeAll(new ReflowTask(this,start,middle),new ReflowTask(this,middle,end));
+  			return;
+  		}
+  		for(int i=start;i<end && !root.stopped;i++)
+  		{
+  			try
+  			{
+	  			if(flows[i]==null) 
+	  			{
+	  				flows[i]=LayoutFlow.this.compute(all[i],
+	  					previous==null ? null : previous[i],newDetails,i);
+	  			}
+  			}
+  			catch(RuntimeException e)
+  			{
+  				fail(e);
+  			}
+  			catch(Error e)
+  			{
+  				fail(e);
+  			}
+  		}
+  	}
+  	
+  	/**
+  	 * Records a failure and stops the other tasks.
+  	 * @param t Failure
+  	 */
+  	private void fail(Throwable t)
+  	{
+  		if(root.failure==null) root.failure=t;
+  		root.stopped=true;
+  	}
+  }
+	
+	/** @return Height (the taller of the normal blocks and the left margin) */
+	int getHeight()
+	{
+		return Math.max(normal.getTotal(),left.getTotal());
+	}
+	
+	/**
+	 * @param index Index of block
+	 * @return Y position of top of block
+	 */
+	int getY(int index)
+	{
+		return flows[index].getBlock().getFlowCategory()==LayoutBlock.FLOWCATEGORY_NORMAL
+			? normal.getBefore(index) : left.getBefore(index);
+	}
+	
+	/**
+	 * @param y Y position
+	 * @return Index of first block that might be visible from that position
+	 *   down (blocks that end above it may follow it), or the number of 
+	 *   blocks if none
+	 */
+	int findFirstVisible(int y)
+	{
+		return Math.min(normal.find(y,true),left.find(y,true));
+	}
+	
+	/**
+	 * Finds the block of a category covering a position. As the totals only 
+	 * go up at blocks of their own category, the first block whose total 
+	 * including itself is more than the position is always of that category.
+	 * @param y Y position
+	 * @param category Flow category
+	 * @return Index of block of that category covering the position, or -1 
+	 *   if none
+	 */
+	int findAt(int y,int category)
+	{
+		if(y<0) return -1;
+		int index=(category==LayoutBlock.FLOWCATEGORY_NORMAL ? normal : left).find(y,false);
+		return index==size ? -1 : index;
+	}
+	
+	/**
+	 * @param category Flow category
+	 * @return Index of the last block of that category that has any height, 
+	 *   or -1 if none
+	 */
+	int findLast(int category)
+	{
+		HeightIndex heights=category==LayoutBlock.FLOWCATEGORY_NORMAL ? normal : left;
+		return findAt(heights.getTotal()-1,category);
+	}
+}
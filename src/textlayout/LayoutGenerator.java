@@ -24,7 +24,7 @@ import org.w3c.dom.*;
 
 import textlayout.stylesheet.*;
 import util.StringUtils;
-import util.xml.XML;
+import util.xml.*;
 
 /**
  * Static class with utilities to create a layout based on XML.
@@ -40,29 +40,535 @@ public abstract class LayoutGenerator
 	 */
 	public static LayoutBlock[] getLayout(StyleContext sc,Element e) throws LayoutException
   {
-    LayoutBlock lb=convertBlock(sc,e);
-    if(lb==null)
-      return new LayoutBlock[0];
-    else
-      return new LayoutBlock[]
-      {
-        lb
-      };
+    return compile(sc,e,false).getLayout(sc,NO_VALUES);
+  }
+  
+  /** Values used when there are no slots */
+  private final static String[] NO_VALUES=new String[0];
+  
+  /**
+   * Plain text with the tag stack it goes in.
+   */
+  public static class TextRun
+  {
+  	private String contextPath;
+  	private CharSequence text;
+  	
+  	/**
+  	 * @param contextPath Tag names separated by slashes, e.g. "output/line"
+  	 * @param text Plain text (not XML)
+  	 */
+  	public TextRun(String contextPath,CharSequence text)
+  	{
+  		this.contextPath=contextPath;
+  		this.text=text;
+  	}
+  }
+  
+  /**
+   * Creates blocks for plain text, without building XML. The result is the
+   * same as for getLayout on XML with the text inside the given elements.
+   * @param sc Context
+   * @param contextPath Tag names separated by slashes, e.g. "output/line"
+   * @param text Plain text (not XML)
+   * @return Blocks
+   * @throws LayoutException 
+   */
+  public static LayoutBlock[] getTextLayout(StyleContext sc,String contextPath,
+  	CharSequence text) throws LayoutException
+  {
+  	return getTextLayout(sc,new TextRun[] { new TextRun(contextPath,text) });
+  }
+  
+  /**
+   * Creates blocks for several runs of plain text, without building XML.
+   * The result is the same as for getLayout on XML with each run's text 
+   * inside its elements; runs with a common start to their paths share those
+   * elements. All runs must start with the same root tag. 
+   * @param sc Context
+   * @param runs Text runs
+   * @return Blocks
+   * @throws LayoutException If the runs don't have a single root
+   */
+  public static LayoutBlock[] getTextLayout(StyleContext sc,TextRun[] runs) 
+    throws LayoutException
+  {
+  	String[] values=new String[runs.length];
+  	for(int i=0;i<runs.length;i++)
+  	{
+  		values[i]=runs[i].text.toString();
+  	}
+  	return getTextTemplate(runs).getLayout(sc,values);
+  }
+  
+  /** Maximum number of text structures to keep templates for */
+  private final static int MAX_TEXT_TEMPLATES=100;
+  
+  /** Templates for text structures, least recently used first */
+  private static LinkedHashMap<String, LayoutTemplate> textTemplates=
+  	new LinkedHashMap<String, LayoutTemplate>(16,0.75f,true);
+  
+  /**
+   * Gets a template with one slot per run (in order) in the elements 
+   * required by the run paths.
+   * @param runs Text runs
+   * @return Template (from cache if possible)
+   * @throws LayoutException If the runs don't have a single root
+   */
+  static synchronized LayoutTemplate getTextTemplate(TextRun[] runs) 
+    throws LayoutException
+  {
+  	StringBuffer key=new StringBuffer();
+  	for(int i=0;i<runs.length;i++)
+  	{
+  		key.append(runs[i].contextPath);
+  		key.append('\n');
+  	}
+  	LayoutTemplate t=textTemplates.get(key.toString());
+  	if(t!=null) return t;
+  	
+  	if(runs.length==0) throw new LayoutException("No text runs");
+  	Document d;
+		try
+		{
+			d=XML.newDocument();
+		}
+		catch(XMLException e)
+		{
+			throw new LayoutException(e);
+		}
+		
+		// Open elements, from root down
+		List<Element> open=new ArrayList<Element>();
+		Text last=null;
+		for(int i=0;i<runs.length;i++)
+		{
+			String[] tags=runs[i].contextPath.split("/");
+			if(open.isEmpty())
+			{
+				open.add((Element)d.appendChild(d.createElement(tags[0])));
+			}
+			else if(!open.get(0).getTagName().equals(tags[0]))
+			{
+				throw new LayoutException("Text runs must have the same root: "+
+					runs[i].contextPath);
+			}
+			
+			// Go up to common parent, then down to the right element
+			int common=1;
+			while(common<open.size() && common<tags.length && 
+				open.get(common).getTagName().equals(tags[common]))
+			{
+				common++;
+			}
+			boolean same=common==open.size() && common==tags.length;
+			while(open.size()>common)
+			{
+				open.remove(open.size()-1);
+			}
+			for(int tag=common;tag<tags.length;tag++)
+			{
+				open.add((Element)open.get(open.size()-1).appendChild(
+					d.createElement(tags[tag])));
+			}
+			
+			// Same element as before: it has to be one text node, as it would be 
+			// in parsed XML
+			if(same && last!=null)
+			{
+				last.appendData("{"+i+"}");
+			}
+			else
+			{
+				last=(Text)open.get(open.size()-1).appendChild(d.createTextNode("{"+i+"}"));
+			}
+		}
+		
+		t=new LayoutTemplate(d.getDocumentElement());
+		textTemplates.put(key.toString(),t);
+		for(Iterator<LayoutTemplate> i=textTemplates.values().iterator();
+			textTemplates.size()>MAX_TEXT_TEMPLATES;)
+		{
+			i.next();
+			i.remove();
+		}
+		return t;
   }
 
   /**
-	 * Converts an XML block to a LayoutBlock.
+	 * Works out the structure and styles of an XML block, so that the
+	 * LayoutBlocks for it can be created.
    * @param sc Context
    * @param e Element
-   * @return Single block
+   * @param slots True if text may contain slots ({0}, {1}...) that are
+   *   filled in when creating blocks
+   * @return Compiled block
    * @throws LayoutException 
 	 */
-  private static LayoutBlock convertBlock(StyleContext sc,Element e) throws LayoutException
+  static Part compile(StyleContext sc,Element e,boolean slots) throws LayoutException
   {
     String[] context=new String[] {getContextString(e)};
-    return processBlock(sc,fixParagraphs(sc,e,context,true),context,true, false);
+    return processBlock(sc,fixParagraphs(sc,e,context,true),context,true, false,slots);
+  }
+  
+  /**
+   * Compiled part of a layout: everything that doesn't depend on the text.
+   */
+  abstract static class Part
+  {
+  	/**
+  	 * Creates blocks for this part.
+  	 * @param sc Style context (same one it was compiled with)
+  	 * @param values Slot values
+  	 * @param blocks List that receives any blocks (there may be none)
+  	 * @throws LayoutException
+  	 */
+  	abstract void build(StyleContext sc,String[] values,List<LayoutBlock> blocks) 
+  	  throws LayoutException;
+  	
+  	/**
+  	 * Creates blocks for this part.
+  	 * @param sc Style context (same one it was compiled with)
+  	 * @param values Slot values
+  	 * @return Blocks (zero or one)
+  	 * @throws LayoutException
+  	 */
+  	LayoutBlock[] getLayout(StyleContext sc,String[] values) throws LayoutException
+  	{
+  		List<LayoutBlock> blocks=new LinkedList<LayoutBlock>();
+  		build(sc,values,blocks);
+  		return blocks.toArray(new LayoutBlock[blocks.size()]);
+  	}
+  }
+  
+  /**
+   * Block made up of text and other blocks.
+   */
+  private static class BlockPart extends Part
+  {
+  	private String[] context;
+  	private List<Part> children=new LinkedList<Part>();
+  	
+  	/** Styles of the surrounded block, shared by every block made from this */
+  	private SurroundedBlock.Styles styles;
+  	
+  	BlockPart(String[] context)
+  	{
+  		this.context=context;
+  		styles=new SurroundedBlock.Styles(context);
+  	}
+  	
+		@Override
+		void build(StyleContext sc,String[] values,List<LayoutBlock> blocks) 
+		  throws LayoutException
+		{
+			List<LayoutBlock> lBlocks=new LinkedList<LayoutBlock>();
+			for(Part p : children)
+			{
+				p.build(sc,values,lBlocks);
+			}
+			
+	    // Things actually marked as block always occupy a block; things left as
+	    // unknown do not.
+	    if(lBlocks.size()==1)
+	    {
+	    	blocks.add(new SurroundedBlock(lBlocks.get(0),styles,sc));
+	    }
+	    else if(lBlocks.size()>1)
+	    {
+		    blocks.add(new SurroundedBlock(
+		    		new VerticalHolderBlock(lBlocks,context),styles,sc));
+	    }
+		}
   }
   
+  /**
+   * Block that goes in the margin.
+   */
+  private static class MarginPart extends Part
+  {
+  	private String[] context;
+  	private Part inner;
+  	
+  	MarginPart(String[] context,Part inner)
+  	{
+  		this.context=context;
+  		this.inner=inner;
+  	}
+
+		@Override
+		void build(StyleContext sc,String[] values,List<LayoutBlock> blocks) 
+		  throws LayoutException
+		{
+			List<LayoutBlock> innerBlocks=new LinkedList<LayoutBlock>();
+			inner.build(sc,values,innerBlocks);
+			blocks.add(new MarginBlock(context,
+				innerBlocks.isEmpty() ? null : innerBlocks.get(0),sc));
+		}
+  }
+  
+  /**
+   * Run of inline text that makes up one TextBlock.
+   */
+  private static class TextBlockPart extends Part
+  {
+  	private String[] context;
+  	private List<InlinePart> parts=new LinkedList<InlinePart>();
+  	
+  	TextBlockPart(String[] context)
+  	{
+  		this.context=context;
+  	}
+
+		@Override
+		void build(StyleContext sc,String[] values,List<LayoutBlock> blocks) 
+		  throws LayoutException
+		{
+			List<LayoutInline> words=new LinkedList<LayoutInline>();
+			for(InlinePart part : parts)
+			{
+				part.addWords(values,words);
+			}
+			if(words.size()>0)
+			{
+	      blocks.add(new TextBlock(
+	        context,words.toArray(new LayoutInline[words.size()]),sc));
+			}
+		}
+  }
+  
+  /**
+   * Something that becomes inline items within a text block.
+   */
+  private abstract static class InlinePart
+  {
+  	/**
+  	 * Adds inline items for this part.
+  	 * @param values Slot values
+  	 * @param words List that receives items
+  	 * @throws LayoutException If a slot value is missing
+  	 */
+  	abstract void addWords(String[] values,List<LayoutInline> words) 
+  	  throws LayoutException;
+  }
+  
+  /**
+   * A text node, with its style already resolved.
+   */
+  private static class TextPart extends InlinePart
+  {
+  	private String[] context;
+  	private WordInline.Style style;
+  	
+  	/** True if a leading space should be removed */
+  	private boolean trimFirst;
+  	
+  	/** Normalised text, or null if it contains slots */
+  	private char[] chars;
+  	
+  	/** Text with slots, or null if none */
+  	private SlotText slotText;
+  	
+  	/**
+  	 * @param sc Style context
+  	 * @param context Tag stack
+  	 * @param text Text 
+  	 * @param trimFirst True if a leading space should be removed
+  	 * @param allowSlots True if text may contain slots
+  	 * @throws LayoutException
+  	 */
+  	TextPart(StyleContext sc,String[] context,String text,boolean trimFirst,
+  		boolean allowSlots) throws LayoutException
+  	{
+  		this.context=context;
+  		this.trimFirst=trimFirst;
+  		style=new WordInline.Style(sc,context);
+  		
+  		if(allowSlots) slotText=SlotText.split(text);
+  		if(slotText==null)
+  		{
+  			chars=XML.normaliseText(text).toCharArray();
+  		}
+  	}
+  	
+  	/**
+  	 * Adds words for this text.
+  	 * @param values Slot values
+  	 * @param words List that receives words
+  	 * @throws LayoutException If a slot value is missing
+  	 */
+  	@Override
+  	void addWords(String[] values,List<LayoutInline> words) throws LayoutException
+  	{
+  		char[] text=chars;
+  		if(text==null)
+  		{
+  			text=XML.normaliseText(slotText.fill(values)).toCharArray();
+  		}
+  		
+      // Words all refer to a single buffer of the normalised text
+      int pos=0;
+      if(trimFirst && text.length>0 && Character.isWhitespace(text[0]))
+        pos=1;
+
+      while(true)
+      {
+        WordInline wi=WordInline.nextWord(text,pos,context,style);
+        if(wi==null) break;
+        words.add(wi);
+        pos+=wi.getLength();
+      }
+  	}
+  }
+  
+  /**
+   * An &lt;img&gt; element, which becomes an {@link ImageInline}. The src and 
+   * alt attributes may contain slots.
+   */
+  private static class ImagePart extends InlinePart
+  {
+  	private String[] context;
+  	private int width,height;
+  	
+  	/** Image key, or null if src contains slots */
+  	private InlineImageCache.Key key;
+  	
+  	/** Alternative text */
+  	private String alt;
+  	
+  	/** Attributes with slots, or null if none */
+  	private SlotText slotSrc,slotAlt;
+  	
+  	/**
+  	 * @param context Tag stack
+  	 * @param e Element
+  	 * @param allowSlots True if attributes may contain slots
+  	 * @throws LayoutException If attributes are missing or invalid
+  	 */
+  	ImagePart(String[] context,Element e,boolean allowSlots) throws LayoutException
+  	{
+  		this.context=context;
+  		width=getSize(e,"width");
+  		height=getSize(e,"height");
+  		String src=e.getAttribute("src");
+  		if(src.length()==0) throw new LayoutException("<img> must have src");
+  		alt=e.getAttribute("alt");
+  		if(allowSlots)
+  		{
+  			slotSrc=SlotText.split(src);
+  			slotAlt=SlotText.split(alt);
+  		}
+  		if(slotSrc==null) key=new InlineImageCache.Key(src,width,height);
+  	}
+  	
+  	/**
+  	 * @param e Element
+  	 * @param name Attribute name
+  	 * @return Size from attribute
+  	 * @throws LayoutException If it isn't a positive number no larger than
+  	 *   {@link InlineImageCache#MAX_SIZE}
+  	 */
+  	private static int getSize(Element e,String name) throws LayoutException
+  	{
+  		try
+  		{
+  			int size=Integer.parseInt(e.getAttribute(name));
+  			if(size>0 && size<=InlineImageCache.MAX_SIZE) return size;
+  		}
+  		catch(NumberFormatException ex)
+  		{
+  		}
+  		throw new LayoutException("<img> must have "+name+" in pixels (1-"+
+  			InlineImageCache.MAX_SIZE+")");
+  	}
+  	
+  	@Override
+  	void addWords(String[] values,List<LayoutInline> words) throws LayoutException
+  	{
+  		InlineImageCache.Key k=key!=null ? key :
+  			new InlineImageCache.Key(slotSrc.fill(values),width,height);
+  		words.add(new ImageInline(context,k,width,height,
+  			slotAlt!=null ? slotAlt.fill(values) : alt));
+  	}
+  }
+  
+  /**
+   * Text containing slots: {0}, {1}, etc. Braces that don't surround a
+   * number are left alone.
+   */
+  static class SlotText
+  {
+  	/** Text split into pieces; a null piece is a slot */
+  	private String[] pieces;
+  	
+  	/** Slot index for each null piece */
+  	private int[] slots;
+  	
+  	/**
+  	 * Splits text at each slot.
+  	 * @param text Text
+  	 * @return Split text, or null if there are no slots
+  	 */
+  	static SlotText split(String text)
+  	{
+  		List<String> pieceList=new LinkedList<String>();
+  		List<Integer> slotList=new LinkedList<Integer>();
+  		int pos=0;
+  		while(true)
+  		{
+  			int open=text.indexOf('{',pos),close=open==-1 ? -1 : text.indexOf('}',open);
+  			if(close==-1) break;
+  			String number=text.substring(open+1,close);
+  			if(!number.matches("[0-9]+"))
+  			{
+  				pos=open+1;
+  				continue;
+  			}
+  			if(open>0) pieceList.add(text.substring(0,open));
+  			pieceList.add(null);
+  			slotList.add(Integer.parseInt(number));
+  			text=text.substring(close+1);
+  			pos=0;
+  		}
+  		if(slotList.isEmpty()) return null;
+  		if(text.length()>0) pieceList.add(text);
+  		
+  		SlotText result=new SlotText();
+  		result.pieces=pieceList.toArray(new String[pieceList.size()]);
+  		result.slots=new int[slotList.size()];
+  		int index=0;
+  		for(Integer slot : slotList)
+  		{
+  			result.slots[index++]=slot;
+  		}
+  		return result;
+  	}
+  	
+  	/**
+  	 * @param values Slot values
+  	 * @return Text with values in place of slots
+  	 * @throws LayoutException If a slot value is missing
+  	 */
+  	String fill(String[] values) throws LayoutException
+  	{
+			StringBuffer sb=new StringBuffer();
+			int slot=0;
+			for(int i=0;i<pieces.length;i++)
+			{
+				if(pieces[i]!=null)
+				{
+					sb.append(pieces[i]);
+					continue;
+				}
+				int index=slots[slot++];
+				if(index>=values.length)
+					throw new LayoutException("No value for slot {"+index+"}");
+				sb.append(values[index]);
+			}
+			return sb.toString();
+  	}
+  }
+
   /**
 	 * Converts a block of data by adding &lt;para&gt; where necessary.
    * @param sc Context
@@ -169,20 +675,23 @@ public abstract class LayoutGenerator
    * @param context Position in element tree
    * @param bAlwaysPara True if we always put paragraphs in (I think?)
    * @param inMarginBlock If we've already added a margin block
-   * @return New layout block
+   * @param slots True if text may contain slots
+   * @return Compiled block
    * @throws LayoutException Any error
    */ 
-  private static LayoutBlock processBlock(StyleContext sc,
-    Element eParent,String[] context,boolean bAlwaysPara, boolean inMarginBlock)
+  private static Part processBlock(StyleContext sc,
+    Element eParent,String[] context,boolean bAlwaysPara, boolean inMarginBlock,
+    boolean slots)
     throws LayoutException
   {
-    List<LayoutBlock> lBlocks=new LinkedList<LayoutBlock>();
-    List<WordInline> lInlines=new LinkedList<WordInline>();
+    BlockPart block=new BlockPart(context);
+    TextBlockPart inlines=null;
     
     // If this is a margin block, we always return one of those
     if(!inMarginBlock && sc.isMarginBlock(context))
     {
-    		return new MarginBlock(context,processBlock(sc,eParent,context,bAlwaysPara,true),sc);
+    		return new MarginPart(context,
+    			processBlock(sc,eParent,context,bAlwaysPara,true,slots));
     }
 
     // True if the next inline item should have its front trimmed
@@ -221,41 +730,28 @@ public abstract class LayoutGenerator
 				}
         if(inline)
         {
-          processInlineOnly(sc,e,newContext,lInlines,bInFirstPath && i==0);
+        	if(inlines==null) inlines=new TextBlockPart(context);
+          processInlineOnly(sc,e,newContext,inlines,bInFirstPath && i==0,slots);
           bInFirstPath=false;
         }
         else
         {
           // Add new textblock with any inlines up to now
-          if(lInlines.size()>0)
+          if(inlines!=null)
           {
-            lBlocks.add(new TextBlock(
-              context,
-              lInlines.toArray(new LayoutInline[lInlines.size()]),sc));
-            lInlines.clear();
+          	block.children.add(inlines);
+          	inlines=null;
             bInFirstPath=true;
           }
           
-          LayoutBlock lb=processBlock(sc,e,newContext,false, inMarginBlock);
-          if(lb!=null) lBlocks.add(lb);
+          block.children.add(processBlock(sc,e,newContext,false,inMarginBlock,slots));
         }
       }
       else if(n instanceof Text)
       {
-        // Make up stringbuffer from normalised text
-        StringBuffer sb=new StringBuffer(
-          XML.normaliseText(((Text)n).getData()));
-        if(bInFirstPath && i==0 && Character.isWhitespace(sb.charAt(0)))
-          sb.delete(0,1);
-
-        int iPos=0;
-        while(true)
-        {
-          WordInline wi=WordInline.nextWord(sb,context,sc,n,iPos);
-          if(wi==null) break;
-          lInlines.add(wi);
-          iPos+=wi.getText().length();
-        }
+      	if(inlines==null) inlines=new TextBlockPart(context);
+      	inlines.parts.add(new TextPart(sc,context,((Text)n).getData(),
+      		bInFirstPath && i==0,slots));
       }
       else if(n instanceof Comment)
       {
@@ -265,27 +761,12 @@ public abstract class LayoutGenerator
     }
 
     // Add new textblock with any inlines up to now
-    if(lInlines.size()>0)
+    if(inlines!=null)
     {
-      lBlocks.add(new TextBlock(
-        context,
-        lInlines.toArray(new LayoutInline[lInlines.size()]),sc));
-    }
-
-    // Things actually marked as block always occupy a block; things left as
-    // unknown do not.
-    if(lBlocks.size()==1)
-    	{
-    		LayoutBlock lbInner = lBlocks.get(0);
-    		return new SurroundedBlock(lbInner,context,sc);
-    	}
-    else if(lBlocks.size()==0)
-    {    	
-      return null;
+    	block.children.add(inlines);
     }
 
-    return new SurroundedBlock(
-    		new VerticalHolderBlock(lBlocks,context),context,sc);
+    return block;
   }
   
   /**
@@ -315,14 +796,22 @@ public abstract class LayoutGenerator
    * @param sc Context
    * @param eParent Parent tag
    * @param context Tag context stack
-   * @param inlines List where inline items will be added
+   * @param inlines Text block where inline items will be added
    * @param inFirstPath True if this is in the first path (what?)
+   * @param slots True if text may contain slots
    * @throws LayoutException 
 	 */
   private static void processInlineOnly(
-    StyleContext sc,Element eParent,String[] context,List<WordInline> inlines,boolean inFirstPath)
+    StyleContext sc,Element eParent,String[] context,TextBlockPart inlines,
+    boolean inFirstPath,boolean slots)
     throws LayoutException
   {
+  	if(eParent.getTagName().equals("img"))
+  	{
+  		inlines.parts.add(new ImagePart(context,eParent,slots));
+  		return;
+  	}
+  	
 		NodeList nl=eParent.getChildNodes();
     for(int i=0;i<nl.getLength();i++)
     {
@@ -338,24 +827,12 @@ public abstract class LayoutGenerator
             "Invalid: block type <"+e.getTagName()+"> may not be included in inline element");
         }
 
-        processInlineOnly(sc,e,newContext,inlines,inFirstPath && i==0);
+        processInlineOnly(sc,e,newContext,inlines,inFirstPath && i==0,slots);
       }
       else if(n instanceof Text)
       {
-        // Make up stringbuffer from normalised text
-        StringBuffer sb=new StringBuffer(
-          XML.normaliseText(((Text)n).getData()));
-        if(inFirstPath && i==0 && Character.isWhitespace(sb.charAt(0)))
-          sb.delete(0,1);
-
-        int pos=0;
-        while(true)
-        {
-          WordInline wi=WordInline.nextWord(sb,context,sc,n,pos);
-          if(wi==null) break;
-          inlines.add(wi);
-          pos+=wi.getText().length();
-        }
+      	inlines.parts.add(new TextPart(sc,context,((Text)n).getData(),
+      		inFirstPath && i==0,slots));
       }
       else if(n instanceof Comment)
       {
@@ -26,35 +26,58 @@ import org.w3c.dom.Node;
 import textlayout.stylesheet.StyleContext;
 
 /**
- * An unwrappable inline element.
+ * An inline element. Inlines never change once created; an item that wraps 
+ * is placed on lines in parts, each identified by a range of its characters.
  */
 interface LayoutInline extends LayoutThing
 {
+	/**
+	 * @return Number of characters in the item (the length of 
+	 *   {@link #getText()})
+	 */
+	public int getLength();
+
   /** 
    * @return Width of item
    */
   public int getWidth();
   
-  public final static int UNWRAPPED=-1;
-  
-  /**
-   * Call to inform item that it should wrap itself to the given width if 
-   * appropriate.
-   * @param lineWidth Width of line or UNWRAPPED
-   */
-  public void setWrappedIfNecessary(int lineWidth);  
- 
-  /**
-   * If the item needs to wrap, it can return an extra 'overflow' inline item.
-   * @return Extra item (null if none)
-   */
-  public LayoutInline getWrapped();
-
 	/**
 	 * @return Width when item is last on line (i.e. not including a terminating
 	 *   space)
 	 */
 	public int getWidthLineFinal();
+	
+	/**
+	 * @param start Start character
+	 * @param end End character (exclusive)
+	 * @return Width of that part of the item
+	 */
+	public int getWidth(int start,int end);
+	
+	/**
+	 * @param start Start character
+	 * @param end End character (exclusive)
+	 * @return Width of that part of the item when it's last on line
+	 */
+	public int getWidthLineFinal(int start,int end);
+	
+	/**
+	 * Works out where the item needs to wrap so that part of it fits on a 
+	 * line.
+	 * @param start Start character of the part being placed
+	 * @param lineWidth Width of line
+	 * @return Character to end that part before, always more than start; 
+	 *   {@link #getLength()} if the rest fits or the item can't wrap
+	 */
+	public int getSplit(int start,int lineWidth);
+	
+	/**
+	 * @return Narrowest width the item can be wrapped to without any part of
+	 *   it overflowing (the same as {@link #getWidthLineFinal()} if it can't
+	 *   wrap)
+	 */
+	public int getMinWrappedWidth();
 
   /**
 	 * @return Ascent above baseline
@@ -67,19 +90,21 @@ interface LayoutInline extends LayoutThing
   public int getDescent();
 
 	/**
-	 * Updates style using a new StyleContext.
+	 * Applies style from a new StyleContext.
 	 * @param sc New context
+	 * @return Item with the new style
 	 * @throws LayoutException
 	 */
-	public void updateStyle(StyleContext sc) throws LayoutException;
+	public LayoutInline updateStyle(StyleContext sc) throws LayoutException;
 
   /**
-	 * Paints into given context.
+	 * Paints the whole item into given context.
    * @param g2 Graphics context
    * @param x X location
    * @param baselineY Y baseline
+   * @param highlighted True if the item is highlighted
 	 */
-  public void paint(Graphics2D g2,int x,int baselineY);
+  public void paint(Graphics2D g2,int x,int baselineY,boolean highlighted);
 
   /** 
    * @return False if the element must be on the same line as the
@@ -98,33 +123,35 @@ interface LayoutInline extends LayoutThing
 	 */
   public boolean skipAtLineStart();
   
-  /**
-	 * Removes highlighting from this item.
-	 */
-  public void clearHighlight();
-  
-  /**
-   * Sets highlight on this item.
-   * @param startX Begining (relative to this item) or Layout.HIGHLIGHT_TOSTART
-   * @param endX End (relative to this item) or Layout.HIGHLIGHT_TOEND
-   */
-  public void setHighlight(int startX,int endX);
-  
   /**
    * @return All text of this inline, or empty string if none 
    */
   public String getText();
   
   /**
-   * @param x Pixel x
+   * @param start Start character of part
+   * @param end End character of part (exclusive)
+   * @param x Pixel x relative to that part
    * @return XML node and character position within it, or null if not inside 
    */
-  public NodePos getNodePos(int x);
+  public NodePos getNodePos(int start,int end,int x);
+  
+  /**
+   * @param start Start character of part
+   * @param end End character of part (exclusive)
+   * @param x Pixel x relative to that part
+   * @return Character containing x (between start and end; end if x is 
+   *   past the last character)
+   */
+  public int getOffset(int start,int end,int x);
   
   /**
-   * @return The currently highlighted string from this inline 
+   * @param start Start character of part
+   * @param end End character of part (exclusive)
+   * @param character Character within that part
+   * @return Bounds of character relative to the part (x and width only)
    */
-  public String getHighlightText();
+  public Rectangle getCharacterBounds(int start,int end,int character);
   
   /**
    * Node and position within it.
@@ -155,6 +182,11 @@ interface LayoutInline extends LayoutThing
   	}
   }
   
+	/**
+	 * @return Estimate of memory used by this item, in bytes
+	 */
+	public long getRetainedBytes();
+	
 	/**
 	 * @param indent Indent text to add to start of each line
 	 * @return Debug of hierarchy from here
@@ -0,0 +1,504 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+import textlayout.stylesheet.StyleContext;
+
+/**
+ * Counters and timings for reflow, painting, style lookups and background
+ * images, plus totals of what all layouts currently hold. Counting is 
+ * always on; counters are {@link LongAdder}s, so threads counting at the
+ * same time (e.g. during parallel reflow) don't contend. Totals are only 
+ * added up when somebody asks, either through {@link #getSnapshot()} or 
+ * through the MBean registered as {@link #MBEAN_NAME}.
+ */
+public abstract class LayoutMetrics
+{
+	/** Name of MBean in the platform MBean server */
+	public final static String MBEAN_NAME="textlayout:type=LayoutMetrics";
+	
+	/** Time taken by each layout reflow (nanoseconds) */
+	final static Histogram reflowTime=new Histogram();
+	
+	/** 
+	 * Number of blocks whose lines were broken again in each layout reflow
+	 * (the others reused earlier flows)
+	 */
+	final static Histogram blocksReflowed=new Histogram();
+	
+	/** Time taken by each layout paint (nanoseconds) */
+	final static Histogram paintTime=new Histogram();
+	
+	/** Time each layout paint waited for the lock (nanoseconds) */
+	final static Histogram paintWaitTime=new Histogram();
+	
+	/** Counters */
+	final static LongAdder textBlockReflows=new LongAdder(),
+		textBlockRecalls=new LongAdder(),textMeasurements=new LongAdder(),
+		wordsCreated=new LongAdder();
+	
+	/** Layouts in use (weak, so that they can still be garbage-collected) */
+	private static Map<Layout, Object> layouts=new WeakHashMap<Layout, Object>();
+	
+	static
+	{
+		registerMBean();
+	}
+	
+	/**
+	 * Registers the MBean. If this isn't allowed, metrics are still available
+	 * from {@link #getSnapshot()}.
+	 */
+	private static void registerMBean()
+	{
+		// Each attribute is read from a new snapshot
+		LayoutMetricsMBean live=(LayoutMetricsMBean)Proxy.newProxyInstance(
+			LayoutMetricsMBean.class.getClassLoader(),
+			new Class<?>[] { LayoutMetricsMBean.class },
+			new InvocationHandler()
+			{
+				@Override
+				public Object invoke(Object proxy,Method m,Object[] args) 
+					throws Throwable
+				{
+					try
+					{
+						return m.invoke(getSnapshot(),args);
+					}
+					catch(InvocationTargetException e)
+					{
+						throw e.getCause();
+					}
+				}
+			});
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+				new StandardMBean(live,LayoutMetricsMBean.class),
+				new ObjectName(MBEAN_NAME));
+		}
+		catch(InstanceAlreadyExistsException e)
+		{
+			// Another copy of the library (different class loader) got there first
+		}
+		catch(JMException e)
+		{
+			throw new Error(e);
+		}
+		catch(SecurityException e)
+		{
+		}
+	}
+	
+	/**
+	 * Called when a layout is created.
+	 * @param l New layout
+	 */
+	static synchronized void addLayout(Layout l)
+	{
+		layouts.put(l,null);
+	}
+	
+	/**
+	 * @return Current values of all metrics
+	 */
+	public static Snapshot getSnapshot()
+	{
+		Layout[] current;
+		synchronized(LayoutMetrics.class)
+		{
+			current=layouts.keySet().toArray(new Layout[layouts.size()]);
+		}
+		return new Snapshot(current);
+	}
+	
+	/**
+	 * Counts values in buckets by powers of two, so recording is cheap and 
+	 * doesn't need a lock. Percentiles are therefore approximate (rounded up
+	 * to the top of a bucket). The largest value is only written when it 
+	 * goes up.
+	 */
+	static class Histogram
+	{
+		/** Bucket 0 holds 0; bucket n holds 2^(n-1) to 2^n-1 */
+		private LongAdder[] buckets=new LongAdder[64];
+		
+		private LongAdder total=new LongAdder();
+		
+		private AtomicLong max=new AtomicLong();
+		
+		Histogram()
+		{
+			for(int i=0;i<buckets.length;i++)
+			{
+				buckets[i]=new LongAdder();
+			}
+		}
+		
+		/**
+		 * @param value Value to record (negative values count as 0)
+		 */
+		void record(long value)
+		{
+			if(value<0) value=0;
+			buckets[64-Long.numberOfLeadingZeros(value)].increment();
+			total.add(value);
+			for(long m=max.get();value>m && !max.compareAndSet(m,value);m=max.get())
+			{
+			}
+		}
+		
+		/** @return Current values */
+		Distribution getDistribution()
+		{
+			long[] counts=new long[buckets.length];
+			for(int i=0;i<counts.length;i++)
+			{
+				counts[i]=buckets[i].sum();
+			}
+			return new Distribution(counts,total.sum(),max.get());
+		}
+	}
+	
+	/**
+	 * Recorded values of a histogram at one time.
+	 */
+	public static class Distribution
+	{
+		private long[] counts;
+		private long count,total,max;
+		
+		private Distribution(long[] counts,long total,long max)
+		{
+			this.counts=counts;
+			this.total=total;
+			this.max=max;
+			for(int i=0;i<counts.length;i++)
+			{
+				count+=counts[i];
+			}
+		}
+		
+		/** @return Number of values recorded */
+		public long getCount()
+		{
+			return count;
+		}
+		
+		/** @return Total of values recorded */
+		public long getTotal()
+		{
+			return total;
+		}
+		
+		/** @return Mean value, or 0 if none recorded */
+		public double getMean()
+		{
+			return count==0 ? 0 : (double)total/count;
+		}
+		
+		/** @return Largest value recorded */
+		public long getMax()
+		{
+			return max;
+		}
+		
+		/**
+		 * @param earlier Earlier values of the same histogram
+		 * @return Values recorded since then. The largest value is exact if it
+		 *   was a new overall largest; otherwise it's rounded up like a
+		 *   percentile.
+		 */
+		Distribution since(Distribution earlier)
+		{
+			long[] diff=new long[counts.length];
+			int top=0;
+			for(int i=0;i<counts.length;i++)
+			{
+				diff[i]=counts[i]-earlier.counts[i];
+				if(diff[i]>0) top=i;
+			}
+			long newMax=max>earlier.max ? max 
+				: (top==0 ? 0 : Math.min(max,(1L<<top)-1));
+			return new Distribution(diff,total-earlier.total,newMax);
+		}
+		
+		/**
+		 * @param fraction Fraction of values (e.g. 0.99)
+		 * @return Value that at least that fraction of values are no larger 
+		 *   than (rounded up to a power of two minus one, but never more than 
+		 *   the largest value), or 0 if none recorded
+		 */
+		public long getPercentile(double fraction)
+		{
+			long target=(long)Math.ceil(count*fraction),seen=0;
+			for(int i=0;i<counts.length;i++)
+			{
+				seen+=counts[i];
+				if(seen>=target && seen>0)
+				{
+					return i==0 ? 0 : Math.min(max,(1L<<i)-1);
+				}
+			}
+			return max;
+		}
+	}
+	
+	/**
+	 * Values of all metrics at one time. Implements the MBean interface, 
+	 * which gives a flat view; the distributions are also available in full.
+	 */
+	public static class Snapshot implements LayoutMetricsMBean
+	{
+		private Distribution reflow,blocks,paint,paintWait;
+		private long textBlockReflowCount,textBlockRecallCount,
+			textMeasurementCount,wordsCreatedCount,styleCacheHits,styleCacheMisses,
+			backgroundImageBytes,backgroundImageHits,backgroundImageMisses,
+			blocksHeld,wordsHeld,retainedBytes;
+		private int backgroundImageCount,layoutCount;
+		
+		private Snapshot(Layout[] current)
+		{
+			reflow=reflowTime.getDistribution();
+			blocks=blocksReflowed.getDistribution();
+			paint=paintTime.getDistribution();
+			paintWait=paintWaitTime.getDistribution();
+			textBlockReflowCount=textBlockReflows.sum();
+			textBlockRecallCount=textBlockRecalls.sum();
+			textMeasurementCount=textMeasurements.sum();
+			wordsCreatedCount=wordsCreated.sum();
+			styleCacheHits=StyleContext.getCacheHits();
+			styleCacheMisses=StyleContext.getCacheMisses();
+			backgroundImageCount=BackgroundImageCache.getSize();
+			backgroundImageBytes=BackgroundImageCache.getBytes();
+			backgroundImageHits=BackgroundImageCache.getHits();
+			backgroundImageMisses=BackgroundImageCache.getMisses();
+			layoutCount=current.length;
+			for(int i=0;i<current.length;i++)
+			{
+				blocksHeld+=current[i].getBlockCount();
+				wordsHeld+=current[i].getWordCount();
+				retainedBytes+=current[i].getRetainedBytes();
+			}
+		}
+		
+		/** @return Time per layout reflow, in nanoseconds */
+		public Distribution getReflowTime()
+		{
+			return reflow;
+		}
+		
+		/** @return Blocks whose lines were broken again per layout reflow */
+		public Distribution getBlocksReflowed()
+		{
+			return blocks;
+		}
+		
+		/** @return Time per layout paint, in nanoseconds */
+		public Distribution getPaintTime()
+		{
+			return paint;
+		}
+		
+		/** @return Time each layout paint waited for the lock, in nanoseconds */
+		public Distribution getPaintWaitTime()
+		{
+			return paintWait;
+		}
+		
+		/**
+		 * @param nanos Time in nanoseconds
+		 * @return Time in milliseconds
+		 */
+		private static double toMillis(double nanos)
+		{
+			return nanos/1000000.0;
+		}
+		
+		@Override
+		public long getReflowCount()
+		{
+			return reflow.getCount();
+		}
+		
+		@Override
+		public double getReflowMeanMillis()
+		{
+			return toMillis(reflow.getMean());
+		}
+		
+		@Override
+		public double getReflow99thPercentileMillis()
+		{
+			return toMillis(reflow.getPercentile(0.99));
+		}
+		
+		@Override
+		public double getReflowMaxMillis()
+		{
+			return toMillis(reflow.getMax());
+		}
+		
+		@Override
+		public double getBlocksReflowedMean()
+		{
+			return blocks.getMean();
+		}
+		
+		@Override
+		public long getBlocksReflowedMax()
+		{
+			return blocks.getMax();
+		}
+		
+		@Override
+		public long getPaintCount()
+		{
+			return paint.getCount();
+		}
+		
+		@Override
+		public double getPaintMeanMillis()
+		{
+			return toMillis(paint.getMean());
+		}
+		
+		@Override
+		public double getPaint99thPercentileMillis()
+		{
+			return toMillis(paint.getPercentile(0.99));
+		}
+		
+		@Override
+		public double getPaintMaxMillis()
+		{
+			return toMillis(paint.getMax());
+		}
+		
+		@Override
+		public double getPaintWait99thPercentileMillis()
+		{
+			return toMillis(paintWait.getPercentile(0.99));
+		}
+		
+		@Override
+		public double getPaintWaitMaxMillis()
+		{
+			return toMillis(paintWait.getMax());
+		}
+		
+		@Override
+		public long getTextBlockReflows()
+		{
+			return textBlockReflowCount;
+		}
+		
+		@Override
+		public long getTextBlockRecalls()
+		{
+			return textBlockRecallCount;
+		}
+		
+		@Override
+		public long getTextMeasurements()
+		{
+			return textMeasurementCount;
+		}
+		
+		@Override
+		public long getWordsCreated()
+		{
+			return wordsCreatedCount;
+		}
+		
+		@Override
+		public long getStyleCacheHits()
+		{
+			return styleCacheHits;
+		}
+		
+		@Override
+		public long getStyleCacheMisses()
+		{
+			return styleCacheMisses;
+		}
+		
+		@Override
+		public double getStyleCacheHitRate()
+		{
+			long total=styleCacheHits+styleCacheMisses;
+			return total==0 ? 0 : (double)styleCacheHits/total;
+		}
+		
+		@Override
+		public int getBackgroundImageCount()
+		{
+			return backgroundImageCount;
+		}
+		
+		@Override
+		public long getBackgroundImageBytes()
+		{
+			return backgroundImageBytes;
+		}
+		
+		@Override
+		public long getBackgroundImageHits()
+		{
+			return backgroundImageHits;
+		}
+		
+		@Override
+		public long getBackgroundImageMisses()
+		{
+			return backgroundImageMisses;
+		}
+		
+		@Override
+		public int getLayoutCount()
+		{
+			return layoutCount;
+		}
+		
+		@Override
+		public long getBlocksHeld()
+		{
+			return blocksHeld;
+		}
+		
+		@Override
+		public long getWordsHeld()
+		{
+			return wordsHeld;
+		}
+		
+		@Override
+		public long getRetainedBytes()
+		{
+			return retainedBytes;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+/**
+ * Attributes of the layout metrics MBean (registered as 
+ * {@link LayoutMetrics#MBEAN_NAME}). Counts are totals since the program 
+ * started; times are in milliseconds.
+ */
+public interface LayoutMetricsMBean
+{
+	/** @return Number of layout reflows (at a new width) */
+	public long getReflowCount();
+	/** @return Mean time per layout reflow */
+	public double getReflowMeanMillis();
+	/** @return 99th percentile time per layout reflow (approximate) */
+	public double getReflow99thPercentileMillis();
+	/** @return Longest layout reflow */
+	public double getReflowMaxMillis();
+	/** @return Mean number of blocks whose lines were broken again per layout reflow */
+	public double getBlocksReflowedMean();
+	/** @return Largest number of blocks whose lines were broken again in one layout reflow */
+	public long getBlocksReflowedMax();
+	
+	/** @return Number of layout paints (frames) */
+	public long getPaintCount();
+	/** @return Mean time per layout paint */
+	public double getPaintMeanMillis();
+	/** @return 99th percentile time per layout paint (approximate) */
+	public double getPaint99thPercentileMillis();
+	/** @return Longest layout paint */
+	public double getPaintMaxMillis();
+	/** @return 99th percentile time a layout paint waited for the lock (approximate) */
+	public double getPaintWait99thPercentileMillis();
+	/** @return Longest time a layout paint waited for the lock */
+	public double getPaintWaitMaxMillis();
+	
+	/** @return Number of times a text block worked out its lines */
+	public long getTextBlockReflows();
+	/** @return Number of times a block reused the lines kept for that width when a view went back to it */
+	public long getTextBlockRecalls();
+	/** @return Number of times word text was measured */
+	public long getTextMeasurements();
+	/** @return Number of words created */
+	public long getWordsCreated();
+	
+	/** @return Style lookups found in a style context cache */
+	public long getStyleCacheHits();
+	/** @return Style lookups not found in a style context cache */
+	public long getStyleCacheMisses();
+	/** @return Proportion of style lookups found in cache (0-1) */
+	public double getStyleCacheHitRate();
+	
+	/** @return Number of background images in cache */
+	public int getBackgroundImageCount();
+	/** @return Approximate bytes used by background images in cache */
+	public long getBackgroundImageBytes();
+	/** @return Background image requests that found an image */
+	public long getBackgroundImageHits();
+	/** @return Background image requests that did not find an image */
+	public long getBackgroundImageMisses();
+	
+	/** @return Number of layouts in use */
+	public int getLayoutCount();
+	/** @return Number of blocks held in all layouts */
+	public long getBlocksHeld();
+	/** @return Number of words (and other inlines) held in all layouts */
+	public long getWordsHeld();
+	/** @return Estimated memory used by all layouts, in bytes */
+	public long getRetainedBytes();
+}
@@ -0,0 +1,175 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import org.w3c.dom.*;
+
+import textlayout.stylesheet.StyleContext;
+
+/**
+ * XML layout that is used many times with different text, such as the 
+ * structure of a chat line. The template is compiled once for a style 
+ * context (paragraphs, block/inline decisions, tag stacks and word styles)
+ * so that creating blocks for each message only needs to split the text into
+ * words.
+ * <p>
+ * Text in the template may contain slots written {0}, {1}, etc, as may 
+ * attributes such as the src of an &lt;img&gt;. Slot values are plain text,
+ * not XML, so they don't need escaping. For example:
+ * <pre>&lt;line>&lt;timestamp>{0}&lt;/timestamp>&lt;nick>{1}&lt;/nick> {2}&lt;/line></pre>
+ * <p>
+ * Templates can be used from any thread.
+ */
+public class LayoutTemplate
+{
+	/** Template XML */
+	private Element template;
+	
+	/** Style context of compiled template */
+	private StyleContext compiledStyle;
+	
+	/** Modification count of that context when compiled */
+	private int compiledModCount;
+	
+	/** Compiled template */
+	private LayoutGenerator.Part compiled;
+	
+	/**
+	 * Compiles a template.
+	 * @param sc Style context
+	 * @param template Template XML; must not be changed afterwards
+	 * @throws LayoutException If the template isn't valid layout XML
+	 */
+	public LayoutTemplate(StyleContext sc,Element template) throws LayoutException
+	{
+		this.template=template;
+		getCompiled(sc);
+	}
+	
+	/**
+	 * Creates a template that is compiled when first used.
+	 * @param template Template XML; must not be changed afterwards
+	 */
+	LayoutTemplate(Element template)
+	{
+		this.template=template;
+	}
+	
+	/**
+	 * @param sc Style context
+	 * @return Template compiled for that context (compiled again if it's a
+	 *   different context, or its stylesheets have changed, since last time)
+	 * @throws LayoutException If the template isn't valid layout XML
+	 */
+	private synchronized LayoutGenerator.Part getCompiled(StyleContext sc) 
+	  throws LayoutException
+	{
+		int modCount=sc.getModCount();
+		if(compiledStyle!=sc || compiledModCount!=modCount)
+		{
+			compiled=LayoutGenerator.compile(sc,template,true);
+			compiledStyle=sc;
+			compiledModCount=modCount;
+		}
+		return compiled;
+	}
+	
+	/**
+	 * Creates blocks with the given text in the slots. The result is the same
+	 * as calling {@link LayoutGenerator#getLayout(StyleContext, Element)} on
+	 * the template with the text filled in.
+	 * @param sc Style context (normally the same as it was compiled with; if
+	 *   different, the template is compiled again)
+	 * @param values Text for each slot
+	 * @return Blocks
+	 * @throws LayoutException If a slot value is missing
+	 */
+	public LayoutBlock[] getLayout(StyleContext sc,String... values) 
+	  throws LayoutException
+	{
+		for(int i=0;i<values.length;i++)
+		{
+			// An empty slot may remove a text node, which can change the 
+			// structure, so use the normal route
+			if(values[i].length()==0)
+				return LayoutGenerator.getLayout(sc,getElement(values));
+		}
+		return getCompiled(sc).getLayout(sc,values);
+	}
+	
+	/**
+	 * Creates XML with the given text in the slots, for use where the XML is 
+	 * needed (e.g. compact storage).
+	 * @param values Text for each slot
+	 * @return New element (in the template's document, but not attached)
+	 * @throws LayoutException If a slot value is missing
+	 */
+	public Element getElement(String... values) throws LayoutException
+	{
+		Element e;
+		synchronized(this)
+		{
+			// DOM isn't thread-safe even for reading
+			e=(Element)template.cloneNode(true);
+		}
+		fill(e,values);
+		return e;
+	}
+	
+	/**
+	 * Fills slots in the attributes of an element and all text and 
+	 * attributes within it.
+	 * @param e Element
+	 * @param values Slot values
+	 * @throws LayoutException If a slot value is missing
+	 */
+	private static void fill(Element e,String[] values) throws LayoutException
+	{
+		NamedNodeMap attributes=e.getAttributes();
+		for(int i=0;i<attributes.getLength();i++)
+		{
+			Attr a=(Attr)attributes.item(i);
+			LayoutGenerator.SlotText st=LayoutGenerator.SlotText.split(a.getValue());
+			if(st!=null) a.setValue(st.fill(values));
+		}
+		
+		for(Node n=e.getFirstChild();n!=null;)
+		{
+			Node next=n.getNextSibling();
+			if(n instanceof Text)
+			{
+				Text t=(Text)n;
+				LayoutGenerator.SlotText st=LayoutGenerator.SlotText.split(t.getData());
+				if(st!=null)
+				{
+					String filled=st.fill(values);
+					if(filled.length()==0)
+						e.removeChild(n);
+					else
+						t.setData(filled);
+				}
+			}
+			else if(n instanceof Element)
+			{
+				fill((Element)n,values);
+			}
+			n=next;
+		}
+	}
+}
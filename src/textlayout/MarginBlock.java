@@ -19,6 +19,7 @@ Copyright 2011 Samuel Marshall.
 package textlayout;
 
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.util.*;
 
 import org.w3c.dom.*;
@@ -31,17 +32,23 @@ import util.StringUtils;
  */
 class MarginBlock implements LayoutBlock
 {
-	private String[] context;
+	private final String[] context;
 	
   /**
 	 * Inner blocks
 	 */
-  private LayoutBlock innerBlock;
+  private final LayoutBlock innerBlock;
 
   /**
 	 * Width of margin (default 100)
 	 */
-  private int marginWidth=100; 
+  private final int marginWidth; 
+  
+  /**
+   * Inner block laid out at the margin width, which doesn't depend on the
+   * width of the layout
+   */
+  private final BlockFlow innerFlow;
 
   /**
 	 * Creates block with the given block style.
@@ -51,64 +58,87 @@ class MarginBlock implements LayoutBlock
    * @throws LayoutException 
 	 */
   MarginBlock(String[] context,LayoutBlock innerBlock,StyleContext sc) throws LayoutException
+  {
+		this(context,innerBlock,getMarginWidth(sc,context),null);
+  }
+  
+  /**
+   * @param context Tag stack
+   * @param innerBlock Inner block
+   * @param marginWidth Width of margin
+   * @param previousInner Previous flow of inner block at that width, or null
+   */
+  private MarginBlock(String[] context,LayoutBlock innerBlock,int marginWidth,
+  	BlockFlow previousInner)
   {
   	this.context=context;
     this.innerBlock=innerBlock;
-    updateStyle(sc);
+    this.marginWidth=marginWidth;
+    innerFlow=innerBlock.flow(marginWidth,previousInner);
+  }
+  
+  /**
+   * @param sc Context
+   * @param context Tag stack
+   * @return Width of margin
+   * @throws LayoutException
+   */
+  private static int getMarginWidth(StyleContext sc,String[] context) throws LayoutException
+  {
+		int marginWidth=sc.getNumber(Property.MARGIN_WIDTH,context);
+		return marginWidth==-1 ? 100 : marginWidth;
   }
 
 	@Override
-	public void updateStyle(StyleContext sc) throws LayoutException
+	public LayoutBlock updateStyle(StyleContext sc) throws LayoutException
 	{
-		innerBlock.updateStyle(sc);
-		marginWidth=sc.getNumber(Property.MARGIN_WIDTH,context);
-		if(marginWidth==-1) marginWidth=100;
-		innerBlock.reflow(marginWidth);
+		return new MarginBlock(context,innerBlock.updateStyle(sc),sc);
 	}
 
   @Override
-	public void paint(Graphics2D g,int iX,int iY)
-  {
-  		innerBlock.paint(g,iX-marginWidth,iY);
-  }
-
-  @Override
-	public int getFirstBaseline()
+	public LayoutBlock setCurrent(StyleContext sc,boolean current) throws LayoutException
   {
-  		return innerBlock.getFirstBaseline();
-  }
-  
-  @Override
-	public boolean setCurrent(StyleContext sc,boolean current) throws LayoutException
-  {
-  		return innerBlock.setCurrent(sc,current);
+		LayoutBlock newInner=innerBlock.setCurrent(sc,current);
+		if(newInner==innerBlock) return this;
+		return new MarginBlock(context,newInner,marginWidth,innerFlow);
   }
   
 	@Override
-	public void clearHighlight()
+	public BlockFlow flow(int width,BlockFlow previous)
 	{
-		innerBlock.clearHighlight();
+		if(previous!=null && previous.getBlock()==this && previous.getWidth()==width)
+			return previous;
+		return new Flow(this,width);
+	}  
+	
+	@Override
+	public long getRetainedBytes()
+	{
+		return 48+innerBlock.getRetainedBytes();
 	}
-  
+	
 	@Override
-	public void setHighlight(int lowX,int lowY,int highX,int highY)
+	public int getWordCount()
 	{
-		innerBlock.setHighlight(
-			lowX==Layout.HIGHLIGHT_TOSTART ? lowX : lowX+marginWidth,lowY,
-			highX==Layout.HIGHLIGHT_TOEND ? highX : highX+marginWidth,highY);
+		return innerBlock.getWordCount();
 	}
 	
 	@Override
-	public LayoutInline.NodePos getNodePos(int targetX, int targetY,
-		List<LayoutThing> l)
+	public String getText()
 	{
-		return innerBlock.getNodePos(targetX+marginWidth,targetY,l);
+		return innerBlock.getText();
 	}
-  
+	
 	@Override
-	public String getHighlightText()
+	public int getTextLength()
 	{
-		return innerBlock.getHighlightText();
+		return innerBlock.getTextLength();
+	}
+	
+	@Override
+	public String getText(int start,int end)
+	{
+		return innerBlock.getText(start,end);
 	}
 	
   @Override
@@ -132,33 +162,124 @@ class MarginBlock implements LayoutBlock
 		return FLOWCATEGORY_LEFTMARGIN;
 	}
 
+	/** Drawn in the margin, so it doesn't need any content width. */
 	@Override
-	public int getHeight()
+	public int getMinContentWidth()
 	{
-		return innerBlock.getHeight();
+		return 0;
 	}
 
 	@Override
-	public int getMaxX()
+	public int getMaxContentWidth()
 	{
 		return 0;
 	}
-
-	@Override
-	public int getMinX()
+	
+	/**
+	 * Margin block at a layout width; the contents are always laid out at the
+	 * margin width, to the left of 0.
+	 */
+	private static class Flow implements BlockFlow
 	{
-		return -marginWidth;
-	}
+		private final MarginBlock block;
+		private final int width;
+		
+		/**
+		 * @param block Block
+		 * @param width Width
+		 */
+		Flow(MarginBlock block,int width)
+		{
+			this.block=block;
+			this.width=width;
+		}
+		
+		@Override
+		public LayoutBlock getBlock()
+		{
+			return block;
+		}
+		
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
 
-	@Override
-	public int getUsedWidth()
-	{
-		return marginWidth;
+		@Override
+		public int getHeight()
+		{
+			return block.innerFlow.getHeight();
+		}
+		
+		@Override
+		public int getUsedWidth()
+		{
+			return block.marginWidth;
+		}
+		
+	  @Override
+		public int getFirstBaseline()
+	  {
+	  		return block.innerFlow.getFirstBaseline();
+	  }
+	  
+		@Override
+		public int getMinX()
+		{
+			return -block.marginWidth;
+		}
+		
+		@Override
+		public int getMaxX()
+		{
+			return 0;
+		}
+		
+		@Override
+		public int getMinSameWidth()
+		{
+			// Laid out at the margin width whatever the width
+			return 0;
+		}
+		
+		@Override
+		public int getMaxSameWidth()
+		{
+			return Integer.MAX_VALUE;
+		}
+		
+	  @Override
+		public void paint(Graphics2D g,int x,int y,int highlightStart,int highlightEnd)
+	  {
+			block.innerFlow.paint(g,x-block.marginWidth,y,highlightStart,highlightEnd);
+	  }
+	  
+	  @Override
+	  public int getOffset(int x,int y)
+	  {
+			return block.innerFlow.getOffset(x+block.marginWidth,y);
+	  }
+	
+		@Override
+		public LayoutInline.NodePos getNodePos(int targetX, int targetY,
+			List<LayoutThing> l)
+		{
+			return block.innerFlow.getNodePos(targetX+block.marginWidth,targetY,l);
+		}
+	  
+		@Override
+		public Rectangle getCharacterBounds(int offset)
+		{
+			Rectangle r=block.innerFlow.getCharacterBounds(offset);
+			if(r!=null) r.translate(-block.marginWidth,0);
+			return r;
+		}
+		
+		@Override
+		public void addMissingBackgrounds(Collection<BackgroundImageCache.Key> missing)
+		{
+			block.innerFlow.addMissingBackgrounds(missing);
+		}
 	}
-
-	@Override
-	public void reflow(int width)
-	{
-		innerBlock.reflow(marginWidth);
-	}  
 }
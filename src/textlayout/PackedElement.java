@@ -0,0 +1,173 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import org.w3c.dom.*;
+
+import util.xml.*;
+
+/**
+ * Compact copy of an XML element. All names and text are stored in a single
+ * string, and the structure as an array of (type, start, length) entries
+ * that refer to it. Comments are not kept since layout ignores them.
+ */
+class PackedElement
+{
+	/** Entry types */
+	private final static int
+		START=0,ATTRIBUTE_NAME=1,ATTRIBUTE_VALUE=2,TEXT=3,END=4;
+
+	/** All names and text */
+	private String chars;
+
+	/** Entries, three ints each */
+	private int[] entries;
+
+	/**
+	 * @param chars All names and text
+	 * @param entries Entries
+	 */
+	PackedElement(String chars,int[] entries)
+	{
+		this.chars=chars;
+		this.entries=entries;
+	}
+
+	/**
+	 * Packs an element.
+	 * @param e Element
+	 * @return Packed copy
+	 */
+	static PackedElement pack(Element e)
+	{
+		Packer p=new Packer();
+		p.add(e);
+		int[] entries=new int[p.count];
+		System.arraycopy(p.entries,0,entries,0,p.count);
+		return new PackedElement(p.chars.toString(),entries);
+	}
+
+	/**
+	 * Builds up the packed data.
+	 */
+	private static class Packer
+	{
+		StringBuffer chars=new StringBuffer();
+		int[] entries=new int[48];
+		int count;
+
+		void add(int type,String s)
+		{
+			if(count+3>entries.length)
+			{
+				int[] bigger=new int[entries.length*2];
+				System.arraycopy(entries,0,bigger,0,count);
+				entries=bigger;
+			}
+			entries[count++]=type;
+			entries[count++]=chars.length();
+			entries[count++]=s.length();
+			chars.append(s);
+		}
+
+		void add(Element e)
+		{
+			add(START,e.getTagName());
+			NamedNodeMap nnm=e.getAttributes();
+			for(int i=0;i<nnm.getLength();i++)
+			{
+				add(ATTRIBUTE_NAME,nnm.item(i).getNodeName());
+				add(ATTRIBUTE_VALUE,nnm.item(i).getNodeValue());
+			}
+			for(Node n=e.getFirstChild();n!=null;n=n.getNextSibling())
+			{
+				if(n instanceof Element)
+					add((Element)n);
+				else if(n instanceof Text)
+					add(TEXT,((Text)n).getData());
+			}
+			add(END,"");
+		}
+	}
+
+	/**
+	 * Recreates the element in a new document.
+	 * @return New element
+	 * @throws LayoutException If a document can't be created
+	 */
+	Element unpack() throws LayoutException
+	{
+		Document d;
+		try
+		{
+			d=XML.newDocument();
+		}
+		catch(XMLException e)
+		{
+			throw new LayoutException(e);
+		}
+
+		Node parent=d;
+		Element current=null;
+		String attributeName=null;
+		for(int i=0;i<entries.length;i+=3)
+		{
+			String s=chars.substring(entries[i+1],entries[i+1]+entries[i+2]);
+			switch(entries[i])
+			{
+			case START:
+				current=d.createElement(s);
+				parent.appendChild(current);
+				parent=current;
+				break;
+			case ATTRIBUTE_NAME:
+				attributeName=s;
+				break;
+			case ATTRIBUTE_VALUE:
+				current.setAttribute(attributeName,s);
+				break;
+			case TEXT:
+				parent.appendChild(d.createTextNode(s));
+				break;
+			case END:
+				parent=parent.getParentNode();
+				break;
+			}
+		}
+		return d.getDocumentElement();
+	}
+
+	/** @return All names and text */
+	String getChars()
+	{
+		return chars;
+	}
+
+	/** @return Entries (three ints each); don't change them */
+	int[] getEntries()
+	{
+		return entries;
+	}
+
+	/** @return Approximate memory used in bytes */
+	long getBytes()
+	{
+		return 40+2*chars.length()+4*entries.length;
+	}
+}
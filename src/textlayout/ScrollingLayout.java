@@ -38,13 +38,16 @@ public class ScrollingLayout extends JComponent
 {
   private JScrollBar sb;
   private LayoutViewer lv;
-  private StyleContext sc;
+  private SharedLayout model;
+  
+  /** True if the document was created for this view (so is closed with it) */
+  private boolean ownModel;
   
   JScrollBar getScrollBar() { return sb; }
   
 	final static int DRAGSCROLL_DELAY=100;  
 	
-	private void updateBackground(StyleContext sc)
+	void updateBackground(StyleContext sc)
 	{
 		try
 		{
@@ -81,15 +84,27 @@ public class ScrollingLayout extends JComponent
 	 */
 	public ScrollingLayout(int iPreferredWidth,int iPreferredHeight,StyleContext sc)
   {
-		this.sc=sc;
+		this(iPreferredWidth,iPreferredHeight,new SharedLayout(sc));
+		ownModel=true;
+  }
+	
+	/**
+	 * Constructs a view of a document that may also be shown in other views.
+	 * @param iPreferredWidth Preferred width
+	 * @param iPreferredHeight Preferred height
+	 * @param model Document to show
+	 */
+	public ScrollingLayout(int iPreferredWidth,int iPreferredHeight,SharedLayout model)
+  {
+		this.model=model;
     setLayout(new BorderLayout());
     setOpaque(true);
 
     sb=new JScrollBar(JScrollBar.VERTICAL,0,0,0,0);
     add(sb,BorderLayout.EAST);
 
-    lv=new LayoutViewer(this);
-    updateBackground(sc);
+    lv=new LayoutViewer(this,model.getLayout());
+    updateBackground(model.getStyleContext());
     add(lv,BorderLayout.CENTER);
 
 		setFocusable(true);
@@ -158,6 +173,64 @@ public class ScrollingLayout extends JComponent
     });
   }
 
+	/**
+	 * Stops showing the document. If the view was created with its own 
+	 * document (rather than a {@link SharedLayout} passed in), that is closed
+	 * too (see {@link SharedLayout#close()}). The view shouldn't be used 
+	 * afterwards.
+	 */
+	public void close()
+	{
+		model.removeView(this);
+		lv.close();
+		if(ownModel) model.close();
+	}
+	
+	/** @return Document shown in this view */
+	public SharedLayout getModel()
+	{
+		return model;
+	}
+	
+	@Override
+	public void addNotify()
+	{
+		super.addNotify();
+		model.addView(this);
+		updateBackground(model.getStyleContext());
+		lv.updateScrollbar(sb);
+	}
+	
+	@Override
+	public void removeNotify()
+	{
+		model.removeView(this);
+		lv.releaseFlow();
+		super.removeNotify();
+	}
+	
+	/**
+	 * Called by the model after the document changes.
+	 * @param scrollToEnd True to scroll to the end afterwards
+	 */
+	void layoutChanged(boolean scrollToEnd)
+	{
+		lv.updateScrollbar(sb);
+		lv.restorePosition(sb);
+		if(scrollToEnd) scrollToEnd();
+		repaint();
+	}
+
+	/**
+	 * Called by the model before a change that may move the text in this
+	 * view. The next {@link #layoutChanged(boolean)} scrolls back to the same
+	 * text.
+	 */
+	void rememberPosition()
+	{
+		lv.rememberPosition();
+	}
+
 	/**
 	 * Update margins.
 	 * @param leftMargin Left margin (pixels)
@@ -187,16 +260,8 @@ public class ScrollingLayout extends JComponent
 	 */
 	public void updateStyle(StyleContext sc) throws LayoutException
 	{
-		this.sc=sc;
-		updateBackground(sc);
-	  boolean bEnd=sb.getValue()==(sb.getMaximum()-sb.getVisibleAmount());
-	  
-		lv.l.updateStyle(sc);
-		lv.updateScrollbar(sb);
-		
-		if(bEnd) scrollToEnd();
-		
-		repaint();
+		if(!isDisplayable()) updateBackground(sc);
+		model.updateStyle(sc);
 	}
 		
 	/**
@@ -237,9 +302,9 @@ public class ScrollingLayout extends JComponent
    */
 	public boolean isUsingScrollbar()
   {
-    int iWidth=lv.getWidth();
-    if(iWidth<=0) return false;
-    return lv.l.getHeight(iWidth) > lv.getHeight();
+    LayoutFlow f=lv.getFlow();
+    if(f==null) return false;
+    return lv.l.getHeight(f) > lv.getHeight();
   }
 
   /** @return True if paging down puts us at end, false otherwise */
@@ -289,7 +354,7 @@ public class ScrollingLayout extends JComponent
 
   void resolveStyle() 
   {
-    lv.l.resolveStyle(sc);
+    lv.l.resolveStyle(model.getStyleContext());
   }
 
   /**
@@ -299,9 +364,7 @@ public class ScrollingLayout extends JComponent
    */
 	public void addBlock(LayoutBlock lb) throws LayoutException
   {
-    lv.l.addBlock(sc,lb);
-    lv.updateScrollbar(sb);
-    repaint();
+		model.addBlock(lb);
   }
 
 	/**
@@ -311,10 +374,7 @@ public class ScrollingLayout extends JComponent
 	 */
   public void addBlocks(LayoutBlock[] alb) throws LayoutException
   {
-    for(int i=0;i<alb.length;i++)
-      lv.l.addBlock(sc,alb[i]);
-    lv.updateScrollbar(sb);
-    repaint();
+		model.addBlocks(alb);
   }
   
   /**
@@ -322,7 +382,7 @@ public class ScrollingLayout extends JComponent
    */
   public int getNumBlocks()
   {
-		return lv.l.getNumBlocks();
+		return model.getNumBlocks();
   }
   
   /**
@@ -332,10 +392,37 @@ public class ScrollingLayout extends JComponent
    */
   public int deleteFirstBlocks(int count)
   {
-		int heightChange=lv.l.deleteFirstBlocks(count);
-		lv.updateScrollbar(sb);
-		repaint();
-		return heightChange;
+		return model.deleteFirstBlocks(count);
+  }
+  
+  /**
+   * @return Estimate of memory used by blocks, in bytes
+   */
+  public long getRetainedBytes()
+  {
+		return model.getRetainedBytes();
+  }
+  
+  /**
+   * Deletes blocks from the start until the rest use no more than the given
+   * memory. The most recent block is always kept.
+   * @param bytes Memory limit in bytes
+   * @return Pixel difference in height after deleting
+   */
+  public int trimToBytes(long bytes)
+  {
+		return model.trimToBytes(bytes);
+  }
+  
+  /**
+   * Sets a memory budget; the oldest blocks are deleted automatically when
+   * blocks are added and memory is over budget. See
+   * {@link SharedLayout#setMemoryBudget(long)}.
+   * @param bytes Budget in bytes, or 0 for no budget (default)
+   */
+  public void setMemoryBudget(long bytes)
+  {
+		model.setMemoryBudget(bytes);
   }
   
   /**
@@ -345,7 +432,80 @@ public class ScrollingLayout extends JComponent
    */
   public void addBlocks(Element e) throws LayoutException
   {
-		addBlocks(LayoutGenerator.getLayout(sc,	e));
+		model.addBlocks(e);
+  }
+  
+  /**
+   * Adds plain text, without building XML. See 
+   * {@link LayoutGenerator#getTextLayout(StyleContext, String, CharSequence)}.
+   * @param contextPath Tag names separated by slashes, e.g. "output/line"
+   * @param text Plain text (not XML)
+   * @throws LayoutException
+   */
+  public void addText(String contextPath,CharSequence text) throws LayoutException
+  {
+		model.addText(contextPath,text);
+  }
+  
+  /**
+   * Adds blocks from a template. This is quicker than building XML when 
+   * adding many messages with the same structure.
+   * @param t Template
+   * @param values Text for each slot in template
+   * @throws LayoutException
+   */
+  public void addBlocks(LayoutTemplate t,String... values) throws LayoutException
+  {
+		model.addBlocks(t,values);
+  }
+  
+  /**
+   * Adds a group of blocks that can be collapsed so that only a summary 
+   * shows. See {@link SharedLayout#addGroup(Element, Element, boolean)}.
+   * @param summary XML element for summary
+   * @param contents XML element for blocks that can be hidden, or null
+   * @param collapsed True to start collapsed
+   * @return Group
+   * @throws LayoutException
+   */
+  public CollapsibleGroup addGroup(Element summary,Element contents,
+  	boolean collapsed) throws LayoutException
+  {
+		return model.addGroup(summary,contents,collapsed);
+  }
+  
+  /**
+   * Adds more blocks to the end of a group and/or replaces its summary. See 
+   * {@link SharedLayout#addToGroup(CollapsibleGroup, Element, Element)}.
+   * @param g Group, which must still be the last thing in the layout
+   * @param summary XML element for new summary, or null to keep existing
+   * @param contents XML element for blocks to add, or null if none
+   * @throws LayoutException
+   */
+  public void addToGroup(CollapsibleGroup g,Element summary,Element contents)
+  	throws LayoutException
+  {
+		model.addToGroup(g,summary,contents);
+  }
+  
+  /**
+   * Adds some blocks from XML document without doing the work in the calling
+   * thread. See {@link SharedLayout#addBlocksInBackground(Element)}.
+   * @param e XML element containing data to add
+   */
+  public void addBlocksInBackground(Element e)
+  {
+		model.addBlocksInBackground(e);
+  }
+  
+  /**
+   * Called in the Swing thread if there is an error adding blocks with
+   * {@link #addBlocksInBackground(Element)}. Default prints a stack trace.
+   * @param le Error
+   */
+  protected void backgroundError(LayoutException le)
+  {
+		le.printStackTrace();
   }
   
   private List<ChangeListener> lChangeListeners=new LinkedList<ChangeListener>();
@@ -429,14 +589,68 @@ public class ScrollingLayout extends JComponent
 		return new JPopupMenu();
   }
   
+  /** Query and result of the last find */
+  private String lastQuery;
+  private SearchMatch lastMatch;
+  
+  /**
+   * Finds the next match for text after the last one found (or from the 
+   * start), highlights it and scrolls to it. Wraps round to the start if 
+   * there are no more. The search index must be turned on first with 
+   * {@link SharedLayout#setSearchable(boolean)}.
+   * @param query Text to find (case is ignored)
+   * @param wholeWords If true, the text must start and end at word boundaries
+   * @return True if found
+   */
+  public boolean findNext(String query,boolean wholeWords)
+  {
+		return find(query,wholeWords,true);
+  }
+  
+  /**
+   * Finds the previous match for text before the last one found (or from 
+   * the end), highlights it and scrolls to it. Wraps round to the end if 
+   * there are no more. The search index must be turned on first with 
+   * {@link SharedLayout#setSearchable(boolean)}.
+   * @param query Text to find (case is ignored)
+   * @param wholeWords If true, the text must start and end at word boundaries
+   * @return True if found
+   */
+  public boolean findPrevious(String query,boolean wholeWords)
+  {
+		return find(query,wholeWords,false);
+  }
+  
+  private boolean find(String query,boolean wholeWords,boolean forward)
+  {
+		SearchMatch from=query.equals(lastQuery) ? lastMatch : null;
+		SearchMatch m=model.find(query,wholeWords,from,forward);
+		if(m==null && from!=null) m=model.find(query,wholeWords,null,forward);
+		lastQuery=query;
+		lastMatch=m;
+		if(m==null) return false;
+		lv.showMatch(m);
+		return true;
+  }
+  
+  /**
+   * Collapses or expands a group of blocks (see 
+   * {@link SharedLayout#setCollapsed(CollapsibleGroup, boolean)}).
+   * @param g Group
+   * @param collapsed True to collapse, false to expand
+   * @throws LayoutException
+   */
+  public void setCollapsed(CollapsibleGroup g,boolean collapsed) throws LayoutException
+  {
+		model.setCollapsed(g,collapsed);
+  }
+  
   /**
    * Removes all blocks.
    */
   public void clear()
   {
-		lv.l.clear();
-		scrollbarChanged();
-		repaint();
+		model.clear();
   }
   
   /**
@@ -451,14 +665,13 @@ public class ScrollingLayout extends JComponent
   {
   }
 
-  /** @return Height of layout */
+  /** @return Height of layout at this view's width */
   public int getLayoutHeight()
   {
-	  if(!lv.l.isReflowed())
-  	  lv.reflow();
-	  if(!lv.l.isReflowed()) 
+	  LayoutFlow f=lv.getFlow();
+	  if(f==null) 
   		return 0;
-		return lv.l.getHeight();
+		return lv.l.getHeight(f);
   }
    
   /** Linked component */
@@ -514,6 +727,9 @@ public class ScrollingLayout extends JComponent
 class LayoutViewer extends JComponent implements ClipboardOwner
 {
 	Layout l;
+	
+	/** Layout at this view's width, or null if not yet acquired */
+	private LayoutFlow flow;
 
   private int iStartY=0;
   private ScrollingLayout slParent;
@@ -543,8 +759,10 @@ class LayoutViewer extends JComponent implements ClipboardOwner
 	private LayoutInline.NodePos getResolvedNodePos(MouseEvent me) throws BugException
 	{
 		// Get position in layout objects
+		LayoutFlow f=getFlow();
+		if(f==null) return null;
 		LinkedList<LayoutThing> ll = new LinkedList<LayoutThing>();
-		LayoutInline.NodePos np=l.getNodePos(me.getX()-leftMargin,me.getY()+iStartY,ll);
+		LayoutInline.NodePos np=l.getNodePos(f,me.getX()-leftMargin,me.getY()+iStartY,ll);
 		if(np==null) return null;
 		
 		// Build XML document from this block (if it isn't already cached)
@@ -583,10 +801,10 @@ class LayoutViewer extends JComponent implements ClipboardOwner
 		return np;
 	}
 	
-  LayoutViewer(ScrollingLayout sl)
+  LayoutViewer(ScrollingLayout sl,Layout layout)
   {
  		slParent=sl;
-    l=new Layout();
+    l=layout;
     setOpaque(true);
     
 		addMouseListener(new MouseAdapter()
@@ -763,6 +981,29 @@ class LayoutViewer extends JComponent implements ClipboardOwner
 		repaint();
 	}
 	
+	/**
+	 * Highlights a search match and scrolls to it if it isn't visible.
+	 * @param m Match
+	 */
+	void showMatch(SearchMatch m)
+	{
+		LayoutFlow f=getFlow();
+		if(f==null || !l.highlightMatch(f,m)) return;
+		Rectangle r=l.getMatchBounds(f,m);
+		if(r.y<iStartY || r.y+r.height>iStartY+getHeight())
+		{
+			// Put it a third of the way down
+			JScrollBar sb=slParent.getScrollBar();
+			sb.setValue(Math.max(0,Math.min(sb.getMaximum()-sb.getVisibleAmount(),
+				r.y-getHeight()/3)));
+		}
+		
+		sHighlightText=l.getHighlightText();
+		aCopy.setEnabled(!sHighlightText.equals(""));
+		slParent.fireChangeEvent();
+		repaint();
+	}
+	
 	public void highlightAll()
 	{
 		l.highlightAll();
@@ -797,7 +1038,9 @@ class LayoutViewer extends JComponent implements ClipboardOwner
 	 */
 	private void moveHighlight(int iX,int iY)
 	{
-		l.setHighlight(iHighlightStartX-leftMargin,iHighlightStartY,iX-leftMargin,iY+iStartY);
+		LayoutFlow f=getFlow();
+		if(f==null) return;
+		l.setHighlight(f,iHighlightStartX-leftMargin,iHighlightStartY,iX-leftMargin,iY+iStartY);
 		repaint();
 	}
 	
@@ -867,8 +1110,9 @@ class LayoutViewer extends JComponent implements ClipboardOwner
 
   void updateScrollbar(JScrollBar sb)
   {
+    LayoutFlow f=getFlow();
     int
-      iLayoutHeight=l.getHeight(getWidth()-leftMargin-rightMargin),
+      iLayoutHeight=f==null ? 0 : l.getHeight(f),
       iHeight=getHeight();
     if(iHeight==0) return;
 
@@ -890,14 +1134,106 @@ class LayoutViewer extends JComponent implements ClipboardOwner
     }
   }
   
-  void reflow()
+  /** @return Width available for the layout */
+  int getInnerWidth()
+  {
+	  return getWidth()-leftMargin-rightMargin;
+  }
+  
+  /**
+   * Gets the layout at this view's width, flowing it if the width has 
+   * changed. Other views at the same width share it.
+   * @return Flow, or null if the view has no width
+   */
+  LayoutFlow getFlow()
+  {
+	  int width=getInnerWidth();
+	  if(width<=0) return null;
+	  if(flow==null || flow.getWidth()!=width)
+	  {
+	  	LayoutFlow newFlow=l.acquireFlow(width);
+	  	releaseFlow();
+	  	flow=newFlow;
+	  }
+	  return flow;
+  }
+  
+  /** Stops using the layout at this view's width, if any */
+  void releaseFlow()
+  {
+	  if(flow==null) return;
+	  l.releaseFlow(flow);
+	  flow=null;
+  }
+  
+  /** Stops drag-scrolling and using the layout, when the view is closed */
+  void close()
+  {
+  	stopDragScroll();
+  	releaseFlow();
+  }
+  
+  /** Number of block at top of view when position was remembered, or -1 */
+  private int anchorBlock=-1;
+  
+  /** Distance from top of that block to top of view */
+  private int anchorOffset;
+  
+  /**
+   * Remembers which text is at the top of the view, at this view's width.
+   */
+  void rememberPosition()
+  {
+	  anchorBlock=-1;
+	  LayoutFlow f=getFlow();
+	  if(f==null) return;
+	  anchorBlock=l.getAnchorBlock(f,iStartY);
+	  if(anchorBlock!=-1) anchorOffset=iStartY-l.getAnchorY(f,anchorBlock,0);
+  }
+  
+  /**
+   * Scrolls back to the text remembered by {@link #rememberPosition()}, if
+   * any. The scrollbar must be up to date.
+   * @param sb Scrollbar
+   */
+  void restorePosition(JScrollBar sb)
   {
-	  l.reflow(getWidth()-leftMargin-rightMargin);
+	  if(anchorBlock==-1) return;
+	  int number=anchorBlock;
+	  anchorBlock=-1;
+	  LayoutFlow f=getFlow();
+	  if(f==null) return;
+	  int y=l.getAnchorY(f,number,anchorOffset);
+	  // If the block has gone (trimmed from the start), show the top
+	  if(y==-1) y=0;
+	  sb.setValue(Math.max(0,Math.min(sb.getMaximum()-sb.getVisibleAmount(),y)));
   }
   
   private int beforeHeight=-1,beforeInnerWidth=-1;
   private boolean beforeAtEnd=false;
   
+  /** Repaints images that arrive after they were painted */
+  private final ImageInline.BlockRepainter repainter=new ImageInline.BlockRepainter()
+	{
+		@Override
+		public void repaintBlock(final int number,final int x,final int y,
+			final int width,final int height)
+		{
+			// Scroll position is only read in the Swing thread
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					LayoutFlow f=getFlow();
+					if(f==null) return;
+					int top=l.getAnchorY(f,number,0);
+					if(top!=-1) repaint(x,top+y-iStartY,width,height);
+				}
+			});
+		}
+	};
+  
   @Override
 	public void paintComponent(Graphics g)
 	{
@@ -905,22 +1241,27 @@ class LayoutViewer extends JComponent implements ClipboardOwner
  		g.fillRect(0,0,getWidth(),getHeight());
  		
  		// Check if width or height has changed
-	  int innerWidth=getWidth()-leftMargin-rightMargin;
+	  int innerWidth=getInnerWidth();
+	  LayoutFlow f=getFlow();
+	  if(f==null) return;
+	  int layoutHeight=l.getHeight(f);
 	  if((innerWidth!=beforeInnerWidth || getHeight()!=beforeHeight))
 	  {
 	  	// Currently at the end?
 	  	if(beforeAtEnd)
 	  	{
 	  		// OK, make sure we're still at the end after resize
-	  		l.reflow(innerWidth);
-	  		iStartY=l.getHeight()-getHeight();
+	  		iStartY=layoutHeight-getHeight();
 	  		slParent.fixScrollbar(iStartY);
 	  	}	  		  
 	  }
+
  		
  		slParent.paintBehind(g,getWidth(),getHeight(),iStartY); 		
-		l.paint((Graphics2D)g,leftMargin,0,innerWidth,iStartY,getHeight());
-	  beforeAtEnd=iStartY==l.getHeight()-getHeight();
+		((Graphics2D)g).setRenderingHint(ImageInline.KEY_REPAINT,
+			new ImageInline.RepaintTarget(repainter));
+		l.paint((Graphics2D)g,f,leftMargin,0,innerWidth,iStartY,getHeight());
+	  beforeAtEnd=iStartY==layoutHeight-getHeight();
 	  beforeHeight=getHeight();
 	  beforeInnerWidth=innerWidth;
 	}
@@ -0,0 +1,393 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.*;
+
+/**
+ * Inverted index from words to the layout blocks that contain them. Blocks
+ * are numbered in the order they are added, so each word's list of blocks 
+ * is always in order and adding is just an append. Deleting blocks from the
+ * start only moves the first number; entries for deleted blocks are 
+ * cleaned out in one go once there are about as many deleted blocks as live
+ * ones.
+ * <p>
+ * Words are runs of letters and digits, in lower case. The index only 
+ * narrows down which blocks might match; the caller checks the actual text.
+ * So that part-word searches don't have to look through every word, words
+ * are also indexed by their pieces of up to three letters.
+ * <p>
+ * Not synchronized; the layout's lock protects it.
+ */
+class SearchIndex
+{
+	/** Block numbers for each word */
+	private Map<String, Postings> words=new HashMap<String, Postings>();
+	
+	/** Words containing each piece of up to {@link #PIECE} letters */
+	private Map<String, List<String>> pieces=new HashMap<String, List<String>>();
+	
+	/** Longest piece of a word that is indexed */
+	private final static int PIECE=3;
+	
+	/** Number of first block still in layout, and of next block to add */
+	private int first,next;
+	
+	/** Value of first when deleted entries were last cleaned out */
+	private int cleaned;
+	
+	/**
+	 * Growable list of block numbers in ascending order.
+	 */
+	private static class Postings
+	{
+		int[] blocks=new int[2];
+		int size;
+		
+		/**
+		 * @param block Block number (not less than any already added)
+		 */
+		void add(int block)
+		{
+			if(size>0 && blocks[size-1]==block) return;
+			if(size==blocks.length)
+			{
+				int[] bigger=new int[size*2];
+				System.arraycopy(blocks,0,bigger,0,size);
+				blocks=bigger;
+			}
+			blocks[size++]=block;
+		}
+		
+		/**
+		 * Removes block numbers before the given one.
+		 * @param first First number to keep
+		 */
+		void removeBefore(int first)
+		{
+			int keep=getIndex(first);
+			if(keep==0) return;
+			size-=keep;
+			int[] smaller=new int[Math.max(2,size)];
+			System.arraycopy(blocks,keep,smaller,0,size);
+			blocks=smaller;
+		}
+		
+		/**
+		 * @param block Block number
+		 * @return Index of first entry not less than that block
+		 */
+		int getIndex(int block)
+		{
+			int low=0,high=size;
+			while(low<high)
+			{
+				int middle=(low+high)>>>1;
+				if(blocks[middle]<block) 
+					low=middle+1;
+				else
+					high=middle;
+			}
+			return low;
+		}
+	}
+	
+	/**
+	 * Converts text to lower case one character at a time, so that offsets 
+	 * in the result are the same as in the original.
+	 * @param text Text
+	 * @return Lower-case text
+	 */
+	static String toLowerCase(String text)
+	{
+		char[] chars=text.toCharArray();
+		for(int i=0;i<chars.length;i++)
+		{
+			chars[i]=Character.toLowerCase(chars[i]);
+		}
+		return new String(chars);
+	}
+	
+	/**
+	 * @param text Text
+	 * @return Words in text (lower case, may include duplicates)
+	 */
+	static List<String> getWords(String text)
+	{
+		List<String> result=new LinkedList<String>();
+		String lower=toLowerCase(text);
+		int start=-1;
+		for(int i=0;i<=lower.length();i++)
+		{
+			boolean inWord=i<lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+			if(inWord && start==-1)
+			{
+				start=i;
+			}
+			else if(!inWord && start!=-1)
+			{
+				result.add(lower.substring(start,i));
+				start=-1;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Adds a block to the end.
+	 * @param text Block text
+	 */
+	void add(String text)
+	{
+		int block=next++;
+		for(String word : getWords(text))
+		{
+			Postings p=words.get(word);
+			if(p==null)
+			{
+				p=new Postings();
+				words.put(word,p);
+				addPieces(word);
+			}
+			p.add(block);
+		}
+	}
+	
+	/**
+	 * Adds more text to the last block added. Words that the block no longer
+	 * contains are left in the index, which is harmless since matches are
+	 * checked against the actual text.
+	 * @param text Additional text
+	 */
+	void addToLast(String text)
+	{
+		if(next==first) return;
+		for(String word : getWords(text))
+		{
+			Postings p=words.get(word);
+			if(p==null)
+			{
+				p=new Postings();
+				words.put(word,p);
+				addPieces(word);
+			}
+			p.add(next-1);
+		}
+	}
+	
+	/**
+	 * Indexes a new word by its pieces.
+	 * @param word Word
+	 */
+	private void addPieces(String word)
+	{
+		Set<String> done=new HashSet<String>();
+		for(int length=1;length<=PIECE;length++)
+		{
+			for(int i=0;i+length<=word.length();i++)
+			{
+				String piece=word.substring(i,i+length);
+				if(!done.add(piece)) continue;
+				List<String> containing=pieces.get(piece);
+				if(containing==null)
+				{
+					containing=new ArrayList<String>(2);
+					pieces.put(piece,containing);
+				}
+				containing.add(word);
+			}
+		}
+	}
+	
+	/**
+	 * @param part Part of a word (lower case)
+	 * @return Words in the index that contain it
+	 */
+	private List<String> getWordsContaining(String part)
+	{
+		if(part.length()<=PIECE)
+		{
+			List<String> containing=pieces.get(part);
+			return containing==null ? Collections.<String>emptyList() : containing;
+		}
+		
+		// Only words that have the least common piece of it need checking
+		List<String> fewest=null;
+		for(int i=0;i+PIECE<=part.length();i++)
+		{
+			List<String> containing=pieces.get(part.substring(i,i+PIECE));
+			if(containing==null) return Collections.emptyList();
+			if(fewest==null || containing.size()<fewest.size()) fewest=containing;
+		}
+		List<String> result=new ArrayList<String>();
+		for(String word : fewest)
+		{
+			if(word.indexOf(part)!=-1) result.add(word);
+		}
+		return result;
+	}
+	
+	/**
+	 * Deletes blocks from the start.
+	 * @param count Number of blocks
+	 */
+	void deleteFirst(int count)
+	{
+		first=Math.min(next,first+count);
+		if(first-cleaned > next-first) clean();
+	}
+	
+	/**
+	 * Removes entries for deleted blocks, and words that are no longer used.
+	 */
+	private void clean()
+	{
+		boolean removed=false;
+		for(Iterator<Postings> i=words.values().iterator();i.hasNext();)
+		{
+			Postings p=i.next();
+			p.removeBefore(first);
+			if(p.size==0) 
+			{
+				i.remove();
+				removed=true;
+			}
+		}
+		if(removed)
+		{
+			pieces.clear();
+			for(String word : words.keySet()) addPieces(word);
+		}
+		cleaned=first;
+	}
+	
+	/** Deletes all blocks. */
+	void clear()
+	{
+		words.clear();
+		pieces.clear();
+		first=next;
+		cleaned=first;
+	}
+	
+	/** @return Number of first block still in layout */
+	int getFirst()
+	{
+		return first;
+	}
+	
+	/** @return Number that will be given to the next block added */
+	int getNext()
+	{
+		return next;
+	}
+	
+	/**
+	 * Finds blocks that might contain the given text. For each word in the 
+	 * query, a block must contain a word that includes it (or, if whole 
+	 * words are required, that word exactly).
+	 * @param query Text to find
+	 * @param wholeWords True if words in query must match whole words
+	 * @return Block numbers in ascending order, or null if the query has no
+	 *   words so every block needs checking
+	 */
+	int[] getCandidates(String query,boolean wholeWords)
+	{
+		int[] result=null;
+		for(String queryWord : new HashSet<String>(getWords(query)))
+		{
+			int[] blocks;
+			if(wholeWords)
+			{
+				Postings p=words.get(queryWord);
+				blocks=p==null ? new int[0] : getLive(p);
+			}
+			else
+			{
+				// Any word that contains it will do
+				BitSet found=new BitSet(next-first);
+				for(String word : getWordsContaining(queryWord))
+				{
+					Postings p=words.get(word);
+					for(int i=p.getIndex(first);i<p.size;i++)
+					{
+						found.set(p.blocks[i]-first);
+					}
+				}
+				blocks=new int[found.cardinality()];
+				for(int i=found.nextSetBit(0),count=0;i>=0;i=found.nextSetBit(i+1))
+				{
+					blocks[count++]=i+first;
+				}
+			}
+			result=result==null ? blocks : intersect(result,blocks);
+			if(result.length==0) break;
+		}
+		return result;
+	}
+	
+	/**
+	 * @param p Postings
+	 * @return Block numbers that haven't been deleted
+	 */
+	private int[] getLive(Postings p)
+	{
+		int start=p.getIndex(first);
+		int[] result=new int[p.size-start];
+		System.arraycopy(p.blocks,start,result,0,result.length);
+		return result;
+	}
+	
+	/**
+	 * @param a Ascending numbers
+	 * @param b Ascending numbers
+	 * @return Ascending numbers in both
+	 */
+	private static int[] intersect(int[] a,int[] b)
+	{
+		int[] result=new int[Math.min(a.length,b.length)];
+		int i=0,j=0,count=0;
+		while(i<a.length && j<b.length)
+		{
+			if(a[i]<b[j])
+				i++;
+			else if(b[j]<a[i])
+				j++;
+			else
+			{
+				result[count++]=a[i++];
+				j++;
+			}
+		}
+		return trim(result,count);
+	}
+	
+	/**
+	 * @param a Array
+	 * @param count Number of entries used
+	 * @return Array of that length
+	 */
+	private static int[] trim(int[] a,int count)
+	{
+		if(count==a.length) return a;
+		int[] result=new int[count];
+		System.arraycopy(a,0,result,0,count);
+		return result;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+/**
+ * Position of text found by searching a layout. The match stays valid when
+ * blocks are added or deleted (unless its own block is deleted), so it can
+ * be used to find the next match later.
+ */
+public class SearchMatch
+{
+	/** Number of block in search index (doesn't change when blocks are deleted) */
+	private int number;
+	
+	/** Index of block at time of search */
+	private int block;
+	
+	private int offset,length;
+	
+	/**
+	 * @param number Number of block in search index
+	 * @param block Index of block at time of search
+	 * @param offset Offset of text within block text
+	 * @param length Length of text
+	 */
+	SearchMatch(int number,int block,int offset,int length)
+	{
+		this.number=number;
+		this.block=block;
+		this.offset=offset;
+		this.length=length;
+	}
+	
+	/** @return Number of block in search index */
+	int getNumber()
+	{
+		return number;
+	}
+	
+	/** 
+	 * @return Index of block within layout at the time of the search (0 is 
+	 *   the first block)
+	 */
+	public int getBlock()
+	{
+		return block;
+	}
+	
+	/** 
+	 * @return Offset of match within the block's plain text (text of blocks 
+	 *   inside it is separated by line feeds)
+	 */
+	public int getOffset()
+	{
+		return offset;
+	}
+	
+	/** @return Length of match */
+	public int getLength()
+	{
+		return length;
+	}
+}
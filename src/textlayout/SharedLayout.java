@@ -0,0 +1,813 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.io.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+import javax.swing.SwingUtilities;
+
+import org.w3c.dom.Element;
+
+import textlayout.stylesheet.StyleContext;
+
+/**
+ * Document shown in one or more {@link ScrollingLayout} views. The blocks
+ * are generated and stored once; changes made here (or through any of the
+ * views) appear in all of them. The blocks are laid out separately at 
+ * each view's width, so views of different widths never reflow for each
+ * other; views of the same width share a layout. Across changes, a view 
+ * that isn't at the end keeps its position as the block at its top.
+ * <p>
+ * Highlight is part of the document, so text selected in one view is also
+ * shown as selected in the others.
+ * <p>
+ * Apart from {@link #addBlocksInBackground(Element)}, methods must be
+ * called in the Swing thread.
+ */
+public class SharedLayout
+{
+	/** Blocks */
+	private Layout l=new Layout();
+
+	/** Current style */
+	private StyleContext sc;
+
+	/** True if blocks added from XML are kept in compact form */
+	private volatile boolean compact;
+
+	/** Spill file for old compact blocks, or null if not spilling */
+	private SpillFile spill;
+
+	/** Number of recent blocks that are not spilled */
+	private int spillKeep;
+
+	/** Number of blocks at start that have already been spilled */
+	private int spilled;
+
+	/** Memory budget (0 = none) */
+	private long memoryBudget;
+
+	/** Blocks are spilled in batches of at least this many */
+	private final static int SPILL_BATCH=100;
+
+	/** Views that are currently displayed */
+	private List<ScrollingLayout> views=new LinkedList<ScrollingLayout>();
+
+	/**
+	 * @param sc Styles
+	 */
+	public SharedLayout(StyleContext sc)
+	{
+		this.sc=sc;
+	}
+
+	/** @return Blocks */
+	Layout getLayout()
+	{
+		return l;
+	}
+
+	/** @return Current style */
+	public StyleContext getStyleContext()
+	{
+		return sc;
+	}
+
+	/**
+	 * Starts sending changes to a view.
+	 * @param sl View
+	 */
+	void addView(ScrollingLayout sl)
+	{
+		if(!views.contains(sl)) views.add(sl);
+	}
+
+	/**
+	 * Stops sending changes to a view.
+	 * @param sl View
+	 */
+	void removeView(ScrollingLayout sl)
+	{
+		views.remove(sl);
+	}
+
+	/**
+	 * Called before a change. Views that aren't at the end remember the text
+	 * they show, so that {@link #updateViews(Set)} keeps it there.
+	 * @return Views that were scrolled to the end
+	 */
+	private Set<ScrollingLayout> getAtEnd()
+	{
+		Set<ScrollingLayout> atEnd=new HashSet<ScrollingLayout>();
+		for(ScrollingLayout sl : views)
+		{
+			if(sl.isAtEnd())
+				atEnd.add(sl);
+			else
+				sl.rememberPosition();
+		}
+		return atEnd;
+	}
+
+	/**
+	 * Updates all views after a change.
+	 * @param atEnd Result of {@link #getAtEnd()} before the change (views
+	 *   that were at the end stay there), or null to leave position alone
+	 *   unless a view remembered it
+	 */
+	private void updateViews(Set<ScrollingLayout> atEnd)
+	{
+		for(ScrollingLayout sl : views)
+		{
+			sl.layoutChanged(atEnd!=null && atEnd.contains(sl));
+		}
+	}
+
+	/**
+	 * Change the stylesheet or flag an update in the current one.
+	 * @param sc New style context
+	 * @throws LayoutException
+	 */
+	public void updateStyle(StyleContext sc) throws LayoutException
+	{
+		this.sc=sc;
+		Set<ScrollingLayout> atEnd=getAtEnd();
+		for(ScrollingLayout sl : views)
+		{
+			sl.updateBackground(sc);
+		}
+		l.updateStyle(sc);
+		updateViews(atEnd);
+	}
+
+  /**
+   * Adds a layout block.
+   * @param lb Block to add
+   * @throws LayoutException
+   */
+	public void addBlock(LayoutBlock lb) throws LayoutException
+	{
+		l.addBlock(sc,lb);
+		blocksAdded();
+		updateViews(null);
+	}
+
+	/**
+	 * Adds a number of blocks.
+	 * @param alb Layout blocks to add
+	 * @throws LayoutException
+	 */
+	public void addBlocks(LayoutBlock[] alb) throws LayoutException
+	{
+		for(int i=0;i<alb.length;i++)
+			l.addBlock(sc,alb[i]);
+		blocksAdded();
+		updateViews(null);
+	}
+
+  /**
+   * Adds some blocks from XML document.
+   * @param e XML element containing data to add
+   * @throws LayoutException
+   */
+	public void addBlocks(Element e) throws LayoutException
+	{
+		addBlocks(getLayout(sc,e));
+	}
+	
+	/**
+	 * Adds plain text, without building XML.
+	 * @param contextPath Tag names separated by slashes, e.g. "output/line"
+	 * @param text Plain text (not XML)
+	 * @throws LayoutException
+	 */
+	public void addText(String contextPath,CharSequence text) throws LayoutException
+	{
+		addBlocks(LayoutGenerator.getTextTemplate(new LayoutGenerator.TextRun[] {
+			new LayoutGenerator.TextRun(contextPath,text) }),text.toString());
+	}
+	
+	/**
+	 * Adds blocks from a template.
+	 * @param t Template
+	 * @param values Text for each slot in template
+	 * @throws LayoutException
+	 */
+	public void addBlocks(LayoutTemplate t,String... values) throws LayoutException
+	{
+		if(compact)
+			addBlocks(CompactBlock.getLayout(sc,t.getElement(values)));
+		else
+			addBlocks(t.getLayout(sc,values));
+	}
+
+	/**
+	 * Generates blocks from XML, as compact blocks if turned on.
+	 * @param sc Style context
+	 * @param e XML element
+	 * @return Blocks
+	 * @throws LayoutException
+	 */
+	private LayoutBlock[] getLayout(StyleContext sc,Element e) throws LayoutException
+	{
+		if(compact)
+			return CompactBlock.getLayout(sc,e);
+		else
+			return LayoutGenerator.getLayout(sc,e);
+	}
+
+	/**
+	 * Turns on compact storage for blocks that are added from XML after this
+	 * call. Compact blocks keep a packed copy of their XML and their
+	 * measurements; the full blocks and words are only kept for recently
+	 * used blocks (normally those in or near a view) and are generated again
+	 * when needed. This uses much less memory for long scrollback, at the
+	 * cost of regenerating blocks when scrolling back or reflowing. Blocks 
+	 * added as LayoutBlock objects are not affected. Off by default.
+	 * @param compact True to use compact storage
+	 */
+	public void setCompactStorage(boolean compact)
+	{
+		this.compact=compact;
+	}
+
+	/**
+	 * Turns on parallel reflow. When the whole document has to be flowed
+	 * again (first display, width change, style update), blocks are split
+	 * between one thread per processor. This is worthwhile for large 
+	 * documents on machines with several cores. Off by default.
+	 * @param parallel True to reflow in parallel
+	 */
+	public void setParallelReflow(boolean parallel)
+	{
+		l.setParallelReflow(parallel);
+	}
+
+	/**
+	 * Starts keeping the source of old compact blocks in a file instead of 
+	 * memory. Only the most recent blocks keep their source in memory; 
+	 * scrolling back reads older ones from the file when they need to be
+	 * generated. Heights and other measurements stay in memory, so scrolling
+	 * and reflow work as normal. This only affects compact blocks (see 
+	 * {@link #setCompactStorage(boolean)}).
+	 * <p>
+	 * The file is emptied now and deleted by {@link #close()} or when the 
+	 * program exits. Space used by deleted blocks is reused. Errors reading
+	 * or writing the file are reported to 
+	 * {@link #backgroundError(LayoutException)}.
+	 * @param f File to use
+	 * @param keepBlocks Number of recent blocks that are kept in memory
+	 * @throws IOException If there is an error opening the file, or a spill
+	 *   file has already been set
+	 */
+	public void setSpillFile(File f,int keepBlocks) throws IOException
+	{
+		if(spill!=null) throw new IOException("Spill file already set");
+		spill=new SpillFile(f)
+		{
+			@Override
+			void readFailed(IOException e)
+			{
+				spillError("Error reading spill file",e);
+			}
+		};
+		spillKeep=keepBlocks;
+		blocksAdded();
+		updateViews(null);
+	}
+
+	/**
+	 * Called after adding blocks, to apply memory budget and spill file.
+	 */
+	private void blocksAdded()
+	{
+		if(memoryBudget>0 && l.getRetainedBytes()>memoryBudget)
+		{
+			// Keep views that aren't at the end looking at the same text; this
+			// is done by block, as the height removed depends on the width
+			for(ScrollingLayout sl : views)
+			{
+				if(!sl.isAtEnd()) sl.rememberPosition();
+			}
+			trim(memoryBudget);
+		}
+		spillOldBlocks();
+	}
+
+	/**
+	 * Writes old compact blocks to the spill file, if there are enough of
+	 * them to make a batch.
+	 */
+	private void spillOldBlocks()
+	{
+		if(spill==null) return;
+		int end=l.getBlockCount()-spillKeep;
+		if(end-spilled<SPILL_BATCH) return;
+
+		LayoutBlock[] old=l.getBlocks(spilled,end);
+		try
+		{
+			for(int i=0;i<old.length;i++)
+			{
+				if(old[i] instanceof CompactBlock)
+				{
+					CompactBlock cb=(CompactBlock)old[i];
+					long before=cb.getRetainedBytes();
+					cb.spill(spill);
+					l.adjustRetainedBytes(cb.getRetainedBytes()-before);
+				}
+			}
+			spilled=end;
+		}
+		catch(IOException e)
+		{
+			// Stop spilling; blocks already written can still be read
+			spillError("Error writing spill file",e);
+			spillKeep=Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Reports an error with the spill file to 
+	 * {@link #backgroundError(LayoutException)}. May be called from any 
+	 * thread (reading happens while painting, so it is always reported 
+	 * later).
+	 * @param message Message
+	 * @param e Error
+	 */
+	private void spillError(String message,IOException e)
+	{
+		final LayoutException le=new LayoutException(message,e);
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				backgroundError(le);
+			}
+		});
+	}
+
+	/**
+	 * Closes and deletes the spill file, if any, and discards blocks still
+	 * being added in background. Blocks whose source was in the spill file
+	 * show as empty afterwards, so this should be called when the document 
+	 * is no longer needed.
+	 */
+	public void close()
+	{
+		synchronized(backgroundBlocks)
+		{
+			clearCount++;
+		}
+		if(spill==null) return;
+		try
+		{
+			spill.close();
+		}
+		catch(IOException e)
+		{
+			spillError("Error closing spill file",e);
+		}
+	}
+
+  /**
+   * @return Number of blocks in layout
+   */
+	public int getNumBlocks()
+	{
+		return l.getBlockCount();
+	}
+
+  /**
+   * Deletes some blocks from start.
+   * @param count Number of blocks to delete
+   * @return Pixel difference in height after deleting (at the width the
+   *   layout was last flowed at)
+   */
+	public int deleteFirstBlocks(int count)
+	{
+		int heightChange=delete(count);
+		updateViews(null);
+		return heightChange;
+	}
+
+	/**
+	 * Deletes blocks from start without updating views.
+	 * @param count Number of blocks to delete
+	 * @return Pixel difference in height after deleting
+	 */
+	private int delete(int count)
+	{
+		spilled=Math.max(0,spilled-count);
+		if(spill==null) return l.deleteFirstBlocks(count);
+		
+		LayoutBlock[] deleted=l.getBlocks(0,Math.min(count,l.getBlockCount()));
+		int heightChange=l.deleteFirstBlocks(count);
+		LayoutBlock[] left=l.getBlocks(0,Math.min(1,l.getBlockCount()));
+		CompactBlock.releaseSpilled(deleted,left.length==0 ? null : left[0]);
+		return heightChange;
+	}
+
+	/**
+	 * @return Estimate of memory used by blocks, in bytes (kept as a running
+	 *   total, so this is quick)
+	 */
+	public long getRetainedBytes()
+	{
+		return l.getRetainedBytes();
+	}
+
+	/**
+	 * Deletes blocks from the start until the rest use no more than the given
+	 * memory. The most recent block is always kept.
+	 * @param bytes Memory limit in bytes
+	 * @return Pixel difference in height after deleting (at the width the
+	 *   layout was last flowed at)
+	 */
+	public int trimToBytes(long bytes)
+	{
+		int heightChange=trim(bytes);
+		updateViews(null);
+		return heightChange;
+	}
+
+	/**
+	 * Deletes blocks from the start without updating views.
+	 * @param bytes Memory limit in bytes
+	 * @return Pixel difference in height after deleting
+	 */
+	private int trim(long bytes)
+	{
+		int count=l.getTrimCount(bytes);
+		if(count==0) return 0;
+		return delete(count);
+	}
+
+	/**
+	 * Sets a memory budget. Whenever blocks are added and the estimated memory
+	 * used is over the budget, the oldest blocks are deleted. This means 
+	 * memory stays predictable even when some messages are very large. Views
+	 * that are not scrolled to the end are moved to keep showing the same 
+	 * text.
+	 * @param bytes Budget in bytes, or 0 for no budget (default)
+	 */
+	public void setMemoryBudget(long bytes)
+	{
+		memoryBudget=bytes;
+	}
+
+	/** @return Memory budget in bytes, or 0 if none */
+	public long getMemoryBudget()
+	{
+		return memoryBudget;
+	}
+
+	/**
+	 * Turns the search index on or off. While on, every block's text is 
+	 * indexed by word as it is added, so that {@link #find(String, boolean, 
+	 * SearchMatch, boolean)} only has to look at blocks that might match.
+	 * Turning it on indexes the existing blocks, which may take a while for
+	 * a long document. Off by default, since the index uses memory.
+	 * @param searchable True to keep a search index
+	 */
+	public void setSearchable(boolean searchable)
+	{
+		l.setSearchable(searchable);
+	}
+
+	/** @return True if there is a search index */
+	public boolean isSearchable()
+	{
+		return l.isSearchable();
+	}
+
+	/**
+	 * Finds text. Case is ignored. Requires the search index to be on.
+	 * @param query Text to find
+	 * @param wholeWords If true, the text must start and end at word boundaries
+	 * @param from Previous match to search from, or null to search from the 
+	 *   start (forward) or end (backward)
+	 * @param forward True to search forward, false for backward
+	 * @return Match, or null if there are no more
+	 * @throws IllegalStateException If search index isn't on
+	 */
+	public SearchMatch find(String query,boolean wholeWords,SearchMatch from,
+		boolean forward)
+	{
+		return l.find(query,wholeWords,from,forward);
+	}
+
+	/**
+	 * Finds all matches for text. Requires the search index to be on.
+	 * @param query Text to find
+	 * @param wholeWords If true, the text must start and end at word boundaries
+	 * @param max Maximum number of matches to return
+	 * @return Matches in document order
+	 * @throws IllegalStateException If search index isn't on
+	 */
+	public List<SearchMatch> findAll(String query,boolean wholeWords,int max)
+	{
+		return l.findAll(query,wholeWords,max);
+	}
+
+	/**
+	 * Adds a group of blocks that can be collapsed so that only a summary 
+	 * shows. While collapsed, the hidden blocks are not flowed and style
+	 * changes are only applied to them when they are expanded. Search still
+	 * finds text in hidden blocks, but can't highlight it.
+	 * @param summary XML element for summary, which always shows
+	 * @param contents XML element for blocks that can be hidden, or null to
+	 *   start with none
+	 * @param collapsed True to start collapsed
+	 * @return Group
+	 * @throws LayoutException
+	 */
+	public CollapsibleGroup addGroup(Element summary,Element contents,
+		boolean collapsed) throws LayoutException
+	{
+		CollapsibleBlock cb=new CollapsibleBlock(sc,getLayout(sc,summary),
+			contents==null ? new LayoutBlock[0] : getLayout(sc,contents),collapsed);
+		int number=l.addBlock(sc,cb);
+		blocksAdded();
+		updateViews(null);
+		return new CollapsibleGroup(number,collapsed);
+	}
+	
+	/**
+	 * Adds more blocks to the end of a group and/or replaces its summary 
+	 * (e.g. to update a count). Only the group's own height changes; if it is
+	 * collapsed the new blocks are not flowed.
+	 * @param g Group, which must still be the last thing in the layout
+	 * @param summary XML element for new summary, or null to keep existing
+	 * @param contents XML element for blocks to add, or null if none
+	 * @throws LayoutException
+	 * @throws IllegalArgumentException If anything has been added after the
+	 *   group
+	 */
+	public void addToGroup(CollapsibleGroup g,Element summary,Element contents)
+		throws LayoutException
+	{
+		l.addToGroup(sc,g,
+			summary==null ? null : getLayout(sc,summary),
+			contents==null ? new LayoutBlock[0] : getLayout(sc,contents));
+		blocksAdded();
+		updateViews(null);
+	}
+	
+	/**
+	 * Collapses or expands a group. Nothing else in the layout is reflowed;
+	 * the height is adjusted by the difference. Views that were at the end
+	 * stay there, and views looking at text below the change keep looking at
+	 * the same text.
+	 * @param g Group
+	 * @param collapsed True to collapse, false to expand
+	 * @throws LayoutException
+	 */
+	public void setCollapsed(CollapsibleGroup g,boolean collapsed) throws LayoutException
+	{
+		if(g.isCollapsed()==collapsed) return;
+		Set<ScrollingLayout> atEnd=getAtEnd();
+		l.setCollapsed(g,collapsed);
+		updateViews(atEnd);
+	}
+
+  /**
+   * Removes all blocks.
+   */
+	public void clear()
+	{
+		synchronized(backgroundBlocks)
+		{
+			clearCount++;
+		}
+		if(spill!=null)
+			CompactBlock.releaseSpilled(l.getBlocks(0,l.getBlockCount()),null);
+		l.clear();
+		spilled=0;
+		updateViews(null);
+	}
+
+  /** Thread used to generate and lay out blocks added in background */
+  private static ExecutorService layoutThread;
+
+  /**
+   * @return Thread used to generate and lay out blocks added in background
+   */
+  private static synchronized ExecutorService getLayoutThread()
+  {
+		if(layoutThread==null)
+		{
+			layoutThread=Executors.newSingleThreadExecutor(
+				new DaemonThreadFactory("Text layout thread",Thread.NORM_PRIORITY));
+		}
+		return layoutThread;
+  }
+
+  /**
+   * Blocks that have been generated in background, waiting to be added in
+   * the Swing thread. Synchronize on this list to access it.
+   */
+  private List<BackgroundBlocks> backgroundBlocks=new LinkedList<BackgroundBlocks>();
+
+  /** True if a Swing event has been queued to add backgroundBlocks */
+  private boolean backgroundQueued;
+
+  /** Incremented by {@link #clear()} so that earlier background work is discarded */
+  private int clearCount;
+
+  /** Blocks generated in background */
+  private static class BackgroundBlocks
+  {
+		final LayoutBlock[] blocks;
+		/** Flows of each block at the widths in use (see {@link Layout#prepare}) */
+		final List<Map<Integer,BlockFlow>> prepared;
+		/** Style, its modification count and clear count when the work started */
+		final StyleContext sc;
+		final int styleModCount,clearCount;
+		
+		BackgroundBlocks(LayoutBlock[] blocks,List<Map<Integer,BlockFlow>> prepared,
+			StyleContext sc,int styleModCount,int clearCount)
+		{
+			this.blocks=blocks;
+			this.prepared=prepared;
+			this.sc=sc;
+			this.styleModCount=styleModCount;
+			this.clearCount=clearCount;
+		}
+  }
+
+  /**
+   * Adds some blocks from XML document without doing the work in the calling
+   * thread. Generating the blocks (including resolving styles) and laying
+   * them out at the widths of the views happens on a background thread; the
+   * finished blocks are then added in the Swing thread, which only needs to
+   * paint them. Blocks are always added in the order this method is called.
+   * Views that are scrolled to the end when the blocks are added stay at
+   * the end.
+   * <p>
+   * This method may be called from any thread; blocks added from other 
+   * threads are handed to the Swing thread first (to read the style and the
+   * view widths), so are only kept in order with others from the same 
+   * thread. The element must not be changed afterwards. Any error is 
+   * reported to {@link #backgroundError(LayoutException)}.
+   * @param e XML element containing data to add
+   */
+  public void addBlocksInBackground(final Element e)
+  {
+		if(!SwingUtilities.isEventDispatchThread())
+		{
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					addBlocksInBackground(e);
+				}
+			});
+			return;
+		}
+		
+		// Everything the background thread needs is read here, in the Swing 
+		// thread, and checked again when the blocks are added
+		final StyleContext currentStyle=sc;
+		final int currentStyleModCount=currentStyle.getModCount();
+		final int[] widths=l.getFlowWidths();
+		final boolean currentCompact=compact;
+		final int currentClearCount;
+		synchronized(backgroundBlocks)
+		{
+			currentClearCount=clearCount;
+		}
+		getLayoutThread().execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				BackgroundBlocks bb;
+				try
+				{
+					LayoutBlock[] blocks=currentCompact 
+						? CompactBlock.getLayout(currentStyle,e) 
+						: LayoutGenerator.getLayout(currentStyle,e);
+					List<Map<Integer,BlockFlow>> prepared=
+						new ArrayList<Map<Integer,BlockFlow>>(blocks.length);
+					for(int i=0;i<blocks.length;i++)
+					{
+						prepared.add(Layout.prepare(blocks[i],widths));
+					}
+					bb=new BackgroundBlocks(blocks,prepared,currentStyle,
+						currentStyleModCount,currentClearCount);
+				}
+				catch(final LayoutException le)
+				{
+					SwingUtilities.invokeLater(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							backgroundError(le);
+						}
+					});
+					return;
+				}
+
+				synchronized(backgroundBlocks)
+				{
+					backgroundBlocks.add(bb);
+					if(backgroundQueued) return;
+					backgroundQueued=true;
+				}
+				SwingUtilities.invokeLater(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						addBackgroundBlocks();
+					}
+				});
+			}
+		});
+  }
+
+  /**
+   * Adds all blocks that have been generated in background. Called in the
+   * Swing thread; any number of background requests are handled together.
+   */
+  private void addBackgroundBlocks()
+  {
+		List<BackgroundBlocks> ready;
+		int currentClearCount;
+		synchronized(backgroundBlocks)
+		{
+			ready=new LinkedList<BackgroundBlocks>(backgroundBlocks);
+			backgroundBlocks.clear();
+			backgroundQueued=false;
+			currentClearCount=clearCount;
+		}
+
+		Set<ScrollingLayout> atEnd=getAtEnd();
+		for(BackgroundBlocks bb : ready)
+		{
+			if(bb.clearCount!=currentClearCount) continue;
+			try
+			{
+				for(int i=0;i<bb.blocks.length;i++)
+				{
+					// Style changed while it was being generated
+					if(bb.sc!=sc || bb.styleModCount!=sc.getModCount()) 
+						l.addBlock(sc,bb.blocks[i].updateStyle(sc));
+					else
+						// Flows prepared for widths no longer in use are ignored, and 
+						// widths that are new since are flowed now
+						l.addBlock(sc,bb.blocks[i],bb.prepared.get(i));
+				}
+			}
+			catch(LayoutException le)
+			{
+				backgroundError(le);
+			}
+		}
+		blocksAdded();
+		updateViews(atEnd);
+  }
+
+  /**
+   * Called in the Swing thread if there is an error adding blocks with
+   * {@link #addBlocksInBackground(Element)}, or with the spill file (see 
+   * {@link #setSpillFile(File, int)}). Default passes the error to
+   * each view, or prints a stack trace if there aren't any.
+   * @param le Error
+   */
+  protected void backgroundError(LayoutException le)
+  {
+		if(views.isEmpty())
+		{
+			le.printStackTrace();
+			return;
+		}
+		for(ScrollingLayout sl : views)
+		{
+			sl.backgroundError(le);
+		}
+  }
+}
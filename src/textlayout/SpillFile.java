@@ -0,0 +1,203 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * File that holds the packed source of old compact blocks, so that it 
+ * doesn't need to be kept in memory. The file is mapped into memory in 
+ * fixed-size segments; records never cross a segment boundary. Records are
+ * released when their blocks are deleted, and once every record in a 
+ * segment has been released the segment is reused for new ones, so the 
+ * file only grows to hold the most that has been spilled at once (blocks 
+ * are deleted from the start, in the order they were written). The file is
+ * deleted when closed, or when the program exits.
+ * <p>
+ * Writing is synchronized. Reading a record that has already been written
+ * (and not released) can happen from any thread. Errors reading a record 
+ * are passed to {@link #readFailed(IOException)}.
+ */
+abstract class SpillFile
+{
+	/** Size of each mapped segment */
+	private final static int SEGMENT=16*1024*1024;
+
+	/** File */
+	private File file;
+
+	/** Channel used to map file, or null if closed */
+	private FileChannel channel;
+
+	/** Mapped segments, in order */
+	private List<MappedByteBuffer> segments=new ArrayList<MappedByteBuffer>();
+
+	/** Number of records in each segment that haven't been released */
+	private int[] live=new int[4];
+
+	/** Segments that are empty and can be reused */
+	private LinkedList<Integer> free=new LinkedList<Integer>();
+
+	/** Segment being written, or -1 if none yet */
+	private int current=-1;
+
+	/** Position within that segment where the next record starts */
+	private int offset;
+
+	/**
+	 * Creates (or empties) the file.
+	 * @param file File
+	 * @throws IOException Any error opening file
+	 */
+	SpillFile(File file) throws IOException
+	{
+		this.file=file;
+		RandomAccessFile raf=new RandomAccessFile(file,"rw");
+		raf.setLength(0);
+		channel=raf.getChannel();
+		file.deleteOnExit();
+	}
+
+	/**
+	 * Called (in any thread) if a record can't be read back. The block is 
+	 * shown as empty.
+	 * @param e Error
+	 */
+	abstract void readFailed(IOException e);
+
+	/** @return Number of segments in file */
+	synchronized int getSegmentCount()
+	{
+		return segments.size();
+	}
+
+	/**
+	 * @param index Segment index
+	 * @return Segment, mapped if necessary
+	 * @throws IOException Any error mapping file, or if it has been closed
+	 */
+	private synchronized MappedByteBuffer getSegment(int index) throws IOException
+	{
+		if(channel==null) throw new IOException("Spill file closed");
+		while(segments.size()<=index)
+		{
+			segments.add(channel.map(FileChannel.MapMode.READ_WRITE,
+				(long)segments.size()*SEGMENT,SEGMENT));
+		}
+		return segments.get(index);
+	}
+
+	/**
+	 * Writes a packed element.
+	 * @param pe Element
+	 * @return Position of record, for use with {@link #read(long)}, or -1 if 
+	 *   the element is too large to write
+	 * @throws IOException Any error writing file
+	 */
+	synchronized long write(PackedElement pe) throws IOException
+	{
+		String chars=pe.getChars();
+		int[] entries=pe.getEntries();
+		long size=8+2L*chars.length()+4L*entries.length;
+		if(size>SEGMENT) return -1;
+
+		// Start another segment if it won't fit in this one
+		if(current==-1 || offset+size > SEGMENT)
+		{
+			if(current!=-1 && live[current]==0) free.add(current);
+			current=free.isEmpty() ? segments.size() : free.removeFirst();
+			offset=0;
+			if(current>=live.length) live=Arrays.copyOf(live,live.length*2);
+		}
+
+		MappedByteBuffer segment=getSegment(current);
+		long position=(long)current*SEGMENT+offset;
+		int index=offset;
+		segment.putInt(index,chars.length());
+		index+=4;
+		for(int i=0;i<chars.length();i++,index+=2)
+		{
+			segment.putChar(index,chars.charAt(i));
+		}
+		segment.putInt(index,entries.length);
+		index+=4;
+		for(int i=0;i<entries.length;i++,index+=4)
+		{
+			segment.putInt(index,entries[i]);
+		}
+
+		offset+=size;
+		live[current]++;
+		return position;
+	}
+
+	/**
+	 * Releases a record that will not be read again, so that its space can
+	 * be reused.
+	 * @param position Position returned from {@link #write(PackedElement)}
+	 */
+	synchronized void release(long position)
+	{
+		int index=(int)(position/SEGMENT);
+		if(--live[index]==0 && index!=current) free.add(index);
+	}
+
+	/**
+	 * Closes and deletes the file. Records can't be read afterwards.
+	 * @throws IOException Any error closing file
+	 */
+	synchronized void close() throws IOException
+	{
+		if(channel==null) return;
+		channel.close();
+		channel=null;
+		segments.clear();
+		// This fails on some platforms until the mapped segments are garbage 
+		// collected, in which case it is left to be deleted on exit
+		file.delete();
+	}
+
+	/**
+	 * Reads a packed element.
+	 * @param position Position returned from {@link #write(PackedElement)}
+	 * @return Element
+	 * @throws IOException Any error mapping file, or if it has been closed
+	 */
+	PackedElement read(long position) throws IOException
+	{
+		MappedByteBuffer segment=getSegment((int)(position/SEGMENT));
+		int index=(int)(position%SEGMENT);
+		char[] chars=new char[segment.getInt(index)];
+		index+=4;
+		for(int i=0;i<chars.length;i++,index+=2)
+		{
+			chars[i]=segment.getChar(index);
+		}
+		int[] entries=new int[segment.getInt(index)];
+		index+=4;
+		for(int i=0;i<entries.length;i++,index+=4)
+		{
+			entries[i]=segment.getInt(index);
+		}
+		return new PackedElement(new String(chars),entries);
+	}
+}
@@ -39,6 +39,11 @@ public class StaticLayout extends JComponent implements ClipboardOwner
   
   private int preferredWidth,iCurrentPreferredWidth;
   
+  /**
+   * Width used to flow text when there is no preferred width
+   */
+  private final static int DEFAULT_WIDTH=200;
+  
 	private LayoutBlock lastXMLBlock=null;
 	private org.w3c.dom.Document lastXML=null;
 	private HashMap<LayoutInline, LayoutInline.NodePos> lastXMLTranslation=null;
@@ -71,7 +76,7 @@ public class StaticLayout extends JComponent implements ClipboardOwner
     }
     else
     {
-  	  l.setWidth(200);
+  	  l.setWidth(DEFAULT_WIDTH);
     }
 
     setText(text);
@@ -280,6 +285,26 @@ public class StaticLayout extends JComponent implements ClipboardOwner
   		return iCurrentPreferredWidth;
   }
   
+  /**
+   * @return Narrowest width at which nothing overflows (the longest word or
+   *   unbreakable run), including insets; doesn't need to reflow
+   */
+  public int getMinimumContentWidth()
+  {
+		Insets i=getInsets();
+		return l.getMinContentWidth()+i.left+i.right;
+  }
+  
+  /**
+   * @return Width at which no lines need wrapping, including insets; doesn't
+   *   need to reflow
+   */
+  public int getMaximumContentWidth()
+  {
+		Insets i=getInsets();
+		return l.getMaxContentWidth()+i.left+i.right;
+  }
+  
   /**
    * @param iWidth Width
    * @return Preferred height at that width
@@ -327,14 +352,23 @@ public class StaticLayout extends JComponent implements ClipboardOwner
   {
     try
     {
+      LayoutBlock[] alb = LayoutGenerator.getLayout(sc,
+      	XML.parse("<output>" + text + "</output>").getDocumentElement());
+      
+      // Clear first, so that changing width doesn't reflow the old text
+      l.clear();
   		if(preferredWidth==-1)
   		{
-    	  l.setWidth(200);
+  			// If it all fits on one line, flow it at that width straight away 
+  			// rather than at the default width and then again
+  			int maxContentWidth=1;
+  			for(int i=0;i<alb.length;i++)
+  			{
+  				maxContentWidth=Math.max(maxContentWidth,alb[i].getMaxContentWidth());
+  			}
+    	  l.setWidth(Math.min(DEFAULT_WIDTH,maxContentWidth));
   		}
 
-      l.clear();
-      LayoutBlock[] alb = LayoutGenerator.getLayout(sc,
-      	XML.parse("<output>" + text + "</output>").getDocumentElement());
       for(int i=0;i<alb.length;i++)
       {
         l.addBlock(sc,alb[i]);
@@ -343,6 +377,11 @@ public class StaticLayout extends JComponent implements ClipboardOwner
 
       if(preferredWidth == -1)
       {
+      	// Current-block styles may have made it a little wider
+      	if(l.getWidth()<DEFAULT_WIDTH && l.getMaxContentWidth()>l.getWidth())
+      	{
+      		l.setWidth(Math.min(DEFAULT_WIDTH,l.getMaxContentWidth()));
+      	}
         Insets i = getInsets();
     	  iCurrentPreferredWidth = l.getUsedWidth() + i.left + i.right;
   	    l.setWidth(iCurrentPreferredWidth - i.left - i.right);
@@ -388,10 +427,31 @@ public class StaticLayout extends JComponent implements ClipboardOwner
     }
   }
 
+  /** Repaints images that arrive after they were painted */
+  private final ImageInline.BlockRepainter repainter=new ImageInline.BlockRepainter()
+	{
+		@Override
+		public void repaintBlock(final int number,final int x,final int y,
+			final int width,final int height)
+		{
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					int top=l.getAnchorY(number,0);
+					if(top!=-1) repaint(x,getInsets().top+top+y,width,height);
+				}
+			});
+		}
+	};
+
   @Override
 	public void paintComponent(Graphics g)
   {
   		Insets i=getInsets();
+    ((Graphics2D)g).setRenderingHint(ImageInline.KEY_REPAINT,
+    	new ImageInline.RepaintTarget(repainter));
     l.paint((Graphics2D)g,i.left,i.top,getWidth()-i.left-i.right,0,getHeight()-i.top-i.bottom);
   }
 
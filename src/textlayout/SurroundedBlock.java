@@ -20,7 +20,6 @@ package textlayout;
 
 import java.awt.*;
 import java.util.*;
-import java.util.List;
 
 import org.w3c.dom.*;
 
@@ -33,262 +32,291 @@ import util.xml.XML;
 class SurroundedBlock implements LayoutBlock
 {
 	/** Contained block */
-	private LayoutBlock innerBlock=null;
+	private final LayoutBlock innerBlock;
 	
-  /** Current set width */
-  private int width=-1;
+  /** Styles for this block (shared with other blocks of the same element) */
+  private final Styles styles;
 
-  /** Styles for this block */
-  private String[] context=null;
+  /** Styles resolved for the style context */
+  private final Resolved resolved;
 
-  /** Margin */
-  private Insets margin=new Insets(0,0,0,0);
+  /** True if this is current */
+  private final boolean current;
 
-  /** Padding */
-  private Insets padding=new Insets(0,0,0,0);
+  /** Style in use (one of the two in resolved) */
+  private final Style style;
 
-  /** Border */
-  private Insets border=new Insets(0,0,0,0);
-
-  /** Background or null */
-  private Color backgroundColour=null;
-
-  /** Border or null */
-  private Color borderColour=null;
-
-  /** True if this is already current */
-  private boolean current=false;
+	/**
+	 * Insets and colours resolved for one state of the block.
+	 */
+	private static class Style
+	{
+		Insets margin,padding,border;
+		
+		/** Colours, or null if none */
+		Color backgroundColour,borderColour;
+		
+		/**
+		 * @param sc Styles
+		 * @param context Element context (with _current at the start for the
+		 *   current state)
+		 * @throws LayoutException
+		 */
+		Style(StyleContext sc,String[] context) throws LayoutException
+		{
+      margin=sc.getInsets(Property.I_GAP,context);
+      padding=sc.getInsets(Property.I_PAD,context);
+      border=sc.getInsets(Property.I_BORDER,context);
+      backgroundColour=sc.getRGB(Property.BACKGROUND_RGB,context);
+      if(backgroundColour==RGBPropertyData.TRANSPARENT) backgroundColour=null;
+      borderColour=sc.getRGB(Property.BORDER_RGB,context);
+      if(borderColour==RGBPropertyData.TRANSPARENT) borderColour=null;
+		}
+		
+		/**
+		 * @param other Other style
+		 * @return True if the other style has the same insets, so switching to
+		 *   it doesn't change the block's size
+		 */
+		boolean hasSameInsets(Style other)
+		{
+			return margin.equals(other.margin) && padding.equals(other.padding) &&
+				border.equals(other.border);
+		}
+		
+		/**
+		 * @param other Other style
+		 * @return True if the other style looks the same
+		 */
+		boolean isSame(Style other)
+		{
+			return hasSameInsets(other) && 
+				(backgroundColour==null ? other.backgroundColour==null : 
+					backgroundColour.equals(other.backgroundColour)) &&
+				(borderColour==null ? other.borderColour==null : 
+					borderColour.equals(other.borderColour));
+		}
+	}
+	
+	/**
+	 * Normal and current styles resolved for one style context. Both states
+	 * are resolved together, so that switching the _current style is just a
+	 * matter of using the other one.
+	 */
+	private static class Resolved
+	{
+		/** Style context and its modification count when resolved */
+		StyleContext sc;
+		int modCount;
+		
+		/** Style when not current, and when current (may be the same object) */
+		Style normal,current;
+		
+		/**
+		 * @param sc Style context
+		 * @param context Element context
+		 * @throws LayoutException
+		 */
+		Resolved(StyleContext sc,String[] context) throws LayoutException
+		{
+			this.sc=sc;
+			modCount=sc.getModCount();
+			
+      String[] currentContext=new String[context.length+1];
+      currentContext[0]="_current";
+      System.arraycopy(context,0,currentContext,1,context.length);
 
-	/** True if there is any highlight at present */
-	private boolean hasHighlight=false;
+      normal=new Style(sc,context);
+      current=new Style(sc,currentContext);
+      if(current.isSame(normal)) current=normal;
+		}
+	}
+	
+	/**
+	 * Element context of surrounded blocks, with its styles. One of these is
+	 * shared by all blocks made from the same compiled element (e.g. every 
+	 * line made from a template), so that the styles are only looked up once 
+	 * for each style context rather than once per block. Can be used from any
+	 * thread; if two threads resolve at once, both get the same styles.
+	 */
+	static class Styles
+	{
+		/** Element context */
+		private String[] context;
+		
+		/** Most recently resolved styles, or null if none */
+		private volatile Resolved last;
+		
+		/**
+		 * @param context Element context
+		 */
+		Styles(String[] context)
+		{
+			this.context=context;
+		}
+		
+		/**
+		 * @param sc Style context
+		 * @return Styles for that context (resolved again if it's a different
+		 *   context, or its stylesheets have changed)
+		 * @throws LayoutException
+		 */
+		Resolved get(StyleContext sc) throws LayoutException
+		{
+			Resolved r=last;
+			if(r==null || r.sc!=sc || r.modCount!=sc.getModCount())
+			{
+				r=new Resolved(sc,context);
+				last=r;
+			}
+			return r;
+		}
+	}
 	
   /**
    * Creates block with the given block style.
    * @param innerBlock Block that goes inside the surround
-   * @param context Element context
+   * @param styles Element context and its styles
    * @param sc Styles
    * @throws LayoutException
    */
-  SurroundedBlock(LayoutBlock innerBlock,String[] context,StyleContext sc) throws LayoutException
+  SurroundedBlock(LayoutBlock innerBlock,Styles styles,StyleContext sc) throws LayoutException
   {
-  		this.innerBlock=innerBlock;
-    this.context=context;
-    resolveStyle(sc);
+		this(innerBlock,styles,styles.get(sc),false);
+  }
+  
+  /**
+   * @param innerBlock Block that goes inside the surround
+   * @param styles Element context and its styles
+   * @param resolved Styles resolved for the style context
+   * @param current True if block is current
+   */
+  private SurroundedBlock(LayoutBlock innerBlock,Styles styles,Resolved resolved,
+  	boolean current)
+  {
+		this.innerBlock=innerBlock;
+		this.styles=styles;
+		this.resolved=resolved;
+		this.current=current;
+		style=current ? resolved.current : resolved.normal;
   }
 
-	/**
-	 * Updates style using a new StyleContext.
-	 * @param sc Styles
-	 * @throws LayoutException 
-	 */
 	@Override
-	public void updateStyle(StyleContext sc) throws LayoutException
+	public LayoutBlock updateStyle(StyleContext sc) throws LayoutException
 	{
-		resolveStyle(sc);
-		innerBlock.updateStyle(sc);
-		int oldWidth=width;
-		width=-1;
-		reflow(oldWidth);		
+		return new SurroundedBlock(innerBlock.updateStyle(sc),styles,styles.get(sc),current);
 	}
 
-  SurroundedBlock()
-  {
-    this.context=null;
-  }
-
-  void resolveStyle(StyleContext sc) throws LayoutException
+  /**
+   * @return Total width of horizontal margin, padding and border
+   */
+  private int getHorizontalInsets()
   {
-    if(context!=null)
-    {
-      String[] modifiedContext=context;
-      if(current)
-      {
-        List<String> l=new LinkedList<String>();
-        l.add("_current");
-        l.addAll(Arrays.asList(context));
-        modifiedContext = l.toArray(new String[l.size()]);
-      }
-
-      margin=sc.getInsets(Property.I_GAP,modifiedContext);
-      padding=sc.getInsets(Property.I_PAD,modifiedContext);
-      border=sc.getInsets(Property.I_BORDER,modifiedContext);
-      backgroundColour=sc.getRGB(Property.BACKGROUND_RGB,modifiedContext);
-      if(backgroundColour==RGBPropertyData.TRANSPARENT) backgroundColour=null;
-      borderColour=sc.getRGB(Property.BORDER_RGB,modifiedContext);
-      if(borderColour==RGBPropertyData.TRANSPARENT) borderColour=null;
-    }
+  		return style.margin.left+style.margin.right+
+  			style.padding.left+style.padding.right+
+  			style.border.left+style.border.right;
   }
   
   /**
-   * Recalculates block for given width.
-   * @param width Width in pixels
+   * @return Total height of vertical margin, padding and border
    */
-  @Override
-	public void reflow(int width)
-  {  	
-    this.width=width;
-    
-    int innerWidth=width
-      -margin.left-margin.right
-      -padding.left-padding.right
-      -border.left-border.right;
-    innerWidth = Math.max(1, innerWidth);
-		innerBlock.reflow(innerWidth);
+  private int getVerticalInsets()
+  {
+		return style.margin.top+style.margin.bottom+style.padding.top+style.padding.bottom+
+      style.border.top+style.border.bottom;
   }
-
-  /**
-   * Gets height at last specified width.
-   * @return Height in pixels
-   */
-  @Override
-	public int getHeight()
+  
+  /** @return X offset of inner block */
+  private int getInnerX()
   {
-    return innerBlock.getHeight() +
-      margin.top+margin.bottom+padding.top+padding.bottom+
-      border.top+border.bottom;
+		return style.margin.left+style.padding.left+style.border.left;
   }
-
-  @Override
-	public int getUsedWidth()
+  
+  /** @return Y offset of inner block */
+  private int getInnerY()
   {
-  		return margin.left+margin.right+
-  			padding.left+padding.right+
-  			border.left+border.right+
-  			innerBlock.getUsedWidth(); 
+		return style.margin.top+style.padding.top+style.border.top;
   }
   
-  /**
-   * Paints into given graphics context at given start location.
-   * @param g Context
-   * @param x X position
-   * @param y Y position
-   */
   @Override
-	public void paint(Graphics2D g,int x,int y)
+	public int getMinContentWidth()
   {
-    int innerHeight=innerBlock.getHeight();
-    
-    if(borderColour!=null)
-    {
-      g.setColor(borderColour);
-
-      g.fillRect(
-        x+margin.left,
-        y+margin.top,
-        width-(margin.left+margin.right),
-        border.top);
-      g.fillRect(
-        x+margin.left,
-        y+margin.top+border.top+padding.top+innerHeight+padding.bottom,
-        width-(margin.left+margin.right),
-        border.bottom);
-      g.fillRect(
-        x+margin.left,
-        y+margin.top+border.top,
-        border.left,
-        innerHeight+padding.top+padding.bottom);
-      g.fillRect(x+width-(margin.right+border.right),
-        y+margin.top+border.top,
-        border.right,
-        innerHeight+padding.top+padding.bottom);
-    }
-
-    if(backgroundColour!=null)
-    {
-      g.setColor(backgroundColour);
-      g.fillRect(x+margin.left+border.left,y+margin.top+border.top,
-        width-(margin.left+margin.right+border.left+border.right),
-        innerHeight+(padding.top+padding.bottom));
-    }
-
-    innerBlock.paint(
-      g,
-      x+margin.left+padding.left+border.left,
-      y+margin.top+padding.top+border.top);
+  		return getHorizontalInsets()+innerBlock.getMinContentWidth();
   }
   
   @Override
-	public int getFirstBaseline()
+	public int getMaxContentWidth()
   {
-  		return innerBlock.getFirstBaseline()+margin.top+padding.top+border.top;
+  		return getHorizontalInsets()+innerBlock.getMaxContentWidth();
+  }
+
+  @Override
+	public BlockFlow flow(int width,BlockFlow previous)
+  {  	
+		if(previous!=null && previous.getBlock()==this && previous.getWidth()==width)
+			return previous;
+		
+    int innerWidth = Math.max(1, width-getHorizontalInsets());
+    
+    // The inner block is shared when only the current flag changes, and
+    // can reuse its lines at another width
+    BlockFlow previousInner=null;
+    if(previous instanceof Flow)
+    	previousInner=((Flow)previous).inner;
+		return new Flow(this,width,innerBlock.flow(innerWidth,previousInner));
   }
-  
 
   /**
-   * Sets !current style flag.
+   * Sets !current style flag. This switches to the style resolved for that
+   * state when the block's style was last resolved; nothing is looked up.
    * @param sc Styles
    * @param current True if this block is 'current'
-   * @return True if value changed, false if it was already current
+   * @return Block in that state (sharing the inner block)
    * @throws LayoutException 
    */
   @Override
-	public boolean setCurrent(StyleContext sc,boolean current) throws LayoutException
+	public LayoutBlock setCurrent(StyleContext sc,boolean current) throws LayoutException
   {
-    if(this.current==current) return false;
-    this.current=current;
-    resolveStyle(sc);
-    return true;
+    if(this.current==current) return this;
+    return new SurroundedBlock(innerBlock,styles,resolved,current);
   }
   
-	/** Clear any highlight */
 	@Override
-	public void clearHighlight()
+	public long getRetainedBytes()
 	{
-		if(hasHighlight)
-		{
-			innerBlock.clearHighlight();
-			hasHighlight=false;
-		}
+		// Styles are shared with other blocks of the same element
+		return 48+innerBlock.getRetainedBytes();
 	}
 	
-	/**
-	 * Set highlight. Values are relative to block's own co-ordinates.
-	 * @param lowX Start (upper/left) position X, or Layout.HIGHLIGHT_TOSTART
-	 * @param lowY Start (upper/left) position Y, or Layout.HIGHLIGHT_TOSTART
-	 * @param highX End (lower/right) position X, or Layout.HIGHLIGHT_TOEND
-	 * @param highY End (lower/right) position Y, or Layout.HIGHLIGHT_TOEND
-	 */
 	@Override
-	public void setHighlight(int lowX,int lowY,int highX,int highY)
+	public int getWordCount()
 	{
-		int iXOffset=margin.left+padding.left+border.left;
-		int iYOffset=margin.top+padding.top+border.top;
-		
-		innerBlock.setHighlight(
-			lowX==Layout.HIGHLIGHT_TOSTART ? lowX : lowX-iXOffset,
-			lowY==Layout.HIGHLIGHT_TOSTART ? lowY : 	lowY-iYOffset,
-		  highX==Layout.HIGHLIGHT_TOEND ? highX : highX-iXOffset,
-		  	highY==Layout.HIGHLIGHT_TOEND ? highY : highY-iYOffset);
-		  
-		hasHighlight=true;
+		return innerBlock.getWordCount();
 	}
 	
 	@Override
-	public LayoutInline.NodePos getNodePos(int targetX, int targetY,
-		java.util.List<LayoutThing> l)
+	public String getText()
 	{
-		// Add this block
-		l.add(this);
-		
-		int iXOffset=margin.left+padding.left+border.left;
-		int iYOffset=margin.top+padding.top+border.top;
-		
-		return innerBlock.getNodePos(targetX-iXOffset,targetY-iYOffset,l);
+		return innerBlock.getText();
 	}
 	
-	/** @return The currently highlighted string from this block */
 	@Override
-	public String getHighlightText()
+	public int getTextLength()
 	{
-		if(!hasHighlight) return "";
-		return innerBlock.getHighlightText();
+		return innerBlock.getTextLength();
+	}
+	
+	@Override
+	public String getText(int start,int end)
+	{
+		return innerBlock.getText(start,end);
 	}
 
   @Override
 	public String debugDisplay(String indent)
   {
 	  StringBuffer sb=new StringBuffer();
-	  sb.append(indent+"SurroundedBlock ["+StringUtils.join("/",context)+"]\n");
+	  sb.append(indent+"SurroundedBlock ["+StringUtils.join("/",styles.context)+"]\n");
 	  sb.append(innerBlock.debugDisplay(indent+"  "));
 	  return sb.toString();
   }
@@ -297,7 +325,7 @@ class SurroundedBlock implements LayoutBlock
 	public void buildXML(Node parent,Map<LayoutInline,
   	LayoutInline.NodePos> translation)
   {  	
-  		innerBlock.buildXML(buildXML(parent,translation,context), translation);  
+  		innerBlock.buildXML(buildXML(parent,translation,styles.context), translation);  
   }
   
   static Element buildXML(Node parent,Map<?, ?> translation,String[] context)
@@ -339,18 +367,156 @@ class SurroundedBlock implements LayoutBlock
   		return FLOWCATEGORY_NORMAL;
   }
   
-  @Override
-	public int getMinX()
-  {
-  		return 0;
-  }
-  
-  @Override
-	public int getMaxX()
+  /**
+   * Surrounded block laid out at a particular width.
+   */
+  private static class Flow implements BlockFlow
   {
-  		return width;
+		private final SurroundedBlock block;
+		private final int width;
+		
+		/** Flow of inner block */
+		private final BlockFlow inner;
+		
+		/**
+		 * @param block Block
+		 * @param width Width
+		 * @param inner Flow of inner block
+		 */
+		Flow(SurroundedBlock block,int width,BlockFlow inner)
+		{
+			this.block=block;
+			this.width=width;
+			this.inner=inner;
+		}
+		
+		@Override
+		public LayoutBlock getBlock()
+		{
+			return block;
+		}
+		
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
+		
+	  @Override
+		public int getHeight()
+	  {
+	    return inner.getHeight()+block.getVerticalInsets();
+	  }
+	  
+	  @Override
+		public int getUsedWidth()
+	  {
+			return block.getHorizontalInsets()+inner.getUsedWidth(); 
+	  }
+	  
+	  @Override
+		public int getFirstBaseline()
+	  {
+			return inner.getFirstBaseline()+block.getInnerY();
+	  }
+	  
+	  @Override
+		public int getMinX()
+	  {
+			return 0;
+	  }
+	  
+	  @Override
+		public int getMaxX()
+	  {
+			return width;
+	  }
+	  
+	  @Override
+		public int getMinSameWidth()
+	  {
+	  	// Inner width doesn't follow the width when it's at its minimum
+	  	if(width-block.getHorizontalInsets()<1) return width;
+			return inner.getMinSameWidth()+block.getHorizontalInsets();
+	  }
+	  
+	  @Override
+		public int getMaxSameWidth()
+	  {
+	  	if(width-block.getHorizontalInsets()<1) return width;
+	  	int max=inner.getMaxSameWidth();
+			return max==Integer.MAX_VALUE ? max : max+block.getHorizontalInsets();
+	  }
+	  
+	  @Override
+		public void paint(Graphics2D g,int x,int y,int highlightStart,int highlightEnd)
+	  {
+			Style style=block.style;
+	    int innerHeight=inner.getHeight();
+	    
+	    if(style.borderColour!=null)
+	    {
+	      g.setColor(style.borderColour);
+	
+	      g.fillRect(
+	        x+style.margin.left,
+	        y+style.margin.top,
+	        width-(style.margin.left+style.margin.right),
+	        style.border.top);
+	      g.fillRect(
+	        x+style.margin.left,
+	        y+style.margin.top+style.border.top+style.padding.top+innerHeight+style.padding.bottom,
+	        width-(style.margin.left+style.margin.right),
+	        style.border.bottom);
+	      g.fillRect(
+	        x+style.margin.left,
+	        y+style.margin.top+style.border.top,
+	        style.border.left,
+	        innerHeight+style.padding.top+style.padding.bottom);
+	      g.fillRect(x+width-(style.margin.right+style.border.right),
+	        y+style.margin.top+style.border.top,
+	        style.border.right,
+	        innerHeight+style.padding.top+style.padding.bottom);
+	    }
+	
+	    if(style.backgroundColour!=null)
+	    {
+	      g.setColor(style.backgroundColour);
+	      g.fillRect(x+style.margin.left+style.border.left,y+style.margin.top+style.border.top,
+	        width-(style.margin.left+style.margin.right+style.border.left+style.border.right),
+	        innerHeight+(style.padding.top+style.padding.bottom));
+	    }
+	
+	    inner.paint(g,x+block.getInnerX(),y+block.getInnerY(),highlightStart,highlightEnd);
+	  }
+	  
+		@Override
+		public int getOffset(int x,int y)
+		{
+			return inner.getOffset(x-block.getInnerX(),y-block.getInnerY());
+		}
+		
+		@Override
+		public LayoutInline.NodePos getNodePos(int targetX, int targetY,
+			java.util.List<LayoutThing> l)
+		{
+			// Add this block
+			l.add(block);
+			return inner.getNodePos(targetX-block.getInnerX(),targetY-block.getInnerY(),l);
+		}
+		
+		@Override
+		public Rectangle getCharacterBounds(int offset)
+		{
+			Rectangle r=inner.getCharacterBounds(offset);
+			if(r!=null) r.translate(block.getInnerX(),block.getInnerY());
+			return r;
+		}
+		
+		@Override
+		public void addMissingBackgrounds(Collection<BackgroundImageCache.Key> missing)
+		{
+			inner.addMissingBackgrounds(missing);
+		}
   }
 }
-
-
-
@@ -19,6 +19,7 @@ Copyright 2011 Samuel Marshall.
 package textlayout;
 
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.util.*;
 
 import org.w3c.dom.*;
@@ -33,44 +34,37 @@ import util.xml.XML;
  */
 class TextBlock implements LayoutBlock
 {
-	private boolean current;
-	
-	private String[] context;
+	private final String[] context;
 	
   /**
 	 * Words
 	 */
-  private LayoutInline[] words;
-
-  /**
-	 * Current set width and calculated height
-	 */
-  private int width=-1,height=-1;
+  private final LayoutInline[] words;
 
   /**
 	 * Space between each line
 	 */
-  private int iLineSpacing;
+  private final int iLineSpacing=0;
 
   /**
-	 * Calculated lines
-	 */
-  private Line[] lines;
+   * Length of text
+   */
+  private final int textLength;
   
   /**
    * Text alignment 
    */
-  private int textAlign;
+  private final int textAlign;
   
   /**
 	 * First line indent
 	 */
-  private int firstLineIndent;
+  private final int firstLineIndent;
   
   /**
 	 * Indent of other lines
 	 */
-  private int otherLineIndent;
+  private final int otherLineIndent;
   
   /**
 	 * Text alignment constants
@@ -91,9 +85,78 @@ class TextBlock implements LayoutBlock
   {
   		this.context=context;
     this.words=words;
-    resolveStyle(sc);
+    
+		String sTextAlign=sc.getString(Property.TEXT_ALIGN,context);
+		if(sTextAlign.equals(Property.V_TEXT_ALIGN_RIGHT)) 
+		  textAlign=ALIGN_RIGHT;
+		else if(sTextAlign.equals(Property.V_TEXT_ALIGN_CENTRE)) 
+		  textAlign=ALIGN_CENTER;
+		else
+		  textAlign=ALIGN_LEFT;
+		
+		otherLineIndent=sc.getNumber(Property.TEXT_INDENT,context);
+		firstLineIndent=otherLineIndent+sc.getNumber(Property.TEXT_FIRST_INDENT,context);
+		
+		int length=0;
+		for(int i=0;i<words.length;i++)
+		{
+			length+=words[i].getLength();
+		}
+		textLength=length;
   }
   
+	@Override
+	public long getRetainedBytes()
+	{
+		long bytes=80+16+4*words.length;
+		for(int i=0;i<words.length;i++)
+		{
+			bytes+=words[i].getRetainedBytes();
+		}
+		return bytes;
+	}
+	
+	@Override
+	public int getWordCount()
+	{
+		return words.length;
+	}
+	
+	@Override
+	public String getText()
+	{
+		StringBuffer sb=new StringBuffer();
+		for(int i=0;i<words.length;i++)
+		{
+			sb.append(words[i].getText());
+		}
+		return sb.toString();
+	}
+	
+	@Override
+	public int getTextLength()
+	{
+		return textLength;
+	}
+	
+	@Override
+	public String getText(int start,int end)
+	{
+		StringBuffer sb=new StringBuffer();
+		int offset=0;
+		for(int i=0;i<words.length && offset<end;i++)
+		{
+			int length=words[i].getLength();
+			if(offset+length>start)
+			{
+				sb.append(words[i].getText(),Math.max(0,start-offset),
+					Math.min(length,end-offset));
+			}
+			offset+=length;
+		}
+		return sb.toString();
+	}
+	
   @Override
 	public String debugDisplay(String indent)
   {
@@ -179,91 +242,108 @@ class TextBlock implements LayoutBlock
 		}
   }
   
-	/**
-	 * Updates font and colour based on styles (called by superclass constructor)
-	 * @param sc New style context
-	 * @throws LayoutException 
-	 */
-	void resolveStyle(StyleContext sc) throws LayoutException
-	{
-		String sTextAlign=sc.getString(Property.TEXT_ALIGN,context);
-		if(sTextAlign.equals(Property.V_TEXT_ALIGN_RIGHT)) 
-		  textAlign=ALIGN_RIGHT;
-		else if(sTextAlign.equals(Property.V_TEXT_ALIGN_CENTRE)) 
-		  textAlign=ALIGN_CENTER;
-		else
-		  textAlign=ALIGN_LEFT;
-		
-		otherLineIndent=sc.getNumber(Property.TEXT_INDENT,context);
-		firstLineIndent=otherLineIndent+sc.getNumber(Property.TEXT_FIRST_INDENT,context);
-	}
-
 	/**
 	 * Update style using a new OutputConverter
 	 */
 	@Override
-	public void updateStyle(StyleContext sc) throws LayoutException
+	public LayoutBlock updateStyle(StyleContext sc) throws LayoutException
 	{
+		LayoutInline[] newWords=new LayoutInline[words.length];
 		for(int i=0;i<words.length;i++)
-		  words[i].updateStyle(sc);
-		
-		width=-1;
-		resolveStyle(sc);
+		  newWords[i]=words[i].updateStyle(sc);
+		return new TextBlock(context,newWords,sc);
 	}
 
-  /**
-	 * Recalculate block for given width
-	 */
   @Override
-	public void reflow(int width)
+	public BlockFlow flow(int width,BlockFlow previous)
   {
-    if(this.width==width || width<=0) return;
-    this.width=width;
+		if(previous!=null && previous.getBlock()==this)
+		{
+			if(previous.getWidth()==width) return previous;
+			
+			// Lines break in the same places, so only the width changes
+			if(width>=previous.getMinSameWidth() && width<=previous.getMaxSameWidth())
+				return new Flow((Flow)previous,width);
+		}
+		
+    LayoutMetrics.textBlockReflows.increment();
 
     List<Line> linesList=new LinkedList<Line>();
-    List<LayoutInline> currentLine=new LinkedList<LayoutInline>();
+    List<LayoutInline> currentLine=new ArrayList<LayoutInline>();
+    List<Integer> currentStarts=new ArrayList<Integer>(),
+    	currentEnds=new ArrayList<Integer>(),
+    	currentWidths=new ArrayList<Integer>();
     int x=firstLineIndent,maxAscent=0,maxDescent=0;
     boolean lineStart=true,firstLine=true,justBroke=true;
     
-    // Build array of words, after splitting any that want to be split due to width
-    LinkedList<LayoutInline> newWordsList=new LinkedList<LayoutInline>(Arrays.asList(words));
+    // Range of widths that would break in the same places: each group that
+    // fitted needs at least its end, and each break needs less than that
+    // of the group that didn't fit. Splitting a word, or alignment other
+    // than left, depends on the exact width.
+    int minSameWidth=0,maxSameWidth=textAlign==ALIGN_LEFT ? Integer.MAX_VALUE : width;
     
-    for(int wordIndex=0;wordIndex<newWordsList.size();wordIndex++)
+    // Text offset of the current word (and of the current line's first item)
+    int offset=0,lineOffset=0;
+    
+    // Words that don't fit on a line are placed in parts, starting at 
+    // partStart
+    int partStart=0;
+    for(int wordIndex=0;wordIndex<words.length;)
     {
-      LayoutInline currentWord = newWordsList.get(wordIndex);
-      currentWord.setWrappedIfNecessary(LayoutInline.UNWRAPPED);
+      LayoutInline currentWord = words[wordIndex];
+      int length=currentWord.getLength();
             
-			if(currentWord.skipAtLineStart() && lineStart)
+			if(partStart==0 && currentWord.skipAtLineStart() && lineStart)
       	{
       		lineStart=false;
+      		offset+=length;
+      		lineOffset=offset;
+      		wordIndex++;
       		continue;
       	}
       	lineStart=false;
 
       int
-        w=currentWord.getWidth(),
+        w=currentWord.getWidth(partStart,length),
+        lastWidth=w,
+        lastWidthLineFinal=currentWord.getWidthLineFinal(partStart,length),
         a=currentWord.getAscent(),
         d=currentWord.getDescent();
 
-      // If we're not allowed to break newWords, count following in with width
-      for(int subWord=wordIndex+1;subWord<newWordsList.size();subWord++)
+      // If we're not allowed to break words, count following in with width
+      for(int subWord=wordIndex+1;subWord<words.length;subWord++)
       {
-        if((newWordsList.get(subWord-1)).breakAfter()) break;
-        LayoutInline subWordItem = newWordsList.get(subWord);
+        if(words[subWord-1].breakAfter()) break;
+        LayoutInline subWordItem = words[subWord];
         if(subWordItem.breakBefore()) break;
-        w+=subWordItem.getWidth();
+        lastWidth=subWordItem.getWidth();
+        lastWidthLineFinal=subWordItem.getWidthLineFinal();
+        w+=lastWidth;
       }
-
+      
+      // A space after the group can go past the end of the line
+      w+=lastWidthLineFinal-lastWidth;
+
+      if(x+w <= width)
+      	minSameWidth=Math.max(minSameWidth,x+w);
+      else if(justBroke)
+      	maxSameWidth=width;
+      else
+      	maxSameWidth=Math.min(maxSameWidth,x+w-1);
+      
       if(x+w > width && !justBroke)
       {
         // Go on to next line
-        linesList.add(new Line(firstLine ? firstLineIndent : otherLineIndent,
-          currentLine.toArray(new LayoutInline[currentLine.size()]),
+        linesList.add(new Line(width,firstLine ? firstLineIndent : otherLineIndent,
+        	currentLine,currentStarts,currentEnds,currentWidths,lineOffset,
           maxAscent,maxDescent));
         currentLine.clear();
+        currentStarts.clear();
+        currentEnds.clear();
+        currentWidths.clear();
 
-        // Forget this word; clear details and repeat it
-        wordIndex--;
+        // Repeat this word on the new line
+        lineOffset=offset+partStart;
         maxAscent=0;
         maxDescent=0;
         x=otherLineIndent; 
@@ -273,188 +353,377 @@ class TextBlock implements LayoutBlock
       }
       else
       {
-        // Add word, update maxes
-	    		currentWord.setWrappedIfNecessary(
-	    			firstLine ? width-firstLineIndent : width-otherLineIndent);
-        x+=currentWord.getWidth();
+        // Add word (or the part that fits), update maxes
+      	int split=currentWord.getSplit(partStart,
+      		firstLine ? width-firstLineIndent : width-otherLineIndent);
+      	int partWidth=currentWord.getWidth(partStart,split);
+        x+=partWidth;
         if(a > maxAscent) maxAscent=a;
         if(d > maxDescent) maxDescent=d;
         currentLine.add(currentWord);
+        currentStarts.add(partStart);
+        currentEnds.add(split);
+        currentWidths.add(partWidth);
         justBroke=false;
         
-        // Add any wrapped words
-        LayoutInline wrapped=currentWord.getWrapped();
-        while(wrapped!=null)
+        if(split<length)
+        {
+        	// Rest of word goes on following lines
+        	partStart=split;
+        }
+        else
         {
-      		newWordsList.add(wordIndex+1,wrapped);
-      		wrapped=wrapped.getWrapped();
+        	partStart=0;
+        	offset+=length;
+        	wordIndex++;
         }
       }
     }
     // Final line
-    linesList.add(new Line(firstLine ? firstLineIndent : otherLineIndent,
-      currentLine.toArray(new LayoutInline[currentLine.size()]),
+    linesList.add(new Line(width,firstLine ? firstLineIndent : otherLineIndent,
+    	currentLine,currentStarts,currentEnds,currentWidths,lineOffset,
       maxAscent,maxDescent));
 
-    // Convert to array
-    lines = linesList.toArray(new Line[linesList.size()]);
-
-    // Calculate height
-    height=0;
-    for(int i=0;i<lines.length;i++)
-    {
-      height+=lines[i].getHeight();
-    }
+    return new Flow(this,width,linesList.toArray(new Line[linesList.size()]),
+    	Math.min(minSameWidth,width),Math.max(maxSameWidth,width));
   }
   
   /**
-	 * Get height at last-specified width
-	 */
-  @Override
-	public int getHeight()
+   * Calculates the content widths from the word widths, following the same
+   * rules as flow: the space at the end of a line doesn't count, and words 
+   * that wrap on letters can be split anywhere (they only need room for 
+   * their widest character).
+   * @return Array of minimum and maximum content widths
+   */
+  private int[] calculateContentWidths()
   {
-    if(height==-1) 
-  		throw new Error("Must reflow before calling getHeight");
-    return height;
+		int min=0,max=firstLineIndent;
+		int group=0,groupFinal=0;
+		boolean firstGroup=true,afterWrapping=false;
+		LayoutInline last=null;
+		for(int i=0;i<words.length;i++)
+		{
+			LayoutInline word=words[i];
+			if(i==0 && word.skipAtLineStart()) continue;
+			
+			int w=word.getWidth();
+			max+=w;
+			last=word;
+			
+			// Words that can't be broken between count together
+			boolean wrapping=word.getMinWrappedWidth()<word.getWidthLineFinal();
+			if(group>0 && (words[i-1].breakAfter() || word.breakBefore() ||
+				wrapping || afterWrapping))
+			{
+				min=Math.max(min,groupFinal+(firstGroup ? firstLineIndent : otherLineIndent));
+				firstGroup=false;
+				group=0;
+			}
+			afterWrapping=wrapping;
+			if(wrapping)
+			{
+				// Only the first part can be on the first line
+				min=Math.max(min,word.getMinWrappedWidth()+
+					Math.max(firstGroup ? firstLineIndent : otherLineIndent,otherLineIndent));
+				firstGroup=false;
+				group=0;
+				groupFinal=0;
+				continue;
+			}
+			groupFinal=group+word.getWidthLineFinal();
+			group+=w;
+		}
+		min=Math.max(min,groupFinal+(firstGroup ? firstLineIndent : otherLineIndent));
+		if(last!=null) max-=last.getWidth()-last.getWidthLineFinal();
+		
+		return new int[] {min,max};
   }
   
   @Override
-	public int getUsedWidth()
+	public int getMinContentWidth()
   {
-    if(height==-1) throw new Error("Must reflow before calling getUsedWidth");
-    int usedWidth=0;
-    for(int i=0;i<lines.length;i++)
-    {
-  	  usedWidth=Math.max(usedWidth,lines[i].getWidth());
-    }
-    return usedWidth;
+		return calculateContentWidths()[0];
   }
-
-  /**
-	 * Paint into given graphics context at given start location
-	 */
+  
   @Override
-	public void paint(Graphics2D g,int x,int y)
+	public int getMaxContentWidth()
   {
-    if(height==-1) throw new Error("Must reflow before calling paint");
-
-    for(int iLine=0;iLine<lines.length;iLine++)
-    {
-      lines[iLine].paint(g,x,y);
-      y+=lines[iLine].getHeight();
-    }
+		return calculateContentWidths()[1];
   }
   
-  @Override
-	public int getFirstBaseline()
+  /**
+   * Text block laid out at a particular width.
+   */
+  private static class Flow implements BlockFlow
   {
-		if(lines==null || lines.length==0) return 0;
-		return lines[0].getBaseline();
-  }
-
+		private final TextBlock block;
+		private final int width,height,usedWidth,minSameWidth,maxSameWidth;
+		private final Line[] lines;
+		
+		/**
+		 * @param block Block
+		 * @param width Width
+		 * @param lines Lines
+		 * @param minSameWidth Narrowest width that gives the same lines
+		 * @param maxSameWidth Widest width that gives the same lines
+		 */
+		Flow(TextBlock block,int width,Line[] lines,int minSameWidth,int maxSameWidth)
+		{
+			this.block=block;
+			this.width=width;
+			this.lines=lines;
+			this.minSameWidth=minSameWidth;
+			this.maxSameWidth=maxSameWidth;
+			int height=0,usedWidth=0;
+	    for(int i=0;i<lines.length;i++)
+	    {
+	      height+=lines[i].getHeight();
+	  	  usedWidth=Math.max(usedWidth,lines[i].width);
+	    }
+	    this.height=height;
+	    this.usedWidth=usedWidth;
+		}
+		
+		/**
+		 * @param other Flow with the same lines at another width
+		 * @param width Width (in that flow's range of widths with the same lines)
+		 */
+		Flow(Flow other,int width)
+		{
+			block=other.block;
+			this.width=width;
+			lines=other.lines;
+			height=other.height;
+			usedWidth=other.usedWidth;
+			minSameWidth=other.minSameWidth;
+			maxSameWidth=other.maxSameWidth;
+		}
+		
+		@Override
+		public LayoutBlock getBlock()
+		{
+			return block;
+		}
+		
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
 
-	@Override
-	public void clearHighlight()
-	{
-		if(height==-1) throw new Error("Must reflow before calling clearHighlight");
+	  @Override
+		public int getHeight()
+	  {
+	    return height;
+	  }
+	  
+	  @Override
+		public int getUsedWidth()
+	  {
+	    return usedWidth;
+	  }
+
+	  @Override
+		public int getFirstBaseline()
+	  {
+			if(lines.length==0) return 0;
+			return lines[0].getBaseline();
+	  }
+
+		@Override
+		public int getMinX()
+		{
+			return 0;
+		}
 
-		for(int iLine=0;iLine<lines.length;iLine++)
+		@Override
+		public int getMaxX()
 		{
-			lines[iLine].clearHighlight();
+			return width;
+		}
+		
+		@Override
+		public int getMinSameWidth()
+		{
+			return minSameWidth;
+		}
+		
+		@Override
+		public int getMaxSameWidth()
+		{
+			return maxSameWidth;
 		}
-	}
 
-	@Override
-	public void setHighlight(int lowX, int lowY, int highX, int highY)
-	{
-		if(height==-1) throw new Error("Must reflow before calling setHighlight");
+	  @Override
+		public void paint(Graphics2D g,int x,int y,int highlightStart,int highlightEnd)
+	  {
+	    for(int iLine=0;iLine<lines.length;iLine++)
+	    {
+	      lines[iLine].paint(g,x,y,highlightStart,highlightEnd);
+	      y+=lines[iLine].getHeight();
+	    }
+	  }
+	  
+		@Override
+		public int getOffset(int x,int y)
+		{
+			if(y<0) return 0;
+			for(int iLine=0;iLine<lines.length;iLine++)
+			{
+				Line l=lines[iLine];
+				y-=l.getHeight();
+				if(y<0) return l.getOffset(x);
+			}
+			return block.textLength;
+		}
 
-		int y=0;
-		for(int iLine=0;iLine<lines.length;iLine++)
+		@Override
+		public LayoutInline.NodePos getNodePos(int targetX, int targetY, List<LayoutThing> blocks)
 		{
-			Line l=lines[iLine];
-			int newY=y+l.getHeight();
-			
-			if(y > highY || newY < lowY)
-			  l.clearHighlight();
-			else
+			int y=0;
+			for(int iLine=0;iLine<lines.length;iLine++)
 			{
-				if(y<lowY)
-				{
-					if(highY<newY)
-					{
-						l.setHighlight(lowX,highX);						
-					}
-					else
-					{
-						l.setHighlight(lowX,Layout.HIGHLIGHT_TOEND);
-					}
-				}
-				else if(highY<newY)
+				Line l=lines[iLine];
+				int newY=y+l.getHeight();
+				
+				if(targetY>=y  && targetY <newY)
 				{
-					l.setHighlight(Layout.HIGHLIGHT_TOSTART,highX);
+					return l.getNodePos(targetX,blocks);
 				}
-				else
-				{
-					l.setHighlight(Layout.HIGHLIGHT_TOSTART,Layout.HIGHLIGHT_TOEND);
-				}				
+	
+				y=newY;
 			}
-
-			y=newY;
+			return null;
 		}
-	}
-
-	/** @return The currently highlighted string from this block */
-	@Override
-	public String getHighlightText()
-	{
-		StringBuffer sb=new StringBuffer();
 		
-		for(int iLine=0;iLine<lines.length;iLine++)
+		@Override
+		public Rectangle getCharacterBounds(int offset)
 		{
-			Line l=lines[iLine];
-			sb.append(l.getHighlightText());
+			int y=0;
+			for(int iLine=0;iLine<lines.length;iLine++)
+			{
+				Line l=lines[iLine];
+				if(offset>=l.offset && offset<l.offset+l.length)
+				{
+					Rectangle r=l.getCharacterBounds(offset);
+					r.translate(0,y);
+					return r;
+				}
+				y+=l.getHeight();
+			}
+			// Skipped at line start
+			return null;
 		}
-		return sb.toString();
-	}
-
-
-	@Override
-	public LayoutInline.NodePos getNodePos(int targetX, int targetY, List<LayoutThing> blocks)
-	{
-		if(height==-1) throw new Error("Must reflow before calling getNodePos");
-
-		int y=0;
-		for(int iLine=0;iLine<lines.length;iLine++)
+	
+		@Override
+		public void addMissingBackgrounds(Collection<BackgroundImageCache.Key> missing)
 		{
-			Line l=lines[iLine];
-			int newY=y+l.getHeight();
-			
-			if(targetY>=y  && targetY <newY)
+			for(int iLine=0;iLine<lines.length;iLine++)
 			{
-				return l.getNodePos(targetX,blocks);
+				lines[iLine].addMissingBackgrounds(missing);
 			}
-
-			y=newY;
 		}
-		return null;
-	}
-  
+  }
 	
 	/**
 	 * A single line that's been laid out
 	 */
-	class Line
+	private class Line
 	{
-		int indent,ascent,descent;
-		LayoutInline[] items;
+		/** Items, which may be parts of words */
+		final LayoutInline[] items;
+		
+		/** Start and end character of each item's part, or null if all whole */
+		final int[] starts,ends;
+		
+		/** Width of each item's part */
+		final int[] widths;
+		
+		/** Text offset of line's first item, and length of text in line */
+		final int offset,length;
+		
+		/** Position of first item (because of indent or alignment) */
+		final int startX;
+		
+		/** Used width, not counting the space at the end of the line */
+		final int width;
+		
+		final int ascent,descent;
 
-		Line(int indent,LayoutInline[] items,int ascent,int descent)
+		/**
+		 * @param blockWidth Width of block
+		 * @param indent Indent
+		 * @param items Items
+		 * @param starts Start character of each item's part
+		 * @param ends End character of each item's part
+		 * @param widths Width of each item's part
+		 * @param offset Text offset of first item
+		 * @param ascent Ascent
+		 * @param descent Descent
+		 */
+		Line(int blockWidth,int indent,List<LayoutInline> items,List<Integer> starts,
+			List<Integer> ends,List<Integer> widths,int offset,int ascent,int descent)
 		{
-			this.items=items;
-			this.indent=indent;
+			this.items=items.toArray(new LayoutInline[items.size()]);
+			this.offset=offset;
 			this.ascent=ascent;
 			this.descent=descent;
+			
+			boolean whole=true;
+			int length=0,totalWidth=0;
+			this.widths=new int[this.items.length];
+			int[] partStarts=new int[this.items.length],partEnds=new int[this.items.length];
+			for(int i=0;i<this.items.length;i++)
+			{
+				partStarts[i]=starts.get(i);
+				partEnds[i]=ends.get(i);
+				this.widths[i]=widths.get(i);
+				whole&=partStarts[i]==0 && partEnds[i]==this.items[i].getLength();
+				length+=partEnds[i]-partStarts[i];
+				
+				// Not counting the space at the end of the line
+				totalWidth+=i==this.items.length-1 
+					? this.items[i].getWidthLineFinal(partStarts[i],partEnds[i]) 
+					: this.widths[i];
+			}
+			this.starts=whole ? null : partStarts;
+			this.ends=whole ? null : partEnds;
+			this.length=length;
+			
+			// Start X offset because of centreing or right-justification
+			switch(textAlign)
+			{
+				case ALIGN_LEFT:
+					startX=indent;
+					break;
+				case ALIGN_CENTER:
+					startX=(blockWidth-totalWidth)/2 + indent;
+					break;
+				case ALIGN_RIGHT:
+					startX=(blockWidth-totalWidth) + indent;
+					break;
+				default:
+					throw new Error("Unexpected align constant: "+textAlign);
+			}
+			width=startX+totalWidth;
+		}
+		
+		/**
+		 * @param i Item index
+		 * @return Start character of item's part
+		 */
+		private int getStart(int i)
+		{
+			return starts==null ? 0 : starts[i];
+		}
+		
+		/**
+		 * @param i Item index
+		 * @return End character of item's part
+		 */
+		private int getEnd(int i)
+		{
+			return ends==null ? items[i].getLength() : ends[i];
 		}
 
 		/**
@@ -462,143 +731,103 @@ class TextBlock implements LayoutBlock
 		 * @param blocks List of blocks
 		 * @return Actual position
 		 */
-		public LayoutInline.NodePos getNodePos(int targetX,List<LayoutThing> blocks)
+		LayoutInline.NodePos getNodePos(int targetX,List<LayoutThing> blocks)
 		{
-			int x=getStartOffset();      
+			int x=startX;      
 			for(int i=0;i<items.length;i++)
 			{
 				LayoutInline li=items[i];
-				int newX=x+li.getWidth();
+				int newX=x+widths[i];
 
 				if(targetX>=x && targetX<newX)
 				{
 					blocks.add(li);
-					return li.getNodePos(targetX-x);
+					return li.getNodePos(getStart(i),getEnd(i),targetX-x);
 				}
 				
 				x=newX;
 			}
 			return null;
 		}
-
-		int getHeight() { return ascent+descent+iLineSpacing; }
 		
-		int getWidth()
+		/**
+		 * @param targetX Target X-coordinate
+		 * @return Text offset of character at that position
+		 */
+		int getOffset(int targetX)
 		{
-			int x=getStartOffset();      
+			if(targetX<startX) return offset;
+			int x=startX,itemOffset=offset;
 			for(int i=0;i<items.length;i++)
 			{
-				x+=items[i].getWidth();
+				int start=getStart(i),end=getEnd(i);
+				int newX=x+widths[i];
+				if(targetX<newX)
+				{
+					return itemOffset+items[i].getOffset(start,end,targetX-x)-start;
+				}
+				itemOffset+=end-start;
+				x=newX;
 			}
-			
-			return x;			
-		}
-
-		void paint(Graphics2D g2,int x,int y)
-		{
-			int baselineY=getBaseline()+y;
-
-			x+=getStartOffset();      
-
-			// Paint starting at correct initial X
-			for(int i=0;i<items.length;i++)
-			{
-				items[i].paint(g2,x,baselineY);
-				x+=items[i].getWidth();
-			}      
-		}
-		
-		int getBaseline()
-		{
-			return ascent+iLineSpacing/2;
+			return offset+length;
 		}
 		
-		/** @return Start X offset because of centreing or right-justification */
-		private int getStartOffset()
+		/**
+		 * @param target Text offset within this line
+		 * @return Bounds of character relative to the line
+		 */
+		Rectangle getCharacterBounds(int target)
 		{
-			if(textAlign!=ALIGN_LEFT)
+			int x=startX,itemOffset=offset;
+			for(int i=0;i<items.length;i++)
 			{
-				// Precalculate width
-				int totalWidth=0;
-				for(int i=0;i<items.length;i++)
+				int start=getStart(i),end=getEnd(i);
+				if(target<itemOffset+end-start)
 				{
-					if(i==items.length-1)
-						totalWidth+=items[i].getWidthLineFinal();
-					else 
-						totalWidth+=items[i].getWidth();
+					Rectangle r=items[i].getCharacterBounds(start,end,target-itemOffset+start);
+					r.translate(x,0);
+					r.height=getHeight();
+					return r;
 				}
-				
-				// Add on appropriate initial width
-				switch(textAlign)
-				{
-					case ALIGN_CENTER:
-						return (width-totalWidth)/2 + indent;
-					case ALIGN_RIGHT:
-						return (width-totalWidth) + indent;
-					default:
-						throw new Error("Unexpected align constant: "+textAlign);
-				}				
+				itemOffset+=end-start;
+				x+=widths[i];
 			}
-			else
-			  return indent;
+			throw new Error("Offset not in line: "+target);
 		}
+
+		int getHeight() { return ascent+descent+iLineSpacing; }
 		
-		void clearHighlight()
+		void paint(Graphics2D g2,int x,int y,int highlightStart,int highlightEnd)
 		{
-			for(int i=0;i<items.length;i++)
+			int baselineY=getBaseline()+y;
+
+			x+=startX;      
+
+			// Paint runs of same-style text rather than each item separately.
+			// The highlight is limited to this line, so that lines outside it
+			// all look the same
+			int hs=Math.max(-1,Math.min(length+1,highlightStart-offset)),
+				he=Math.max(-1,Math.min(length+1,highlightEnd-offset));
+			GlyphRun[] lineRuns=GlyphRun.get(this,items,starts,ends,widths,hs,he);
+			for(int i=0;i<lineRuns.length;i++)
 			{
-				items[i].clearHighlight();
+				lineRuns[i].paint(g2,x,baselineY);
 			}
 		}
 		
-		void setHighlight(int startX,int endX)
+		int getBaseline()
 		{
-			int lowX=Math.min(startX,endX),highX=Math.max(startX,endX);
-			int x=getStartOffset();      
-			for(int i=0;i<items.length;i++)
-			{
-				LayoutInline li=items[i];
-				int newX=x+li.getWidth();
-
-				if(newX<lowX || x>highX)
-				  li.clearHighlight();
-				else
-				{
-					if(x<lowX) // Start of highlight in here
-					{
-						if(newX>highX) // End too
-						{
-							li.setHighlight(lowX-x,highX-x);
-						}
-						else
-						{
-						  li.setHighlight(lowX-x,Layout.HIGHLIGHT_TOEND);
-						}
-					}
-					else if(newX > highX) // End of highlight in here
-					{
-						li.setHighlight(Layout.HIGHLIGHT_TOSTART,highX-x);
-					}
-					else
-					{
-						li.setHighlight(Layout.HIGHLIGHT_TOSTART,Layout.HIGHLIGHT_TOEND);
-					}
-				}			
-				
-				x=newX;	
-			}      
+			return ascent+iLineSpacing/2;
 		}
 		
-		String getHighlightText()
+		void addMissingBackgrounds(Collection<BackgroundImageCache.Key> missing)
 		{
-			StringBuffer sb=new StringBuffer();
 			for(int i=0;i<items.length;i++)
 			{
-				sb.append(items[i].getHighlightText());
+				if(items[i] instanceof WordInline)
+					((WordInline)items[i]).addMissingBackground(getStart(i),getEnd(i),missing);
 			}
-			return sb.toString();
 		}
-		
 	}
 
 	@Override
@@ -608,24 +837,11 @@ class TextBlock implements LayoutBlock
 	}
 
 	@Override
-	public int getMaxX()
-	{
-		return width;
-	}
-
-	@Override
-	public int getMinX()
-	{
-		return 0;
-	}
-
-	@Override
-	public boolean setCurrent(StyleContext sc,boolean current) throws LayoutException
+	public LayoutBlock setCurrent(StyleContext sc,boolean current) throws LayoutException
 	{
-    if(this.current==current) return false;
-    this.current=current;
-    resolveStyle(sc);
-    return true;
+    // Text block styles don't depend on the flag (only the surrounding
+    // block's do)
+    return this;
   }
 
 }
@@ -19,6 +19,7 @@ Copyright 2011 Samuel Marshall.
 package textlayout;
 
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.util.*;
 
 import org.w3c.dom.*;
@@ -27,18 +28,21 @@ import textlayout.stylesheet.StyleContext;
 import util.StringUtils;
 
 /**
- * Manages a list of blocks that appear one below the other.
+ * Holds a list of blocks that appear one below the other.
  */
 class VerticalHolderBlock implements LayoutBlock
 {
   /** Inner blocks */
-  private LinkedList<LayoutBlock> blocks=new LinkedList<LayoutBlock>();
+  private final LayoutBlock[] blocks;
+  
+  /** Offset of each block's text within {@link #getText()} */
+  private final int[] textStarts;
+  
+  /** Length of text */
+  private final int textLength;
   
   /** Style context */
-  private String[] context;
-
-  /** Current set width and calculated height */
-  private int width=-1,height=-1;
+  private final String[] context;
 
   /**
    * Creates block with the given block style.
@@ -47,365 +51,236 @@ class VerticalHolderBlock implements LayoutBlock
    */
   VerticalHolderBlock(Collection<LayoutBlock> blocks,String[] context)
   {
-  		this.context=context;
-  		if(blocks!=null) this.blocks.addAll(blocks);
+		this(blocks==null ? new LayoutBlock[0] : 
+			blocks.toArray(new LayoutBlock[blocks.size()]),context);
+  }
+  
+  /**
+   * @param blocks Blocks that go inside this one
+   * @param context Element context
+   */
+  private VerticalHolderBlock(LayoutBlock[] blocks,String[] context)
+  {
+		this.blocks=blocks;
+		this.context=context;
+		
+		// Line feed before every block after the first, even after empty ones
+		textStarts=new int[blocks.length];
+		int offset=0;
+		for(int i=0;i<blocks.length;i++)
+		{
+			if(i>0) offset++;
+			textStarts[i]=offset;
+			offset+=blocks[i].getTextLength();
+		}
+		textLength=offset;
   }
 
-	/**
-	 * Updates style using a new context.
-	 * @param sc Styles
-	 * @throws LayoutException 
-	 */
 	@Override
-	public void updateStyle(StyleContext sc) throws LayoutException
+	public LayoutBlock updateStyle(StyleContext sc) throws LayoutException
 	{
-		for(LayoutBlock lb : blocks)
+		LayoutBlock[] newBlocks=new LayoutBlock[blocks.length];
+		for(int i=0;i<blocks.length;i++)
 		{
-			lb.updateStyle(sc);
+			newBlocks[i]=blocks[i].updateStyle(sc);
 		}
-		width=-1;
+		return new VerticalHolderBlock(newBlocks,context);
 	}
 	
-  /** Clear all blocks */
-  void clear()
-  {
-    blocks.clear();
-    int oldWidth=width;
-    width=-1;
-    reflow(oldWidth);
-  }
-  
   /** @return Number of blocks */
   int getNumBlocks()
   {
-  		return blocks.size();
-  }
-
-  /** 
-   * Deletes blocks from the start.
-   * @param count Number of blocks to delete
-   * @return Pixel difference in height
-   */
-  int deleteFirstBlocks(int count)
-  {
-  		for(int i=0;i<count && !blocks.isEmpty();i++)
-  			blocks.removeFirst();
-    int oldWidth=width;
-    int oldHeight=height;
-    width=-1;
-    reflow(oldWidth);
-    return oldHeight-height;
+		return blocks.length;
   }
   
-  int getWidth()
-  {
-  		return width;
-  }
-
   /**
-   * Adds another block to the bottom.
-   * @param sc Styles
-   * @param lb Block to add
-   * @throws LayoutException
+   * @param newBlocks Blocks to add at the end
+   * @return Block with those added
    */
-  void addBlock(StyleContext sc,LayoutBlock lb) throws LayoutException
+  VerticalHolderBlock add(LayoutBlock[] newBlocks)
   {
-    if(!blocks.isEmpty())
-    {
-      LayoutBlock lbLast = blocks.getLast();
-      if(lbLast.setCurrent(sc,false) && width!=-1)
-      {
-        int iBefore=lbLast.getHeight();
-        lbLast.reflow(width);
-        height+=(lbLast.getHeight()-iBefore);
-      }
-    }
-    lb.setCurrent(sc,true);
-    blocks.add(lb);
-
-    if(width!=-1)
-    {
-      lb.reflow(width);
-      height+=lb.getHeight();
-    }
+		LayoutBlock[] all=new LayoutBlock[blocks.length+newBlocks.length];
+		System.arraycopy(blocks,0,all,0,blocks.length);
+		System.arraycopy(newBlocks,0,all,blocks.length,newBlocks.length);
+		return new VerticalHolderBlock(all,context);
   }
-		
+  
   /**
-   * Recalculates block for given width.
-   * @param width Width in pixels
+   * @param index Index of block
+   * @param lb New block
+   * @return Block with that block replaced
    */
-  @Override
-	public void reflow(int width)
+  VerticalHolderBlock set(int index,LayoutBlock lb)
   {
-    if(this.width==width || width<=0) return;
-    this.width = width;
-
-    height = 0; 
-    int leftHeight = 0;
-		for(LayoutBlock lb : blocks)
-		{
-      lb.reflow(width);
-      switch(lb.getFlowCategory())
-      {
-      case FLOWCATEGORY_NORMAL:
-    		height += lb.getHeight();
-    		break;
-      case FLOWCATEGORY_LEFTMARGIN:
-    		leftHeight += lb.getHeight();
-    		break;
-    	default:
-    		assert(false);
-      }
-    }
-    
-    height = Math.max(height, leftHeight);
+		if(blocks[index]==lb) return this;
+		LayoutBlock[] all=blocks.clone();
+		all[index]=lb;
+		return new VerticalHolderBlock(all,context);
   }
   
-  @Override
-	public int getFirstBaseline()
-  {
-		if(blocks.size()==0) return 0;
-		return blocks.getFirst().getFirstBaseline();
-  }
-
   /**
-   * Gets height at last-specified width.
-   * @return int Height in pixels
+   * @param index Index of block
+   * @return Block
    */
-  @Override
-	public int getHeight()
+  LayoutBlock getBlock(int index)
   {
-    if(height==-1) 
-    {
-    	throw new Error("Must reflow before calling getHeight");
-    }
-    return height;
+		return blocks[index];
   }
   
-  /** @return True if the content has already been flowed, false otherwise */
-  public boolean isReflowed()
+  @Override
+	public BlockFlow flow(int width,BlockFlow previous)
   {
-  	  return height!=-1;
+		if(previous!=null && previous.getBlock()==this && previous.getWidth()==width)
+			return previous;
+		
+		// Reuse flows of blocks that haven't changed (at another width, the 
+		// blocks can still reuse their lines)
+		BlockFlow[] previousFlows=null;
+		if(previous instanceof Flow && ((Flow)previous).flows.length==blocks.length)
+		{
+			previousFlows=((Flow)previous).flows;
+		}
+		
+		BlockFlow[] flows=new BlockFlow[blocks.length];
+		for(int i=0;i<blocks.length;i++)
+		{
+			flows[i]=blocks[i].flow(width,previousFlows==null ? null : previousFlows[i]);
+		}
+		return new Flow(this,width,flows);
   }
   
   @Override
-	public int getUsedWidth()
+	public int getMinContentWidth()
   {
-    if(height==-1) throw new Error("Must reflow before calling getUsedWidth");
-    
-    int usedWidth=0;
-		for(LayoutBlock lb : blocks)
+		int min=0;
+		for(int i=0;i<blocks.length;i++)
 		{
-      usedWidth=Math.max(usedWidth,lb.getUsedWidth());
-    }
-    return usedWidth;
+			min=Math.max(min,blocks[i].getMinContentWidth());
+		}
+		return min;
   }
 
-  /**
-   * Paints into given graphics context at given start location.
-   * @param g Context
-   * @param x X position
-   * @param y Y position
-   */
   @Override
-	public void paint(Graphics2D g,int x,int y)
-  {
-  		paint(g,x,y,0,1000000);
-  }
-  
-  public void paint(Graphics2D g,int x,int y,int start,int targetHeight)
+	public int getMaxContentWidth()
   {
-    if(height==-1) throw new Error("Must reflow before calling paint");
-
-    int leftMarginY=y,normalY=y;
-		for(LayoutBlock lb : blocks)
+		int max=0;
+		for(int i=0;i<blocks.length;i++)
 		{
-			int thisY,newY;
-      switch(lb.getFlowCategory())
-      {
-      case FLOWCATEGORY_NORMAL:
-      		thisY=normalY;
-      		newY=thisY+lb.getHeight();
-      		normalY=newY;
-      		break;
-      case FLOWCATEGORY_LEFTMARGIN:
-      		thisY=leftMarginY;
-      		newY=thisY+lb.getHeight();
-      		leftMarginY=newY;
-      		break;
-      	default:
-      		throw new Error("Unexpected flow category");
-      }
-
-      if(newY>=start) lb.paint(g,x,thisY-start);
-      if(newY>start+targetHeight) break;
-    }
+			max=Math.max(max,blocks[i].getMaxContentWidth());
+		}
+		return max;
   }
-
+  
   @Override
-	public boolean setCurrent(StyleContext sc,boolean current) throws LayoutException
+	public LayoutBlock setCurrent(StyleContext sc,boolean current) throws LayoutException
   {
-		boolean change=false;
-		for(LayoutBlock lb : blocks)
+		LayoutBlock[] newBlocks=null;
+		for(int i=0;i<blocks.length;i++)
 		{
-			change|=lb.setCurrent(sc,current);
+			LayoutBlock lb=blocks[i].setCurrent(sc,current);
+			if(lb!=blocks[i])
+			{
+				if(newBlocks==null) newBlocks=blocks.clone();
+				newBlocks[i]=lb;
+			}
 		}
-    return change;
+    return newBlocks==null ? this : new VerticalHolderBlock(newBlocks,context);
   }
   
-	/** Clears any highlight */
+	/**
+	 * @param input Text that may contain repeated line feeds
+	 * @return Text with each run of line feeds replaced by one
+	 */
+	static String removeDoubleLFs(String input)
+	{
+		return input.replaceAll("\n+","\n");
+	}	  
+
 	@Override
-	public void clearHighlight()
+	public long getRetainedBytes()
 	{
-		for(LayoutBlock lb : blocks)
+		// Object plus arrays
+		long bytes=48+ENTRY_BYTES*blocks.length;
+		for(int i=0;i<blocks.length;i++)
 		{
-			lb.clearHighlight();
+			bytes+=blocks[i].getRetainedBytes();
 		}
+		return bytes;
 	}
+	
+  /** Estimated memory used by each block's entries in arrays */
+  private final static long ENTRY_BYTES=8;
   
-	/**
-	 * Sets highlight. Values are relative to block's own co-ordinates.
-	 * @param lowX Start (upper/left) position X, or Layout.HIGHLIGHT_TOSTART
-	 * @param lowY Start (upper/left) position Y, or Layout.HIGHLIGHT_TOSTART
-	 * @param highX End (lower/right) position X, or Layout.HIGHLIGHT_TOEND
-	 * @param highY End (lower/right) position Y, or Layout.HIGHLIGHT_TOEND
-	 */
 	@Override
-	public void setHighlight(int lowX,int lowY,int highX,int highY)
+	public int getWordCount()
 	{
-		boolean inHighlight=false,doneHighlight=false;
-		int normalY=0,leftMarginY=0;
-		for(LayoutBlock lb : blocks)
+		int count=0;
+		for(int i=0;i<blocks.length;i++)
 		{
-			int y,newY;
-      switch(lb.getFlowCategory())
-      {
-      case FLOWCATEGORY_NORMAL:
-      		y=normalY;
-        newY=y+lb.getHeight();
-        normalY=newY;
-      		break;
-      case FLOWCATEGORY_LEFTMARGIN:
-      		y=leftMarginY;
-        newY=y+lb.getHeight();
-        leftMarginY=newY;
-      		break;
-      	default:
-      		throw new Error("Unknown flow category");
-      }
-			
-      boolean 
-      		startInBlock=
-      			(lowY>=y && lowY<newY) && 	(lowX>=lb.getMinX() && lowX<lb.getMaxX()),
-  				endInBlock=
-      			(highY>=y && highY<newY) && 	(highX>=lb.getMinX() && highX<lb.getMaxX());
-      
-      if(!doneHighlight && !inHighlight && (startInBlock || lowY==Layout.HIGHLIGHT_TOSTART))
-      {
-  				inHighlight=true;
-  				doneHighlight=true; // Prevents it starting again!
-  				if(endInBlock) // Contains entire range
-  				{
-					lb.setHighlight(lowX,lowY-y,highX,highY-y);
-  				}
-  				else
-  				{
-					lb.setHighlight(lowX,lowY-y,Layout.HIGHLIGHT_TOEND,Layout.HIGHLIGHT_TOEND);
-  				}  				
-      }
-      else if(inHighlight)
-      {
-    			if(highY!=Layout.HIGHLIGHT_TOEND && endInBlock) // Last block in highlight
-      		{
-  					lb.setHighlight(Layout.HIGHLIGHT_TOSTART,Layout.HIGHLIGHT_TOSTART,highX,highY-y);
-  					inHighlight=false;
-      		}
-      		else if(highY!=Layout.HIGHLIGHT_TOEND && y>highY) // Gone past block
-      		{
-      			lb.clearHighlight();
-      			inHighlight=false;
-      		}
-      		else
-      		{
-  					lb.setHighlight(Layout.HIGHLIGHT_TOSTART,Layout.HIGHLIGHT_TOSTART,Layout.HIGHLIGHT_TOEND,Layout.HIGHLIGHT_TOEND);
-      		}
-      }
-      else
-      {
-      		lb.clearHighlight();
-      }
+			count+=blocks[i].getWordCount();
 		}
-		
+		return count;
 	}
 	
 	@Override
-	public LayoutInline.NodePos getNodePos(int targetX, int targetY,
-		List<LayoutThing> l)
+	public String getText()
 	{
-		int normalY=0,leftMarginY=0; 
-		for(LayoutBlock lb : blocks)
+		StringBuffer sb=new StringBuffer();
+		for(int i=0;i<blocks.length;i++)
 		{
-			// This code is sort of copied from the equivalent in Layout (I'm not 
-			// entirely sure why Layout isn't implemented as a VerticalHolderBlock
-			// in the first place, but hey)
-
-			// Get block and calculate its vertical extent
-			int y,newY;
-      switch(lb.getFlowCategory())
-      {
-      case FLOWCATEGORY_NORMAL:
-      		y=normalY;
-        newY=y+lb.getHeight();
-        normalY=newY;
-      		break;
-      case FLOWCATEGORY_LEFTMARGIN:
-      		y=leftMarginY;
-        newY=y+lb.getHeight();
-        leftMarginY=newY;
-      		break;
-      	default:
-      		throw new Error("Unknown flow category");
-      }
-
-			if(targetY>=y && targetY<newY && targetX>=lb.getMinX() && targetX<lb.getMaxX())
-			{
-				return lb.getNodePos(targetX,targetY-y,l);
-			}
+			if(i>0) sb.append('\n');
+			sb.append(blocks[i].getText());
 		}
-		return null;
+		return sb.toString();
 	}
-  
-	/** @return The currently highlighted string from this block */
+	
+	@Override
+	public int getTextLength()
+	{
+		return textLength;
+	}
+	
 	@Override
-	public String getHighlightText()
+	public String getText(int start,int end)
 	{
 		StringBuffer sb=new StringBuffer();
-		for(LayoutBlock lb : blocks)
+		for(int i=0;i<blocks.length;i++)
 		{
-			sb.append(lb.getHighlightText());
-
-			if(lb.getFlowCategory()==LayoutBlock.FLOWCATEGORY_LEFTMARGIN)
-				sb.append(' ');
-			else
-				sb.append('\n');
+			int blockStart=textStarts[i],length=blocks[i].getTextLength();
+			if(blockStart>=end) break;
+			// Blocks that end before the start are left out, apart from empty 
+			// ones right at the start
+			if(blockStart+length<start || (blockStart+length==start && length>0))
+				continue;
+			sb.append(blocks[i].getText(Math.max(0,start-blockStart),
+				Math.min(length,end-blockStart)));
+			appendSeparator(sb,blocks[i]);
 		}
-		return removeDoubleLFs(sb.toString());
+		return sb.toString();
 	}
 	
-	private static String removeDoubleLFs(String input)
+	/**
+	 * Adds the separator that follows a block in copied text.
+	 * @param sb Buffer
+	 * @param lb Block
+	 */
+	static void appendSeparator(StringBuffer sb,LayoutBlock lb)
 	{
-		return input.replaceAll("\n+","\n");
-	}	  
-
+		if(lb.getFlowCategory()==LayoutBlock.FLOWCATEGORY_LEFTMARGIN)
+			sb.append(' ');
+		else
+			sb.append('\n');
+	}
+	
   @Override
 	public String debugDisplay(String indent)
   {
 	  StringBuffer sb=new StringBuffer();
 	  sb.append(indent+"VerticalHolderBlock ["+
 	  	(context==null ? "" : StringUtils.join("/",context))+"]\n");
-		for(LayoutBlock lb : blocks)
+		for(int i=0;i<blocks.length;i++)
 		{
-			sb.append(lb.debugDisplay(indent+"  "));
+			sb.append(blocks[i].debugDisplay(indent+"  "));
 		}
 		return sb.toString();
   }
@@ -415,38 +290,221 @@ class VerticalHolderBlock implements LayoutBlock
 		Map<LayoutInline, LayoutInline.NodePos> translation)
 	{
 		Element thisElement=SurroundedBlock.buildXML(parent,translation,context);  
-		for(LayoutBlock lb : blocks)
+		for(int i=0;i<blocks.length;i++)
 		{
-			lb.buildXML(thisElement,translation);
+			blocks[i].buildXML(thisElement,translation);
 		}
 	}
 	
 	@Override
-	public int getMinX()
+	public int getFlowCategory()
 	{
-		int minX=0;
-		for(LayoutBlock lb : blocks)
-		{
-			minX=Math.min(minX,lb.getMinX());
-		}
-		return minX;
+		return FLOWCATEGORY_NORMAL;
 	}
 	
-	@Override
-	public int getMaxX()
+	/**
+	 * Blocks laid out at a particular width.
+	 */
+	private static class Flow implements BlockFlow
 	{
-		int maxX=width;
-		for(LayoutBlock lb : blocks)
+		private final VerticalHolderBlock block;
+		private final int width,height,usedWidth,minX,maxX,minSameWidth,maxSameWidth;
+		
+		/** Flows of inner blocks */
+		private final BlockFlow[] flows;
+		
+		/** Y position of each inner block */
+		private final int[] tops;
+		
+		/**
+		 * @param block Block
+		 * @param width Width
+		 * @param flows Flows of inner blocks
+		 */
+		Flow(VerticalHolderBlock block,int width,BlockFlow[] flows)
 		{
-			maxX=Math.max(maxX,lb.getMaxX());
+			this.block=block;
+			this.width=width;
+			this.flows=flows;
+			tops=new int[flows.length];
+			
+			int normalY=0,leftMarginY=0,usedWidth=0,minX=0,maxX=width,
+				minSameWidth=0,maxSameWidth=Integer.MAX_VALUE;
+			for(int i=0;i<flows.length;i++)
+			{
+				BlockFlow f=flows[i];
+	      switch(block.blocks[i].getFlowCategory())
+	      {
+	      case FLOWCATEGORY_NORMAL:
+	      	tops[i]=normalY;
+	    		normalY+=f.getHeight();
+	    		break;
+	      case FLOWCATEGORY_LEFTMARGIN:
+	      	tops[i]=leftMarginY;
+	    		leftMarginY+=f.getHeight();
+	    		break;
+	    	default:
+	    		throw new Error("Unexpected flow category");
+	      }
+	      usedWidth=Math.max(usedWidth,f.getUsedWidth());
+	      minX=Math.min(minX,f.getMinX());
+	      maxX=Math.max(maxX,f.getMaxX());
+	      minSameWidth=Math.max(minSameWidth,f.getMinSameWidth());
+	      maxSameWidth=Math.min(maxSameWidth,f.getMaxSameWidth());
+			}
+			height=Math.max(normalY,leftMarginY);
+			this.usedWidth=usedWidth;
+			this.minX=minX;
+			this.maxX=maxX;
+			this.minSameWidth=minSameWidth;
+			this.maxSameWidth=maxSameWidth;
+		}
+		
+		@Override
+		public LayoutBlock getBlock()
+		{
+			return block;
+		}
+		
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
+		
+		@Override
+		public int getHeight()
+		{
+			return height;
+		}
+		
+		@Override
+		public int getUsedWidth()
+		{
+			return usedWidth;
+		}
+		
+	  @Override
+		public int getFirstBaseline()
+	  {
+			if(flows.length==0) return 0;
+			return flows[0].getFirstBaseline();
+	  }
+	  
+		@Override
+		public int getMinX()
+		{
+			return minX;
+		}
+		
+		@Override
+		public int getMaxX()
+		{
+			return maxX;
+		}
+		
+		@Override
+		public int getMinSameWidth()
+		{
+			return minSameWidth;
+		}
+		
+		@Override
+		public int getMaxSameWidth()
+		{
+			return maxSameWidth;
+		}
+		
+		@Override
+		public void paint(Graphics2D g,int x,int y,int highlightStart,int highlightEnd)
+		{
+			for(int i=0;i<flows.length;i++)
+			{
+				int textStart=block.textStarts[i];
+				flows[i].paint(g,x,y+tops[i],highlightStart-textStart,highlightEnd-textStart);
+			}
+		}
+		
+		@Override
+		public int getOffset(int x,int y)
+		{
+			if(y<0 || flows.length==0) return 0;
+			if(y>=height) return block.textLength;
+			
+			// Margin blocks only count to the left of the normal ones
+			int found=-1;
+			if(x<0) found=find(y,FLOWCATEGORY_LEFTMARGIN);
+			if(found==-1) found=find(y,FLOWCATEGORY_NORMAL);
+			if(found==-1) found=find(y,FLOWCATEGORY_LEFTMARGIN);
+			if(found==-1) return block.textLength;
+			return block.textStarts[found]+flows[found].getOffset(x,y-tops[found]);
+		}
+		
+		/**
+		 * @param y Y position
+		 * @param category Flow category
+		 * @return Last block of that category starting at or above y, or -1
+		 *   if none
+		 */
+		private int find(int y,int category)
+		{
+			int found=-1;
+			for(int i=0;i<flows.length;i++)
+			{
+				if(block.blocks[i].getFlowCategory()!=category) continue;
+				if(tops[i]>y) break;
+				found=i;
+			}
+			// Ignore margin blocks that end above y
+			if(found!=-1 && category==FLOWCATEGORY_LEFTMARGIN && 
+				tops[found]+flows[found].getHeight()<=y)
+			{
+				return -1;
+			}
+			return found;
+		}
+		
+		@Override
+		public LayoutInline.NodePos getNodePos(int targetX, int targetY,
+			List<LayoutThing> l)
+		{
+			for(int i=0;i<flows.length;i++)
+			{
+				BlockFlow f=flows[i];
+				int y=tops[i];
+				if(targetY>=y && targetY<y+f.getHeight() && targetX>=f.getMinX() && 
+					targetX<f.getMaxX())
+				{
+					return f.getNodePos(targetX,targetY-y,l);
+				}
+			}
+			return null;
+		}
+		
+		@Override
+		public Rectangle getCharacterBounds(int offset)
+		{
+			for(int i=0;i<flows.length;i++)
+			{
+				int textStart=block.textStarts[i];
+				if(offset<textStart) return null; // Line feed between blocks
+				if(offset<textStart+block.blocks[i].getTextLength())
+				{
+					Rectangle r=flows[i].getCharacterBounds(offset-textStart);
+					if(r!=null) r.translate(0,tops[i]);
+					return r;
+				}
+			}
+			return null;
+		}
+		
+		@Override
+		public void addMissingBackgrounds(Collection<BackgroundImageCache.Key> missing)
+		{
+			for(int i=0;i<flows.length;i++)
+			{
+				flows[i].addMissingBackgrounds(missing);
+			}
 		}
-		return maxX;
-	}
-
-	@Override
-	public int getFlowCategory()
-	{
-		return FLOWCATEGORY_NORMAL;
 	}
 }
-
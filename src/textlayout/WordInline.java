@@ -19,9 +19,11 @@ Copyright 2011 Samuel Marshall.
 package textlayout;
 
 import java.awt.*;
-import java.awt.font.LineMetrics;
+import java.awt.font.*;
 import java.awt.image.*;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
 
 import org.w3c.dom.Node;
 
@@ -36,530 +38,629 @@ class WordInline implements LayoutInline
   /**
 	 * Styles for this word
 	 */
-  private String[] context=null;
+  private final String[] context;
 
   /**
-	 * Actual word
+	 * Buffer containing word (shared with other words from the same text)
 	 */
-  private String word;
+  private final char[] text;
+  
+  /**
+   * Position and length of word within buffer
+   */
+  private final int start,length;
 
   /**
 	 * Font
 	 */
-  private Font f;
+  private final Font f;
 
   /**
 	 * Colour
 	 */
-  private Color c,bg;
+  private final Color c,bg;
   
   /**
-	 * Outline (requires prerendering)
+	 * Outline (requires prerendering), or null if none
 	 */
-  private Color outline;
+  private final Color outline;
   
   /**
 	 * Underline
 	 */
-  private boolean underline;
+  private final boolean underline;
 
   /**
 	 * Whether word has whitespace at the ends
 	 */
-  private boolean bAllowBreakAfter,bAllowBreakBefore,bSkipAtLineStart;
+  private final boolean bAllowBreakAfter,bAllowBreakBefore,bSkipAtLineStart;
 
   /**
 	 * If true, we're allowed to wrap on letters when it won't fit on a line
 	 */
-	private boolean allowWrap;
-	
-	/**
-	 * If true, this word is currently wrapped
-	 */
-	private boolean wrapped;
+	private final boolean allowWrap;
 	
-	/**
-	 * If non-null, this word was generated from another word that wrapped
-	 */
-	private WordInline wrappedParent;
-	
-	private String wrappedWord;
-	
-	/**
-	 * Offset from the start of the real LayoutInline, used when wrapping
-	 */
-	private int wrappedOffset;
-	
-  /**
-	 * Wrapped second part of word
-	 */
-  private WordInline wrappedOverflow;
-  
-  private int wrappedWidth,wrappedLineWidth;
-
   /**
 	 * Stored size details
 	 */
-  private int ascent,descent,width;
+  private final int ascent,descent,width;
   
   /**
 	 * Line-final width (different if the word ends in a space)
 	 */
-  private int widthLineFinal;
+  private final int widthLineFinal;
   
   /**
-   * @param word Word
-   * @param f Font
-   * @param c Colour
+   * @param text Buffer containing word
+   * @param start Start of word
+   * @param length Length of word
+   * @param context Styles (tag stack)
+   * @param style Style already resolved for that tag stack
 	 */
-  WordInline(String word,Font f,Color c)
+  private WordInline(char[] text,int start,int length,String[] context,Style style)
   {
-    this.word=word;
-    this.f=f;
-    this.c=c;
-    updateBreaking();
+    this.text=text;
+    this.start=start;
+    this.length=length;
+    this.context=context;
 
-    LineMetrics lm=f.getLineMetrics(word,GraphicsUtils.getFontRenderContext());
-    ascent= (int)(lm.getAscent() + 0.5);
-    descent= (int)(lm.getDescent() + 0.5);
-
-		updateWidth(f);    
-  }
+    bAllowBreakAfter=Character.isWhitespace(text[start+length-1]);
+    bAllowBreakBefore=Character.isWhitespace(text[start]);
     
-  private void updateBreaking()
-  {
-    this.bAllowBreakAfter=
-      Character.isWhitespace(
-        word.charAt(word.length()-1));
-    this.bAllowBreakBefore=
-      Character.isWhitespace(
-        word.charAt(0));
-    bSkipAtLineStart=word.trim().equals("");
-  }
-
-  /**
-   * @param word Word
-   * @param style Styles (tag stack)
-   * @param sc Style context
-   * @throws LayoutException 
-	 */
-  WordInline(String word,String[] style,StyleContext sc) throws LayoutException
-  {
-    this.word=word;
-    this.context=style;
-    updateBreaking();
+    // Same as String.trim() leaving nothing
+    boolean skip=true;
+    for(int i=start;i<start+length;i++)
+    {
+    	if(text[i]>' ')
+    	{
+    		skip=false;
+    		break;
+    	}
+    }
+    bSkipAtLineStart=skip;
 
-    resolveStyle(sc);
-  }
-  
-  WordInline(WordInline parent,int wrapPos)
-  {
-  	  wrappedParent=parent;
-  	  
-  		word=parent.word.substring(wrapPos);
-  		context=parent.context;
-  		wrappedOffset=parent.wrappedOffset+wrapPos;
-  		updateBreaking();
-  		
-  		if(parent.highlightSize>0)
-  		{
-  			highlightStart=parent.highlightStart-wrapPos;
-  			if(highlightStart<0)
-  			{
-  				highlightSize=Math.max(0,parent.highlightSize+highlightStart);
-  				highlightStart=0;
-  			}
-  			else
-  				highlightSize=parent.highlightSize;
-  		}
-  		
-    f=parent.f;
-	  c=parent.c;
-	  bg=parent.bg;
-    ascent=parent.ascent;
-    descent=parent.descent;
-		updateWidth(f);
-	  allowWrap=true;
-		underline=parent.underline;  
-	}
-
-	/**
-	 * Update style using a new OutputConverter
-	 */
-	@Override
-	public void updateStyle(StyleContext sc) throws LayoutException
-	{
-		resolveStyle(sc);		
-	}
-	
-  /**
-	 * Updates font and colour based on styles.
-   * @param sc Style context
-   * @throws LayoutException 
-	 */
-  void resolveStyle(StyleContext sc) throws LayoutException
-  {
-    f=sc.getFont(context);
-    c=sc.getRGB(Property.TEXT_RGB,context);
-    bg=sc.getRGB(Property.TEXT_BACKGROUND_RGB,context);
+    f=style.f;
+    c=style.c;
+    bg=style.bg;
 
     // Get font metrics [Adding Aj is just to make words take the full ascent/descent even if they have no caps/descenders]
-    LineMetrics lm=f.getLineMetrics(word+"Aj",GraphicsUtils.getFontRenderContext());
-		ascent= (int)(lm.getAscent() + 0.5);
-    descent= (int)(lm.getDescent() + 0.5);
+    FontRenderContext frc=getFontRenderContext();
+    LineMetrics lm=f.getLineMetrics(text,start,start+length,frc),
+    	lmAj=f.getLineMetrics("Aj",frc);
+		int ascent=(int)(Math.max(lm.getAscent(),lmAj.getAscent()) + 0.5);
+    descent=(int)(Math.max(lm.getDescent(),lmAj.getDescent()) + 0.5);
 
     // If we're supposed to be matching some other baseline, get that
-    int matchBaseline=sc.getNumber(Property.MATCH_BASELINE,context);
+    int matchBaseline=style.matchBaseline;
     if(matchBaseline!=0)
     {
     		int matchAscent=(int)(f.deriveFont((float)matchBaseline).getLineMetrics(
-    			word,GraphicsUtils.getFontRenderContext()).getAscent()+0.5);
+    			text,start,start+length,frc).getAscent()+0.5);
     		ascent=Math.max(ascent,matchAscent);
     }
+    this.ascent=ascent;
 
-    width=sc.getNumber(Property.WIDTH,context);	    
-    if(width==-1)
+    if(style.width==-1)
     {
-			updateWidth(f);
-			allowWrap=sc.getString(Property.WRAP_STYLE,context).equals(Property.V_WRAP_STYLE_NORMAL);
+			width=measure(text,start,length,f);
+			// Line-final width (width after trimming whitespace from right)
+			int trimmed=getTrimmedEnd(0,length);
+			widthLineFinal=trimmed==length ? width : measure(text,start,trimmed,f);
     }
 		else
 		{
+			width=style.width;
 		  widthLineFinal=width;
-		  allowWrap=false;
 		}
-		  
-		String sUnderline=sc.getString(Property.FONT_UNDERLINE,context);
-		underline=sUnderline.equals(Property.V_FONT_UNDERLINE_SOLID);
-		
-		outline=sc.getRGB(Property.OUTLINE,context);
-		if(outline.getAlpha()==0) outline=null;
-		
-		useBackground=outline!=null;
-		putBackgroundImage(null);
+		allowWrap=style.allowWrap;
+		underline=style.underline;
+		outline=style.outline;
   }
   
-  private boolean useBackground=false;
-
-  // Background image cache (designed to reduce memory use over storing all of them)  
-  //////////////////////////////////////////////////////////////////////////////////
-  
-  /**
-	 * Time after which background cache items expire
-	 */
-  private final static int BACKGROUNDCACHEEXPIRE=60000;  
-  
-  /**
-	 * Approx. frequency with which the cache expiry check run happens
-	 */
-  private final static int BACKGROUNDCACHEEXPIRYRUN=30000;
-  
-  /**
-	 * Last expiry run time
-	 */
-  private static long backgroundLastExpiryRun=0;
-  
   /**
-	 * Map of Object (actually WordInline) to BackgroundImage
-	 */
-  private static Map<WordInline, BackgroundImage> backgroundImages=new HashMap<WordInline, BackgroundImage>();
-  
-  /**
-	 * Stores a background image and tracks the time it was last used
-	 */
-  private static class BackgroundImage
+   * Style values for a tag stack. These are resolved once and can then be
+   * shared by any number of words with that tag stack.
+   */
+  static class Style
   {
-		/**
-		 * Image
-		 */
-		BufferedImage bi;
+		private Font f;
+		private Color c,bg,outline;
+		private int matchBaseline,width;
+		private boolean allowWrap,underline;
 		
 		/**
-		 * Time of use
-		 */
-		long lastUsed;
-
-		public BackgroundImage(BufferedImage bi)
-		{
-			this.bi=bi;
-			poke();
-		}
-
-		/**
-		 * Updates use time
+		 * @param sc Style context
+		 * @param context Tag stack
+		 * @throws LayoutException
 		 */
-		void poke()
+		Style(StyleContext sc,String[] context) throws LayoutException
 		{
-			lastUsed=System.currentTimeMillis();
-		}
-  }
-  
-  /**
-   * Gets the background image for this item. Also handles the cache if necessary
-   * to reduce it etc.
-   * @return The image or null if not in cache
-   */
-  private BufferedImage getBackgroundImage()
-  {
-  	synchronized(backgroundImages)
-  	{
-  		BackgroundImage background = backgroundImages.get(this);
-  		if(background!=null) 
-  			background.poke();
-  		
-  		// Is it time to shrink the cache?
-  		long now=System.currentTimeMillis();
-  		if(now-backgroundLastExpiryRun > BACKGROUNDCACHEEXPIRYRUN)
-  		{
-  			backgroundLastExpiryRun=now;
-  			for(Iterator<BackgroundImage> i=backgroundImages.values().iterator();i.hasNext();)
-  			{
-					BackgroundImage old = i.next();
-					if(now - old.lastUsed > BACKGROUNDCACHEEXPIRE)
-					{
-						i.remove();
-					}
-  			}
-  		}
-			
-  		return background==null ? null : background.bi;
+	    f=sc.getFont(context);
+	    c=sc.getRGB(Property.TEXT_RGB,context);
+	    bg=sc.getRGB(Property.TEXT_BACKGROUND_RGB,context);
+	    matchBaseline=sc.getNumber(Property.MATCH_BASELINE,context);
+	    width=sc.getNumber(Property.WIDTH,context);
+	    allowWrap=width==-1 && 
+	    	sc.getString(Property.WRAP_STYLE,context).equals(Property.V_WRAP_STYLE_NORMAL);
+			underline=sc.getString(Property.FONT_UNDERLINE,context).equals(
+				Property.V_FONT_UNDERLINE_SOLID);
+			outline=sc.getRGB(Property.OUTLINE,context);
+			if(outline.getAlpha()==0) outline=null;
 		}
   }
   
+	/**
+	 * Returns the same word with style from a new context. The text buffer is
+	 * shared with this word.
+	 */
+	@Override
+	public LayoutInline updateStyle(StyleContext sc) throws LayoutException
+	{
+		return new WordInline(text,start,length,context,new Style(sc,context));
+	}
+	
   /**
-   * Saves the background image for this item.
-   * @param bi New image to put into cache, or null to clear cached image.
+   * @param partStart Start of part
+   * @param partEnd End of part
+   * @return Key identifying the background image for that part of the word
    */
-  private void putBackgroundImage(BufferedImage bi)
+  private BackgroundImageCache.Key getBackgroundKey(int partStart,int partEnd)
   {
-		if(bi==null)
-			backgroundImages.remove(this);
-		else
-			backgroundImages.put(this,new BackgroundImage(bi));
+		return new BackgroundImageCache.Key(
+			text,start+partStart,partEnd-partStart,f,outline,c,bg,underline,
+			getWidthLineFinal(partStart,partEnd),getWidth(partStart,partEnd),
+			ascent,descent);
   }
   
   private final static int IMAGEBORDER=3;
   
   private static int OUTLINEBLURPASSES = 2;
 
+  /**
+   * Scratch buffers for doOutline, kept per thread so that outlines can be
+   * created in parallel without allocating each time
+   */
+  private final static ThreadLocal<int[][]> outlineScratch=new ThreadLocal<int[][]>();
+
+  /**
+   * @param size Number of pixels required
+   * @return Three scratch buffers of at least the given size
+   */
+  private static int[][] getOutlineScratch(int size)
+  {
+		int[][] scratch=outlineScratch.get();
+		if(scratch==null || scratch[0].length<size)
+		{
+			scratch=new int[][] { new int[size], new int[size], new int[size] };
+			outlineScratch.set(scratch);
+		}
+		return scratch;
+  }
+
+  /**
+   * Replaces the image with a blurred outline of its alpha channel. Each pass
+   * applies the 3x3 kernel 4 (centre and orthogonal), 2 (diagonal), divided
+   * by 8, to all but the edge pixels, which are left as they were. The 
+   * kernel is worked out as twice a 3x3 box plus twice a cross, so that the
+   * box part can use a horizontal sum shared between rows.
+   * @param img Image (must be TYPE_INT_ARGB)
+   * @param c Outline colour
+   */
   private static void doOutline(BufferedImage img,Color c)
   {
 		int[]data=((DataBufferInt)img.getRaster().getDataBuffer()).getData();
-		int[]original=new int[data.length];
-		System.arraycopy(data,0,original,0,original.length);
-		
 		int w=img.getWidth(),h=img.getHeight();
-		  		
-		// Offset so that we start in the other direction if needed
-		int passOffset=(OUTLINEBLURPASSES&1)==1 ? 0 : 1;
+		if(w<3 || h<3) return;
+		int[][] scratch=getOutlineScratch(w*h);
+		int[] from=scratch[0],to=scratch[1],across=scratch[2];
 		
 		int colour=(c.getRed()<<16) | (c.getGreen()<<8) | c.getBlue(); 
 		int alpha=c.getAlpha();
 		if(alpha==255) alpha=256; // Lets me do >>8 instead of /255 later - woo!
 		
+		for(int ofs=0;ofs<w*h;ofs++)
+		{
+			from[ofs]=data[ofs]>>>24;
+		}
+		System.arraycopy(from,0,to,0,w*h);
+		
 		// Loop through a number of blur passes
 		for(int pass=0;pass<OUTLINEBLURPASSES;pass++)
 		{
-			int[] from,to;
-			if(((pass+passOffset)&1)==1)
+			// Horizontal sum of three, for interior columns
+			for(int y=0;y<h;y++)
 			{
-				from=data;
-				to=original;
+				int ofs=y*w+1;
+				for(int upto=ofs+w-2;ofs<upto;ofs++)
+				{
+					across[ofs]=from[ofs-1]+from[ofs]+from[ofs+1];
+				}
 			}
-			else
+			
+			for(int y=1;y<h-1;y++)
 			{
-				from=original;
-				to=data;
+				int ofs=y*w+1; // Because we start at position 1, not 0
+				for(int upto=ofs+w-2;ofs<upto;ofs++)
+				{
+					// Box: 2*(up+centre+down rows); cross: 2*(centre row+up+down)
+					int blur=2*(across[ofs-w]+across[ofs+w]) + 4*across[ofs] +
+						2*(from[ofs-w]+from[ofs+w]);
+					blur>>>=3; // Divide by 8
+					if((blur&0xffffff00)!=0) blur=0xff;
+					to[ofs]=(blur*alpha)>>>8;
+				}
+			}
+			
+			int[] swap=from;
+			from=to;
+			to=swap;
+		}
+		
+		// Edge pixels keep their original value
+		for(int y=1;y<h-1;y++)
+		{
+			for(int ofs=y*w+1,upto=ofs+w-2;ofs<upto;ofs++)
+			{
+				data[ofs]=(from[ofs]<<24) | colour;
 			}
-	
-  		for(int y=1;y<h-1;y++)
-  		{
-  			int ofs=y*w+1; // Because we start at position 1, not 0
-  			int upto=ofs+w-2;
-  			for(;ofs<upto;ofs++)
-  			{
-				int blur=0;
-				blur=4*(from[ofs]>>>24);
-				blur+=4*(from[ofs-1]>>>24); // Left
-				blur+=4*(from[ofs+1]>>>24); // Right
-				blur+=4*(from[ofs-w]>>>24); // Up
-				blur+=4*(from[ofs+w]>>>24); // Down
-				blur+=2*(from[ofs-w-1]>>>24); // Up left
-				blur+=2*(from[ofs-w+1]>>>24); // Up right
-				blur+=2*(from[ofs+w-1]>>>24); // Down left
-				blur+=2*(from[ofs+w+1]>>>24); // Down right
-				blur>>>=3; // Divide by 16
-				if((blur&0xffffff00)!=0) blur=0xff;
-				to[ofs]=(((blur*alpha)>>>8)<<24) | colour;
-  			}
-  			// Because we skip last position
-  			ofs++;
-  		}
 		}
   }
   
-  private static int getWidth(String s,Font f)
+  /** Pool used to create background images in parallel */
+  private static ExecutorService backgroundPool;
+  
+  /**
+   * @return Pool used to create background images in parallel
+   */
+  private static synchronized ExecutorService getBackgroundPool()
   {
-	  return (int)(f.getStringBounds(s,GraphicsUtils.getFontRenderContext()).getWidth()+0.5f);
-//  		if(s.length()==0) 
-//  			return 0;
-//  		else
-//  			return (int)((new TextLayout(s,f,GraphicsUtils.getFontRenderContext())).getAdvance()+0.5f);
+		if(backgroundPool==null)
+		{
+			backgroundPool=Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors(),
+				new DaemonThreadFactory("Text outline thread",Thread.NORM_PRIORITY));
+		}
+		return backgroundPool;
   }
-
-  private static Rectangle getBounds(String s,Font f)
+  
+  /**
+   * Adds the key for part of this word to a collection if it uses a 
+   * background image that isn't currently in the cache.
+   * @param partStart Start of part
+   * @param partEnd End of part
+   * @param missing Keys of missing images
+   */
+  void addMissingBackground(int partStart,int partEnd,
+  	Collection<BackgroundImageCache.Key> missing)
   {
-	  return f.getStringBounds(s,GraphicsUtils.getFontRenderContext()).getBounds();
-//  		TextLayout tl=new TextLayout(s,f,GraphicsUtils.getFontRenderContext());
-//  		Rectangle r=new Rectangle();
-//  		r.width=(int)(tl.getAdvance()+0.5f);
-//  		r.height=(int)(tl.getAscent()+tl.getDescent()+0.5f);
-//  		r.y=-(int)(tl.getAscent()+0.5f);
-//  		return r;
+		if(outline==null) return;
+		BackgroundImageCache.Key key=getBackgroundKey(partStart,partEnd);
+		if(!BackgroundImageCache.contains(key)) missing.add(key);
   }
   
-  private void updateWidth(Font f)
+  /**
+   * Creates the given background images in parallel and waits for them, so
+   * that painting words only needs to draw the finished images. Used when 
+   * the paint can't be repeated later. Does nothing if there is only one 
+   * distinct image needed.
+   * @param keys Keys of images that are needed
+   */
+  static void prepareBackgrounds(Collection<BackgroundImageCache.Key> keys)
   {
-		// Calculate width
-  		width=getWidth(word,f);
-		setWrappedIfNecessary(-1); // Forget wrapped data
-    
-		// Line-final width (width after trimming whitespace from right)
-		int iNewLength=word.length();
-		for(;iNewLength>0;iNewLength--)
+		Set<BackgroundImageCache.Key> distinct=
+			new HashSet<BackgroundImageCache.Key>(keys);
+		if(distinct.size()<2) return;
+		
+		List<Callable<Object>> tasks=new LinkedList<Callable<Object>>();
+		for(final BackgroundImageCache.Key key : distinct)
 		{
-			if(!Character.isWhitespace(word.charAt(iNewLength-1)))
-				break;
+			tasks.add(new Callable<Object>()
+			{
+				@Override
+				public Object call()
+				{
+					createBackgroundImage(key);
+					return null;
+				}
+			});
 		}
-		if(iNewLength==word.length())
-		{ 
-			widthLineFinal=width;
+		try
+		{
+			getBackgroundPool().invokeAll(tasks);
 		}
-		else
+		catch(InterruptedException e)
 		{
-			widthLineFinal=getWidth(word.substring(0,iNewLength),f);
-		}    	
+			// Any missing images will be created during paint
+			Thread.currentThread().interrupt();
+		}
   }
-
+  
+  /**
+   * Background images that one paint is waiting for.
+   */
+  private static class BackgroundRequest
+  {
+		/** Called once all the images exist */
+		private final Runnable done;
+		/** Number of images not yet created (guarded by pendingBackgrounds) */
+		private int remaining;
+		
+		/**
+		 * @param done Called once all the images exist
+		 */
+		private BackgroundRequest(Runnable done)
+		{
+			this.done=done;
+		}
+  }
+  
+  /** 
+   * Background images being created in the pool, with the requests waiting
+   * for each (guarded by itself) 
+   */
+  private final static Map<BackgroundImageCache.Key,List<BackgroundRequest>>
+  	pendingBackgrounds=
+  		new HashMap<BackgroundImageCache.Key,List<BackgroundRequest>>();
+  
   /**
-	 * Gets next word from plaintext stringbuffer.
-   * @param sb Buffer
+   * Starts creating the given background images in the pool and returns 
+   * straight away. Painting leaves out images that are still being created;
+   * once they all exist, the callback runs (on a pool thread) so the caller
+   * can repaint. Images already being created for another paint are waited
+   * for too. If there is only one new image, it isn't started; painting 
+   * creates it as usual.
+   * @param keys Keys of images that are needed
+   * @param done Called when the images exist, unless there was nothing to
+   *   wait for
+   */
+  static void prepareBackgroundsLater(Collection<BackgroundImageCache.Key> keys,
+  	Runnable done)
+  {
+		BackgroundRequest request=new BackgroundRequest(done);
+		List<BackgroundImageCache.Key> start=
+			new LinkedList<BackgroundImageCache.Key>();
+		synchronized(pendingBackgrounds)
+		{
+			for(BackgroundImageCache.Key key : new HashSet<BackgroundImageCache.Key>(keys))
+			{
+				List<BackgroundRequest> waiting=pendingBackgrounds.get(key);
+				if(waiting!=null)
+				{
+					waiting.add(request);
+					request.remaining++;
+				}
+				else if(!BackgroundImageCache.contains(key))
+				{
+					start.add(key);
+				}
+			}
+			if(start.size()<2)
+			{
+				start.clear();
+			}
+			for(BackgroundImageCache.Key key : start)
+			{
+				List<BackgroundRequest> waiting=new LinkedList<BackgroundRequest>();
+				waiting.add(request);
+				request.remaining++;
+				pendingBackgrounds.put(key,waiting);
+			}
+		}
+		
+		for(final BackgroundImageCache.Key key : start)
+		{
+			getBackgroundPool().execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						createBackgroundImage(key);
+					}
+					finally
+					{
+						finishBackground(key);
+					}
+				}
+			});
+		}
+  }
+  
+  /**
+   * Called when a pool thread has finished with an image; runs the callback
+   * of any request that was only waiting for that one.
+   * @param key Key of image
+   */
+  private static void finishBackground(BackgroundImageCache.Key key)
+  {
+		List<Runnable> finished=new LinkedList<Runnable>();
+		synchronized(pendingBackgrounds)
+		{
+			for(BackgroundRequest request : pendingBackgrounds.remove(key))
+			{
+				if(--request.remaining==0) finished.add(request.done);
+			}
+		}
+		for(Runnable done : finished)
+		{
+			done.run();
+		}
+  }
+  
+  /**
+   * @param key Key of image
+   * @return True if the image is being created in the pool
+   */
+  private static boolean isBackgroundPending(BackgroundImageCache.Key key)
+  {
+		synchronized(pendingBackgrounds)
+		{
+			return pendingBackgrounds.containsKey(key);
+		}
+  }
+  
+  /** 
+   * Holds the render context used for measuring text. Class initialisation
+   * makes sure every thread sees the same, fully created object, so words 
+   * can be measured from several threads at once.
+   */
+  private static class Measure
+  {
+		final static FontRenderContext FRC=GraphicsUtils.getFontRenderContext();
+  }
+  
+  /** @return Render context used for measuring text (safe from any thread) */
+  private static FontRenderContext getFontRenderContext()
+  {
+		return Measure.FRC;
+  }
+  
+  @Override
+	public int getLength()
+  {
+  	return length;
+  }
+  
+  /**
+   * @param text Buffer
+   * @param start Start of text
+   * @param length Length of text
    * @param f Font
-   * @param c Colour
-   * @return Next word, or null if none remain
-	 */
-  static WordInline nextWord(StringBuffer sb,Font f,Color c)
+   * @return Width of text
+   */
+  private static int measure(char[] text,int start,int length,Font f)
   {
-    if(sb.length()==0) return null;
-
-    for(int i=0;i<sb.length();i++)
-    {
-      if(Character.isWhitespace(sb.charAt(i)))
-      {
-        // Create word based on the buffer up to here
-        WordInline wiResult=new WordInline(
-          sb.substring(0,i+1),f,c);
-        sb.delete(0,i+1);
-        return wiResult;
-      }
-    }
+	  LayoutMetrics.textMeasurements.increment();
+	  return (int)(f.getStringBounds(text,start,start+length,getFontRenderContext()).getWidth()+0.5f);
+  }
 
-    // Return whole buffer
-    WordInline wiResult=new WordInline(sb.toString(),f,c);
-    sb.setLength(0);
-    return wiResult;
+  private static Rectangle getBounds(char[] text,int start,int length,Font f)
+  {
+	  LayoutMetrics.textMeasurements.increment();
+	  return f.getStringBounds(text,start,start+length,getFontRenderContext()).getBounds();
+  }
+  
+  /**
+   * @param partStart Start of part
+   * @param partEnd End of part
+   * @return Width of the characters from partStart up to partEnd (measured
+   *   from partStart, as that's how they're drawn)
+   */
+  private int measure(int partStart,int partEnd)
+  {
+		return partEnd==partStart ? 0 : measure(text,start+partStart,partEnd-partStart,f);
+  }
+  
+  /**
+   * @param partStart Start of part
+   * @param partEnd End of part
+   * @return End of part with trailing whitespace removed
+   */
+  private int getTrimmedEnd(int partStart,int partEnd)
+  {
+		int end=partEnd;
+		for(;end>partStart;end--)
+		{
+			if(!Character.isWhitespace(text[start+end-1]))
+				break;
+		}
+		return end;
   }
 
   /**
-	 * Gets next word from plaintext stringbuffer.
-   * @param sb Buffer
+	 * Gets next word from plain text.
+   * @param text Buffer (the word will refer to this, so don't change it)
+   * @param pos Position of next word
    * @param asStyle Style (tag stack)
-   * @param sc Style context
-   * @param n Node (not sure what this is for)
-   * @param iPos Pos within node (ditto)
+   * @param style Style resolved for that tag stack
    * @return Next word, or null if none remain
-   * @throws LayoutException 
 	 */
-  static WordInline nextWord(StringBuffer sb,String[] asStyle,StyleContext sc,Node n,int iPos) throws LayoutException
+  static WordInline nextWord(char[] text,int pos,String[] asStyle,Style style)
   {
-    if(sb.length()==0) return null;
-
-    for(int i=0;i<sb.length();i++)
+    if(pos>=text.length) return null;
+    LayoutMetrics.wordsCreated.increment();
+    return new WordInline(text,pos,getWordLength(text,pos),asStyle,style);
+  }
+  
+  /**
+   * @param text Buffer
+   * @param pos Position of word
+   * @return Length of word up to and including the first whitespace, or the
+   *   rest of the buffer if there isn't any
+   */
+  private static int getWordLength(char[] text,int pos)
+  {
+    for(int i=pos;i<text.length;i++)
     {
-      if(Character.isWhitespace(sb.charAt(i)))
+      if(Character.isWhitespace(text[i]))
       {
-        // Create word based on the buffer up to here
-        WordInline wiResult=new WordInline(
-          sb.substring(0,i+1),asStyle,sc);
-        sb.delete(0,i+1);
-        return wiResult;
+      	return i+1-pos;
       }
     }
-
-    // Return whole buffer
-    WordInline wiResult=new WordInline(sb.toString(),asStyle,sc);
-    sb.setLength(0);
-    return wiResult;
+    return text.length-pos;
   }
 
-  /**
-	 * Obtain width of item
-	 */
   @Override
 	public int getWidth()
   {
-  		return wrapped ? wrappedWidth : width;
-  }
-  
-  @Override
-	public void setWrappedIfNecessary(int lineWidth)
-  {
-  	  if(wrappedLineWidth==lineWidth) return;
-
-  		if(!allowWrap || lineWidth>=width || lineWidth==-1)
-  		{
-  			wrappedLineWidth=lineWidth; // Just to stop us recalculating...
-  			wrapped=false;
-  			wrappedOverflow=null;  			
-  			wrappedWord=null;
-  		}
-  		else
-  		{
-  			// Split the word
-  			int lastWidth=-1;
-  			for(int character=1;character<word.length();character++)
-  			{
-  				int widthSoFar=getWidth(word.substring(0,character+1),f);
-  				
-  				if(lastWidth!=-1 && widthSoFar>lineWidth)
-  				{
-  					wrapped=true;
-  					wrappedLineWidth=lineWidth;
-  					wrappedWord=word.substring(0,character-1);
-  					wrappedWidth=lastWidth;
-  					wrappedOverflow=new WordInline(this,character-1);
-  					break;
-  				}
-  				lastWidth=widthSoFar;
-  			}
-  		}
+		return width;
   }
   
-  @Override
-	public LayoutInline getWrapped()
-  {
-		return wrappedOverflow;
-  }
-
-	/**
-	 * Obtain width of item when used at end of line (excluding final space)
-	 */
 	@Override
 	public int getWidthLineFinal()
 	{
 		return widthLineFinal;
 	}
 
+	@Override
+	public int getWidth(int partStart,int partEnd)
+	{
+		if(partStart==0 && partEnd==length) return width;
+		return measure(partStart,partEnd);
+	}
+
+	@Override
+	public int getWidthLineFinal(int partStart,int partEnd)
+	{
+		// Only the end of the word has the terminating space
+		if(partEnd<length) return getWidth(partStart,partEnd);
+		if(partStart==0) return widthLineFinal;
+		return measure(partStart,getTrimmedEnd(partStart,partEnd));
+	}
+
+	@Override
+	public int getSplit(int partStart,int lineWidth)
+	{
+		// A space at the end doesn't need to fit, as it goes at the line end
+		if(!allowWrap || lineWidth>=getWidthLineFinal(partStart,length)) 
+			return length;
+		
+		// Split the word after the last character that fits (there is always
+		// at least one on the line)
+		for(int character=partStart+1;character<length;character++)
+		{
+			if(measure(partStart,character+1)>lineWidth)
+				return character;
+		}
+		return length;
+	}
+
+  @Override
+	public int getMinWrappedWidth()
+  {
+		if(!allowWrap) return widthLineFinal;
+		
+		// Can be split into single characters
+		int min=0;
+		for(int i=start;i<start+length;i++)
+		{
+			if(!Character.isWhitespace(text[i]))
+				min=Math.max(min,measure(text,i,1,f));
+		}
+		return Math.min(min,widthLineFinal);
+  }
+  
   /**
 	 * Obtain ascent above baseline
 	 */
@@ -578,110 +679,140 @@ class WordInline implements LayoutInline
     return descent;
   }
   
+	@Override
+	public void paint(Graphics2D g2,int x,int baselineY,boolean highlighted)
+  {
+		GlyphRun.Builder b=new GlyphRun.Builder();
+		addToRuns(b,0,0,length,width,highlighted ? 0 : length,length);
+		for(GlyphRun run : b.getRuns())
+		{
+			run.paint(g2,x,baselineY);
+		}
+  }
+
   /**
-	 * Paint into given context
-	 */
-  @Override
-	public void paint(Graphics2D g2,int iX,int iBaselineY)
+   * Paints a background image (outline), creating it if necessary. When 
+   * painting a view that will be repainted (see {@link ImageInline#KEY_REPAINT}),
+   * an image still being created in the pool is left out instead.
+   * @param g2 Graphics context
+   * @param key Key of image
+   * @param x X location
+   * @param baselineY Y baseline
+   */
+  static void paintBackground(Graphics2D g2,BackgroundImageCache.Key key,
+  	int x,int baselineY)
   {
-		if(useBackground)
+		BufferedImage backgroundImage=BackgroundImageCache.get(key);
+		if(backgroundImage==null)
 		{
-			BufferedImage backgroundImage=getBackgroundImage();
-			if(backgroundImage==null)
+			if(g2.getRenderingHint(ImageInline.KEY_REPAINT)!=null
+				&& isBackgroundPending(key))
 			{
-				backgroundImage=new BufferedImage(widthLineFinal+2*IMAGEBORDER,ascent+descent+2*IMAGEBORDER,BufferedImage.TYPE_INT_ARGB);
-				if(outline!=null)
-				{
-  				render(backgroundImage.createGraphics(),IMAGEBORDER,ascent+IMAGEBORDER,true);
-  				doOutline(backgroundImage,outline);
-				}
-				putBackgroundImage(backgroundImage);
+				return;
 			}
-			g2.drawImage(backgroundImage,iX-IMAGEBORDER,iBaselineY-ascent-IMAGEBORDER,null);
+			backgroundImage=createBackgroundImage(key);
 		}
-		render(g2,iX,iBaselineY,false);
+		g2.drawImage(backgroundImage,x-IMAGEBORDER,baselineY-key.getAscent()-IMAGEBORDER,null);
   }
 
-  static boolean first=true,first2=true;
-	private void render(Graphics2D g2,int iX,int iBaselineY,boolean prerender)
-	{
-		g2.setFont(f);
-    
+  /**
+   * Renders a background image and stores it in the cache. May be called
+   * from any thread.
+   * @param key Key describing image
+   * @return New image
+   */
+  private static BufferedImage createBackgroundImage(BackgroundImageCache.Key key)
+  {
+		int ascent=key.getAscent(),descent=key.getDescent();
+		BufferedImage backgroundImage=new BufferedImage(key.getWidth()+2*IMAGEBORDER,
+			ascent+descent+2*IMAGEBORDER,BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2=backgroundImage.createGraphics();
+		g2.setFont(key.getFont());
+		int x=IMAGEBORDER,baselineY=ascent+IMAGEBORDER;
+		Color bg=key.getBackground();
 		if(bg!=RGBPropertyData.TRANSPARENT)
 		{
 			g2.setColor(bg);
-			g2.fillRect(iX,iBaselineY-ascent,wrapped ? wrappedWidth : width,ascent+descent);
+			g2.fillRect(x,baselineY-ascent,key.getFillWidth(),ascent+descent);
 		}
-		
-		g2.setColor(c);
-		if(underline)
-			g2.drawLine(iX,iBaselineY+2,iX+(wrapped ? wrappedWidth : width),iBaselineY+2);
-		
-		String currentWord=wrapped?wrappedWord:word;
-		int currentHighlightSize;
-		if(wrapped)
+		g2.setColor(key.getColour());
+		if(key.isUnderline())
+			g2.drawLine(x,baselineY+2,x+key.getFillWidth(),baselineY+2);
+		g2.drawString(key.getText(),x,baselineY);
+		g2.dispose();
+		doOutline(backgroundImage,key.getOutline());
+		BackgroundImageCache.put(key,backgroundImage);
+		return backgroundImage;
+  }
+
+  /**
+   * Adds part of this word to the runs for a line. The part is split into 
+   * separate segments where the highlight starts and ends; the builder joins
+   * segments with the same style into a single run.
+   * @param rb Run builder
+   * @param x X position of part relative to line
+   * @param partStart Start of part
+   * @param partEnd End of part
+   * @param partWidth Width of part
+   * @param highlightStart Start of highlight within word
+   * @param highlightEnd End of highlight within word (no highlight if this
+   *   isn't after highlightStart)
+   */
+  void addToRuns(GlyphRun.Builder rb,int x,int partStart,int partEnd,
+  	int partWidth,int highlightStart,int highlightEnd)
+  {
+		if(outline!=null)
+			rb.addBackground(getBackgroundKey(partStart,partEnd),x);
+
+		int hs=Math.max(highlightStart,partStart),he=Math.min(highlightEnd,partEnd);
+		if(hs>=he)
 		{
-		 if(highlightStart >= wrappedWord.length())
-			 currentHighlightSize=0;
-		 else
-			 currentHighlightSize=Math.min(highlightSize,wrappedWord.length()-highlightStart);
+			rb.add(f,c,bg,underline,false,ascent,descent,text,start+partStart,
+				partEnd-partStart,x,partWidth);
+			return;
+		}
+
+		int endX=x+partWidth;
+		if(hs>partStart)
+		{
+			int beforeWidth=measure(partStart,hs);
+			rb.add(f,c,bg,underline,false,ascent,descent,text,start+partStart,
+				hs-partStart,x,beforeWidth);
+			x+=beforeWidth;
+		}
+
+		if(he < partEnd)
+		{
+			int highlightWidth=getBounds(text,start+hs,he-hs,f).width;
+			rb.add(f,c,bg,underline,true,ascent,descent,text,start+hs,he-hs,x,
+				highlightWidth);
+			x+=highlightWidth;
+			rb.add(f,c,bg,underline,false,ascent,descent,text,start+he,
+				partEnd-he,x,endX-x);
 		}
 		else
-			currentHighlightSize=highlightSize;
+		{
+			rb.add(f,c,bg,underline,true,ascent,descent,text,start+hs,he-hs,x,
+				endX-x);
+		}
+  }
 
-    if(currentHighlightSize==0)
-    {
-			g2.setColor(c);
-			g2.drawString(currentWord,iX,iBaselineY);			
-    }
-    else
-    {
-    	if(highlightStart>0)
-    	{
-			// Draw string before highlight
-			g2.setColor(c);
-			g2.drawString(currentWord.substring(0,highlightStart),iX,iBaselineY);
-			iX+=getWidth(currentWord.substring(0,highlightStart),f);
-    	}
-    	
-    	// Draw highlight
-			g2.setColor(SystemColor.textHighlight);
-	    	Rectangle r=getBounds(currentWord.substring(highlightStart,highlightStart+currentHighlightSize),f);
-			r.translate(iX,iBaselineY);
-			g2.fill(r);			
-			g2.setColor(SystemColor.textHighlightText);
-			g2.drawString(
-			  currentWord.substring(highlightStart,highlightStart+currentHighlightSize),
-			  iX,iBaselineY);
-			iX+=r.width;
-			
-			// Draw string after highlight
-			if(highlightStart+currentHighlightSize < word.length())
-			{
-				g2.setColor(c);
-				g2.drawString(currentWord.substring(highlightStart+currentHighlightSize),
-				  iX,iBaselineY);				
-			}
-			
-    }
-	}
-  
   @Override
 	public boolean breakAfter()
   {
-    return bAllowBreakAfter || wrapped;
+    return bAllowBreakAfter;
   }
 
   @Override
 	public boolean breakBefore()
   {
-    return bAllowBreakBefore || wrappedParent!=null;
+    return bAllowBreakBefore;
   }
 
   @Override
 	public String toString()
   {
-    return "["+word+"]";
+    return "["+new String(text,start,length)+"]";
   }
 
   /**
@@ -693,139 +824,49 @@ class WordInline implements LayoutInline
     return bSkipAtLineStart;
   }
   
-  /**
-	 * Start position of highlight
-	 */
-  private int highlightStart=0;
-  
-  /**
-	 * Length in characters of highlight
-	 */
-  private int highlightSize=0;
-
-	/**
-	 * Remove highlighting from this item
-	 */
 	@Override
-	public void clearHighlight()
+	public String getText()
 	{
-		highlightSize=0;
+		return new String(text,start,length);
 	}
-  
-	/** Set highlight on this item
-	 * @param iStartX Begining (relative to this item) or Layout.HIGHLIGHT_TOSTART
-	 * @param iEndX End (relative to this item) or Layout.HIGHLIGHT_TOEND
-	 */
+	
 	@Override
-	public void setHighlight(int iStartX,int iEndX)
+	public NodePos getNodePos(int partStart,int partEnd,int x)
 	{
-		// Deal with entire word selections
-		String currentWord=wrapped ? wrappedWord : word;
-		if(iStartX<=0 && iEndX>=(wrapped ? wrappedWidth : width))
-		{
-			highlightStart=0;
-			highlightSize=currentWord.length();
-			informWrappedParentHighlight();
-			return;
-		}
-
-		// Find out the character position of selection
-		highlightStart=-1; highlightSize=0;
-		for(int iCharacter=0;iCharacter<currentWord.length();iCharacter++)
-		{
-			int iWidthSoFar=getWidth(currentWord.substring(0,iCharacter+1),f);
-			
-			// Check if highlight should have started yet  
-			if(highlightStart==-1 && iWidthSoFar>iStartX)
-			{
-				highlightStart=iCharacter;
-				highlightSize=currentWord.length()-highlightStart;
-			}
-			
-			// End of highlight?
-			if(highlightStart!=-1 && iWidthSoFar>iEndX) 
-			{
-				highlightSize=iCharacter-highlightStart;
-				break;				
-			} 
-		}
-		
-		informWrappedParentHighlight();
+		int character=getOffset(partStart,partEnd,x);
+		return character<partEnd ? new NodePos(this,character) : null;
 	}
-	
-	/**
-	 * Used to inform the wrapped parent about the highlight. 
-	 * <p>
-	 * Wrapped parents
-	 * actually maintain their own information about the full range of highlight
-	 * (because the wrapped-child words may be discarded any time during resize)
-	 * so this is how we keep them informed. 
-	 * <p>
-	 * Note that it only works because
-	 * setHighlight is always called in document order i.e. the parent (which
-	 * is placed before) will have already received the setHighlight.
-	 */
-	private void informWrappedParentHighlight()
+
+	@Override
+	public int getOffset(int partStart,int partEnd,int x)
 	{
-		if(wrappedParent!=null)
+		for(int character=partStart;character<partEnd;character++)
 		{
-			if(wrappedParent.highlightSize==0)
-			{
-				// Parent doesn't have a highlight yet, so give it the whole lot
-				wrappedParent.highlightStart=highlightStart+wrappedParent.wrappedWord.length();
-				wrappedParent.highlightSize=highlightSize;				
-			}
-			else
-			{
-				// Parent does include the highlight, so extend it to include this
-				wrappedParent.highlightSize=wrappedParent.wrappedWord.length()-wrappedParent.highlightStart+highlightSize;
-			}
-			// And it should tell its parent too
-			wrappedParent.informWrappedParentHighlight();
+			if(measure(partStart,character+1)>x)
+				return character;
 		}
+		return partEnd;
 	}
-	
-	/** @return The currently highlighted string from this inline */
-	@Override
-	public String getHighlightText()
-	{
-		if(highlightSize==0 || wrappedParent!=null) return "";
-		return word.substring(highlightStart,highlightStart+highlightSize);
-	}
-	
+
 	@Override
-	public String getText()
-	{
-		return wrappedParent==null ? word : "";
-	}
-	
-	public WordInline getWrappedRoot()
+	public Rectangle getCharacterBounds(int partStart,int partEnd,int character)
 	{
-		return wrappedParent!=null ? wrappedParent.getWrappedRoot() : this;
+		int x=measure(partStart,character);
+		return new Rectangle(x,0,measure(partStart,character+1)-x,0);
 	}
-	
+
 	@Override
-	public NodePos getNodePos(int iX)
+	public long getRetainedBytes()
 	{
-		String currentWord=wrapped ? wrappedWord : word;
-		// Find out the character position of selection
-		for(int character=0;character<currentWord.length();character++)
-		{
-			int widthSoFar=getWidth(currentWord.substring(0,character+1),f);
-			
-			// Are we there yet?  
-			if(widthSoFar>iX)
-			{
-				return new NodePos(getWrappedRoot(),character+wrappedOffset);
-			}
-		}
-		return null;
+		// Object with its fields, plus its part of the shared text buffer
+		return 96+2*length;
 	}
 
 	@Override
 	public String debugDisplay(String indent)
 	{
-		return indent+"WordInline ["+StringUtils.join("/",context)+"]: "+word+"\n";
+		return indent+"WordInline ["+StringUtils.join("/",context)+"]: "+
+			new String(text,start,length)+"\n";
 	}
 
 	@Override
@@ -834,4 +875,4 @@ class WordInline implements LayoutInline
 		return context;
 	}
 	
-}
+}
\ No newline at end of file
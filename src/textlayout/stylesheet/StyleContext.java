@@ -21,6 +21,7 @@ package textlayout.stylesheet;
 import java.awt.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.JLabel;
 
@@ -87,6 +88,12 @@ public class StyleContext
 	{
 		wipeCache();
 	}
+	
+	/** Incremented whenever stylesheets are added or removed */
+	private volatile int modCount;
+	
+	/** Lookups (in all contexts) that were and weren't found in the cache */
+	private static AtomicLong cacheHits=new AtomicLong(),cacheMisses=new AtomicLong();
 
 	/**
 	 * Creates a clone of an existing style context that you can modify.
@@ -489,6 +496,7 @@ public class StyleContext
 	
 	private void wipeCache()
 	{
+		modCount++;
 		cacheFontSize=new HashMap<String, Serializable>();
 		cacheNumber=new HashMap<String, Serializable>();
 		cacheString=new HashMap<String, Serializable>();
@@ -497,6 +505,28 @@ public class StyleContext
 		cacheInsets=new HashMap<String, Serializable>();
 	}
 	
+	/**
+	 * Anything worked out from this context should be worked out again if
+	 * this number has changed since.
+	 * @return Number that changes whenever stylesheets are added or removed
+	 */
+	public int getModCount()
+	{
+		return modCount;
+	}
+	
+	/** @return Number of lookups, in all style contexts, found in the cache */
+	public static long getCacheHits()
+	{
+		return cacheHits.get();
+	}
+	
+	/** @return Number of lookups, in all style contexts, not found in the cache */
+	public static long getCacheMisses()
+	{
+		return cacheMisses.get();
+	}
+	
 	private static String getCacheKey(String[] context, Property p)
 	{
 		return StringUtils.join("\n",context)+(p==null?"":"\n\n"+p);
@@ -514,7 +544,11 @@ public class StyleContext
 		String key=getCacheKey(context,null);
 		Integer i=(Integer)cacheFontSize	.get(key);
 		if(i!=null)
+		{
+			cacheHits.incrementAndGet();
 			return i.intValue();
+		}
+		cacheMisses.incrementAndGet();
 		
 		int iReturn;
 		NumberPropertyData npd=(NumberPropertyData)getPropertyValue(Property.FONT_SIZE,context);
@@ -545,7 +579,11 @@ public class StyleContext
 		String key=getCacheKey(context, p);
 		Integer i=(Integer)cacheNumber.get(key);
 		if(i!=null)
+		{
+			cacheHits.incrementAndGet();
 			return i.intValue();
+		}
+		cacheMisses.incrementAndGet();
 
 		int iReturn;
 		try
@@ -584,7 +622,11 @@ public class StyleContext
 		String key=getCacheKey(context, p);
 		String s=(String)cacheString.get(key);
 		if(s!=null)
+		{
+			cacheHits.incrementAndGet();
 			return s;
+		}
+		cacheMisses.incrementAndGet();
 		
 		try
 		{
@@ -619,7 +661,11 @@ public class StyleContext
 		String key=getCacheKey(context, p);
 		Color c=(Color)cacheRGB.get(key);
 		if(c!=null)
+		{
+			cacheHits.incrementAndGet();
 			return c;
+		}
+		cacheMisses.incrementAndGet();
 		
 		try
 		{
@@ -654,7 +700,11 @@ public class StyleContext
 		String key=getCacheKey(context,p[0]);
 		Insets i=(Insets)cacheInsets.get(key);
 		if(i!=null)
+		{
+			cacheHits.incrementAndGet();
 			return i;
+		}
+		cacheMisses.incrementAndGet();
 		
 		i=new Insets(getNumber(p[0],context),getNumber(p[1],context),getNumber(p[2],context),getNumber(p[3],context));
 		cacheInsets.put(key,i);
@@ -672,7 +722,11 @@ public class StyleContext
 		String key=getCacheKey(context,null);
 		Font f=(Font)cacheFont.get(key);
 		if(f!=null)
+		{
+			cacheHits.incrementAndGet();
 			return f;
+		}
+		cacheMisses.incrementAndGet();
 		
 		String name=getString(Property.FONT_NAME,context);
 		if(name.equals(FontProperty.DEFAULT))
@@ -0,0 +1,42 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.*;
+
+/**
+ * Runs every test suite.
+ */
+public class AllTests
+{
+	/**
+	 * @param args Command-line options
+	 */
+	public static void main(String[] args)
+	{
+		List<Test> tests=new LinkedList<Test>();
+		tests.addAll(Arrays.asList(ContentWidthTest.getTests()));
+		tests.addAll(Arrays.asList(LayoutFlowTest.getTests()));
+		tests.addAll(Arrays.asList(ConcurrencyTest.getTests()));
+		tests.addAll(Arrays.asList(HeightIndexTest.getTests()));
+		tests.addAll(Arrays.asList(SearchTest.getTests()));
+		tests.addAll(Arrays.asList(SpillFileTest.getTests()));
+		Test.runAll("All tests",Test.toArray(tests),args);
+	}
+}
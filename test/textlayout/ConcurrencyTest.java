@@ -0,0 +1,495 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+import javax.swing.SwingUtilities;
+
+import org.w3c.dom.Node;
+
+import textlayout.stylesheet.*;
+import util.xml.XML;
+
+/**
+ * Checks that views can paint and hit-test a layout while another thread
+ * adds blocks, restyles them and flows them at other widths, that parallel
+ * reflow copes with interrupts and failures, that word outlines can be 
+ * created in background, and that blocks added in background from another
+ * thread arrive in order.
+ */
+public class ConcurrencyTest
+{
+	/** Widths used by readers, and by the writer as well */
+	private final static int NARROW=150,WIDE=600,OTHER=333;
+	
+	/** Number of lines added */
+	private final static int LINES=400;
+	
+	/** Height of area painted */
+	private final static int PAINT_HEIGHT=200;
+	
+	/**
+	 * @param sc Styles
+	 * @param index Line number
+	 * @param compact True to generate compact blocks
+	 * @return Blocks for one line of text
+	 * @throws Exception Any error
+	 */
+	private static LayoutBlock[] generate(StyleContext sc,int index,boolean compact) 
+		throws Exception
+	{
+		StringBuffer sb=new StringBuffer("<output><line>Line "+index);
+		for(int i=0;i<index%5;i++) sb.append(" with some more words");
+		sb.append("</line></output>");
+		org.w3c.dom.Element e=XML.parse(sb.toString()).getDocumentElement();
+		return compact ? CompactBlock.getLayout(sc,e) : LayoutGenerator.getLayout(sc,e);
+	}
+	
+	/**
+	 * @param sc Styles
+	 * @param width Width
+	 * @return Height of a new layout of all the lines at that width only
+	 * @throws Exception Any error
+	 */
+	private static int getExpectedHeight(StyleContext sc,int width) throws Exception
+	{
+		Layout l=new Layout();
+		l.reflow(width);
+		for(int i=0;i<LINES;i++)
+		{
+			for(LayoutBlock lb : generate(sc,i,false)) l.addBlock(sc,lb);
+		}
+		return l.getHeight();
+	}
+	
+	/**
+	 * View that repeatedly paints and hit-tests the layout until stopped, 
+	 * checking that what it sees is consistent.
+	 */
+	private static class Reader extends Thread
+	{
+		private final Layout l;
+		private final int width;
+		private final boolean highlight;
+		private volatile boolean stop;
+		private Throwable failure;
+		private int rounds;
+		
+		/**
+		 * @param l Layout
+		 * @param width Width of view
+		 * @param highlight True to set and get the highlight as well
+		 */
+		Reader(Layout l,int width,boolean highlight)
+		{
+			this.l=l;
+			this.width=width;
+			this.highlight=highlight;
+		}
+		
+		@Override
+		public void run()
+		{
+			LayoutFlow f=l.acquireFlow(width);
+			try
+			{
+				BufferedImage image=new BufferedImage(width,PAINT_HEIGHT,
+					BufferedImage.TYPE_INT_RGB);
+				int lastHeight=0;
+				while(!stop || rounds==0)
+				{
+					// Only blocks are added, so the layout never gets shorter
+					int height=l.getHeight(f);
+					Test.check(height>=lastHeight,"Height went from "+lastHeight+" to "+height);
+					lastHeight=height;
+					
+					int start=Math.max(0,height-PAINT_HEIGHT);
+					Graphics2D g=image.createGraphics();
+					l.paint(g,f,0,0,width,start,PAINT_HEIGHT);
+					g.dispose();
+					
+					int number=l.getAnchorBlock(f,height/2);
+					if(number!=-1)
+					{
+						int top=l.getAnchorY(f,number,0);
+						Test.check(top>=0 && top<=height/2,"Anchor block at "+top+
+							" for position "+height/2);
+					}
+					l.getNodePos(f,width/2,height/2,new LinkedList<LayoutThing>());
+					if(highlight)
+					{
+						l.setHighlight(f,0,start,width,start+PAINT_HEIGHT);
+						Test.check(l.getHighlightText()!=null,"Highlight text");
+					}
+					rounds++;
+				}
+			}
+			catch(Throwable t)
+			{
+				failure=t;
+			}
+			finally
+			{
+				l.releaseFlow(f);
+			}
+		}
+		
+		/**
+		 * Stops the reader and waits for it.
+		 * @throws Exception Whatever the reader failed with, if anything
+		 */
+		void finish() throws Exception
+		{
+			stop=true;
+			join();
+			if(failure instanceof Exception) throw (Exception)failure;
+			if(failure!=null) throw new Error(failure);
+		}
+	}
+	
+	/**
+	 * Adds blocks and changes styles and widths while readers use the layout.
+	 */
+	private static class ReadersTest extends Test
+	{
+		private boolean compact;
+		
+		ReadersTest(boolean compact)
+		{
+			super("Readers while adding"+(compact ? " (compact)" : ""));
+			this.compact=compact;
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			StyleContext sc=StyleContext.getDefault(false);
+			Layout l=new Layout();
+			l.setParallelReflow(true);
+			Reader[] readers=
+			{
+				new Reader(l,NARROW,false),new Reader(l,NARROW,true),new Reader(l,WIDE,false)
+			};
+			for(Reader r : readers) r.start();
+			try
+			{
+				for(int i=0;i<LINES;i++)
+				{
+					for(LayoutBlock lb : generate(sc,i,compact)) l.addBlock(sc,lb);
+					if(i%50==25)
+					{
+						// Another view comes and goes
+						l.releaseFlow(l.acquireFlow(OTHER+i));
+					}
+					if(i==LINES/2) l.updateStyle(sc);
+				}
+			}
+			finally
+			{
+				for(Reader r : readers) r.finish();
+			}
+			
+			LayoutFlow narrow=l.acquireFlow(NARROW),wide=l.acquireFlow(WIDE);
+			checkEquals(getExpectedHeight(sc,NARROW),l.getHeight(narrow),"Narrow height");
+			checkEquals(getExpectedHeight(sc,WIDE),l.getHeight(wide),"Wide height");
+			checkEquals(LINES,l.getBlockCount(),"Block count");
+		}
+	}
+	
+	/**
+	 * Block that fails when flowed at one width.
+	 */
+	private static class FailingBlock implements LayoutBlock
+	{
+		private final LayoutBlock inner;
+		private final RuntimeException failure;
+		
+		/**
+		 * @param inner Block that does the work
+		 * @param failure Thrown when flowed at {@link ConcurrencyTest#OTHER}
+		 */
+		FailingBlock(LayoutBlock inner,RuntimeException failure)
+		{
+			this.inner=inner;
+			this.failure=failure;
+		}
+		
+		@Override
+		public BlockFlow flow(int width,BlockFlow previous)
+		{
+			if(width==OTHER) throw failure;
+			return inner.flow(width,null);
+		}
+
+		@Override
+		public LayoutBlock updateStyle(StyleContext sc) throws LayoutException
+		{
+			return new FailingBlock(inner.updateStyle(sc),failure);
+		}
+
+		@Override
+		public LayoutBlock setCurrent(StyleContext sc,boolean current) throws LayoutException
+		{
+			LayoutBlock lb=inner.setCurrent(sc,current);
+			return lb==inner ? this : new FailingBlock(lb,failure);
+		}
+
+		@Override
+		public int getMinContentWidth()
+		{
+			return inner.getMinContentWidth();
+		}
+
+		@Override
+		public int getMaxContentWidth()
+		{
+			return inner.getMaxContentWidth();
+		}
+
+		@Override
+		public int getFlowCategory()
+		{
+			return inner.getFlowCategory();
+		}
+
+		@Override
+		public long getRetainedBytes()
+		{
+			return inner.getRetainedBytes();
+		}
+
+		@Override
+		public int getWordCount()
+		{
+			return inner.getWordCount();
+		}
+
+		@Override
+		public String getText()
+		{
+			return inner.getText();
+		}
+
+		@Override
+		public int getTextLength()
+		{
+			return inner.getTextLength();
+		}
+
+		@Override
+		public String getText(int start,int end)
+		{
+			return inner.getText(start,end);
+		}
+
+		@Override
+		public String debugDisplay(String indent)
+		{
+			return inner.debugDisplay(indent);
+		}
+
+		@Override
+		public void buildXML(Node parent,Map<LayoutInline,LayoutInline.NodePos> translation)
+		{
+			inner.buildXML(parent,translation);
+		}
+	}
+	
+	/**
+	 * Flows in parallel when the thread is interrupted and when a block 
+	 * fails.
+	 */
+	private static class ParallelTest extends Test
+	{
+		ParallelTest()
+		{
+			super("Parallel reflow");
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			StyleContext sc=StyleContext.getDefault(false);
+			Layout l=new Layout();
+			l.setParallelReflow(true);
+			l.reflow(NARROW);
+			RuntimeException failure=new IllegalStateException("Test failure");
+			for(int i=0;i<LINES;i++)
+			{
+				LayoutBlock lb=generate(sc,i,false)[0];
+				l.addBlock(sc,i==LINES/2 ? new FailingBlock(lb,failure) : lb);
+			}
+			
+			// Interrupted before it starts, so it's all done in this thread
+			Thread.currentThread().interrupt();
+			l.reflow(WIDE);
+			check(Thread.interrupted(),"Interrupt kept");
+			checkEquals(getExpectedHeight(sc,WIDE),l.getHeight(),"Height after interrupt");
+			
+			try
+			{
+				l.reflow(OTHER);
+				check(false,"Failure thrown");
+			}
+			catch(IllegalStateException e)
+			{
+				check(e==failure,"Same failure thrown");
+			}
+		}
+	}
+	
+	/**
+	 * Creates word outlines in the pool and calls back once they all exist.
+	 */
+	private static class OutlineTest extends Test
+	{
+		OutlineTest()
+		{
+			super("Outlines created in background");
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			BackgroundImageCache.clear();
+			Font f=new Font("Dialog",Font.PLAIN,12);
+			List<BackgroundImageCache.Key> keys=new LinkedList<BackgroundImageCache.Key>();
+			for(int i=0;i<LINES;i++)
+			{
+				char[] text=("Word "+i).toCharArray();
+				keys.add(new BackgroundImageCache.Key(text,0,text.length,f,
+					Color.BLACK,Color.WHITE,Color.BLUE,false,50,50,12,3));
+			}
+			
+			final CountDownLatch done=new CountDownLatch(1);
+			WordInline.prepareBackgroundsLater(keys,new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					done.countDown();
+				}
+			});
+			check(done.await(10,TimeUnit.SECONDS),"Callback run");
+			for(BackgroundImageCache.Key key : keys)
+			{
+				check(BackgroundImageCache.contains(key),"Image created");
+			}
+			
+			// Nothing left to wait for, so no callback
+			WordInline.prepareBackgroundsLater(keys,new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					throw new IllegalStateException("Unexpected callback");
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Adds blocks in background from another thread while the style changes.
+	 */
+	private static class BackgroundTest extends Test
+	{
+		BackgroundTest()
+		{
+			super("Blocks added in background");
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			final StyleContext sc=StyleContext.getDefault(false);
+			final SharedLayout shared=new SharedLayout(sc);
+			for(int i=0;i<LINES;i++)
+			{
+				shared.addBlocksInBackground(XML.parse(
+					"<output><line>Line "+i+"</line></output>").getDocumentElement());
+				if(i==LINES/2)
+				{
+					SwingUtilities.invokeAndWait(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							try
+							{
+								shared.updateStyle(sc);
+							}
+							catch(LayoutException e)
+							{
+								throw new Error(e);
+							}
+						}
+					});
+				}
+			}
+			
+			long end=System.currentTimeMillis()+10000;
+			final int[] count=new int[1];
+			while(count[0]<LINES && System.currentTimeMillis()<end)
+			{
+				Thread.sleep(10);
+				SwingUtilities.invokeAndWait(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						count[0]=shared.getNumBlocks();
+					}
+				});
+			}
+			checkEquals(LINES,count[0],"Block count");
+			LayoutBlock[] blocks=shared.getLayout().getBlocks(0,LINES);
+			for(int i=0;i<LINES;i++)
+			{
+				checkEquals("Line "+i,blocks[i].getText().trim(),"Block "+i);
+			}
+		}
+	}
+	
+	/**
+	 * @return Tests in this suite
+	 */
+	static Test[] getTests()
+	{
+		List<Test> tests=new LinkedList<Test>();
+		tests.add(new ReadersTest(false));
+		tests.add(new ReadersTest(true));
+		tests.add(new ParallelTest());
+		tests.add(new OutlineTest());
+		tests.add(new BackgroundTest());
+		return Test.toArray(tests);
+	}
+	
+	/**
+	 * @param args Command-line options
+	 */
+	public static void main(String[] args)
+	{
+		Test.runAll("Concurrency tests",getTests(),args);
+	}
+}
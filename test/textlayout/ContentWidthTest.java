@@ -0,0 +1,228 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.*;
+
+import textlayout.stylesheet.*;
+import util.xml.XML;
+
+/**
+ * Checks that the content widths worked out from word widths agree with
+ * what reflow actually does at those widths.
+ */
+public class ContentWidthTest
+{
+	/** Styles for indented and non-wrapping text */
+	private final static String STYLES=
+		"indented { type:block; text-indent:10; text-first-indent:15; }" +
+		"nowrap { type:block; wrap-style:none; }";
+	
+	/** Width that nothing in the tests needs to wrap at */
+	private final static int WIDE=100000;
+	
+	/** Text of each test, inside a block element */
+	private final static String[] TEXTS=
+	{
+		"Hello",
+		"Hello world ",
+		"A few short words that will need wrapping at most widths",
+		"Mixed <em>styles</em> with no<em>spaces</em>between some",
+		"Supercalifragilisticexpialidocious and a shorter tail",
+		"tail then Supercalifragilisticexpialidocious"
+	};
+	
+	/** Blocks the texts are tested in */
+	private final static String[] BLOCKS={"line","indented","nowrap"};
+	
+	/**
+	 * @param sc Styles
+	 * @param block Block element
+	 * @param text Text inside block
+	 * @return Generated block
+	 * @throws Exception Any error
+	 */
+	private static LayoutBlock generate(StyleContext sc,String block,String text) 
+		throws Exception
+	{
+		LayoutBlock[] blocks=LayoutGenerator.getLayout(sc,XML.parse(
+			"<output><"+block+">"+text+"</"+block+"></output>").getDocumentElement());
+		Test.checkEquals(1,blocks.length,"Blocks generated");
+		return blocks[0];
+	}
+	
+	/**
+	 * Checks max-content width for one text.
+	 */
+	private static class MaxTest extends Test
+	{
+		private String block,text;
+		
+		MaxTest(String block,String text)
+		{
+			super("Max content width ["+block+"] "+text);
+			this.block=block;
+			this.text=text;
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			LayoutBlock lb=generate(getStyle(),block,text);
+			int max=lb.getMaxContentWidth();
+			BlockFlow f=lb.flow(WIDE,null);
+			int oneLine=f.getHeight();
+			checkEquals(max,f.getUsedWidth(),"Used width when not wrapped");
+			
+			f=lb.flow(max,f);
+			checkEquals(oneLine,f.getHeight(),"Height at max-content width");
+			checkEquals(max,f.getUsedWidth(),"Used width at max-content width");
+			
+			f=lb.flow(max-1,f);
+			check(f.getHeight()>oneLine || f.getUsedWidth()>max-1,
+				"Fits on one line at less than max-content width");
+		}
+	}
+	
+	/**
+	 * Checks min-content width for one text.
+	 */
+	private static class MinTest extends Test
+	{
+		private String block,text;
+		
+		MinTest(String block,String text)
+		{
+			super("Min content width ["+block+"] "+text);
+			this.block=block;
+			this.text=text;
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			LayoutBlock lb=generate(getStyle(),block,text);
+			int min=lb.getMinContentWidth();
+			check(min<=lb.getMaxContentWidth(),"Min is no more than max");
+			BlockFlow f=lb.flow(min,null);
+			check(f.getUsedWidth()<=min,"Overflows at min-content width ("+
+				f.getUsedWidth()+" > "+min+")");
+			
+			// Unless something was kept together that reflow would split rather
+			// than overflow, any narrower must overflow
+			if(!block.equals("indented") && text.indexOf('<')==-1)
+			{
+				f=lb.flow(min-1,f);
+				check(f.getUsedWidth()>min-1,"Doesn't overflow at less than min-content width");
+			}
+		}
+	}
+	
+	/**
+	 * Checks that letter-wrapped words don't count in full towards min-content
+	 * width.
+	 */
+	private static class WrapTest extends Test
+	{
+		WrapTest()
+		{
+			super("Letter-wrapped words need less than their width");
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			String word="Supercalifragilisticexpialidocious";
+			StyleContext sc=getStyle();
+			int wrapping=generate(sc,"line",word).getMinContentWidth(),
+				notWrapping=generate(sc,"nowrap",word).getMinContentWidth();
+			check(wrapping*4<notWrapping,"Wrapping word min "+wrapping+
+				" vs non-wrapping "+notWrapping);
+		}
+	}
+	
+	/**
+	 * Checks the width a static layout picks for itself.
+	 */
+	private static class StaticTest extends Test
+	{
+		StaticTest()
+		{
+			super("Static layout preferred width");
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			StaticLayout sl=new StaticLayout("<line>Short label </line>",-1);
+			check(sl.getPreferredWidth()>0,"Has a width");
+			checkEquals(sl.getMaximumContentWidth(),sl.getPreferredWidth(),
+				"Preferred width of single line");
+			
+			sl.setText("<line>A longer label that has to be wrapped onto a few lines because it is long</line>");
+			check(sl.getPreferredWidth()<=sl.getMaximumContentWidth(),
+				"Preferred width no more than max-content");
+			check(sl.getPreferredWidth()>=sl.getMinimumContentWidth(),
+				"Preferred width no less than min-content");
+		}
+	}
+	
+	private static StyleContext style;
+	
+	/**
+	 * @return Default style plus the test styles
+	 * @throws Exception Any error
+	 */
+	private static synchronized StyleContext getStyle() throws Exception
+	{
+		if(style==null)
+		{
+			style=new StyleContext(StyleContext.getDefault(false));
+			style.addStylesheet(new Stylesheet(STYLES));
+		}
+		return style;
+	}
+	
+	/**
+	 * @return Tests in this suite
+	 */
+	static Test[] getTests()
+	{
+		List<Test> tests=new LinkedList<Test>();
+		for(int block=0;block<BLOCKS.length;block++)
+		{
+			for(int text=0;text<TEXTS.length;text++)
+			{
+				tests.add(new MaxTest(BLOCKS[block],TEXTS[text]));
+				tests.add(new MinTest(BLOCKS[block],TEXTS[text]));
+			}
+		}
+		tests.add(new WrapTest());
+		tests.add(new StaticTest());
+		return Test.toArray(tests);
+	}
+	
+	/**
+	 * @param args Command-line options
+	 */
+	public static void main(String[] args)
+	{
+		Test.runAll("Content width tests",getTests(),args);
+	}
+}
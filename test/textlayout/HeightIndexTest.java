@@ -0,0 +1,134 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.*;
+
+/**
+ * Checks the block height index against a plain list of heights.
+ */
+public class HeightIndexTest
+{
+	/**
+	 * Makes random changes and checks every total and search afterwards.
+	 */
+	private static class RandomTest extends Test
+	{
+		RandomTest()
+		{
+			super("Random changes");
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			Random r=new Random(47);
+			HeightIndex index=new HeightIndex();
+			List<Integer> heights=new ArrayList<Integer>();
+			for(int round=0;round<2000;round++)
+			{
+				int action=r.nextInt(10);
+				if(action<6 || heights.isEmpty())
+				{
+					int height=r.nextInt(4)==0 ? 0 : r.nextInt(50);
+					index.add(height);
+					heights.add(height);
+				}
+				else if(action<8)
+				{
+					int i=r.nextInt(heights.size()),height=r.nextInt(50);
+					index.set(i,height);
+					heights.set(i,height);
+				}
+				else if(action<9)
+				{
+					int count=r.nextInt(heights.size()+1);
+					index.deleteFirst(count);
+					heights.subList(0,count).clear();
+				}
+				else if(r.nextInt(20)==0)
+				{
+					index.clear();
+					heights.clear();
+				}
+				if(round%50==0) checkSame(index,heights);
+			}
+			checkSame(index,heights);
+		}
+		
+		/**
+		 * @param index Index
+		 * @param heights Expected heights
+		 * @throws Failure If they don't match
+		 */
+		private static void checkSame(HeightIndex index,List<Integer> heights)
+			throws Failure
+		{
+			checkEquals(heights.size(),index.size(),"Size");
+			int total=0;
+			for(int i=0;i<heights.size();i++)
+			{
+				checkEquals(heights.get(i).intValue(),index.get(i),"Height "+i);
+				checkEquals(total,index.getBefore(i),"Total before "+i);
+				total+=heights.get(i);
+			}
+			checkEquals(total,index.getTotal(),"Total");
+			for(int y=-1;y<=total+1;y++)
+			{
+				checkEquals(find(heights,y,true),index.find(y,true),"Find at least "+y);
+				checkEquals(find(heights,y,false),index.find(y,false),"Find more than "+y);
+			}
+		}
+		
+		/**
+		 * @param heights Heights
+		 * @param y Position
+		 * @param inclusive True for a total at least y, false for more than y
+		 * @return First index whose total including itself reaches y
+		 */
+		private static int find(List<Integer> heights,int y,boolean inclusive)
+		{
+			int total=0;
+			for(int i=0;i<heights.size();i++)
+			{
+				total+=heights.get(i);
+				if(inclusive ? total>=y : total>y) return i;
+			}
+			return heights.size();
+		}
+	}
+	
+	/**
+	 * @return Tests in this suite
+	 */
+	static Test[] getTests()
+	{
+		List<Test> tests=new LinkedList<Test>();
+		tests.add(new RandomTest());
+		return Test.toArray(tests);
+	}
+	
+	/**
+	 * @param args Command-line options
+	 */
+	public static void main(String[] args)
+	{
+		Test.runAll("Height index tests",getTests(),args);
+	}
+}
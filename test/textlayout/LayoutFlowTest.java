@@ -0,0 +1,257 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.*;
+
+import textlayout.stylesheet.*;
+import util.xml.XML;
+
+/**
+ * Checks that a layout shown at several widths keeps each width's layout
+ * correct as blocks are added, changed and deleted.
+ */
+public class LayoutFlowTest
+{
+	/** Widths used */
+	private final static int NARROW=150,WIDE=600;
+	
+	/** Number of lines added */
+	private final static int LINES=60;
+	
+	/**
+	 * @param sc Styles
+	 * @param index Line number
+	 * @param compact True to generate compact blocks
+	 * @return Blocks for one line of text
+	 * @throws Exception Any error
+	 */
+	private static LayoutBlock[] generate(StyleContext sc,int index,boolean compact) 
+		throws Exception
+	{
+		StringBuffer sb=new StringBuffer("<output><line>Line "+index);
+		for(int i=0;i<index%7;i++) sb.append(" with some more words");
+		sb.append("</line></output>");
+		org.w3c.dom.Element e=XML.parse(sb.toString()).getDocumentElement();
+		return compact ? CompactBlock.getLayout(sc,e) : LayoutGenerator.getLayout(sc,e);
+	}
+	
+	/**
+	 * @param sc Styles
+	 * @param start First line number
+	 * @param end Line number after last
+	 * @param width Width
+	 * @return Height of a new layout of those lines at that width only
+	 * @throws Exception Any error
+	 */
+	private static int getExpectedHeight(StyleContext sc,int start,int end,int width) 
+		throws Exception
+	{
+		Layout l=new Layout();
+		l.reflow(width);
+		for(int i=start;i<end;i++)
+		{
+			for(LayoutBlock lb : generate(sc,i,false)) l.addBlock(sc,lb);
+		}
+		return l.getHeight();
+	}
+	
+	/**
+	 * Adds and deletes blocks while two widths are in use.
+	 */
+	private static class TwoWidthsTest extends Test
+	{
+		private boolean compact;
+		
+		TwoWidthsTest(boolean compact)
+		{
+			super("Two widths"+(compact ? " (compact)" : ""));
+			this.compact=compact;
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			StyleContext sc=StyleContext.getDefault(false);
+			Layout l=new Layout();
+			LayoutFlow narrow=l.acquireFlow(NARROW);
+			for(int i=0;i<LINES/2;i++)
+			{
+				for(LayoutBlock lb : generate(sc,i,compact)) l.addBlock(sc,lb);
+			}
+			LayoutFlow wide=l.acquireFlow(WIDE);
+			for(int i=LINES/2;i<LINES;i++)
+			{
+				for(LayoutBlock lb : generate(sc,i,compact)) l.addBlock(sc,lb);
+			}
+			checkEquals(getExpectedHeight(sc,0,LINES,NARROW),l.getHeight(narrow),
+				"Narrow height");
+			checkEquals(getExpectedHeight(sc,0,LINES,WIDE),l.getHeight(wide),
+				"Wide height");
+			
+			l.deleteFirstBlocks(10);
+			checkEquals(getExpectedHeight(sc,10,LINES,NARROW),l.getHeight(narrow),
+				"Narrow height after delete");
+			checkEquals(getExpectedHeight(sc,10,LINES,WIDE),l.getHeight(wide),
+				"Wide height after delete");
+			
+			// Flow kept while not in use is brought up to date when used again
+			l.releaseFlow(wide);
+			l.addBlock(sc,generate(sc,LINES,compact)[0]);
+			wide=l.acquireFlow(WIDE);
+			checkEquals(getExpectedHeight(sc,10,LINES+1,WIDE),l.getHeight(wide),
+				"Wide height after release");
+		}
+	}
+	
+	/**
+	 * Resizes a pixel at a time, which keeps the lines of blocks that break 
+	 * in the same places.
+	 */
+	private static class ResizeTest extends Test
+	{
+		private boolean compact;
+		
+		ResizeTest(boolean compact)
+		{
+			super("Resize"+(compact ? " (compact)" : ""));
+			this.compact=compact;
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			StyleContext sc=StyleContext.getDefault(false);
+			Layout l=new Layout();
+			l.reflow(NARROW);
+			for(int i=0;i<LINES;i++)
+			{
+				for(LayoutBlock lb : generate(sc,i,compact)) l.addBlock(sc,lb);
+			}
+			for(int width=NARROW+1;width<=NARROW+20;width++)
+			{
+				long before=LayoutMetrics.textBlockReflows.sum();
+				l.reflow(width);
+				check(LayoutMetrics.textBlockReflows.sum()-before<LINES,
+					"Some blocks keep their lines at "+width);
+				checkEquals(getExpectedHeight(sc,0,LINES,width),l.getHeight(),
+					"Height at "+width);
+			}
+		}
+	}
+	
+	/**
+	 * Adds blocks to a collapsed group, which leaves them unflowed until it 
+	 * is expanded.
+	 */
+	private static class GroupTest extends Test
+	{
+		GroupTest()
+		{
+			super("Collapsed group");
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			StyleContext sc=StyleContext.getDefault(false);
+			Layout l=new Layout();
+			l.reflow(NARROW);
+			int number=l.addBlock(sc,new CollapsibleBlock(sc,generate(sc,0,false),
+				new LayoutBlock[0],true));
+			CollapsibleGroup g=new CollapsibleGroup(number,true);
+			int height=l.getHeight();
+			List<LayoutBlock> contents=new ArrayList<LayoutBlock>();
+			for(int i=1;i<LINES;i++)
+			{
+				LayoutBlock[] added=generate(sc,i,false);
+				contents.addAll(Arrays.asList(added));
+				long before=LayoutMetrics.textBlockReflows.sum();
+				l.addToGroup(sc,g,null,added);
+				checkEquals(0L,LayoutMetrics.textBlockReflows.sum()-before,
+					"Nothing flowed for hidden block "+i);
+			}
+			checkEquals(height,l.getHeight(),"Collapsed height");
+			
+			l.setCollapsed(g,false);
+			Layout expected=new Layout();
+			expected.reflow(NARROW);
+			expected.addBlock(sc,new CollapsibleBlock(sc,generate(sc,0,false),
+				contents.toArray(new LayoutBlock[contents.size()]),false));
+			checkEquals(expected.getHeight(),l.getHeight(),"Expanded height");
+		}
+	}
+	
+	/**
+	 * Finds a block by position at one width and its position at another.
+	 */
+	private static class AnchorTest extends Test
+	{
+		AnchorTest()
+		{
+			super("Anchor block");
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			StyleContext sc=StyleContext.getDefault(false);
+			Layout l=new Layout();
+			LayoutFlow narrow=l.acquireFlow(NARROW),wide=l.acquireFlow(WIDE);
+			for(int i=0;i<LINES;i++)
+			{
+				for(LayoutBlock lb : generate(sc,i,false)) l.addBlock(sc,lb);
+			}
+			int y=l.getHeight(narrow)/2;
+			int number=l.getAnchorBlock(narrow,y);
+			check(number>0,"Block found");
+			int top=l.getAnchorY(narrow,number,0);
+			check(top<=y && l.getAnchorY(narrow,number+1,0)>y,"Block covers position");
+			checkEquals(getExpectedHeight(sc,0,number,WIDE),l.getAnchorY(wide,number,0),
+				"Position at other width");
+			
+			l.deleteFirstBlocks(number+1);
+			checkEquals(-1,l.getAnchorY(narrow,number,0),"Deleted block");
+			checkEquals(0,l.getAnchorY(narrow,number+1,0),"First block left");
+		}
+	}
+	
+	/**
+	 * @return Tests in this suite
+	 */
+	static Test[] getTests()
+	{
+		List<Test> tests=new LinkedList<Test>();
+		tests.add(new TwoWidthsTest(false));
+		tests.add(new TwoWidthsTest(true));
+		tests.add(new ResizeTest(false));
+		tests.add(new ResizeTest(true));
+		tests.add(new GroupTest());
+		tests.add(new AnchorTest());
+		return Test.toArray(tests);
+	}
+	
+	/**
+	 * @param args Command-line options
+	 */
+	public static void main(String[] args)
+	{
+		Test.runAll("Layout flow tests",getTests(),args);
+	}
+}
@@ -0,0 +1,115 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.*;
+
+import textlayout.stylesheet.*;
+import util.xml.XML;
+
+/**
+ * Checks that search finds the same matches as looking through the text.
+ */
+public class SearchTest
+{
+	/** Number of lines added */
+	private final static int LINES=300;
+	
+	/** Words used in lines */
+	private final static String[] WORDS=
+	{
+		"alpha","bravo","charlie","delta","echo","foxtrot","golf","hotel"
+	};
+	
+	/**
+	 * Searches a layout of compact blocks for parts of words, before and 
+	 * after deleting old blocks.
+	 */
+	private static class PartWordTest extends Test
+	{
+		PartWordTest()
+		{
+			super("Part-word search");
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			StyleContext sc=StyleContext.getDefault(false);
+			Layout l=new Layout();
+			l.setSearchable(true);
+			for(int i=0;i<LINES;i++)
+			{
+				// Some words only appear in early lines
+				String line="<output><line>"+WORDS[i%WORDS.length]+i+" "+
+					(i<LINES/3 ? "early"+(i%7)+" " : "")+WORDS[(i*3)%WORDS.length]+
+					"</line></output>";
+				for(LayoutBlock lb : CompactBlock.getLayout(sc,
+					XML.parse(line).getDocumentElement())) l.addBlock(sc,lb);
+			}
+			String[] queries={"a","ha","lph","char","rli","ly5","o 1","early","zzz"};
+			checkQueries(l,queries);
+			// Enough that the index cleans out the deleted blocks
+			l.deleteFirstBlocks(LINES*2/3);
+			checkQueries(l,queries);
+		}
+		
+		/**
+		 * @param l Layout
+		 * @param queries Queries to check
+		 * @throws Exception Any error
+		 */
+		private void checkQueries(Layout l,String[] queries) throws Exception
+		{
+			LayoutBlock[] blocks=l.getBlocks(0,l.getBlockCount());
+			for(String query : queries)
+			{
+				int expected=0;
+				for(LayoutBlock lb : blocks)
+				{
+					for(int offset=lb.getText().indexOf(query);offset!=-1;
+						offset=lb.getText().indexOf(query,offset+1))
+					{
+						expected++;
+					}
+				}
+				checkEquals(expected,l.findAll(query,false,Integer.MAX_VALUE).size(),
+					"Matches for '"+query+"'");
+			}
+		}
+	}
+	
+	/**
+	 * @return Tests in this suite
+	 */
+	static Test[] getTests()
+	{
+		List<Test> tests=new LinkedList<Test>();
+		tests.add(new PartWordTest());
+		return Test.toArray(tests);
+	}
+	
+	/**
+	 * @param args Command-line options
+	 */
+	public static void main(String[] args)
+	{
+		Test.runAll("Search tests",getTests(),args);
+	}
+}
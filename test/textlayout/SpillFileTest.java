@@ -0,0 +1,102 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks that the spill file reuses the space of released records.
+ */
+public class SpillFileTest
+{
+	/**
+	 * Writes records and releases the oldest, as happens when old blocks are
+	 * spilled and later deleted.
+	 */
+	private static class ReuseTest extends Test
+	{
+		ReuseTest()
+		{
+			super("Space reused");
+		}
+		
+		@Override
+		void run() throws Exception
+		{
+			File f=File.createTempFile("spilltest",".tmp");
+			SpillFile spill=new SpillFile(f)
+			{
+				@Override
+				void readFailed(IOException e)
+				{
+				}
+			};
+			try
+			{
+				// About 100 records fit in a segment
+				char[] chars=new char[80000];
+				LinkedList<Long> positions=new LinkedList<Long>();
+				LinkedList<String> texts=new LinkedList<String>();
+				for(int i=0;i<1000;i++)
+				{
+					Arrays.fill(chars,(char)('a'+i%26));
+					String text=new String(chars)+i;
+					positions.add(spill.write(new PackedElement(text,new int[] {i})));
+					texts.add(text);
+					if(positions.size()>150)
+					{
+						spill.release(positions.removeFirst());
+						texts.removeFirst();
+					}
+				}
+				check(spill.getSegmentCount()<=3,"Segments used: "+spill.getSegmentCount());
+				
+				Iterator<String> text=texts.iterator();
+				for(long position : positions)
+				{
+					checkEquals(text.next(),spill.read(position).getChars(),"Record text");
+				}
+			}
+			finally
+			{
+				spill.close();
+			}
+			check(!f.exists(),"File deleted");
+		}
+	}
+	
+	/**
+	 * @return Tests in this suite
+	 */
+	static Test[] getTests()
+	{
+		List<Test> tests=new LinkedList<Test>();
+		tests.add(new ReuseTest());
+		return Test.toArray(tests);
+	}
+	
+	/**
+	 * @param args Command-line options
+	 */
+	public static void main(String[] args)
+	{
+		Test.runAll("Spill file tests",getTests(),args);
+	}
+}
@@ -0,0 +1,152 @@
+/*
+This file is part of leafdigital textlayout.
+
+textlayout is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+textlayout is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with textlayout. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package textlayout;
+
+import java.util.List;
+
+/**
+ * Simple test runner, in the same spirit as the benchmark runner. Each test
+ * throws an exception (usually from one of the check methods) if it fails;
+ * the results are printed and the process exits with status 1 if any test 
+ * failed, so that the Ant build fails.
+ * <p>
+ * Command-line options: <tt>-only text</tt> (run only tests whose name 
+ * contains the text).
+ */
+abstract class Test
+{
+	private String name;
+	
+	/**
+	 * @param name Name shown in results
+	 */
+	Test(String name)
+	{
+		this.name=name;
+	}
+	
+	/** @return Name shown in results */
+	String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * Runs the test.
+	 * @throws Exception Any error (including failed checks)
+	 */
+	abstract void run() throws Exception;
+	
+	/**
+	 * Thrown when a check fails.
+	 */
+	static class Failure extends Exception
+	{
+		Failure(String message)
+		{
+			super(message);
+		}
+	}
+	
+	/**
+	 * @param condition Condition that must be true
+	 * @param message Description of failure
+	 * @throws Failure If condition is false
+	 */
+	static void check(boolean condition,String message) throws Failure
+	{
+		if(!condition) throw new Failure(message);
+	}
+	
+	/**
+	 * @param expected Expected value
+	 * @param actual Actual value
+	 * @param message Description of value
+	 * @throws Failure If the values are different
+	 */
+	static void checkEquals(long expected,long actual,String message) throws Failure
+	{
+		if(expected!=actual) 
+			throw new Failure(message+": expected "+expected+", got "+actual);
+	}
+	
+	/**
+	 * @param expected Expected value
+	 * @param actual Actual value
+	 * @param message Description of value
+	 * @throws Failure If the values are different
+	 */
+	static void checkEquals(Object expected,Object actual,String message) throws Failure
+	{
+		if(expected==null ? actual!=null : !expected.equals(actual)) 
+			throw new Failure(message+": expected "+expected+", got "+actual);
+	}
+	
+	/**
+	 * Runs tests and prints results to standard output. Exits with status 1
+	 * if any test failed.
+	 * @param suite Suite name
+	 * @param tests Tests to run
+	 * @param args Command-line options
+	 */
+	static void runAll(String suite,Test[] tests,String[] args)
+	{
+		String only=null;
+		for(int i=0;i<args.length;i++)
+		{
+			if(args[i].equals("-only") && i+1<args.length)
+				only=args[++i];
+			else
+				throw new IllegalArgumentException("Unknown option: "+args[i]);
+		}
+		
+		System.out.println(suite);
+		int failed=0;
+		for(int i=0;i<tests.length;i++)
+		{
+			Test t=tests[i];
+			if(only!=null && t.getName().indexOf(only)==-1) continue;
+			try
+			{
+				t.run();
+				System.out.println("  ok    "+t.getName());
+			}
+			catch(Throwable e)
+			{
+				failed++;
+				System.out.println("  FAIL  "+t.getName()+": "+e);
+				if(!(e instanceof Failure)) e.printStackTrace(System.out);
+			}
+		}
+		if(failed>0)
+		{
+			System.out.println(failed+" failed");
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * @param list Tests
+	 * @return Array
+	 */
+	static Test[] toArray(List<Test> list)
+	{
+		return list.toArray(new Test[list.size()]);
+	}
+}